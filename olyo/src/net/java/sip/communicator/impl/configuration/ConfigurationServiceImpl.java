@@ -9,6 +9,7 @@ package net.java.sip.communicator.impl.configuration;
 import java.io.*;
 import java.util.*;
 import javax.xml.parsers.*;
+import javax.xml.transform.stream.*;
 
 import org.osgi.framework.*;
 import org.w3c.dom.*;
@@ -25,6 +26,14 @@ import net.java.sip.communicator.util.xml.*;
  * file for storing properties. Currently only String properties are
  * meaningfully saved (we should probably consider how and whether we should
  * take care of the rest).
+ * <p>
+ * Changed properties are not stored by the thread changing them. They are
+ * recorded as dirty and a timer stores them together once no property has
+ * changed for <tt>STORE_DELAY</tt> ms, or <tt>STORE_MAX_DELAY</tt> ms after
+ * the first of them changed, updating only their elements in the document.
+ * The file is replaced by a completely written copy, so that it is never
+ * left half written.
+ * </p>
  *
  * @author Emil Ivov
  * @author Damian Minkov
@@ -75,7 +84,7 @@ public class ConfigurationServiceImpl
     /**
      * The list of properties currently registered in the configuration service.
      */
-    private Map properties = new Hashtable();
+    private PropertyStore properties = new PropertyStore();
 
     /**
      * Contains the properties that were initially loaded from the configuration
@@ -96,6 +105,51 @@ public class ConfigurationServiceImpl
      */
     private FileAccessService faService = null;
 
+    /**
+     * The time, in ms, without property changes after which the changed
+     * properties are stored.
+     */
+    private static final long STORE_DELAY = 500;
+
+    /**
+     * The longest time, in ms, a changed property waits to be stored while
+     * other properties keep changing.
+     */
+    private static final long STORE_MAX_DELAY = 5000;
+
+    /**
+     * The extension of the file the configuration is written to before it
+     * replaces the configuration file.
+     */
+    private static final String TEMP_EXT = ".tmp";
+
+    /**
+     * The extension of the backup the fail safe transaction of the
+     * configuration file restores on load.
+     */
+    private static final String BACKUP_EXT = ".bak";
+
+    /**
+     * The names of the properties changed since they were last stored. It
+     * is also the lock of the fields scheduling their store.
+     */
+    private Set dirtyProperties = new HashSet();
+
+    /**
+     * The time the first of the properties not stored yet changed.
+     */
+    private long firstDirtyTime = 0;
+
+    /**
+     * The timer storing the changed properties.
+     */
+    private Timer storeTimer = null;
+
+    /**
+     * The scheduled store of the changed properties, if any.
+     */
+    private TimerTask storeTask = null;
+
     /**
      * Sets the property with the specified name to the specified value. Calling
      * this method would first trigger a PropertyChangeEvent that will
@@ -186,14 +240,112 @@ public class ConfigurationServiceImpl
             changeEventDispatcher.firePropertyChange(
                 propertyName, oldValue, property);
 
+        propertyChanged(propertyName);
+    }
+
+    /**
+     * Records a property as dirty and schedules the store of the dirty
+     * properties. Every change postpones the store by <tt>STORE_DELAY</tt>,
+     * so that a burst of changes is stored at once, but not beyond
+     * <tt>STORE_MAX_DELAY</tt> after the first change not stored yet.
+     *
+     * @param propertyName the name of the changed property
+     */
+    private void propertyChanged(String propertyName)
+    {
+        synchronized (dirtyProperties)
+        {
+            long now = System.currentTimeMillis();
+            if (dirtyProperties.isEmpty())
+                firstDirtyTime = now;
+            dirtyProperties.add(propertyName);
+
+            if (!started)
+                return;
+
+            long delay = Math.min(STORE_DELAY,
+                                  firstDirtyTime + STORE_MAX_DELAY - now);
+            if (storeTask != null)
+            {
+                //the scheduled store is already as late as it may be
+                if (delay <= 0)
+                    return;
+                storeTask.cancel();
+            }
+
+            storeTask = new TimerTask()
+            {
+                public void run()
+                {
+                    storeDirtyProperties(this);
+                }
+            };
+            if (storeTimer == null)
+                storeTimer = new Timer("ConfigurationStore", true);
+            storeTimer.schedule(storeTask, Math.max(0, delay));
+        }
+    }
+
+    /**
+     * Cancels the scheduled store of the dirty properties, if any. Called
+     * under the lock of <tt>dirtyProperties</tt>.
+     */
+    private void cancelStoreTask()
+    {
+        if (storeTask != null)
+        {
+            storeTask.cancel();
+            storeTask = null;
+        }
+    }
+
+    /**
+     * Stores the properties changed since they were last stored, updating
+     * only their elements in the document. Properties which could not be
+     * stored remain dirty.
+     *
+     * @param task the task running the store, or null if it is not run by
+     * the timer
+     */
+    private synchronized void storeDirtyProperties(TimerTask task)
+    {
+        List propertyNames;
+        synchronized (dirtyProperties)
+        {
+            if (task == null || task == storeTask)
+                cancelStoreTask();
+            if (dirtyProperties.isEmpty() || !started)
+                return;
+            propertyNames = new ArrayList(dirtyProperties);
+            dirtyProperties.clear();
+        }
+
+        if (propertiesDocument == null)
+            propertiesDocument = createPropertiesDocument();
+
+        for (int i = 0; i < propertyNames.size(); i++)
+        {
+            String propertyName = (String) propertyNames.get(i);
+            updateProperty(propertiesDocument, propertyName,
+                           properties.get(propertyName));
+        }
+
         try
         {
-            storeConfiguration();
+            writeConfiguration(getConfigurationFile());
         }
         catch (IOException ex)
         {
             logger.error("Failed to store configuration after "
-                         + "a property change");
+                         + "a property change", ex);
+
+            //the next change stores them again
+            synchronized (dirtyProperties)
+            {
+                if (dirtyProperties.isEmpty())
+                    firstDirtyTime = System.currentTimeMillis();
+                dirtyProperties.addAll(propertyNames);
+            }
         }
     }
 
@@ -247,27 +399,7 @@ public class ConfigurationServiceImpl
      */
     public List getPropertyNamesByPrefix(String prefix, boolean exactPrefixMatch)
     {
-        LinkedList resultKeySet = new LinkedList();
-        Iterator keys = properties.keySet().iterator();
-
-        while(keys.hasNext())
-        {
-            String key = (String)keys.next();
-            String keyPrefix = key.substring(0, key.lastIndexOf('.'));
-
-            if(exactPrefixMatch)
-            {
-                if(prefix.equals(keyPrefix))
-                    resultKeySet.add(key);
-            }
-            else
-            {
-                if(keyPrefix.startsWith(prefix))
-                    resultKeySet.add(key);
-            }
-        }
-
-        return resultKeySet;
+        return properties.getNamesByPrefix(prefix, exactPrefixMatch);
     }
 
     /**
@@ -366,10 +498,22 @@ public class ConfigurationServiceImpl
     }
     
     /**
-     * Called on service stop.
+     * Called on service stop. Stores the properties changed since they were
+     * last stored.
      */
     void stop()
     {
+        storeDirtyProperties(null);
+
+        synchronized (dirtyProperties)
+        {
+            if (storeTimer != null)
+            {
+                storeTimer.cancel();
+                storeTimer = null;
+            }
+        }
+
         this.started = false;
     }
 
@@ -403,10 +547,17 @@ public class ConfigurationServiceImpl
         }
     }
 
-    public void reloadConfiguration()
+    public synchronized void reloadConfiguration()
         throws IOException, XMLException
     {
-        properties = new Hashtable();
+        //the changes not stored yet are discarded with the properties
+        synchronized (dirtyProperties)
+        {
+            cancelStoreTask();
+            dirtyProperties.clear();
+        }
+
+        properties = new PropertyStore();
         this.configurationFile = null;
 
         fileExtractedProperties =
@@ -522,7 +673,14 @@ public class ConfigurationServiceImpl
     {
         if(!started)
             throw new IllegalStateException("Service is stopped or has not been started");
-        
+
+        //all the properties are stored, the dirty ones with them
+        synchronized (dirtyProperties)
+        {
+            cancelStoreTask();
+            dirtyProperties.clear();
+        }
+
         //resolve the properties that were initially in the file - back to
         //the document.
 
@@ -559,22 +717,64 @@ public class ConfigurationServiceImpl
                                   newlyAddedProperties);
 
         //write the file.
-        File config = getConfigurationFile();
-        FailSafeTransaction trans = this.faService
-                                        .createFailSafeTransaction(config);
-        try {
-            trans.beginTransaction();
-            OutputStream stream = new FileOutputStream(config);
-            XMLUtils.indentedWriteXML(
-                    propertiesDocument, stream);
-            stream.close();
-            trans.commit();
-        } catch (Exception e) {
+        try
+        {
+            writeConfiguration(file);
+        }
+        catch (IOException e)
+        {
             logger.error("can't write data in the configuration file", e);
-            trans.rollback();
         }
     }
 
+    /**
+     * Writes the document to the specified configuration file. The document
+     * is written to a temporary file and synced to the disk first, and the
+     * temporary file is then renamed over the configuration file, so that a
+     * crash leaves either the previous or the new configuration.
+     *
+     * @param file the configuration file to write
+     * @throws IOException if the file could not be written or replaced.
+     */
+    private void writeConfiguration(File file)
+        throws IOException
+    {
+        File temp = new File(file.getPath() + TEMP_EXT);
+        FileOutputStream out = new FileOutputStream(temp);
+        try
+        {
+            XMLUtils.writeXML(propertiesDocument, new StreamResult(out),
+                              null, null);
+            out.flush();
+            out.getFD().sync();
+        }
+        finally
+        {
+            out.close();
+        }
+
+        if (temp.renameTo(file))
+            return;
+
+        //some platforms do not rename over an existing file. the previous
+        //file is kept as the backup which loadConfiguration restores through
+        //the fail safe transaction until the new one is in place.
+        File backup = new File(file.getPath() + BACKUP_EXT);
+        backup.delete();
+        if (file.exists() && !file.renameTo(backup))
+        {
+            temp.delete();
+            throw new IOException("Could not replace " + file);
+        }
+        if (!temp.renameTo(file))
+        {
+            backup.renameTo(file);
+            temp.delete();
+            throw new IOException("Could not replace " + file);
+        }
+        backup.delete();
+    }
+
     /**
      * Loads the contents of the specified node and its children into the local
      * properties. Any nodes marked as "system" will also be resolved in the
@@ -648,9 +848,9 @@ public class ConfigurationServiceImpl
      * @param properties the dictionary object where the up to date values of
      * the node should be queried.
      */
-    private void updateNode(Node         node,
-                            StringBuffer propertyNameBuff,
-                            Map          properties)
+    private void updateNode(Node          node,
+                            StringBuffer  propertyNameBuff,
+                            PropertyStore properties)
     {
         Node currentNode = null;
         NodeList children = node.getChildNodes();
@@ -747,6 +947,7 @@ public class ConfigurationServiceImpl
             //have to look for it in the sys props next time and so that it is
             //available for other bundles to consult.
             properties.put(PNAME_SC_HOME_DIR_LOCATION, scHomeDirLocation);
+            propertyChanged(PNAME_SC_HOME_DIR_LOCATION);
         }
 
         return scHomeDirLocation;
@@ -783,6 +984,7 @@ public class ConfigurationServiceImpl
             //have to look for it in the sys props next time and so that it is
             //available for other bundles to consult.
             properties.put(PNAME_SC_HOME_DIR_NAME, scHomeDirName);
+            propertyChanged(PNAME_SC_HOME_DIR_NAME);
         }
 
         return scHomeDirName;
@@ -928,11 +1130,7 @@ public class ConfigurationServiceImpl
                                     String value,
                                     boolean isSystem)
     {
-        StringTokenizer tokenizer = new StringTokenizer(key, ".");
-        String[] toks = new String[tokenizer.countTokens()];
-        int i = 0;
-        while(tokenizer.hasMoreTokens())
-            toks[i++] = tokenizer.nextToken();
+        String[] toks = toPath(key);
 
         String[] chain = new String[toks.length - 1];
         for (int j = 0; j < chain.length; j++)
@@ -953,6 +1151,64 @@ public class ConfigurationServiceImpl
 
         if(isSystem)
             newNode.setAttribute(SYSTEM_ATTRIBUTE_NAME, SYSTEM_ATTRIBUTE_TRUE);
+        else
+            newNode.removeAttribute(SYSTEM_ATTRIBUTE_NAME);
+    }
+
+    /**
+     * Updates the entry of a changed property in the xml <tt>doc</tt>: the
+     * entry is created or given the current value of the property, or it is
+     * removed if the property was. The entry of a removed property which
+     * has entries of other properties inside only loses its value.
+     *
+     * @param doc the XML <tt>document</tt> to update.
+     * @param key the name of the changed property
+     * @param value the current value of the property, null if it was removed
+     */
+    private void updateProperty(Document doc, String key, Object value)
+    {
+        boolean isSystem = value instanceof PropertyReference;
+        if (isSystem)
+            value = ((PropertyReference)value).getValue();
+
+        if (value != null)
+        {
+            processNewProperty(doc, key, value.toString(), isSystem);
+            return;
+        }
+
+        Element node = XMLConfUtils.getChildElementByChain(
+            (Element)doc.getFirstChild(), toPath(key));
+        if (node == null)
+            return;
+
+        NodeList children = node.getChildNodes();
+        for (int i = 0; i < children.getLength(); i++)
+        {
+            if (children.item(i).getNodeType() == Node.ELEMENT_NODE)
+            {
+                node.removeAttribute(ATTRIBUTE_VALUE);
+                node.removeAttribute(SYSTEM_ATTRIBUTE_NAME);
+                return;
+            }
+        }
+        node.getParentNode().removeChild(node);
+    }
+
+    /**
+     * Splits a property name in the names of the elements of its entry.
+     *
+     * @param key the name of a property
+     * @return the dot separated components of the name
+     */
+    private static String[] toPath(String key)
+    {
+        StringTokenizer tokenizer = new StringTokenizer(key, ".");
+        String[] toks = new String[tokenizer.countTokens()];
+        int i = 0;
+        while(tokenizer.hasMoreTokens())
+            toks[i++] = tokenizer.nextToken();
+        return toks;
     }
 
 
@@ -1042,20 +1298,7 @@ public class ConfigurationServiceImpl
      */
     private Map cloneProperties()
     {
-        //at the time I'm writing this method we're implementing the
-        //configuraiton service through the use of a hashtable. this may very
-        //well change one day so let's not be overy assumptious (can you
-        //actually say that?)
-        if(properties instanceof Hashtable)
-            return (Map)((Hashtable)properties).clone();
-        if(properties instanceof HashMap)
-            return (Map)((HashMap)properties).clone();
-        if(properties instanceof TreeMap)
-            return (Map)((TreeMap)properties).clone();
-
-        //well you can't say that I didn't try!!!
-
-        return new Hashtable(properties);
+        return properties.toMap();
     }
 
     /**
@@ -1077,8 +1320,14 @@ public class ConfigurationServiceImpl
     /**
      * Deletes the configuration file currently used by this implementation.
      */
-    public void purgeStoredConfiguration()
+    public synchronized void purgeStoredConfiguration()
     {
+        //the changes are stored again with the next store
+        synchronized (dirtyProperties)
+        {
+            cancelStoreTask();
+        }
+
         if (this.configurationFile != null)
         {
             configurationFile.delete();
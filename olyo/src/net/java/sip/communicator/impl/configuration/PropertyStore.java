@@ -0,0 +1,262 @@
+/*
+ * SIP Communicator, the OpenSource Java VoIP and Instant Messaging client.
+ *
+ * Distributable under LGPL license.
+ * See terms of license at gnu.org.
+ */
+package net.java.sip.communicator.impl.configuration;
+
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * The properties of the configuration service, indexed by the prefixes of
+ * their names.
+ * <p>
+ * The prefix of a property name is the part before its last dot. The names
+ * are kept in a tree of the dot separated components of their prefixes, so
+ * that the names with a given prefix, or with prefixes starting with a given
+ * string, are found by walking down to the node of the prefix instead of
+ * going through all the names. Names without a dot have no prefix and are
+ * not returned by prefix queries.
+ * </p><p>
+ * Reads, including prefix queries, do not lock: the values and the tree are
+ * held in concurrent maps. Writes are serialized so that the tree always
+ * holds exactly the names of the stored properties.
+ * </p>
+ */
+public class PropertyStore
+{
+    /**
+     * The values of the properties, by name.
+     */
+    private final Map values = new ConcurrentHashMap();
+
+    /**
+     * The node of the empty path, whose children are the first components
+     * of the prefixes.
+     */
+    private final PrefixNode root = new PrefixNode();
+
+    /**
+     * Returns the value of a property.
+     *
+     * @param propertyName the name of the property
+     * @return the value of the property or null if there is no such property
+     */
+    public Object get(String propertyName)
+    {
+        return values.get(propertyName);
+    }
+
+    /**
+     * Returns whether there is a property with the given name.
+     *
+     * @param propertyName the name of the property
+     * @return true if the property exists
+     */
+    public boolean containsKey(String propertyName)
+    {
+        return values.containsKey(propertyName);
+    }
+
+    /**
+     * Sets the value of a property.
+     *
+     * @param propertyName the name of the property
+     * @param value the new value of the property, not null
+     * @return the previous value of the property, or null if it is new
+     */
+    public synchronized Object put(String propertyName, Object value)
+    {
+        Object oldValue = values.put(propertyName, value);
+
+        if (oldValue == null)
+        {
+            PrefixNode node = getPrefixNode(propertyName, true);
+            if (node != null)
+                node.names.put(propertyName, propertyName);
+        }
+        return oldValue;
+    }
+
+    /**
+     * Sets the values of the properties of a map.
+     *
+     * @param properties the values of the properties, by name
+     */
+    public synchronized void putAll(Map properties)
+    {
+        Iterator entries = properties.entrySet().iterator();
+        while (entries.hasNext())
+        {
+            Map.Entry entry = (Map.Entry) entries.next();
+            put((String) entry.getKey(), entry.getValue());
+        }
+    }
+
+    /**
+     * Removes a property.
+     *
+     * @param propertyName the name of the property
+     * @return the value of the removed property, or null if there was none
+     */
+    public synchronized Object remove(String propertyName)
+    {
+        Object oldValue = values.remove(propertyName);
+
+        if (oldValue != null)
+        {
+            PrefixNode node = getPrefixNode(propertyName, false);
+            if (node != null)
+                node.names.remove(propertyName);
+        }
+        return oldValue;
+    }
+
+    /**
+     * Returns a copy of the properties.
+     *
+     * @return a map of the values of the properties, by name
+     */
+    public Map toMap()
+    {
+        return new Hashtable(values);
+    }
+
+    /**
+     * Returns the names of the properties whose prefix is <tt>prefix</tt>,
+     * or, if <tt>exactPrefixMatch</tt> is false, whose prefix starts with
+     * <tt>prefix</tt>.
+     *
+     * @param prefix the prefix of the property names
+     * @param exactPrefixMatch whether the prefix of the names has to be
+     * <tt>prefix</tt> itself
+     * @return a list of the matching property names
+     */
+    public List getNamesByPrefix(String prefix, boolean exactPrefixMatch)
+    {
+        List result = new LinkedList();
+
+        if (exactPrefixMatch)
+        {
+            PrefixNode node = findNode(root, prefix, 0, prefix.length());
+            if (node != null)
+                result.addAll(node.names.keySet());
+            return result;
+        }
+
+        // the prefixes starting with prefix continue its complete components
+        // with a component starting with its last, possibly empty, one
+        int lastDot = prefix.lastIndexOf('.');
+        PrefixNode parent = (lastDot < 0)
+            ? root
+            : findNode(root, prefix, 0, lastDot);
+        if (parent == null)
+            return result;
+
+        String partial = prefix.substring(lastDot + 1);
+        Iterator children = parent.children.entrySet().iterator();
+        while (children.hasNext())
+        {
+            Map.Entry child = (Map.Entry) children.next();
+            if (((String) child.getKey()).startsWith(partial))
+                addNames((PrefixNode) child.getValue(), result);
+        }
+        return result;
+    }
+
+    /**
+     * Adds the names of a node and all the nodes below it to a list.
+     */
+    private static void addNames(PrefixNode node, List result)
+    {
+        result.addAll(node.names.keySet());
+
+        Iterator children = node.children.values().iterator();
+        while (children.hasNext())
+            addNames((PrefixNode) children.next(), result);
+    }
+
+    /**
+     * Returns the node of the prefix of a property name.
+     *
+     * @param propertyName the name of the property
+     * @param create whether to create the missing nodes of the prefix
+     * @return the node of the prefix, or null if the name has no prefix or
+     * the node does not exist and is not created
+     */
+    private PrefixNode getPrefixNode(String propertyName, boolean create)
+    {
+        int lastDot = propertyName.lastIndexOf('.');
+        if (lastDot < 0)
+            return null;
+
+        if (!create)
+            return findNode(root, propertyName, 0, lastDot);
+
+        PrefixNode node = root;
+        int start = 0;
+        while (true)
+        {
+            int end = propertyName.indexOf('.', start);
+            if (end < 0 || end > lastDot)
+                end = lastDot;
+
+            String component = propertyName.substring(start, end);
+            PrefixNode child = (PrefixNode) node.children.get(component);
+            if (child == null)
+            {
+                child = new PrefixNode();
+                node.children.put(component, child);
+            }
+            node = child;
+
+            if (end == lastDot)
+                return node;
+            start = end + 1;
+        }
+    }
+
+    /**
+     * Walks down from a node along the components of the path
+     * <tt>path.substring(start, end)</tt>.
+     *
+     * @return the node at the end of the path, or null if there is none
+     */
+    private static PrefixNode findNode(PrefixNode node, String path,
+                                       int start, int end)
+    {
+        while (node != null)
+        {
+            int dot = path.indexOf('.', start);
+            if (dot < 0 || dot > end)
+                dot = end;
+
+            node = (PrefixNode) node.children.get(
+                path.substring(start, dot));
+
+            if (dot == end)
+                return node;
+            start = dot + 1;
+        }
+        return null;
+    }
+
+    /**
+     * A component of the prefixes of property names.
+     */
+    private static class PrefixNode
+    {
+        /**
+         * The nodes of the next components, by component.
+         */
+        final Map children = new ConcurrentHashMap();
+
+        /**
+         * The names of the properties whose prefix ends with this node, used
+         * as a set.
+         */
+        final Map names = new ConcurrentHashMap();
+    }
+}
@@ -0,0 +1,165 @@
+/*
+ * SIP Communicator, the OpenSource Java VoIP and Instant Messaging client.
+ *
+ * Distributable under LGPL license.
+ * See terms of license at gnu.org.
+ */
+package net.java.sip.communicator.impl.contactlist;
+
+import java.io.*;
+import java.util.*;
+import java.util.zip.*;
+
+import net.java.sip.communicator.util.*;
+
+/**
+ * An append-only file of the changes made to the contact list since it was
+ * last written as a whole.
+ * <p>
+ * Every record is a string, the XML of a changed node of the contact list,
+ * stored as its length in bytes and the CRC32 of its bytes followed by its
+ * UTF-8 bytes. Records are only appended and the file is synced to the disk
+ * after every append, so a crash can at most leave the last record
+ * incomplete. When the journal is read, the first record which is
+ * incomplete or fails its checksum ends it: it is dropped and cut off the
+ * file together with everything after it, as the changes after it cannot
+ * be applied without it.
+ * </p>
+ */
+class MclJournal
+{
+    private static final Logger logger = Logger.getLogger(MclJournal.class);
+
+    private final File file;
+
+    /**
+     * Creates the journal stored in <tt>file</tt>, which does not have to
+     * exist yet.
+     *
+     * @param file the file of the journal
+     */
+    MclJournal(File file)
+    {
+        this.file = file;
+    }
+
+    /**
+     * Reads the complete records of the journal, in the order they were
+     * appended, up to the first incomplete or corrupted one, which is cut
+     * off with the records after it.
+     *
+     * @return a list of the records of the journal, as strings.
+     * @throws IOException if reading the journal fails.
+     */
+    List read() throws IOException
+    {
+        List records = new ArrayList();
+        if (!file.exists())
+            return records;
+
+        long length = file.length();
+        long validLength = 0;
+
+        CRC32 crc = new CRC32();
+        DataInputStream in = new DataInputStream(
+            new BufferedInputStream(new FileInputStream(file)));
+        try
+        {
+            while (validLength + 8 <= length)
+            {
+                int size = in.readInt();
+                int checksum = in.readInt();
+                if (size < 0 || validLength + 8 + size > length)
+                    break;
+
+                byte[] bytes = new byte[size];
+                in.readFully(bytes);
+
+                crc.reset();
+                crc.update(bytes);
+                if ((int) crc.getValue() != checksum)
+                    break;
+
+                records.add(new String(bytes, "UTF-8"));
+                validLength += 8 + size;
+            }
+        }
+        finally
+        {
+            in.close();
+        }
+
+        if (validLength < length)
+        {
+            logger.warn("Dropping " + (length - validLength) + " bytes of "
+                        + "incomplete or corrupted records from the contact "
+                        + "list journal " + file);
+
+            RandomAccessFile out = new RandomAccessFile(file, "rw");
+            try
+            {
+                out.setLength(validLength);
+            }
+            finally
+            {
+                out.close();
+            }
+        }
+
+        return records;
+    }
+
+    /**
+     * Appends records to the journal and syncs it to the disk.
+     *
+     * @param records the records to append, as strings
+     * @throws IOException if writing the journal fails.
+     */
+    void append(List records) throws IOException
+    {
+        FileOutputStream out = new FileOutputStream(file, true);
+        try
+        {
+            DataOutputStream data = new DataOutputStream(
+                new BufferedOutputStream(out));
+            CRC32 crc = new CRC32();
+            for (int i = 0; i < records.size(); i++)
+            {
+                byte[] bytes = ((String) records.get(i)).getBytes("UTF-8");
+                crc.reset();
+                crc.update(bytes);
+                data.writeInt(bytes.length);
+                data.writeInt((int) crc.getValue());
+                data.write(bytes);
+            }
+            data.flush();
+            out.getFD().sync();
+        }
+        finally
+        {
+            out.close();
+        }
+    }
+
+    /**
+     * Empties the journal, after the contact list has been written as a
+     * whole.
+     *
+     * @throws IOException if the journal could not be emptied.
+     */
+    void clear() throws IOException
+    {
+        if (file.exists() && file.length() > 0)
+            new FileOutputStream(file).close();
+    }
+
+    /**
+     * Returns the size of the journal in bytes.
+     *
+     * @return the size of the journal in bytes.
+     */
+    long length()
+    {
+        return file.length();
+    }
+}
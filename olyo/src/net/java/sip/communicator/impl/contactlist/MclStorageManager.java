@@ -9,9 +9,13 @@ package net.java.sip.communicator.impl.contactlist;
 import java.io.*;
 import java.util.*;
 import javax.xml.parsers.*;
+import javax.xml.transform.*;
+import javax.xml.transform.dom.*;
+import javax.xml.transform.stream.*;
 
 import org.osgi.framework.*;
 import org.w3c.dom.*;
+import org.xml.sax.*;
 
 import net.java.sip.communicator.service.configuration.*;
 import net.java.sip.communicator.service.contactlist.*;
@@ -37,6 +41,15 @@ import net.java.sip.communicator.util.xml.XMLUtils;
  *    belonging to this new provider. Unresolved proto groups and contacts
  *    will be created for every one of them.
  * <p>
+ * The group and meta contact nodes of the file are indexed by UID. When the
+ * journal is enabled, changes are not stored by writing the whole file but
+ * by appending the changed group and meta contact nodes to a journal, which
+ * is replayed over the file when it is loaded. The journal is compacted, by
+ * writing the whole file and emptying it, once it grows larger than the
+ * file. Replaying a record which is already in the file leaves the file as
+ * it is, so a crash between writing the file and emptying the journal loses
+ * nothing.
+ * <p>
  *
  * @author Emil Ivov
  */
@@ -82,6 +95,62 @@ public class MclStorageManager
     private static final String FILE_NAME_PROPERTY =
         "net.java.sip.communicator.CONTACTLIST_FILE_NAME";
 
+    /**
+     * The name of the property that enables the journal of the contact list
+     * (disabled by default): changes are appended to a journal which is
+     * compacted into the contact list file once it grows larger than it,
+     * instead of writing the whole file after every change.
+     */
+    public static final String JOURNAL_ENABLED_PROPERTY =
+        "net.java.sip.communicator.impl.contactlist.JOURNAL_ENABLED";
+
+    /**
+     * The extension added to the name of the contact list file to get the
+     * name of its journal.
+     */
+    private static final String JOURNAL_FILE_EXT = ".journal";
+
+    /**
+     * The size, in bytes, the journal may reach before being compacted when
+     * the contact list file is smaller.
+     */
+    private static final long JOURNAL_MIN_COMPACTION_SIZE = 64 * 1024;
+
+    /**
+     * The journal of the changes made to the contact list since the file was
+     * last written.
+     */
+    private MclJournal journal = null;
+
+    /**
+     * Whether changes are appended to the journal.
+     */
+    private boolean journalEnabled = false;
+
+    /**
+     * The group and meta contact nodes changed since the journal was last
+     * appended, in the order they were first changed.
+     */
+    private final Set changedNodes = new LinkedHashSet();
+
+    /**
+     * Whether faulty or duplicate nodes have been removed from the document
+     * while loading the contacts of an account.
+     */
+    private boolean isModifiedWhileLoading = false;
+
+    /**
+     * The group nodes of the contact list document, by UID. Nodes removed
+     * from the document are dropped when they are looked up.
+     */
+    private final Map groupNodes = new Hashtable();
+
+    /**
+     * The meta contact nodes of the contact list document, by UID. Nodes
+     * removed from the document are dropped when they are looked up.
+     */
+    private final Map metaContactNodes = new Hashtable();
+
     /**
      * The XML Document containing the contact list file.
      */
@@ -198,6 +267,29 @@ public class MclStorageManager
      */
     private static final String CHILD_CONTACTS_NODE_NAME = "child-contacts";
 
+    /**
+     * The name of the journal record that contains a changed group or meta
+     * contact node.
+     */
+    private static final String JOURNAL_PUT_NODE_NAME = "put";
+
+    /**
+     * The name of the journal record of a removed group or meta contact.
+     */
+    private static final String JOURNAL_REMOVE_NODE_NAME = "remove";
+
+    /**
+     * The name of the attribute of a journal record that contains the UID of
+     * the parent group of the node.
+     */
+    private static final String JOURNAL_PARENT_ATTR_NAME = "parent";
+
+    /**
+     * The name of the attribute of a journal record that contains the name
+     * of the removed node.
+     */
+    private static final String JOURNAL_TYPE_ATTR_NAME = "type";
+
     /**
      * A lock that we use when storing the contact list to avoid being exited
      * while in there.
@@ -226,7 +318,7 @@ public class MclStorageManager
         this.started = false;
         synchronized(contactListRWLock)
         {
-            this.contactListRWLock.notifyAll();
+            MclStorageManager.contactListRWLock.notifyAll();
         }
     }
 
@@ -344,6 +436,32 @@ public class MclStorageManager
             logger.error("Error finding configuration for default parsers", ex);
         }
 
+        String journalEnabledStr
+            = configurationService.getString(JOURNAL_ENABLED_PROPERTY);
+        if (journalEnabledStr == null)
+            journalEnabledStr = System.getProperty(JOURNAL_ENABLED_PROPERTY);
+        journalEnabled = Boolean.valueOf(journalEnabledStr).booleanValue();
+
+        if (contactListDocument != null)
+        {
+            indexNodes(contactListDocument.getDocumentElement());
+
+            //apply the changes stored in the journal since the file was
+            //written, also if the journal is not used any more.
+            try
+            {
+                journal = new MclJournal(faService.getPrivatePersistentFile(
+                    fileName + JOURNAL_FILE_EXT));
+            }
+            catch (Exception ex)
+            {
+                throw new IOException("Failed to get a reference to the "
+                                      + "contact list journal. error was:"
+                                      + ex.getMessage());
+            }
+            replayJournal();
+        }
+
         mclServiceImpl.addMetaContactListListener(this);
         this.mclServiceImpl = mclServiceImpl;
         started = true;
@@ -356,13 +474,45 @@ public class MclStorageManager
      */
     private void scheduleContactListStorage() throws IOException
     {
-        synchronized(this.contactListRWLock)
+        synchronized(MclStorageManager.contactListRWLock)
         {
             if (!isStarted())
                 return;
 
             this.isModified = true;
-            this.contactListRWLock.notifyAll();
+            MclStorageManager.contactListRWLock.notifyAll();
+        }
+    }
+
+    /**
+     * Stores a changed group or meta contact node: schedules its addition to
+     * the journal if the journal is enabled, or the storage of the whole
+     * contact list otherwise.
+     *
+     * @param nodeName the name of the node, a group or a meta contact
+     * @param uid the UID of the group or meta contact, whose node may have
+     * been removed
+     * @throws IOException if writing fails.
+     */
+    private void scheduleNodeStorage(String nodeName, String uid)
+        throws IOException
+    {
+        synchronized(MclStorageManager.contactListRWLock)
+        {
+            if (!isStarted())
+                return;
+
+            //a change of the root group is a change of the whole list
+            if (journalEnabled
+                && !uid.equals(mclServiceImpl.getRoot().getMetaUID()))
+            {
+                changedNodes.add(new NodeChange(nodeName, uid));
+            }
+            else
+            {
+                this.isModified = true;
+            }
+            MclStorageManager.contactListRWLock.notifyAll();
         }
     }
 
@@ -397,9 +547,262 @@ public class MclStorageManager
             } catch (IllegalStateException e) {
                 logger.error("the contactlist file is missing", e);
             }
+
+            // the file now contains all the changes
+            changedNodes.clear();
+            if (journal != null)
+                journal.clear();
+        }
+    }
+
+    /**
+     * Stores the changes made since they were last stored: writes the whole
+     * contact list if it has been modified as a whole, or appends the changed
+     * nodes to the journal, and compacts the journal once it has grown larger
+     * than the file. Called with the contact list RW lock held.
+     *
+     * @throws IOException in case writing fails.
+     */
+    private void storeChanges() throws IOException
+    {
+        if (!isModified && !changedNodes.isEmpty())
+        {
+            try
+            {
+                journal.append(createJournalRecords());
+                changedNodes.clear();
+
+                if (journal.length() > Math.max(JOURNAL_MIN_COMPACTION_SIZE,
+                                                contactlistFile.length()))
+                    isModified = true;
+            }
+            catch (IOException ex)
+            {
+                logger.error("Appending to the contact list journal failed. "
+                             + "Storing the whole contact list.", ex);
+                isModified = true;
+            }
+        }
+
+        if (isModified)
+        {
+            storeContactList0();
+            isModified = false;
         }
     }
 
+    /**
+     * Creates the journal records of the changed nodes: the XML of a node
+     * and the UID of its parent group, or the UID of a node which has been
+     * removed.
+     *
+     * @return a list of the records of the changed nodes, as strings.
+     * @throws IOException if the nodes could not be serialized.
+     */
+    private List createJournalRecords() throws IOException
+    {
+        List records = new ArrayList(changedNodes.size());
+
+        try
+        {
+            Transformer serializer
+                = TransformerFactory.newInstance().newTransformer();
+            serializer.setOutputProperty(OutputKeys.OMIT_XML_DECLARATION,
+                                         "yes");
+            serializer.setOutputProperty(OutputKeys.ENCODING, "UTF-8");
+
+            Iterator changes = changedNodes.iterator();
+            while (changes.hasNext())
+            {
+                NodeChange change = (NodeChange) changes.next();
+                Element node = findNode(change.nodeName, change.uid);
+                Element record;
+
+                if (node == null)
+                {
+                    record = contactListDocument.createElement(
+                        JOURNAL_REMOVE_NODE_NAME);
+                    record.setAttribute(JOURNAL_TYPE_ATTR_NAME,
+                                        change.nodeName);
+                    record.setAttribute(UID_ATTR_NAME, change.uid);
+                }
+                else
+                {
+                    record = contactListDocument.createElement(
+                        JOURNAL_PUT_NODE_NAME);
+
+                    //nodes are held by a child of the node of their group
+                    Node parentGroupNode = node.getParentNode().getParentNode();
+                    if (parentGroupNode != null
+                        && parentGroupNode.getNodeName().equals(
+                            GROUP_NODE_NAME))
+                        record.setAttribute(
+                            JOURNAL_PARENT_ATTR_NAME,
+                            ((Element) parentGroupNode)
+                                .getAttribute(UID_ATTR_NAME));
+
+                    record.appendChild(node.cloneNode(true));
+                }
+
+                StringWriter writer = new StringWriter();
+                serializer.transform(new DOMSource(record),
+                                     new StreamResult(writer));
+                records.add(writer.toString());
+            }
+        }
+        catch (TransformerException ex)
+        {
+            throw new IOException("Failed to create the contact list journal "
+                                  + "records: " + ex.getMessageAndLocation());
+        }
+        return records;
+    }
+
+    /**
+     * Applies the records of the journal to the contact list document, and
+     * schedules the compaction of the journal if it has grown larger than the
+     * contact list file or is not used any more.
+     */
+    private void replayJournal()
+    {
+        List records;
+        try
+        {
+            records = journal.read();
+        }
+        catch (IOException ex)
+        {
+            logger.error("Failed to read the contact list journal", ex);
+            isModified = true;
+            return;
+        }
+
+        if (records.size() == 0)
+            return;
+
+        try
+        {
+            DocumentBuilder builder
+                = DocumentBuilderFactory.newInstance().newDocumentBuilder();
+
+            for (int i = 0; i < records.size(); i++)
+            {
+                try
+                {
+                    applyJournalRecord(builder, (String) records.get(i));
+                }
+                catch (Exception ex)
+                {
+                    //continue with the other records
+                    logger.error("Failed to apply the contact list journal "
+                                 + "record " + records.get(i), ex);
+                }
+            }
+        }
+        catch (ParserConfigurationException ex)
+        {
+            logger.error("Error finding configuration for default parsers", ex);
+        }
+
+        logger.debug("Applied " + records.size() + " contact list journal "
+                     + "records");
+
+        if (!journalEnabled
+            || journal.length() > Math.max(JOURNAL_MIN_COMPACTION_SIZE,
+                                           contactlistFile.length()))
+            isModified = true;
+    }
+
+    /**
+     * Applies a journal record to the contact list document: removes the
+     * node of a removed group or meta contact or puts a changed node in its
+     * parent group, in place of the nodes with the same UIDs.
+     *
+     * @param builder the builder parsing the record
+     * @param record the journal record
+     * @throws Exception if the record could not be parsed.
+     */
+    private void applyJournalRecord(DocumentBuilder builder, String record)
+        throws Exception
+    {
+        Element recordNode = builder.parse(
+            new InputSource(new StringReader(record))).getDocumentElement();
+
+        if (recordNode.getNodeName().equals(JOURNAL_REMOVE_NODE_NAME))
+        {
+            Element node = findNode(
+                recordNode.getAttribute(JOURNAL_TYPE_ATTR_NAME),
+                recordNode.getAttribute(UID_ATTR_NAME));
+
+            if (node != null)
+                node.getParentNode().removeChild(node);
+            return;
+        }
+
+        Element node = null;
+        NodeList children = recordNode.getChildNodes();
+        for (int i = 0; i < children.getLength() && node == null; i++)
+        {
+            if (children.item(i).getNodeType() == Node.ELEMENT_NODE)
+                node = (Element) contactListDocument.importNode(
+                    children.item(i), true);
+        }
+
+        if (node == null)
+            return;
+
+        Element container;
+        String parentUID = recordNode.getAttribute(JOURNAL_PARENT_ATTR_NAME);
+        if (parentUID.length() == 0)
+        {
+            container = contactListDocument.getDocumentElement();
+        }
+        else
+        {
+            Element parentGroupNode = findMetaContactGroupNode(parentUID);
+            if (parentGroupNode == null)
+            {
+                //the node has been moved to a group created later, whose
+                //record contains it.
+                logger.debug("Ignoring a contact list journal record whose "
+                            + "parent group is not found: " + record);
+                return;
+            }
+
+            container = XMLUtils.findChild(
+                parentGroupNode,
+                node.getNodeName().equals(GROUP_NODE_NAME)
+                    ? SUBGROUPS_NODE_NAME
+                    : CHILD_CONTACTS_NODE_NAME);
+        }
+
+        //the node replaces the nodes with the same UIDs, wherever they are
+        removeIndexedNode(node);
+        NodeList groups = node.getElementsByTagName(GROUP_NODE_NAME);
+        for (int i = 0; i < groups.getLength(); i++)
+            removeIndexedNode((Element) groups.item(i));
+        NodeList metaContacts
+            = node.getElementsByTagName(META_CONTACT_NODE_NAME);
+        for (int i = 0; i < metaContacts.getLength(); i++)
+            removeIndexedNode((Element) metaContacts.item(i));
+
+        container.appendChild(node);
+        indexNodes(node);
+    }
+
+    /**
+     * Removes from the document the node with the same name and UID as
+     * <tt>node</tt>, if any.
+     */
+    private void removeIndexedNode(Element node)
+    {
+        Element existingNode = findNode(node.getNodeName(),
+                                        node.getAttribute(UID_ATTR_NAME));
+
+        if (existingNode != null)
+            existingNode.getParentNode().removeChild(existingNode);
+    }
+
     /**
      * Launches a separate thread that waits on the contact list rw lock and
      * when notified stores the contact list in case there have been
@@ -418,11 +821,7 @@ public class MclStorageManager
                         while(isStarted())
                         {
                             contactListRWLock.wait(5000);
-                            if (isModified)
-                            {
-                                storeContactList0();
-                                isModified = false;
-                            }
+                            storeChanges();
                         }
                     }
                 }
@@ -461,20 +860,20 @@ public class MclStorageManager
             if (!isStarted())
                 return;
 
-            started = false;
-
-            //make sure everyone gets released after we finish.
-            getContactListRWLock().notifyAll();
-
             //write the contact list ourselves before we go out..
             try
             {
-                storeContactList0();
+                storeChanges();
             }
             catch (IOException ex)
             {
                 logger.debug("Failed to store contact list before stopping", ex);
             }
+
+            started = false;
+
+            //make sure everyone gets released after we finish.
+            getContactListRWLock().notifyAll();
         }
     }
 
@@ -538,6 +937,8 @@ public class MclStorageManager
         Element rootGroup = createMetaContactGroupNode(mclServiceImpl.getRoot());
 
         root.appendChild(rootGroup);
+
+        indexNodes(root);
     }
 
     /**
@@ -593,8 +994,12 @@ public class MclStorageManager
                 processGroupXmlNode(mclServiceImpl, accountID, root
                                 , null, null);
                 
-                //now save the contact list in case it has changed
-                scheduleContactListStorage();
+                //now save the contact list in case it has changed. the
+                //journal only holds the changes of the meta contact list so
+                //nodes removed while loading are stored with the whole file
+                if (!journalEnabled || isModifiedWhileLoading)
+                    scheduleContactListStorage();
+                isModifiedWhileLoading = false;
             }
              
         }catch(Throwable exc)
@@ -786,6 +1191,7 @@ public class MclStorageManager
                     {
                         currentMetaContactNode.getParentNode()
                             .removeChild(currentMetaContactNode);
+                        isModifiedWhileLoading = true;
                     }
                     catch(Throwable throwable)
                     {
@@ -844,6 +1250,7 @@ public class MclStorageManager
                     {
                         currentGroupNode.getParentNode()
                             .removeChild(currentGroupNode);
+                        isModifiedWhileLoading = true;
                     }
                     catch(Throwable thr)
                     {
@@ -928,6 +1335,7 @@ public class MclStorageManager
         {
             Node node = (Node)duplicatesIter.next();
             metaContactNode.removeChild(node);
+            isModifiedWhileLoading = true;
         }
         return protoContacts;
     }
@@ -1136,9 +1544,11 @@ public class MclStorageManager
             = createMetaContactNode(evt.getSourceMetaContact());
 
         parentGroupNode.appendChild(metaContactElement);
+        indexNodes(metaContactElement);
 
         try{
-            scheduleContactListStorage();
+            scheduleNodeStorage(META_CONTACT_NODE_NAME,
+                evt.getSourceMetaContact().getMetaUID());
         }
         catch (IOException ex){
             /**given we're being invoked from an event dispatch thread that was
@@ -1184,10 +1594,12 @@ public class MclStorageManager
             = XMLUtils.findChild(parentGroupNode, SUBGROUPS_NODE_NAME);
 
         subgroupsNode.appendChild(newGroupElement);
+        indexNodes(newGroupElement);
 
         try
         {
-            scheduleContactListStorage();
+            scheduleNodeStorage(GROUP_NODE_NAME,
+                evt.getSourceMetaContactGroup().getMetaUID());
         }
         catch (IOException ex)
         {
@@ -1221,7 +1633,8 @@ public class MclStorageManager
         metaContactGroupNode.getParentNode().removeChild(metaContactGroupNode);
 
         try{
-            scheduleContactListStorage();
+            scheduleNodeStorage(GROUP_NODE_NAME,
+                evt.getSourceMetaContactGroup().getMetaUID());
         }
         catch (IOException ex){
             /**given we're being invoked from an event dispatch thread that was
@@ -1271,7 +1684,8 @@ public class MclStorageManager
         childContacts.appendChild(metaContactNode);
 
         try{
-            scheduleContactListStorage();
+            scheduleNodeStorage(META_CONTACT_NODE_NAME,
+                evt.getSourceMetaContact().getMetaUID());
         }
         catch (IOException ex){
             /**given we're being invoked from an event dispatch thread that was
@@ -1353,7 +1767,8 @@ public class MclStorageManager
         metaContactNode.getParentNode().removeChild(metaContactNode);
 
         try{
-            scheduleContactListStorage();
+            scheduleNodeStorage(META_CONTACT_NODE_NAME,
+                evt.getSourceMetaContact().getMetaUID());
         }
         catch (IOException ex){
             /**given we're being invoked from an event dispatch thread that was
@@ -1391,7 +1806,8 @@ public class MclStorageManager
         updatePersistentDataForMetaContact(evt.getSourceMetaContact());
 
         try{
-            scheduleContactListStorage();
+            scheduleNodeStorage(META_CONTACT_NODE_NAME,
+                evt.getSourceMetaContact().getMetaUID());
         }
         catch (IOException ex){
             /**given we're being invoked from an event dispatch thread that was
@@ -1431,7 +1847,8 @@ public class MclStorageManager
 
         try
         {
-            scheduleContactListStorage();
+            scheduleNodeStorage(META_CONTACT_NODE_NAME,
+                evt.getOldParent().getMetaUID());
         }
         catch (IOException ex)
         {
@@ -1491,10 +1908,12 @@ public class MclStorageManager
                     evt.getSourceMetaContactGroup());
 
                 parentNode.appendChild(newGroupElement);
+                indexNodes(newGroupElement);
 
                 try
                 {
-                    scheduleContactListStorage();
+                    scheduleNodeStorage(GROUP_NODE_NAME,
+                        evt.getSourceMetaContactGroup().getMetaUID());
                 }
                 catch (IOException ex)
                 {
@@ -1514,11 +1933,16 @@ public class MclStorageManager
             case MetaContactGroupEvent.CONTACT_GROUP_RENAMED_IN_META_GROUP:
                 //proto group names are not stored so ignore.
                 break;
+            case MetaContactGroupEvent.CHILD_CONTACTS_REORDERED:
+                //the order of the child contacts is not stored either and
+                //there is no need to store the group after every rename.
+                return;
         }
 
         try
         {
-            scheduleContactListStorage();
+            scheduleNodeStorage(GROUP_NODE_NAME,
+                evt.getSourceMetaContactGroup().getMetaUID());
         }
         catch (IOException ex)
         {
@@ -1557,7 +1981,8 @@ public class MclStorageManager
 
         try
         {
-            scheduleContactListStorage();
+            scheduleNodeStorage(META_CONTACT_NODE_NAME,
+                evt.getParent().getMetaUID());
         }
         catch (IOException ex)
         {
@@ -1612,7 +2037,10 @@ public class MclStorageManager
 
         try
         {
-            scheduleContactListStorage();
+            scheduleNodeStorage(META_CONTACT_NODE_NAME,
+                evt.getOldParent().getMetaUID());
+            scheduleNodeStorage(META_CONTACT_NODE_NAME,
+                evt.getNewParent().getMetaUID());
         }
         catch (IOException ex)
         {
@@ -1635,12 +2063,7 @@ public class MclStorageManager
      */
     private Element findMetaContactNode(String metaContactUID)
     {
-        Element root = (Element)contactListDocument.getFirstChild();
-
-        return XMLUtils.locateElement(  root
-                                      , META_CONTACT_NODE_NAME
-                                      , UID_ATTR_NAME
-                                      , metaContactUID);
+        return findIndexedNode(metaContactNodes, metaContactUID);
     }
 
     /**
@@ -1654,12 +2077,81 @@ public class MclStorageManager
      */
     private Element findMetaContactGroupNode(String metaContactGroupUID)
     {
-        Element root = (Element)contactListDocument.getFirstChild();
+        return findIndexedNode(groupNodes, metaContactGroupUID);
+    }
+
+    /**
+     * Returns the group or meta contact node with the specified name and UID
+     * or null if no such node was found.
+     * @param nodeName the name of the node, a group or a meta contact
+     * @param uid the UID of the group or meta contact
+     * @return the node with the specified name and UID or null if no such
+     * node was found in the meta contact list file.
+     */
+    private Element findNode(String nodeName, String uid)
+    {
+        if (nodeName.equals(GROUP_NODE_NAME))
+            return findMetaContactGroupNode(uid);
+        if (nodeName.equals(META_CONTACT_NODE_NAME))
+            return findMetaContactNode(uid);
+        return null;
+    }
+
+    /**
+     * Returns the node indexed with the specified UID if it is still in the
+     * contact list document, and drops it from the index otherwise.
+     * @param nodes the index of the group or meta contact nodes
+     * @param uid the UID of the node
+     * @return the indexed node or null if it is no longer in the document.
+     */
+    private Element findIndexedNode(Map nodes, String uid)
+    {
+        Element node = (Element) nodes.get(uid);
+        if (node == null)
+            return null;
 
-        return XMLUtils.locateElement(  root
-                                      , GROUP_NODE_NAME
-                                      , UID_ATTR_NAME
-                                      , metaContactGroupUID);
+        Node ancestor = node.getParentNode();
+        while (ancestor != null && ancestor != contactListDocument)
+            ancestor = ancestor.getParentNode();
+
+        if (ancestor == null)
+        {
+            if (nodes.get(uid) == node)
+                nodes.remove(uid);
+            return null;
+        }
+        return node;
+    }
+
+    /**
+     * Indexes a group or meta contact node added to the contact list
+     * document, together with the group and meta contact nodes it contains.
+     * @param node the node added to the document
+     */
+    private void indexNodes(Element node)
+    {
+        indexNode(node);
+
+        NodeList groups = node.getElementsByTagName(GROUP_NODE_NAME);
+        for (int i = 0; i < groups.getLength(); i++)
+            indexNode((Element) groups.item(i));
+
+        NodeList metaContacts
+            = node.getElementsByTagName(META_CONTACT_NODE_NAME);
+        for (int i = 0; i < metaContacts.getLength(); i++)
+            indexNode((Element) metaContacts.item(i));
+    }
+
+    private void indexNode(Element node)
+    {
+        String uid = node.getAttribute(UID_ATTR_NAME);
+        if (uid.length() == 0)
+            return;
+
+        if (node.getNodeName().equals(GROUP_NODE_NAME))
+            groupNodes.put(uid, node);
+        else if (node.getNodeName().equals(META_CONTACT_NODE_NAME))
+            metaContactNodes.put(uid, node);
     }
 
     /**
@@ -1668,6 +2160,45 @@ public class MclStorageManager
     void removeContactListFile()
     {
         this.contactlistFile.delete();
+
+        try
+        {
+            if (journal != null)
+                journal.clear();
+        }
+        catch (IOException ex)
+        {
+            logger.error("Failed to clear the contact list journal", ex);
+        }
+    }
+
+    /**
+     * A group or meta contact node to add to the journal.
+     */
+    private static class NodeChange
+    {
+        final String nodeName;
+        final String uid;
+
+        NodeChange(String nodeName, String uid)
+        {
+            this.nodeName = nodeName;
+            this.uid = uid;
+        }
+
+        public boolean equals(Object obj)
+        {
+            if (!(obj instanceof NodeChange))
+                return false;
+
+            NodeChange change = (NodeChange) obj;
+            return nodeName.equals(change.nodeName) && uid.equals(change.uid);
+        }
+
+        public int hashCode()
+        {
+            return nodeName.hashCode() * 31 + uid.hashCode();
+        }
     }
 
     /**
@@ -61,6 +61,12 @@ public class MetaContactGroupImpl
      */
     private MetaContactGroupImpl parentMetaContactGroup = null;
 
+    /**
+     * The index of the meta contacts of the contact list, held by its root
+     * group.
+     */
+    private MetaContactIndex index = null;
+
     /**
      * Creates an instance of the root meta contact group.
      *
@@ -819,6 +825,10 @@ public class MetaContactGroupImpl
                      + " to" + getGroupName());
         this.subgroups.add(subgroup);
         ((MetaContactGroupImpl)subgroup).parentMetaContactGroup = this;
+
+        MetaContactIndex index = getIndex();
+        if (index != null)
+            index.addMetaContactGroup((MetaContactGroupImpl)subgroup);
     }
 
     /**
@@ -832,7 +842,7 @@ public class MetaContactGroupImpl
             = (MetaContactGroupImpl)subgroups.remove(index);
 
         if (subgroup != null)
-            subgroup.parentMetaContactGroup = null;
+            detachSubgroup(subgroup);
 
         return subgroup;
     }
@@ -845,6 +855,50 @@ public class MetaContactGroupImpl
      */
     boolean removeSubgroup(MetaContactGroup group)
     {
-        return subgroups.remove(group);
+        if (!subgroups.remove(group))
+            return false;
+
+        detachSubgroup((MetaContactGroupImpl)group);
+        return true;
+    }
+
+    /**
+     * Unsets the parent of a removed subgroup and removes its meta contacts
+     * from the index of the contact list.
+     * @param subgroup the removed subgroup.
+     */
+    private void detachSubgroup(MetaContactGroupImpl subgroup)
+    {
+        MetaContactIndex index = getIndex();
+
+        subgroup.parentMetaContactGroup = null;
+
+        if (index != null)
+            index.removeMetaContactGroup(subgroup);
+    }
+
+    /**
+     * Makes this group the root of a contact list indexed by
+     * <tt>index</tt>.
+     * @param index the index of the meta contacts of the list.
+     */
+    void setIndex(MetaContactIndex index)
+    {
+        this.index = index;
+    }
+
+    /**
+     * Returns the index of the contact list this group is part of, the one
+     * of its root group.
+     * @return the index of the contact list or null if the group is not
+     * attached to an indexed list.
+     */
+    MetaContactIndex getIndex()
+    {
+        MetaContactGroupImpl group = this;
+        while (group.parentMetaContactGroup != null)
+            group = group.parentMetaContactGroup;
+
+        return group.index;
     }
 }
@@ -446,6 +446,10 @@ public class MetaContactImpl
 
             this.protoContacts.add(contact);
 
+            MetaContactIndex index = getIndex();
+            if (index != null)
+                index.addContact(this, contact);
+
             //if this is our firt contact and we don't already have a display
             //name, use theirs.
             if(this.protoContacts.size() == 1
@@ -532,7 +536,12 @@ public class MetaContactImpl
                 parentGroup.lightRemoveMetaContact(this);
             }
             contactsOnline -= contact.getPresenceStatus().isOnline() ? 1 : 0;
-            this.protoContacts.remove(contact);
+            if (this.protoContacts.remove(contact))
+            {
+                MetaContactIndex index = getIndex();
+                if (index != null)
+                    index.removeContact(this, contact);
+            }
 
             if (defaultContact == contact)
             {
@@ -562,27 +571,33 @@ public class MetaContactImpl
      */
     boolean removeContactsForProvider(ProtocolProviderService provider)
     {
-        boolean modified = false;
-        Iterator contactsIter = protoContacts.iterator();
-
-        while(contactsIter.hasNext())
+        synchronized (parentGroupModLock)
         {
-            Contact contact = (Contact)contactsIter.next();
+            boolean modified = false;
+            MetaContactIndex index = getIndex();
+            Iterator contactsIter = protoContacts.iterator();
 
-            if (contact.getProtocolProvider() == provider)
+            while(contactsIter.hasNext())
             {
-                contactsIter.remove();
-                modified = true;
+                Contact contact = (Contact)contactsIter.next();
+
+                if (contact.getProtocolProvider() == provider)
+                {
+                    contactsIter.remove();
+                    if (index != null)
+                        index.removeContact(this, contact);
+                    modified = true;
+                }
             }
-        }
 
-        // if the default contact has been modified, set it to null
-        if (modified && !protoContacts.contains(defaultContact))
-        {
-            defaultContact = null;
-        }
+            // if the default contact has been modified, set it to null
+            if (modified && !protoContacts.contains(defaultContact))
+            {
+                defaultContact = null;
+            }
 
-        return modified;
+            return modified;
+        }
     }
 
     /**
@@ -595,27 +610,33 @@ public class MetaContactImpl
      */
     boolean removeContactsForGroup(ContactGroup protoGroup)
     {
-        boolean modified = false;
-        Iterator contactsIter = protoContacts.iterator();
-
-        while(contactsIter.hasNext())
+        synchronized (parentGroupModLock)
         {
-            Contact contact = (Contact)contactsIter.next();
+            boolean modified = false;
+            MetaContactIndex index = getIndex();
+            Iterator contactsIter = protoContacts.iterator();
 
-            if (contact.getParentContactGroup() == protoGroup)
+            while(contactsIter.hasNext())
             {
-                contactsIter.remove();
-                modified = true;
+                Contact contact = (Contact)contactsIter.next();
+
+                if (contact.getParentContactGroup() == protoGroup)
+                {
+                    contactsIter.remove();
+                    if (index != null)
+                        index.removeContact(this, contact);
+                    modified = true;
+                }
             }
-        }
 
-        // if the default contact has been modified, set it to null
-        if (modified && !protoContacts.contains(defaultContact))
-        {
-            defaultContact = null;
-        }
+            // if the default contact has been modified, set it to null
+            if (modified && !protoContacts.contains(defaultContact))
+            {
+                defaultContact = null;
+            }
 
-        return modified;
+            return modified;
+        }
     }
 
 
@@ -644,6 +665,10 @@ public class MetaContactImpl
                     +"instead.");
 
             this.parentGroup = parentGroup;
+
+            MetaContactIndex index = parentGroup.getIndex();
+            if (index != null)
+                index.addMetaContact(this);
         }
     }
 
@@ -659,10 +684,46 @@ public class MetaContactImpl
         synchronized(parentGroupModLock)
         {
             if (this.parentGroup == parentGroup)
+            {
                 this.parentGroup = null;
+
+                MetaContactIndex index = parentGroup.getIndex();
+                if (index != null)
+                    index.removeMetaContact(this);
+            }
         }
     }
 
+    /**
+     * Adds this meta contact to the index of the contact list, or removes it,
+     * after the group holding it has been attached to the list or detached
+     * from it.
+     *
+     * @param index the index of the contact list
+     * @param indexed whether the meta contact is now in the list
+     */
+    void updateIndex(MetaContactIndex index, boolean indexed)
+    {
+        synchronized(parentGroupModLock)
+        {
+            if (!indexed)
+                index.removeMetaContact(this);
+            else if (parentGroup != null && parentGroup.getIndex() == index)
+                index.addMetaContact(this);
+        }
+    }
+
+    /**
+     * Returns the index of the contact list holding this meta contact.
+     *
+     * @return the index of the contact list or null if this meta contact is
+     * not in the list.
+     */
+    private MetaContactIndex getIndex()
+    {
+        return (parentGroup == null) ? null : parentGroup.getIndex();
+    }
+
     /**
      * Returns the group that is currently holding this meta contact.
      *
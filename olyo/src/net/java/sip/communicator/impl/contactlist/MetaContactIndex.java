@@ -0,0 +1,256 @@
+/*
+ * SIP Communicator, the OpenSource Java VoIP and Instant Messaging client.
+ *
+ * Distributable under LGPL license.
+ * See terms of license at gnu.org.
+ */
+package net.java.sip.communicator.impl.contactlist;
+
+import java.util.*;
+import java.util.concurrent.*;
+
+import net.java.sip.communicator.service.protocol.*;
+
+/**
+ * Indexes the meta contacts of a contact list by their meta UID and by the
+ * protocol contacts they contain, so that finding the meta contact of an
+ * incoming message or of a presence event does not go through the whole
+ * list.
+ * <p>
+ * The index is held by the root group of the contact list and is kept up to
+ * date by the groups and meta contacts as they are modified: a meta contact
+ * is indexed while its parent group is attached to the root, together with
+ * the protocol contacts it holds. Lookups do not lock, the maps are
+ * concurrent. Updates are serialized and always made under the lock of the
+ * meta contact they concern, so that they are applied in the order the meta
+ * contact changed.
+ * </p>
+ */
+class MetaContactIndex
+{
+    /**
+     * The indexed meta contacts, by meta UID.
+     */
+    private final Map byMetaUID = new ConcurrentHashMap();
+
+    /**
+     * The meta contacts, by the provider and address of their protocol
+     * contacts. Providers are compared by identity, as
+     * <tt>MetaContactImpl.getContact</tt> does.
+     */
+    private final Map byProvider = new ConcurrentHashMap();
+
+    /**
+     * The meta contacts, by the account ID and address of their protocol
+     * contacts.
+     */
+    private final Map byAccountID = new ConcurrentHashMap();
+
+    /**
+     * Returns the meta contact with the given meta UID.
+     *
+     * @param metaUID the meta UID of the meta contact
+     * @return the meta contact or null if there is no such meta contact in
+     * the list
+     */
+    MetaContactImpl findMetaContactByMetaUID(String metaUID)
+    {
+        return (MetaContactImpl) byMetaUID.get(metaUID);
+    }
+
+    /**
+     * Returns the meta contact containing a protocol contact with the
+     * address and provider of <tt>contact</tt>.
+     *
+     * @param contact the protocol contact
+     * @return the meta contact or null if no meta contact of the list
+     * contains the contact
+     */
+    MetaContactImpl findMetaContactByContact(Contact contact)
+    {
+        return (MetaContactImpl) byProvider.get(
+            new ContactKey(contact.getProtocolProvider(), contact.getAddress()));
+    }
+
+    /**
+     * Returns the meta contact containing a protocol contact with the given
+     * address from the account with the given ID.
+     *
+     * @param contactAddress the address of the protocol contact
+     * @param accountID the unique ID of the account of the contact
+     * @return the meta contact or null if no meta contact of the list
+     * contains such a contact
+     */
+    MetaContactImpl findMetaContactByContact(String contactAddress,
+                                             String accountID)
+    {
+        return (MetaContactImpl) byAccountID.get(
+            new ContactKey(accountID, contactAddress));
+    }
+
+    /**
+     * Indexes a meta contact and its protocol contacts.
+     *
+     * @param metaContact the meta contact attached to the list
+     */
+    synchronized void addMetaContact(MetaContactImpl metaContact)
+    {
+        byMetaUID.put(metaContact.getMetaUID(), metaContact);
+
+        Iterator contacts = metaContact.getContacts();
+        while (contacts.hasNext())
+            addContact(metaContact, (Contact) contacts.next());
+    }
+
+    /**
+     * Removes a meta contact and its protocol contacts from the index.
+     *
+     * @param metaContact the meta contact detached from the list
+     */
+    synchronized void removeMetaContact(MetaContactImpl metaContact)
+    {
+        remove(byMetaUID, metaContact.getMetaUID(), metaContact);
+
+        Iterator contacts = metaContact.getContacts();
+        while (contacts.hasNext())
+            removeContact(metaContact, (Contact) contacts.next());
+    }
+
+    /**
+     * Indexes a protocol contact added to an indexed meta contact.
+     *
+     * @param metaContact the meta contact holding the contact
+     * @param contact the protocol contact
+     */
+    synchronized void addContact(MetaContactImpl metaContact, Contact contact)
+    {
+        ProtocolProviderService provider = contact.getProtocolProvider();
+
+        byProvider.put(new ContactKey(provider, contact.getAddress()),
+                       metaContact);
+        byAccountID.put(new ContactKey(
+                            provider.getAccountID().getAccountUniqueID(),
+                            contact.getAddress()),
+                        metaContact);
+    }
+
+    /**
+     * Removes a protocol contact removed from an indexed meta contact. The
+     * entries of the contact are left if they have been taken over by
+     * another meta contact in the meantime.
+     *
+     * @param metaContact the meta contact which held the contact
+     * @param contact the protocol contact
+     */
+    synchronized void removeContact(MetaContactImpl metaContact,
+                                    Contact contact)
+    {
+        ProtocolProviderService provider = contact.getProtocolProvider();
+
+        remove(byProvider,
+               new ContactKey(provider, contact.getAddress()),
+               metaContact);
+        remove(byAccountID,
+               new ContactKey(provider.getAccountID().getAccountUniqueID(),
+                              contact.getAddress()),
+               metaContact);
+    }
+
+    /**
+     * Indexes the meta contacts of a group and of all its subgroups, which
+     * has been attached to the list.
+     *
+     * @param group the attached group
+     */
+    void addMetaContactGroup(MetaContactGroupImpl group)
+    {
+        Iterator metaContacts = group.getChildContacts();
+        while (metaContacts.hasNext())
+            ((MetaContactImpl) metaContacts.next()).updateIndex(this, true);
+
+        Iterator subgroups = group.getSubgroups();
+        while (subgroups.hasNext())
+            addMetaContactGroup((MetaContactGroupImpl) subgroups.next());
+    }
+
+    /**
+     * Removes from the index the meta contacts of a group and of all its
+     * subgroups, which has been detached from the list.
+     *
+     * @param group the detached group
+     */
+    void removeMetaContactGroup(MetaContactGroupImpl group)
+    {
+        Iterator metaContacts = group.getChildContacts();
+        while (metaContacts.hasNext())
+            ((MetaContactImpl) metaContacts.next()).updateIndex(this, false);
+
+        Iterator subgroups = group.getSubgroups();
+        while (subgroups.hasNext())
+            removeMetaContactGroup((MetaContactGroupImpl) subgroups.next());
+    }
+
+    /**
+     * Removes the entry of a key if it still maps to the given meta contact.
+     */
+    private static void remove(Map index, Object key,
+                               MetaContactImpl metaContact)
+    {
+        if (index.get(key) == metaContact)
+            index.remove(key);
+    }
+
+    /**
+     * The key of a protocol contact: its address within its provider, the
+     * very same provider instance, or within its account.
+     */
+    private static class ContactKey
+    {
+        private final Object owner;
+
+        private final boolean ownerIdentity;
+
+        private final String address;
+
+        ContactKey(ProtocolProviderService provider, String address)
+        {
+            this.owner = provider;
+            this.ownerIdentity = true;
+            this.address = address;
+        }
+
+        ContactKey(String accountID, String address)
+        {
+            this.owner = accountID;
+            this.ownerIdentity = false;
+            this.address = address;
+        }
+
+        public boolean equals(Object obj)
+        {
+            if (!(obj instanceof ContactKey))
+                return false;
+
+            ContactKey key = (ContactKey) obj;
+            if (ownerIdentity != key.ownerIdentity)
+                return false;
+
+            boolean sameOwner = (ownerIdentity || owner == null)
+                ? owner == key.owner
+                : owner.equals(key.owner);
+            return sameOwner
+                && (address == null
+                    ? key.address == null
+                    : address.equals(key.address));
+        }
+
+        public int hashCode()
+        {
+            int ownerHash = ownerIdentity
+                ? System.identityHashCode(owner)
+                : (owner == null ? 0 : owner.hashCode());
+            return ownerHash * 31
+                + (address == null ? 0 : address.hashCode());
+        }
+    }
+}
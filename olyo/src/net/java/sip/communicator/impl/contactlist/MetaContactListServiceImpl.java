@@ -50,6 +50,12 @@ public class MetaContactListServiceImpl
         = new MetaContactGroupImpl("RootMetaContactGroup",
                                    "RootMetaContactGroup");
 
+    /**
+     * The index of the meta contacts of the list by meta UID and by protocol
+     * contact, kept up to date by the groups and meta contacts of the list.
+     */
+    private final MetaContactIndex metaContactIndex = new MetaContactIndex();
+
     /**
      * The event handler that will be handling our subscription events.
      */
@@ -109,6 +115,7 @@ public class MetaContactListServiceImpl
      */
     public MetaContactListServiceImpl()
     {
+        rootMetaGroup.setIndex(metaContactIndex);
     }
 
     /**
@@ -1332,12 +1339,7 @@ public class MetaContactListServiceImpl
      */
     public MetaContact findMetaContactByContact(Contact contact)
     {
-
-
-      logger.info("rootMetaGroup.findMetaContactByContact(contact) ="
-	  	+rootMetaGroup.findMetaContactByContact(contact));
-	  
-        return rootMetaGroup.findMetaContactByContact(contact);
+        return metaContactIndex.findMetaContactByContact(contact);
     }
 
     /**
@@ -1360,8 +1362,8 @@ public class MetaContactListServiceImpl
     public MetaContact findMetaContactByContact(String contactAddress,
                                                 String accountID)
     {
-        return rootMetaGroup.findMetaContactByContact(contactAddress
-                                                      , accountID);
+        return metaContactIndex.findMetaContactByContact(contactAddress
+                                                         , accountID);
     }
 
     /**
@@ -1374,8 +1376,7 @@ public class MetaContactListServiceImpl
      */
     public MetaContact findMetaContactByMetaUID(String metaContactID)
     {
-
-        return rootMetaGroup.findMetaContactByMetaUID(metaContactID);
+        return metaContactIndex.findMetaContactByMetaUID(metaContactID);
     }
 
     /**
@@ -1079,43 +1079,14 @@ public class ContactList
 
             public void run()
             {
-                if (operation.equals(MODIFY_OPERATION))
-                {
-                    if (!listModel.isGroupClosed(group))
-                    {
-                        int groupIndex = listModel.indexOf(group);
-                        int lastIndex = listModel
-                            .countContactsAndSubgroups(group);
-
-                        listModel.contentChanged(groupIndex, lastIndex);
-                    }
-                }
-                else if (operation.equals(ADD_OPERATION))
+                if (operation.equals(MODIFY_OPERATION)
+                    || operation.equals(ADD_OPERATION))
                 {
-                    int groupIndex = listModel.indexOf(group);
-                    int addedCount = listModel.countContactsAndSubgroups(group);
-                    int listSize = listModel.getSize();
-                    if (listSize > 0)
-                    {
-                        listModel.contentChanged(
-                            groupIndex, listSize - addedCount - 1);
-                        listModel.contentAdded(
-                            listSize - addedCount, listSize - 1);
-                    }
+                    listModel.refreshGroup(group);
                 }
                 else if (operation.equals(REMOVE_OPERATION))
                 {
-                    int groupIndex = listModel.indexOf(group);
-                    int removeCount = listModel
-                        .countContactsAndSubgroups(group);
-                    int listSize = listModel.getSize();
-
-                    if (listSize > 0)
-                    {
-                        listModel.contentRemoved(listSize - 1, listSize
-                            + removeCount - 1);
-                        listModel.contentChanged(groupIndex, listSize - 1);
-                    }
+                    listModel.removeGroup(group);
                 }
             }
         }
@@ -1148,28 +1119,13 @@ public class ContactList
             {
                 if (operation.equals(MODIFY_OPERATION))
                 {
-                    int contactIndex = listModel.indexOf(contact);
-
-                    listModel.contentChanged(contactIndex, contactIndex);
-                }
-                else if (operation.equals(ADD_OPERATION))
-                {
-                    int contactIndex = listModel.indexOf(contact);
-
-                    if (contactIndex != -1)
-                        listModel.contentAdded(contactIndex, contactIndex);
+                    listModel.refreshContact(contact);
                 }
-                else if (operation.equals(REMOVE_OPERATION))
+                else if (parentGroup != null)
                 {
-                    int groupIndex = listModel.indexOf(parentGroup);
-
-                    int listSize = listModel.getSize();
-
-                    if (groupIndex != -1 && listSize > 0)
-                    {
-                        listModel.contentChanged(groupIndex, listSize - 1);
-                        listModel.contentRemoved(listSize, listSize);
-                    }
+                    // the contact has been added to or removed from its
+                    // group
+                    listModel.refreshGroup(parentGroup);
                 }
             }
         }
@@ -1342,36 +1298,10 @@ public class ContactList
      */
     public void setShowOffline(boolean isShowOffline)
     {
-        int listSize = listModel.getSize();
-        
+        // the model rebuilds its rows and informs the list of the change
         listModel.setShowOffline(isShowOffline);
         
         ConfigurationManager.setShowOffline(isShowOffline);
-        
-        int newListSize = listModel.getSize();
-        
-        //hide offline users
-        if(!isShowOffline && listSize > 0)
-        {
-            if(newListSize > 0)
-            {
-                listModel.contentChanged(0, newListSize - 1);
-                listModel.contentRemoved(newListSize - 1, listSize - 1);
-            }
-            else
-                listModel.contentRemoved(0, listSize - 1);
-        }
-        //show offline users
-        else if(isShowOffline && newListSize > 0)
-        {
-            if(listSize > 0)
-            {
-                listModel.contentChanged(0, listSize - 1);
-                listModel.contentAdded(listSize - 1, newListSize - 1);
-            }
-            else
-                listModel.contentAdded(0, newListSize - 1);
-        }   
     }
 
     /**
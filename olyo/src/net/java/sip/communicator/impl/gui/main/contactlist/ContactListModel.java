@@ -29,6 +29,13 @@ import net.java.sip.communicator.util.*;
  * some methods facilitating the access to the contact list. Some more contact
  * list specific methods are added like: getMetaContactStatus,
  * getMetaContactStatusIcon, changeContactStatus, etc.
+ * <p>
+ * The tree is flattened in a list of rows with the index of every row, so
+ * that painting and selecting do not go through the tree. The rows are
+ * rebuilt one group at a time with <tt>refreshGroup</tt> when the contact
+ * list changes, and <tt>refreshContact</tt> only repaints the row of a
+ * contact whose status changed. These methods, as all the others, are to be
+ * called from the event dispatch thread.
  *
  * @author Yana Stamcheva
  *
@@ -60,6 +67,18 @@ public class ContactListModel
     
     private boolean showOffline = true;
 
+    /**
+     * The groups and meta contacts shown in the list, in the order they are
+     * shown. Built the first time the list is shown and then kept up to date
+     * one group or contact at a time, from the event dispatch thread.
+     */
+    private List rows = null;
+
+    /**
+     * The indexes of the groups and meta contacts in <tt>rows</tt>.
+     */
+    private final Map rowIndexes = new HashMap();
+
     /**
      * Creates a List Model, which gets its data from the given
      * MetaContactListService.
@@ -116,9 +135,7 @@ public class ContactListModel
      */
     public int getSize()
     {
-        int size = this.getContactListSize(rootGroup);
-
-        return size;
+        return getRows().size();
     }
 
     /**
@@ -129,73 +146,303 @@ public class ContactListModel
      */
     public Object getElementAt(int index)
     {
-        Object element = this.getElementAt(this.rootGroup, -1, index);
+        List rows = getRows();
 
-        return element;
+        if (index < 0 || index >= rows.size())
+            return null;
+
+        return rows.get(index);
     }
 
     /**
-     * Goes through all subgroups and contacts and determines the final size of
-     * the contact list.
+     * Returns the rows of the list, building them from the contact list the
+     * first time they are needed.
      *
-     * @param group The group which to be measured.
-     * @return The size of the contactlist
+     * @return the groups and meta contacts shown in the list, in the order
+     * they are shown
      */
-    private int getContactListSize(MetaContactGroup group)
+    private List getRows()
     {
-        int size = 0;
+        if (rows == null)
+        {
+            rows = new ArrayList();
+            addRows(rootGroup, rows);
+            indexRows(0, rows.size());
+        }
+        return rows;
+    }
 
-        if (!isGroupClosed(group))
+    /**
+     * Adds to <tt>rows</tt> the rows of the given group: the group itself,
+     * unless it is the root, followed by its child contacts and the rows of
+     * its subgroups if it is open. Nothing is added for a group containing
+     * no online contacts while offline contacts are hidden.
+     *
+     * @param group the group whose rows to add
+     * @param rows the list to add the rows to
+     */
+    private void addRows(MetaContactGroup group, List rows)
+    {
+        if (!group.equals(rootGroup))
         {
-            if (showOffline)
-            {
-                size = group.countChildContacts();
-                //count the group itself
-                if(!group.equals(rootGroup))
-                    size++;
-            }
-            else
-            {
-                Iterator i = group.getChildContacts();
-                while (i.hasNext())
-                {
-                    MetaContact contact = (MetaContact) i.next();
+            if (!showOffline && !containsOnlineContacts(group))
+                return;
 
-                    if (isContactOnline(contact))
-                        size++;
-                }
+            rows.add(group);
 
-                //count the group itself only if it contains any online contacts
-                if(!group.equals(rootGroup) && size > 0)
-                    size++;
-            }
+            if (isGroupClosed(group))
+                return;
+        }
 
-            Iterator subgroups = group.getSubgroups();
+        Iterator childContacts = group.getChildContacts();
+        while (childContacts.hasNext())
+        {
+            MetaContact contact = (MetaContact) childContacts.next();
 
-            while (subgroups.hasNext())
-            {
-                MetaContactGroup subGroup = (MetaContactGroup) subgroups.next();
-                size += getContactListSize(subGroup);
-            }
+            if (showOffline || isContactOnline(contact))
+                rows.add(contact);
         }
-        else
+
+        Iterator subgroups = group.getSubgroups();
+        while (subgroups.hasNext())
+            addRows((MetaContactGroup) subgroups.next(), rows);
+    }
+
+    /**
+     * Updates the indexes of the rows from <tt>startIndex</tt> (inclusive)
+     * to <tt>endIndex</tt> (exclusive).
+     */
+    private void indexRows(int startIndex, int endIndex)
+    {
+        for (int i = startIndex; i < endIndex; i++)
+            rowIndexes.put(rows.get(i), new Integer(i));
+    }
+
+    /**
+     * Returns the index of the first row after the rows of the group at
+     * <tt>groupIndex</tt>, that is of the first group after it which is not
+     * one of its subgroups.
+     *
+     * @param groupIndex the index of the row of the group
+     * @return the index following the last row of the group
+     */
+    private int getGroupEndIndex(int groupIndex)
+    {
+        MetaContactGroup group = (MetaContactGroup) rows.get(groupIndex);
+
+        int index = groupIndex + 1;
+        while (index < rows.size())
         {
-            // If offline contacts are shown we just count the closed group;
-            if(showOffline)
+            Object row = rows.get(index);
+
+            if (row instanceof MetaContactGroup
+                && !isSubgroup((MetaContactGroup) row, group))
+                break;
+
+            index++;
+        }
+        return index;
+    }
+
+    /**
+     * Returns true if <tt>subgroup</tt> is contained, at any depth, in
+     * <tt>group</tt>.
+     */
+    private boolean isSubgroup(MetaContactGroup subgroup,
+                               MetaContactGroup group)
+    {
+        MetaContactGroup parent = subgroup.getParentMetaContactGroup();
+        while (parent != null)
+        {
+            if (parent.equals(group))
+                return true;
+            parent = parent.getParentMetaContactGroup();
+        }
+        return false;
+    }
+
+    /**
+     * Replaces the rows from <tt>startIndex</tt> (inclusive) to
+     * <tt>endIndex</tt> (exclusive) with <tt>newRows</tt>, and informs the
+     * listeners of the rows which changed, were added or were removed.
+     *
+     * @param startIndex the index of the first row to replace
+     * @param endIndex the index following the last row to replace
+     * @param newRows the new rows
+     * @param group the group whose rows are replaced, null for the root
+     */
+    private void replaceRows(int startIndex, int endIndex, List newRows,
+                             MetaContactGroup group)
+    {
+        List replacedRows = rows.subList(startIndex, endIndex);
+        Set keptRows = new HashSet(newRows);
+        List movedRows = null;
+        for (int i = 0; i < replacedRows.size(); i++)
+        {
+            Object row = replacedRows.get(i);
+            if (keptRows.contains(row))
+                continue;
+
+            if (new Integer(startIndex + i).equals(rowIndexes.get(row)))
+                rowIndexes.remove(row);
+
+            // a row moved to another group may already have been added to
+            // the rows of that group, before these rows are refreshed
+            if (group != null && isMoved(row, group))
             {
-                //count the closed group
-                size++;
+                if (movedRows == null)
+                    movedRows = new ArrayList();
+                movedRows.add(row);
             }
-            else
+        }
+        replacedRows.clear();
+        rows.addAll(startIndex, newRows);
+
+        int oldCount = endIndex - startIndex;
+        int newCount = newRows.size();
+
+        // the rows following the replaced ones have moved only if their
+        // number has changed
+        indexRows(startIndex, (oldCount == newCount)
+                                ? startIndex + newCount
+                                : rows.size());
+
+        int changedCount = Math.min(oldCount, newCount);
+        if (changedCount > 0)
+            fireContentsChanged(this,
+                startIndex, startIndex + changedCount - 1);
+        if (newCount > oldCount)
+            fireIntervalAdded(this,
+                startIndex + oldCount, startIndex + newCount - 1);
+        else if (oldCount > newCount)
+            fireIntervalRemoved(this,
+                startIndex + newCount, startIndex + oldCount - 1);
+
+        if (movedRows != null)
+        {
+            for (int i = 0; i < movedRows.size(); i++)
             {
-                // If offline contacts are not shown we'll count the group
-                // only if it contains online contacts.
-                if( containsOnlineContacts(group))
-                    size++;
+                Object row = movedRows.get(i);
+                int index = rows.indexOf(row);
+
+                if (index >= 0)
+                    rowIndexes.put(row, new Integer(index));
             }
         }
+    }
+
+    /**
+     * Returns true if the given row, a meta contact or a group, is no longer
+     * contained in <tt>group</tt> but is still in the contact list.
+     */
+    private boolean isMoved(Object row, MetaContactGroup group)
+    {
+        MetaContactGroup parentGroup;
+        if (row instanceof MetaContact)
+            parentGroup = ((MetaContact) row).getParentMetaContactGroup();
+        else
+            parentGroup = ((MetaContactGroup) row).getParentMetaContactGroup();
+
+        return parentGroup != null
+            && !parentGroup.equals(group)
+            && !isSubgroup(parentGroup, group);
+    }
+
+    /**
+     * Rebuilds all the rows of the list.
+     */
+    public void refreshAll()
+    {
+        if (rows == null)
+            return;
+
+        List newRows = new ArrayList();
+        addRows(rootGroup, newRows);
+        replaceRows(0, rows.size(), newRows, null);
+    }
+
+    /**
+     * Rebuilds the rows of the given group, after its contacts or subgroups
+     * have been added, removed, moved or reordered. If the group is not
+     * shown, the rows of its parent group are rebuilt.
+     *
+     * @param group the group to refresh
+     */
+    public void refreshGroup(MetaContactGroup group)
+    {
+        if (rows == null)
+            return;
+
+        if (group.equals(rootGroup))
+        {
+            refreshAll();
+            return;
+        }
+
+        Integer index = (Integer) rowIndexes.get(group);
+        if (index == null)
+        {
+            MetaContactGroup parentGroup = group.getParentMetaContactGroup();
+
+            // the group is not shown or has just been added
+            if (parentGroup != null)
+                refreshGroup(parentGroup);
+            return;
+        }
+
+        int groupIndex = index.intValue();
+        List newRows = new ArrayList();
+        addRows(group, newRows);
+        replaceRows(groupIndex, getGroupEndIndex(groupIndex), newRows, group);
+    }
+
+    /**
+     * Removes the rows of a group which has been removed from the contact
+     * list.
+     *
+     * @param group the removed group
+     */
+    public void removeGroup(MetaContactGroup group)
+    {
+        if (rows == null)
+            return;
+
+        Integer index = (Integer) rowIndexes.get(group);
+        if (index == null)
+            return;
+
+        int groupIndex = index.intValue();
+        replaceRows(groupIndex, getGroupEndIndex(groupIndex),
+            Collections.EMPTY_LIST, group);
+    }
+
+    /**
+     * Refreshes the row of the given meta contact, after its presence status
+     * or name has changed. If the contact has just been shown or hidden,
+     * because offline contacts are hidden, the rows of its group are rebuilt.
+     *
+     * @param contact the meta contact to refresh
+     */
+    public void refreshContact(MetaContact contact)
+    {
+        if (rows == null)
+            return;
+
+        Integer index = (Integer) rowIndexes.get(contact);
+        boolean isShown = showOffline || isContactOnline(contact);
+
+        if (index != null && isShown)
+        {
+            fireContentsChanged(this, index.intValue(), index.intValue());
+        }
+        else if (index != null || isShown)
+        {
+            MetaContactGroup parentGroup
+                = contact.getParentMetaContactGroup();
 
-        return size;
+            if (parentGroup != null)
+                refreshGroup(parentGroup);
+        }
     }
 
     /**
@@ -263,199 +510,14 @@ public class ContactListModel
      */
     public int indexOf(Object o)
     {
-        if (o instanceof MetaContact)
-        {
-            return this.indexOf((MetaContact) o);
-        }
-        else if (o instanceof MetaContactGroup)
-        {
-            return this.indexOf((MetaContactGroup) o);
-        }
-        else
-        {
-            return -1;
-        }
-    }
-
-    /**
-     * Returns the index of the given MetaContact.
-     *
-     * @param contact The MetaContact to search for.
-     * @return The index of the given MetaContact.
-     */
-    private int indexOf(MetaContact contact)
-    {
-        int index = -1;
-
-        if (showOffline || isContactOnline(contact))
-        {
-            int currentIndex = 0;
-            MetaContactGroup parentGroup = this.contactList
-                .findParentMetaContactGroup(contact);
-
-            if (parentGroup != null && !this.isGroupClosed(parentGroup))
-            {
-
-                currentIndex += this.indexOf(parentGroup);
-
-                currentIndex += parentGroup.indexOf(contact) + 1;
-
-                index = currentIndex;
-            }
-        }
-        return index;
-    }
-
-    /**
-     * Returns the index of the given MetaContactGroup.
-     *
-     * @param group The given MetaContactGroup to search for.
-     * @return The index of the given MetaContactGroup.
-     */
-    private int indexOf(MetaContactGroup group)
-    {
-        int index = -1;
-
-        if (showOffline || containsOnlineContacts(group))
-        {
-            int currentIndex = 0;
-            MetaContactGroup parentGroup = this.contactList
-                .findParentMetaContactGroup(group);
+        getRows();
 
-            if (parentGroup != null && !this.isGroupClosed(parentGroup))
-            {
-
-                currentIndex += this.indexOf(parentGroup);
-
-                currentIndex += countChildContacts(parentGroup);
-
-                currentIndex += parentGroup.indexOf(group) + 1;
-
-                for (int i = 0; i < parentGroup.indexOf(group); i++)
-                {
-                    MetaContactGroup subGroup = parentGroup
-                        .getMetaContactSubgroup(i);
+        Integer index = (Integer) rowIndexes.get(o);
 
-                    currentIndex += countContactsAndSubgroups(subGroup);
-                }
-                index = currentIndex;
-            }
-        }
-        return index;
-    }
-
-    /**
-     * Returns the number of all children of the given MetaContactGroup. Counts
-     * in depth all subgroups and child contacts.
-     *
-     * @param parentGroup The parent MetaContactGroup.
-     * @return The number of all children of the given MetaContactGroup
-     */
-    public int countContactsAndSubgroups(MetaContactGroup parentGroup)
-    {
-
-        int count = 0;
-
-        if (parentGroup != null && !this.isGroupClosed(parentGroup))
-        {
-            if (showOffline)
-            {
-                count = parentGroup.countChildContacts();
-            }
-            else
-            {
-                Iterator i = parentGroup.getChildContacts();
-                while (i.hasNext())
-                {
-                    MetaContact contact = (MetaContact) i.next();
-                    if (isContactOnline(contact))
-                        count++;
-                }
-            }
-
-            Iterator subgroups = parentGroup.getSubgroups();
-
-            while (subgroups.hasNext())
-            {
-                MetaContactGroup subgroup = (MetaContactGroup) subgroups.next();
-
-                count += countContactsAndSubgroups(subgroup);
-            }
-        }
-        return count;
-    }
-
-    /**
-     * Recursively searches the given group in depth for the element at the
-     * given index.
-     *
-     * @param group the group in which we search
-     * @param currentIndex the index, where we currently are
-     * @param searchedIndex the index to search for
-     * @return The element at the given index, if we find it, otherwise null.
-     */
-    private Object getElementAt(MetaContactGroup group, int currentIndex,
-        int searchedIndex)
-    {
-        Object element = null;
-        if (currentIndex == searchedIndex)
-        {
-            // the current index is the index of the group so if this is the
-            // searched index we return the group
-            element = group;
-        }
+        if (index == null)
+            return -1;
         else
-        {
-            // if the group is closed don't count its children
-            if (!isGroupClosed(group))
-            {
-                int childCount = countChildContacts(group);
-
-                if (searchedIndex <= (currentIndex + childCount))
-                {
-                    // if the searched index is lower than or equal to
-                    // the greater child index in this group then our element is
-                    // here
-                    MetaContact contact = group.getMetaContact(searchedIndex
-                        - currentIndex - 1);
-
-                    if (showOffline || isContactOnline(contact))
-                        element = contact;
-                }
-                else
-                {
-                    // if we haven't found the contact we search the subgroups
-                    currentIndex += childCount;
-                    Iterator subgroups = group.getSubgroups();
-
-                    while (subgroups.hasNext())
-                    {
-                        MetaContactGroup subgroup = (MetaContactGroup) subgroups
-                            .next();
-
-                        if(showOffline || containsOnlineContacts(subgroup))
-                            element = getElementAt(subgroup, currentIndex + 1,
-                                searchedIndex);
-
-                        if (element != null)
-                            break;
-                        else
-                        {
-                            // if we haven't found the element on this iteration
-                            // we update the current index and we continue
-                            if (showOffline || containsOnlineContacts(subgroup))
-                            {
-                                if (!isGroupClosed(subgroup))
-                                    currentIndex += countChildContacts(subgroup) + 1;
-                                else
-                                    currentIndex++;
-                            }
-                        }
-                    }
-                }
-            }
-        }
-        return element;
+            return index.intValue();
     }
 
     /**
@@ -467,14 +529,9 @@ public class ContactListModel
     {
         if (!isGroupClosed(group))
         {
-            if(showOffline || containsOnlineContacts(group))
-            {
-                contentRemoved(this.indexOf(group.getMetaContact(0)),
-                    this.indexOf(group.getMetaContact(
-                        countContactsAndSubgroups(group) - 1)));
-            }
-
             this.closedGroups.add(group);
+
+            refreshGroup(group);
         }
     }
 
@@ -486,8 +543,8 @@ public class ContactListModel
     public void openGroup(MetaContactGroup group)
     {
         this.closedGroups.remove(group);
-        contentAdded(this.indexOf(group.getMetaContact(0)), this.indexOf(group
-            .getMetaContact(countContactsAndSubgroups(group) - 1)));
+
+        refreshGroup(group);
     }
 
     /**
@@ -525,6 +582,8 @@ public class ContactListModel
     public void setShowOffline(boolean showOffline)
     {
         this.showOffline = showOffline;
+
+        refreshAll();
     }
 
     /**
@@ -0,0 +1,261 @@
+/*
+ * SIP Communicator, the OpenSource Java VoIP and Instant Messaging client.
+ *
+ * Distributable under LGPL license.
+ * See terms of license at gnu.org.
+ */
+package net.java.sip.communicator.impl.history;
+
+import java.io.*;
+import java.util.*;
+
+/**
+ * A least recently used cache of parsed history files, shared by all the
+ * histories of a <tt>HistoryServiceImpl</tt>: the DOM documents of the XML
+ * histories and the record lists of the log segments.
+ * <p>
+ * The cache is bounded both by the number of files it holds and by an
+ * estimate of the memory they take, derived from the size of the files.
+ * When either bound is exceeded the least recently used files are evicted.
+ * A cache with no room for any file caches nothing.
+ * </p>
+ */
+public class DocumentCache
+{
+    /**
+     * The default maximum number of cached files.
+     */
+    public static final int DEF_MAX_DOCUMENTS = 64;
+
+    /**
+     * The default maximum estimated memory of the cached files, in bytes.
+     */
+    public static final long DEF_MAX_MEMORY = 16 * 1024 * 1024;
+
+    /**
+     * The estimate of the memory taken by a file which is not yet on the
+     * disk.
+     */
+    private static final long MIN_ENTRY_SIZE = 1024;
+
+    private int maxDocuments = DEF_MAX_DOCUMENTS;
+
+    private long maxMemory = DEF_MAX_MEMORY;
+
+    /**
+     * The <tt>Entry</tt>s by file, least recently used first.
+     */
+    private LinkedHashMap entries = new LinkedHashMap(16, 0.75f, true);
+
+    private long memory = 0;
+
+    private long hitCount = 0;
+
+    private long missCount = 0;
+
+    private long evictionCount = 0;
+
+    /**
+     * Sets the bounds of the cache, evicting files if they are exceeded.
+     *
+     * @param maxDocuments the maximum number of cached files
+     * @param maxMemory the maximum estimated memory of the cached files,
+     * in bytes
+     */
+    public synchronized void setLimits(int maxDocuments, long maxMemory)
+    {
+        this.maxDocuments = maxDocuments;
+        this.maxMemory = maxMemory;
+        evict();
+    }
+
+    /**
+     * Returns the parsed content of <tt>file</tt>, if it is cached.
+     *
+     * @param file the history file
+     * @return the cached content or null
+     */
+    public synchronized Object get(File file)
+    {
+        return get(file, -1);
+    }
+
+    /**
+     * Returns the parsed content of <tt>file</tt>, if it is cached and was
+     * parsed when the file had <tt>length</tt> bytes. A cached content
+     * parsed from another length is dropped.
+     *
+     * @param file the history file
+     * @param length the current length of the file, or -1 to accept any
+     * cached content
+     * @return the cached content or null
+     */
+    public synchronized Object get(File file, long length)
+    {
+        Entry entry = (Entry) this.entries.get(file);
+
+        if (entry != null && length >= 0 && entry.length != length)
+        {
+            remove(file);
+            entry = null;
+        }
+
+        if (entry == null)
+        {
+            this.missCount++;
+            return null;
+        }
+
+        this.hitCount++;
+        return entry.content;
+    }
+
+    /**
+     * Caches the parsed content of <tt>file</tt>, replacing the one cached
+     * before, and evicts the least recently used files if the cache is now
+     * too large.
+     *
+     * @param file the history file
+     * @param content the parsed content of the file
+     * @param length the length of the file <tt>content</tt> was parsed
+     * from
+     * @param sizeFactor how many times the length of the file the parsed
+     * content is estimated to take in memory
+     */
+    public synchronized void put(File file, Object content, long length,
+                                 int sizeFactor)
+    {
+        remove(file);
+
+        if (this.maxDocuments <= 0 || this.maxMemory <= 0)
+            return;
+
+        Entry entry = new Entry();
+        entry.content = content;
+        entry.length = length;
+        entry.size = Math.max(MIN_ENTRY_SIZE, length * sizeFactor);
+
+        this.entries.put(file, entry);
+        this.memory += entry.size;
+
+        evict();
+    }
+
+    /**
+     * Caches the parsed content of <tt>file</tt> unless some content is
+     * cached for it already, as when the file was parsed concurrently by
+     * two threads.
+     *
+     * @param file the history file
+     * @param content the parsed content of the file
+     * @param length the length of the file <tt>content</tt> was parsed
+     * from
+     * @param sizeFactor how many times the length of the file the parsed
+     * content is estimated to take in memory
+     * @return the content cached for the file, <tt>content</tt> if there
+     * was none
+     */
+    public synchronized Object putIfAbsent(File file, Object content,
+                                           long length, int sizeFactor)
+    {
+        Entry entry = (Entry) this.entries.get(file);
+        if (entry != null)
+            return entry.content;
+
+        put(file, content, length, sizeFactor);
+        return content;
+    }
+
+    /**
+     * Drops the cached content of <tt>file</tt>, if any.
+     *
+     * @param file the history file
+     */
+    public synchronized void remove(File file)
+    {
+        Entry entry = (Entry) this.entries.remove(file);
+        if (entry != null)
+            this.memory -= entry.size;
+    }
+
+    /**
+     * Drops the cached content of all the files of a directory.
+     *
+     * @param directory the directory of a history
+     */
+    public synchronized void removeDirectory(File directory)
+    {
+        Iterator i = this.entries.entrySet().iterator();
+        while (i.hasNext())
+        {
+            Map.Entry mapEntry = (Map.Entry) i.next();
+            if (directory.equals(((File) mapEntry.getKey()).getParentFile()))
+            {
+                this.memory -= ((Entry) mapEntry.getValue()).size;
+                i.remove();
+            }
+        }
+    }
+
+    private void evict()
+    {
+        Iterator i = this.entries.values().iterator();
+        while (i.hasNext()
+            && (this.entries.size() > this.maxDocuments
+                || this.memory > this.maxMemory))
+        {
+            Entry entry = (Entry) i.next();
+            i.remove();
+            this.memory -= entry.size;
+            this.evictionCount++;
+        }
+    }
+
+    public synchronized int getDocumentCount()
+    {
+        return this.entries.size();
+    }
+
+    /**
+     * Returns the estimated memory of the cached files, in bytes.
+     */
+    public synchronized long getMemory()
+    {
+        return this.memory;
+    }
+
+    public synchronized long getHitCount()
+    {
+        return this.hitCount;
+    }
+
+    public synchronized long getMissCount()
+    {
+        return this.missCount;
+    }
+
+    public synchronized long getEvictionCount()
+    {
+        return this.evictionCount;
+    }
+
+    /**
+     * Returns a one line summary of the counters, suitable for logging.
+     */
+    public synchronized String toString()
+    {
+        return "History cache: " + this.entries.size() + " files, ~"
+            + (this.memory / 1024) + " KB; hits: " + this.hitCount
+            + ", misses: " + this.missCount
+            + ", evictions: " + this.evictionCount;
+    }
+
+    private static class Entry
+    {
+        Object content;
+
+        long length;
+
+        long size;
+    }
+}
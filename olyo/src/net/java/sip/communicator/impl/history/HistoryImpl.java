@@ -26,6 +26,12 @@ public class HistoryImpl implements History {
 
     public static final String SUPPORTED_FILETYPE = "xml";
 
+    /**
+     * How many times the size of an XML file its DOM is estimated to take
+     * in memory.
+     */
+    private static final int DOM_SIZE_FACTOR = 8;
+
     private HistoryID id;
 
     private HistoryRecordStructure historyRecordStructure;
@@ -38,8 +44,23 @@ public class HistoryImpl implements History {
 
     private HistoryWriter writer;
 
+    private KeywordIndex keywordIndex = null;
+
+    private TimeIndex timeIndex = null;
+
+    /**
+     * The files of the history by name. Their parsed documents are kept in
+     * the document cache of the history service.
+     */
     private SortedMap historyDocuments = new TreeMap();
 
+    /**
+     * The documents with records not written yet to their files, by file
+     * name, when records are written behind the writer. They are kept here
+     * until written, whether they stay in the document cache or not.
+     */
+    private Map modifiedDocuments = new LinkedHashMap();
+
     protected HistoryImpl(HistoryID id, File directory,
             HistoryRecordStructure historyRecordStructure,
             HistoryServiceImpl historyServiceImpl)
@@ -102,6 +123,160 @@ public class HistoryImpl implements History {
         return this.historyServiceImpl;
     }
 
+    /**
+     * Returns the index of the words of the records of this history,
+     * creating it the first time.
+     *
+     * @return KeywordIndex
+     */
+    protected synchronized KeywordIndex getKeywordIndex()
+    {
+        if (this.keywordIndex == null)
+        {
+            this.keywordIndex = new KeywordIndex(this.directory,
+                new KeywordIndex.RecordSource()
+                {
+                    public List loadRecords(String filename)
+                        throws IOException
+                    {
+                        Document doc = getDocumentForFile(filename);
+                        if (doc == null)
+                            throw new IOException("Could not parse "
+                                + filename);
+
+                        List records = new ArrayList();
+                        synchronized (doc)
+                        {
+                            NodeList nodes = doc.getElementsByTagName("record");
+                            for (int i = 0; i < nodes.getLength(); i++)
+                            {
+                                records.add(createRecord(nodes.item(i)));
+                            }
+                        }
+                        return records;
+                    }
+                });
+        }
+
+        return this.keywordIndex;
+    }
+
+    /**
+     * Returns the index of the timestamps of the records of this history,
+     * creating it the first time.
+     *
+     * @return TimeIndex
+     */
+    protected synchronized TimeIndex getTimeIndex()
+    {
+        if (this.timeIndex == null)
+        {
+            this.timeIndex = new TimeIndex(this.directory,
+                new TimeIndex.TimestampSource()
+                {
+                    public long[] loadTimestamps(String filename)
+                        throws IOException
+                    {
+                        Document doc = getDocumentForFile(filename);
+                        if (doc == null)
+                            throw new IOException("Could not parse "
+                                + filename);
+
+                        synchronized (doc)
+                        {
+                            NodeList nodes = doc.getElementsByTagName("record");
+                            long[] timestamps = new long[nodes.getLength()];
+                            for (int i = 0; i < timestamps.length; i++)
+                            {
+                                Node timestampNode = nodes.item(i)
+                                    .getAttributes().getNamedItem("timestamp");
+                                try
+                                {
+                                    timestamps[i] = Long.parseLong(
+                                        timestampNode.getNodeValue());
+                                }
+                                catch (RuntimeException ex)
+                                {
+                                    throw new IOException(
+                                        "Invalid timestamp in " + filename);
+                                }
+                            }
+                            return timestamps;
+                        }
+                    }
+                });
+        }
+
+        return this.timeIndex;
+    }
+
+    /**
+     * Returns the number of records of this history.
+     *
+     * @return int
+     */
+    protected int getRecordCount()
+    {
+        // the index reads the files, which locks the document list
+        List filenames;
+        synchronized (this.historyDocuments)
+        {
+            filenames = new ArrayList(this.historyDocuments.keySet());
+        }
+
+        return getTimeIndex().getRecordCount(filenames);
+    }
+
+    /**
+     * Converts a record element to a <tt>HistoryRecord</tt>.
+     *
+     * @param node the record element
+     * @return the record or null if it is broken
+     */
+    protected static HistoryRecord createRecord(Node node)
+    {
+        Node timestampNode = node.getAttributes().getNamedItem("timestamp");
+        if (timestampNode == null)
+            return null;
+
+        Date timestamp;
+        try
+        {
+            timestamp = new Date(Long.parseLong(timestampNode.getNodeValue()));
+        }
+        catch (NumberFormatException ex)
+        {
+            return null;
+        }
+
+        ArrayList nameVals = new ArrayList();
+        NodeList propertyNodes = node.getChildNodes();
+        for (int j = 0; j < propertyNodes.getLength(); j++)
+        {
+            Node propertyNode = propertyNodes.item(j);
+            if (propertyNode.getNodeType() != Node.ELEMENT_NODE)
+                continue;
+
+            // Get nested TEXT node's value
+            Node nodeValue = propertyNode.getFirstChild();
+            if (nodeValue == null)
+                return null;
+
+            nameVals.add(propertyNode.getNodeName());
+            nameVals.add(nodeValue.getNodeValue());
+        }
+
+        String[] propertyNames = new String[nameVals.size() / 2];
+        String[] propertyValues = new String[propertyNames.length];
+        for (int j = 0; j < propertyNames.length; j++)
+        {
+            propertyNames[j] = (String) nameVals.get(j * 2);
+            propertyValues[j] = (String) nameVals.get(j * 2 + 1);
+        }
+
+        return new HistoryRecord(propertyNames, propertyValues, timestamp);
+    }
+
     private void reloadDocumentList()
     {
         synchronized (this.historyDocuments)
@@ -141,16 +316,49 @@ public class HistoryImpl implements History {
                         .newDocument();
                 retVal.appendChild(retVal.createElement("history"));
 
-                this.historyDocuments.put(filename, retVal);
+                File file = new File(this.directory, filename);
+                this.historyDocuments.put(filename, file);
+                this.historyServiceImpl.getDocumentCache()
+                    .put(file, retVal, 0, DOM_SIZE_FACTOR);
             }
         }
 
         return retVal;
     }
 
-    protected void writeFile(String filename) throws InvalidParameterException,
-            IOException {
+    /**
+     * Writes <tt>doc</tt> to the file <tt>filename</tt> and caches it as the
+     * document of the file, since it may have been evicted and parsed again
+     * while it was being modified.
+     *
+     * @param filename String
+     * @param doc Document
+     * @throws InvalidParameterException if there is no such file
+     * @throws IOException if the file could not be written
+     */
+    protected void writeFile(String filename, Document doc)
+        throws InvalidParameterException, IOException
+    {
+        writeFile(filename, doc, false);
+    }
+
+    /**
+     * Writes <tt>doc</tt> to the file <tt>filename</tt> through a temporary
+     * file, so that neither a crash nor a concurrent reader ever sees a
+     * partly written file, and caches it as the document of the file.
+     *
+     * @param filename String
+     * @param doc Document
+     * @param sync whether to sync the file to the disk before replacing
+     * the previous one
+     * @throws InvalidParameterException if there is no such file
+     * @throws IOException if the file could not be written
+     */
+    private void writeFile(String filename, Document doc, boolean sync)
+        throws InvalidParameterException, IOException
+    {
         File file = new File(this.directory, filename);
+        File tmpFile = new File(this.directory, filename + ".tmp");
 
         synchronized (this.historyDocuments)
         {
@@ -160,38 +368,90 @@ public class HistoryImpl implements History {
                         + "filename does not exist in the document list.");
             }
 
-            Object obj = this.historyDocuments.get(filename);
-
-            if (obj instanceof Document)
+            FileOutputStream out = new FileOutputStream(tmpFile);
+            try
             {
-                Document doc = (Document) obj;
-
+                Writer writer = new OutputStreamWriter(out, "UTF-8");
                 synchronized (doc)
                 {
-                    XMLUtils.writeXML(doc, file);
+                    XMLUtils.writeXML(doc, writer);
                 }
+                writer.flush();
+
+                if (sync)
+                    out.getFD().sync();
+            }
+            finally
+            {
+                out.close();
+            }
+
+            if (!tmpFile.renameTo(file)
+                && !(file.delete() && tmpFile.renameTo(file)))
+            {
+                tmpFile.delete();
+                throw new IOException("Could not replace " + file);
             }
+
+            this.modifiedDocuments.remove(filename);
+            this.historyServiceImpl.getDocumentCache()
+                .put(file, doc, file.length(), DOM_SIZE_FACTOR);
         }
     }
 
-    protected void writeFile(String filename, Document doc)
-        throws InvalidParameterException, IOException
+    /**
+     * Marks <tt>doc</tt> as having records not written yet to the file
+     * <tt>filename</tt>, which will be written by <tt>writeModifiedFiles</tt>.
+     *
+     * @param filename String
+     * @param doc Document
+     */
+    protected void documentModified(String filename, Document doc)
     {
-        File file = new File(this.directory, filename);
+        synchronized (this.historyDocuments)
+        {
+            this.modifiedDocuments.put(filename, doc);
+        }
+    }
 
+    /**
+     * Writes and syncs the documents with records not written yet to their
+     * files. Called by the write behind queue of the history service.
+     *
+     * @throws IOException if a file could not be written, the other files
+     * are written nevertheless
+     */
+    protected void writeModifiedFiles()
+        throws IOException
+    {
+        Map documents;
         synchronized (this.historyDocuments)
         {
-            if (!this.historyDocuments.containsKey(filename))
+            if (this.modifiedDocuments.isEmpty())
+                return;
+
+            documents = new LinkedHashMap(this.modifiedDocuments);
+        }
+
+        IOException error = null;
+        Iterator i = documents.entrySet().iterator();
+        while (i.hasNext())
+        {
+            Map.Entry entry = (Map.Entry) i.next();
+            try
             {
-                throw new InvalidParameterException("The requested "
-                        + "filename does not exist in the document list.");
+                // the document stays modified if it could not be written
+                writeFile((String) entry.getKey(),
+                          (Document) entry.getValue(), true);
             }
-
-            synchronized (doc)
+            catch (IOException ex)
             {
-                XMLUtils.writeXML(doc, file);
+                error = ex;
             }
         }
+
+        if (error != null)
+            throw error;
     }
 
     protected Iterator getFileList()
@@ -199,9 +459,22 @@ public class HistoryImpl implements History {
         return this.historyDocuments.keySet().iterator();
     }
 
+    /**
+     * Returns the document of a file of this history, from the document
+     * cache or parsed from the disk. The files are parsed without locking
+     * the document list, so that the files of the history can be parsed
+     * concurrently; a document created or parsed meanwhile by another thread
+     * is preferred to the one parsed.
+     *
+     * @param filename String
+     * @return Document the document or null if it cannot be parsed
+     * @throws InvalidParameterException if there is no such file
+     */
     protected Document getDocumentForFile(String filename)
             throws InvalidParameterException, RuntimeException {
         Document retVal = null;
+        File file;
+        DocumentCache cache = this.historyServiceImpl.getDocumentCache();
 
         synchronized (this.historyDocuments)
         {
@@ -211,42 +484,46 @@ public class HistoryImpl implements History {
                         + "filename does not exist in the document list.");
             }
 
-            Object obj = this.historyDocuments.get(filename);
-            if (obj instanceof Document)
-            {
-                // Document already loaded. Use it directly
-                retVal = (Document) obj;
-            } else if (obj instanceof File)
-            {
-                File file = (File) obj;
+            file = (File) this.historyDocuments.get(filename);
 
-                try {
-                    retVal = this.historyServiceImpl.parse(file);
-                } catch (Exception e)
-                {
-//                    throw new RuntimeException("Error occured while "
-//                            + "parsing XML document.", e);
-//                    log.error("Error occured while parsing XML document.", e);
-                    log.error("Error occured while parsing XML document.", e);
+            // the file is older than the document
+            retVal = (Document) this.modifiedDocuments.get(filename);
+            if (retVal != null)
+                return retVal;
 
-                    // will try to fix the xml file
-                    retVal = getFixedDocument(file);
+            retVal = (Document) cache.get(file);
+            if (retVal != null)
+                return retVal;
 
-                    // if is not fixed return
-                    if(retVal == null)
-                        return null;
-                }
+            // a new document which is being written
+            if (!file.exists())
+                return null;
+        }
 
-                // Cache the loaded document for reuse if configured
-                if(historyServiceImpl.isCacheEnabled())
-                    this.historyDocuments.put(filename, retVal);
-            } else {
-                // TODO: Assert: Assert.fail("Internal error - the data type " +
-                // "should be either Document or File.");
-            }
+        long length = file.length();
+        try {
+            retVal = this.historyServiceImpl.parse(file);
+        } catch (Exception e)
+        {
+//            throw new RuntimeException("Error occured while "
+//                    + "parsing XML document.", e);
+//            log.error("Error occured while parsing XML document.", e);
+            log.error("Error occured while parsing XML document.", e);
+
+            // will try to fix the xml file
+            retVal = getFixedDocument(file);
+
+            // if is not fixed return
+            if(retVal == null)
+                return null;
         }
 
-        return retVal;
+        synchronized (this.historyDocuments)
+        {
+            // Cache the loaded document for reuse
+            return (Document) cache.putIfAbsent(
+                file, retVal, length, DOM_SIZE_FACTOR);
+        }
     }
 
     /**
@@ -7,6 +7,7 @@
 package net.java.sip.communicator.impl.history;
 
 import java.util.*;
+import java.util.concurrent.*;
 
 import org.w3c.dom.*;
 import net.java.sip.communicator.service.history.*;
@@ -46,7 +47,7 @@ public class HistoryReaderImpl
      *             Thrown if an exception occurs during the execution of the
      *             query, such as internal IO error.
      */
-    public synchronized QueryResultSet findByStartDate(Date startDate)
+    public QueryResultSet findByStartDate(Date startDate)
             throws RuntimeException
     {
         return find(startDate, null, null, null, false);
@@ -62,7 +63,7 @@ public class HistoryReaderImpl
      *             Thrown if an exception occurs during the execution of the
      *             query, such as internal IO error.
      */
-    public synchronized QueryResultSet findByEndDate(Date endDate)
+    public QueryResultSet findByEndDate(Date endDate)
         throws RuntimeException
     {
         return find(null, endDate, null, null, false);
@@ -79,7 +80,7 @@ public class HistoryReaderImpl
      *             Thrown if an exception occurs during the execution of the
      *             query, such as internal IO error.
      */
-    public synchronized QueryResultSet findByPeriod(Date startDate, Date endDate)
+    public QueryResultSet findByPeriod(Date startDate, Date endDate)
             throws RuntimeException
     {
         return find(startDate, endDate, null, null, false);
@@ -95,7 +96,7 @@ public class HistoryReaderImpl
      *             Thrown if an exception occurs during the execution of the
      *             query, such as internal IO error.
      */
-    public synchronized QueryResultSet findByKeyword(String keyword, String field)
+    public QueryResultSet findByKeyword(String keyword, String field)
         throws RuntimeException
     {
         return findByKeywords(new String[] { keyword }, field);
@@ -111,7 +112,7 @@ public class HistoryReaderImpl
      *             Thrown if an exception occurs during the execution of the
      *             query, such as internal IO error.
      */
-    public synchronized QueryResultSet findByKeywords(String[] keywords, String field)
+    public QueryResultSet findByKeywords(String[] keywords, String field)
             throws RuntimeException
     {
             return find(null, null, keywords, field, false);
@@ -130,7 +131,7 @@ public class HistoryReaderImpl
      *             Thrown if an exception occurs during the execution of the
      *             query, such as internal IO error.
      */
-    public synchronized QueryResultSet findByPeriod(Date startDate, Date endDate,
+    public QueryResultSet findByPeriod(Date startDate, Date endDate,
             String[] keywords, String field) throws UnsupportedOperationException
     {
         return find(startDate, endDate, keywords, field, false);
@@ -145,104 +146,9 @@ public class HistoryReaderImpl
      * @return QueryResultSet
      * @throws RuntimeException
      */
-    public synchronized QueryResultSet findLast(int count) throws RuntimeException
+    public QueryResultSet findLast(int count) throws RuntimeException
     {
-        // the files are supposed to be ordered from oldest to newest
-        Vector filelist =
-            filterFilesByDate(this.historyImpl.getFileList(), null, null);
-
-        TreeSet result = new TreeSet(new HistoryRecordComparator());
-        int leftCount = count;
-        int currentFile = filelist.size() - 1;
-
-        while(leftCount > 0 && currentFile >= 0)
-        {
-            Document doc = this.historyImpl.
-                getDocumentForFile( (String) filelist.get(currentFile));
-
-            if(doc == null)
-            {
-                currentFile--;
-                continue;
-            }
-
-            // will get nodes and construct a List of nodes
-            // so we can easyly get sublist of it
-            List nodes = new ArrayList();
-            NodeList nodesList = doc.getElementsByTagName("record");
-            for (int i = 0; i < nodesList.getLength(); i++)
-            {
-                nodes.add(nodesList.item(i));
-            }
-
-            List lNodes = null;
-
-            if (nodes.size() > leftCount)
-            {
-                lNodes = nodes.subList(nodes.size() - leftCount , nodes.size());
-                leftCount = 0;
-            }
-            else
-            {
-                lNodes = nodes;
-                leftCount -= nodes.size();
-            }
-
-            Iterator i = lNodes.iterator();
-            while (i.hasNext())
-            {
-                Node node = (Node) i.next();
-
-                NodeList propertyNodes = node.getChildNodes();
-
-                String ts = node.getAttributes().getNamedItem("timestamp")
-                    .getNodeValue();
-                Date timestamp = new Date(Long.parseLong(ts));
-
-                ArrayList nameVals = new ArrayList();
-
-                boolean isRecordOK = true;
-                int len = propertyNodes.getLength();
-                for (int j = 0; j < len; j++)
-                {
-                    Node propertyNode = propertyNodes.item(j);
-                    if (propertyNode.getNodeType() == Node.ELEMENT_NODE)
-                    {
-                        // Get nested TEXT node's value
-                        Node nodeValue = propertyNode.getFirstChild();
-
-                        if(nodeValue != null)
-                        {
-                            nameVals.add(propertyNode.getNodeName());
-                            nameVals.add(nodeValue.getNodeValue());
-                        }
-                        else
-                            isRecordOK = false;
-                    }
-                }
-
-                // if we found a broken record - just skip it
-                if(!isRecordOK)
-                    continue;
-
-                String[] propertyNames = new String[nameVals.size() / 2];
-                String[] propertyValues = new String[propertyNames.length];
-                for (int j = 0; j < propertyNames.length; j++)
-                {
-                    propertyNames[j] = (String) nameVals.get(j * 2);
-                    propertyValues[j] = (String) nameVals.get(j * 2 + 1);
-                }
-
-                HistoryRecord record = new HistoryRecord(propertyNames,
-                    propertyValues, timestamp);
-
-                result.add(record);
-            }
-
-            currentFile--;
-        }
-
-        return new OrderedQueryResultSet(result);
+        return findLastRecordsBefore(null, count);
     }
 
     /**
@@ -256,7 +162,7 @@ public class HistoryReaderImpl
      *             Thrown if an exception occurs during the execution of the
      *             query, such as internal IO error.
      */
-    public synchronized QueryResultSet findByKeyword(String keyword, String field,
+    public QueryResultSet findByKeyword(String keyword, String field,
                                         boolean caseSensitive)
         throws RuntimeException
     {
@@ -274,7 +180,7 @@ public class HistoryReaderImpl
      *             Thrown if an exception occurs during the execution of the
      *             query, such as internal IO error.
      */
-    public synchronized QueryResultSet findByKeywords(String[] keywords, String field,
+    public QueryResultSet findByKeywords(String[] keywords, String field,
                                          boolean caseSensitive)
         throws RuntimeException
     {
@@ -295,7 +201,7 @@ public class HistoryReaderImpl
      *             Thrown if an exception occurs during the execution of the
      *             query, such as internal IO error.
      */
-    public synchronized QueryResultSet findByPeriod(Date startDate, Date endDate,
+    public QueryResultSet findByPeriod(Date startDate, Date endDate,
                                        String[] keywords, String field,
                                        boolean caseSensitive)
         throws UnsupportedOperationException
@@ -318,79 +224,45 @@ public class HistoryReaderImpl
 
         Vector filelist =
             filterFilesByDate(this.historyImpl.getFileList(), date, null);
+        TimeIndex timeIndex = this.historyImpl.getTimeIndex();
 
         int leftCount = count;
         int currentFile = 0;
 
         while(leftCount > 0 && currentFile < filelist.size())
         {
-            Document doc = this.historyImpl.
-                getDocumentForFile( (String) filelist.get(currentFile));
+            String filename = (String) filelist.get(currentFile++);
 
-            if(doc == null)
-            {
-                currentFile++;
+            // the positions of the records which may be after the date,
+            // null if all the records of the file have to be checked
+            int[] range = timeIndex.getRange(filename, date, null);
+            if(range != null && range[0] == range[1])
                 continue;
-            }
-
-            NodeList nodes = doc.getElementsByTagName("record");
-
-            Node node;
-            for (int i = 0; i < nodes.getLength() && leftCount > 0; i++)
-            {
-                node = nodes.item(i);
 
-                NodeList propertyNodes = node.getChildNodes();
-
-                String ts = node.getAttributes().getNamedItem("timestamp")
-                    .getNodeValue();
-                Date timestamp = new Date(Long.parseLong(ts));
+            Document doc = this.historyImpl.getDocumentForFile(filename);
 
-                if(!isInPeriod(timestamp, date, null))
-                    continue;
+            if(doc == null)
+                continue;
 
-                ArrayList nameVals = new ArrayList();
+            synchronized(doc)
+            {
+                NodeList nodes = doc.getElementsByTagName("record");
 
-                boolean isRecordOK = true;
-                int len = propertyNodes.getLength();
-                for (int j = 0; j < len; j++)
+                int from = (range == null) ? 0 : range[0];
+                for (int i = from; i < nodes.getLength() && leftCount > 0; i++)
                 {
-                    Node propertyNode = propertyNodes.item(j);
-                    if (propertyNode.getNodeType() == Node.ELEMENT_NODE)
-                    {
-                        // Get nested TEXT node's value
-                        Node nodeValue = propertyNode.getFirstChild();
-
-                        if(nodeValue != null)
-                        {
-                            nameVals.add(propertyNode.getNodeName());
-                            nameVals.add(nodeValue.getNodeValue());
-                        }
-                        else
-                            isRecordOK = false;
-                    }
-                }
+                    HistoryRecord record =
+                        HistoryImpl.createRecord(nodes.item(i));
 
-                // if we found a broken record - just skip it
-                if(!isRecordOK)
-                    continue;
+                    // if we found a broken record - just skip it
+                    if(record == null
+                       || !isInPeriod(record.getTimestamp(), date, null))
+                        continue;
 
-                String[] propertyNames = new String[nameVals.size() / 2];
-                String[] propertyValues = new String[propertyNames.length];
-                for (int j = 0; j < propertyNames.length; j++)
-                {
-                    propertyNames[j] = (String) nameVals.get(j * 2);
-                    propertyValues[j] = (String) nameVals.get(j * 2 + 1);
+                    result.add(record);
+                    leftCount--;
                 }
-
-                HistoryRecord record = new HistoryRecord(propertyNames,
-                    propertyValues, timestamp);
-
-                result.add(record);
-                leftCount--;
             }
-
-            currentFile++;
         }
 
         return new OrderedQueryResultSet(result);
@@ -410,6 +282,7 @@ public class HistoryReaderImpl
         // the files are supposed to be ordered from oldest to newest
         Vector filelist =
             filterFilesByDate(this.historyImpl.getFileList(), null, date);
+        TimeIndex timeIndex = this.historyImpl.getTimeIndex();
 
         TreeSet result = new TreeSet(new HistoryRecordComparator());
         int leftCount = count;
@@ -418,80 +291,90 @@ public class HistoryReaderImpl
 
         while(leftCount > 0 && currentFile >= 0)
         {
-            Document doc = this.historyImpl.
-                getDocumentForFile( (String) filelist.get(currentFile));
+            String filename = (String) filelist.get(currentFile--);
 
-            if(doc == null)
-            {
-                currentFile--;
+            // the positions of the records which may be before the date,
+            // null if all the records of the file have to be checked
+            int[] range = timeIndex.getRange(filename, null, date);
+            if(range != null && range[0] == range[1])
                 continue;
-            }
-
-            NodeList nodes = doc.getElementsByTagName("record");
 
-            Node node;
-            for (int i = nodes.getLength() - 1; i >= 0 && leftCount > 0; i--)
-            {
-                node = nodes.item(i);
-                NodeList propertyNodes = node.getChildNodes();
+            Document doc = this.historyImpl.getDocumentForFile(filename);
 
-                String ts = node.getAttributes().getNamedItem("timestamp")
-                    .getNodeValue();
-                Date timestamp = new Date(Long.parseLong(ts));
+            if(doc == null)
+                continue;
 
-                if(!isInPeriod(timestamp, null, date))
-                    continue;
+            synchronized(doc)
+            {
+                NodeList nodes = doc.getElementsByTagName("record");
 
-                ArrayList nameVals = new ArrayList();
+                int to = nodes.getLength();
+                if(range != null)
+                    to = Math.min(range[1], to);
 
-                boolean isRecordOK = true;
-                int len = propertyNodes.getLength();
-                for (int j = 0; j < len; j++)
+                for (int i = to - 1; i >= 0 && leftCount > 0; i--)
                 {
-                    Node propertyNode = propertyNodes.item(j);
-                    if (propertyNode.getNodeType() == Node.ELEMENT_NODE)
-                    {
-                        // Get nested TEXT node's value
-                        Node nodeValue = propertyNode.getFirstChild();
-
-                        if(nodeValue != null)
-                        {
-                            nameVals.add(propertyNode.getNodeName());
-                            nameVals.add(nodeValue.getNodeValue());
-                        }
-                        else
-                            isRecordOK = false;
-                    }
-                }
+                    HistoryRecord record =
+                        HistoryImpl.createRecord(nodes.item(i));
 
-                // if we found a broken record - just skip it
-                if(!isRecordOK)
-                    continue;
+                    // if we found a broken record - just skip it
+                    if(record == null
+                       || !isInPeriod(record.getTimestamp(), null, date))
+                        continue;
 
-                String[] propertyNames = new String[nameVals.size() / 2];
-                String[] propertyValues = new String[propertyNames.length];
-                for (int j = 0; j < propertyNames.length; j++)
-                {
-                    propertyNames[j] = (String) nameVals.get(j * 2);
-                    propertyValues[j] = (String) nameVals.get(j * 2 + 1);
+                    result.add(record);
+                    leftCount--;
                 }
-
-                HistoryRecord record = new HistoryRecord(propertyNames,
-                    propertyValues, timestamp);
-
-                result.add(record);
-                leftCount--;
             }
-
-            currentFile--;
         }
 
         return new OrderedQueryResultSet(result);
     }
 
+    /**
+     * Returns a stream of the history records containing all
+     * <tt>keywords</tt>, with timestamp between <tt>startDate</tt> and
+     * <tt>endDate</tt>. The files of the history are read as the stream is
+     * iterated.
+     *
+     * @param startDate start of the interval in which we search, or null
+     * @param endDate end of the interval in which we search, or null
+     * @param keywords array of keywords we search for, or null
+     * @param field the field where to look for the keyword
+     * @param caseSensitive is keywords search case sensitive
+     * @return the found records, oldest first
+     * @throws RuntimeException
+     */
+    public HistoryRecordStream streamByPeriod(final Date startDate,
+                                              final Date endDate,
+                                              final String[] keywords,
+                                              final String field,
+                                              final boolean caseSensitive)
+        throws RuntimeException
+    {
+        Vector filelist = filterFilesByDate(
+            this.historyImpl.getFileList(), startDate, endDate);
+
+        final KeywordIndex keywordIndex =
+            KeywordIndex.canAnswer(keywords, field)
+                ? this.historyImpl.getKeywordIndex() : null;
+        final TimeIndex timeIndex = (startDate != null || endDate != null)
+                ? this.historyImpl.getTimeIndex() : null;
+
+        return new RecordStream(filelist)
+        {
+            protected List readFile(String filename)
+            {
+                return findInFile(filename, startDate, endDate,
+                    keywords, field, caseSensitive, keywordIndex, timeIndex);
+            }
+        };
+    }
+
     private QueryResultSet find(
-        Date startDate, Date endDate,
-        String[] keywords, String field, boolean caseSensitive)
+        final Date startDate, final Date endDate,
+        final String[] keywords, final String field,
+        final boolean caseSensitive)
     {
         TreeSet result = new TreeSet(new HistoryRecordComparator());
 
@@ -505,30 +388,129 @@ public class HistoryReaderImpl
             fileProgressStep =
                 HistorySearchProgressListener.PROGRESS_MAXIMUM_VALUE / filelist.size();
 
+        // keywords are looked up in the index when it can answer them
+        final KeywordIndex keywordIndex =
+            KeywordIndex.canAnswer(keywords, field)
+                ? this.historyImpl.getKeywordIndex() : null;
+
+        final TimeIndex timeIndex = (startDate != null || endDate != null)
+                ? this.historyImpl.getTimeIndex() : null;
+
         // start progress - minimum value
         fireProgressStateChanged(startDate, endDate,
             keywords, HistorySearchProgressListener.PROGRESS_MINIMUM_VALUE);
 
-        Iterator fileIterator = filelist.iterator();
-        while (fileIterator.hasNext())
+        // the files are searched concurrently, the results are merged
+        // in the order of the files
+        List searches = this.historyImpl.getHistoryServiceImpl()
+            .submitSearches(filelist, new HistoryServiceImpl.FileSearch()
+            {
+                public List search(Object filename)
+                {
+                    return findInFile((String) filename, startDate, endDate,
+                        keywords, field, caseSensitive,
+                        keywordIndex, timeIndex);
+                }
+            });
+
+        Iterator searchIterator = searches.iterator();
+        while (searchIterator.hasNext())
         {
-            String filename = (String) fileIterator.next();
+            result.addAll(HistoryServiceImpl.getSearchResult(
+                (Future) searchIterator.next()));
 
-            Document doc = this.historyImpl.getDocumentForFile(filename);
+            currentProgress += fileProgressStep;
+            fireProgressStateChanged(
+                startDate, endDate, keywords, (int)currentProgress);
+        }
 
-            if(doc == null)
-                continue;
+//      if maximum value is not reached fire an event
+        if((int)currentProgress < HistorySearchProgressListener.PROGRESS_MAXIMUM_VALUE)
+        {
+            fireProgressStateChanged(startDate, endDate, keywords,
+                                     HistorySearchProgressListener.
+                                     PROGRESS_MAXIMUM_VALUE);
+        }
 
-            NodeList nodes = doc.getElementsByTagName("record");
+        return new OrderedQueryResultSet(result);
+    }
 
-            double nodesProgressStep = fileProgressStep;
+    /**
+     * Returns the records of a file with timestamp between
+     * <tt>startDate</tt> and <tt>endDate</tt> and containing all
+     * <tt>keywords</tt>, in the order of the file.
+     *
+     * @param filename String
+     * @param startDate Date the start of the period or null
+     * @param endDate Date the end of the period or null
+     * @param keywords String[] the keywords or null
+     * @param field String the field where to look for the keywords
+     * @param caseSensitive boolean
+     * @param keywordIndex KeywordIndex the index of the history if it can
+     *          answer the keywords, null otherwise
+     * @param timeIndex TimeIndex the index of the history if the period is
+     *          bounded, null otherwise
+     * @return List
+     */
+    private List findInFile(String filename,
+                            Date startDate, Date endDate,
+                            String[] keywords, String field,
+                            boolean caseSensitive,
+                            KeywordIndex keywordIndex,
+                            TimeIndex timeIndex)
+    {
+        List result = new ArrayList();
+
+        // the positions of the records which may be in the period,
+        // null if all the records of the file have to be checked
+        int[] range = null;
+        if(timeIndex != null)
+            range = timeIndex.getRange(filename, startDate, endDate);
+
+        // the positions of the records which may match the keywords,
+        // null if all the records of the file have to be checked
+        int[] candidates = null;
+        if(keywordIndex != null
+           && (range == null || range[0] != range[1]))
+        {
+            candidates =
+                keywordIndex.getCandidates(filename, keywords, field);
+            if(candidates != null && range != null)
+                candidates = inRange(candidates, range);
+        }
+
+        // nothing to read in this file
+        if((range != null && range[0] == range[1])
+           || (candidates != null && candidates.length == 0))
+            return result;
 
-            if(nodes.getLength() != 0)
-                nodesProgressStep = fileProgressStep / nodes.getLength();
+        Document doc = this.historyImpl.getDocumentForFile(filename);
+
+        if(doc == null)
+            return result;
+
+        // the DOM is not safe for concurrent access, even for reading
+        synchronized(doc)
+        {
+            NodeList nodes = doc.getElementsByTagName("record");
+
+            int from = 0;
+            int count = nodes.getLength();
+            if(candidates != null)
+                count = candidates.length;
+            else if(range != null)
+            {
+                from = range[0];
+                count = Math.min(range[1], count) - from;
+            }
 
             Node node;
-            for (int i = 0; i < nodes.getLength(); i++)
+            for (int c = 0; c < count; c++)
             {
+                int i = (candidates == null) ? from + c : candidates[c];
+                if(i >= nodes.getLength())
+                    break;
+
                 node = nodes.item(i);
 
                 String ts = node.getAttributes().getNamedItem("timestamp")
@@ -549,22 +531,36 @@ public class HistoryReaderImpl
                         result.add(record);
                     }
                 }
-
-                currentProgress += nodesProgressStep;
-                fireProgressStateChanged(
-                    startDate, endDate, keywords, (int)currentProgress);
             }
         }
 
-//      if maximum value is not reached fire an event
-        if((int)currentProgress < HistorySearchProgressListener.PROGRESS_MAXIMUM_VALUE)
-        {
-            fireProgressStateChanged(startDate, endDate, keywords,
-                                     HistorySearchProgressListener.
-                                     PROGRESS_MAXIMUM_VALUE);
-        }
+        return result;
+    }
 
-        return new OrderedQueryResultSet(result);
+    /**
+     * Returns the positions of <tt>candidates</tt> between the two
+     * positions of <tt>range</tt>.
+     *
+     * @param candidates int[] positions in ascending order
+     * @param range int[] the first position and the one after the last one
+     * @return int[]
+     */
+    private static int[] inRange(int[] candidates, int[] range)
+    {
+        int from = 0;
+        while(from < candidates.length && candidates[from] < range[0])
+            from++;
+
+        int to = from;
+        while(to < candidates.length && candidates[to] < range[1])
+            to++;
+
+        if(from == 0 && to == candidates.length)
+            return candidates;
+
+        int[] result = new int[to - from];
+        System.arraycopy(candidates, from, result, 0, result.length);
+        return result;
     }
 
     /**
@@ -575,7 +571,7 @@ public class HistoryReaderImpl
      * @param endDate Date the end of the period
      * @return boolean
      */
-    private boolean isInPeriod(Date timestamp, Date startDate, Date endDate)
+    static boolean isInPeriod(Date timestamp, Date startDate, Date endDate)
     {
         if(startDate == null)
         {
@@ -657,7 +653,7 @@ public class HistoryReaderImpl
      * @param caseSensitive boolean
      * @return boolean
      */
-    private boolean matchKeyword(String value, String[] keywords,
+    static boolean matchKeyword(String value, String[] keywords,
                                  boolean caseSensitive)
     {
         if(keywords != null)
@@ -843,10 +839,8 @@ public class HistoryReaderImpl
     
     /**
      * Count the number of messages that a search will return
-     * Actually only the last file is parsed and its nodes are counted.
-     * We accept that the other files are full with max records, 
-     * this way we escape parsing all files which will significantly 
-     * slow the process and for one search will parse the files twice.
+     * The count is taken from the time index of the history, which parses
+     * the files it has no up to date entry for only the first time.
      * 
      * @return the number of searched messages
      * @throws UnsupportedOperationException 
@@ -856,35 +850,14 @@ public class HistoryReaderImpl
     public int countRecords()
         throws UnsupportedOperationException
     {
-        int result = 0;
-        String lastFile = null;
-        Iterator filelistIter = this.historyImpl.getFileList();
-        while (filelistIter.hasNext())
-        {
-            lastFile = (String)filelistIter.next();
-            result += HistoryWriterImpl.MAX_RECORDS_PER_FILE;
-        }
-
-        if(lastFile == null)
-            return result;
-        
-        Document doc = this.historyImpl.getDocumentForFile(lastFile);
-
-        if(doc == null)
-            return result;
-
-        NodeList nodes = doc.getElementsByTagName("record");
-
-        result += nodes.getLength();
-        
-        return result;
+        return this.historyImpl.getRecordCount();
     }
 
     /**
      * Used to compare HistoryRecords
      * ant to be ordered in TreeSet
      */
-    private class HistoryRecordComparator
+    static class HistoryRecordComparator
         implements Comparator
     {
         public int compare(Object o1, Object o2)
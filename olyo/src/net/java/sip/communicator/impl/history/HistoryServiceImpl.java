@@ -8,7 +8,9 @@ package net.java.sip.communicator.impl.history;
 
 import java.io.*;
 import java.util.*;
+import java.util.concurrent.*;
 import javax.xml.parsers.*;
+import org.apache.felix.servicebinder.*;
 import org.xml.sax.*;
 import org.w3c.dom.*;
 
@@ -22,7 +24,7 @@ import net.java.sip.communicator.util.*;
  * @author Alexander Pelov
  * @author Damian Minkov
  */
-public class HistoryServiceImpl implements HistoryService {
+public class HistoryServiceImpl implements HistoryService, Lifecycle {
 
     public static final String DATA_DIRECTORY = "history_ver1.0";
 
@@ -49,7 +51,49 @@ public class HistoryServiceImpl implements HistoryService {
 
     private DocumentBuilder builder;
 
-    private boolean cacheEnabled = false;
+    /**
+     * The builders parsing documents, one per thread so that the files of
+     * the histories can be parsed concurrently.
+     */
+    private ThreadLocal parsers = new ThreadLocal()
+    {
+        protected Object initialValue()
+        {
+            try
+            {
+                return DocumentBuilderFactory.newInstance()
+                    .newDocumentBuilder();
+            }
+            catch (ParserConfigurationException ex)
+            {
+                throw new RuntimeException(ex);
+            }
+        }
+    };
+
+    /**
+     * The threads searching the files of the histories, as many as there
+     * are processors.
+     */
+    private ThreadPoolExecutor searchExecutor = null;
+
+    /**
+     * The parsed history files shared by all histories.
+     */
+    private DocumentCache documentCache = new DocumentCache();
+
+    private boolean logStorageEnabled = false;
+
+    /**
+     * The timer syncing the segments of the histories stored as logs.
+     */
+    private Timer syncTimer = null;
+
+    /**
+     * The queue writing the records of the histories stored in XML, null if
+     * they are written as they are added.
+     */
+    private WriteBehindQueue writeBehindQueue = null;
 
     /**
      *  Characters and their replacement in created folder names
@@ -165,8 +209,8 @@ public class HistoryServiceImpl implements HistoryService {
                         "There is already a history with the specified ID.");
             } else {
                 File dir = this.createHistoryDirectories(id);
-                HistoryImpl history = new HistoryImpl(id, dir, recordStructure,
-                        this);
+                History history = this.createHistoryImpl(id, dir,
+                        recordStructure);
 
                 File dbDatFile = new File(dir, HistoryServiceImpl.DATA_FILE);
                 DBStructSerializer dbss = new DBStructSerializer(this);
@@ -180,6 +224,171 @@ public class HistoryServiceImpl implements HistoryService {
         return retVal;
     }
 
+    /**
+     * Creates the history stored in <tt>dir</tt>, with the storage set in
+     * the configuration. Histories stored in XML are migrated to the log
+     * storage the first time they are opened with it.
+     *
+     * @param id HistoryID
+     * @param dir File the directory of the history
+     * @param recordStructure HistoryRecordStructure
+     * @return History
+     */
+    protected History createHistoryImpl(HistoryID id, File dir,
+            HistoryRecordStructure recordStructure)
+    {
+        if (!this.logStorageEnabled)
+            return new HistoryImpl(id, dir, recordStructure, this);
+
+        if (XmlHistoryMigrator.isMigrationNeeded(dir))
+        {
+            try {
+                new XmlHistoryMigrator(this).migrate(id, dir, recordStructure);
+            } catch (IOException e)
+            {
+                log.error("Could not migrate history " + dir
+                        + ", keeping it in XML", e);
+                return new HistoryImpl(id, dir, recordStructure, this);
+            }
+        }
+
+        return new LogHistoryImpl(id, dir, recordStructure, this);
+    }
+
+    /**
+     * Returns the timer the histories stored as logs use to sync their
+     * segments, creating it the first time.
+     * @return Timer
+     */
+    protected synchronized Timer getSyncTimer()
+    {
+        if (this.syncTimer == null)
+            this.syncTimer = new Timer("HistoryLogSync", true);
+
+        return this.syncTimer;
+    }
+
+    /**
+     * Searches the files of a history, one search of a history file or
+     * segment.
+     */
+    interface FileSearch
+    {
+        /**
+         * Returns the records of <tt>file</tt> matching the search.
+         *
+         * @param file the name or the <tt>File</tt> of the history file
+         * @return a list of <tt>HistoryRecord</tt>s
+         */
+        public List search(Object file);
+    }
+
+    /**
+     * Starts searching the given files of a history, concurrently on the
+     * search threads. When called from a search thread, the files are
+     * searched by the calling thread instead, so that a search never waits
+     * for the threads it runs on.
+     *
+     * @param files the names or the <tt>File</tt>s of the files to search
+     * @param search the search to run on every file
+     * @return the <tt>Future</tt> results of the searches, in the order of
+     * the files, to be read with <tt>getSearchResult</tt>
+     */
+    protected List submitSearches(List files, final FileSearch search)
+    {
+        List results = new ArrayList(files.size());
+        boolean inline = (Thread.currentThread() instanceof SearchThread);
+
+        for (int i = 0; i < files.size(); i++)
+        {
+            final Object file = files.get(i);
+            FutureTask result = new FutureTask(new Callable()
+            {
+                public Object call()
+                {
+                    return search.search(file);
+                }
+            });
+
+            if (inline)
+                result.run();
+            else
+                getSearchExecutor().execute(result);
+
+            results.add(result);
+        }
+
+        return results;
+    }
+
+    /**
+     * Waits for the result of a search started by <tt>submitSearches</tt>.
+     *
+     * @param result the <tt>Future</tt> result of the search
+     * @return the records found by the search
+     * @throws RuntimeException if the search failed or the thread was
+     * interrupted
+     */
+    protected static List getSearchResult(Future result)
+    {
+        try
+        {
+            return (List) result.get();
+        }
+        catch (InterruptedException ex)
+        {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException("Interrupted while searching history",
+                ex);
+        }
+        catch (ExecutionException ex)
+        {
+            if (ex.getCause() instanceof RuntimeException)
+                throw (RuntimeException) ex.getCause();
+            if (ex.getCause() instanceof Error)
+                throw (Error) ex.getCause();
+            throw new RuntimeException(ex.getCause());
+        }
+    }
+
+    private synchronized ThreadPoolExecutor getSearchExecutor()
+    {
+        if (this.searchExecutor == null)
+        {
+            int threads = Runtime.getRuntime().availableProcessors();
+
+            //the threads are only started when searches arrive
+            this.searchExecutor = new ThreadPoolExecutor(
+                threads, threads, 0L, TimeUnit.MILLISECONDS,
+                new LinkedBlockingQueue(),
+                new ThreadFactory()
+                {
+                    private int threadCount = 0;
+
+                    public synchronized Thread newThread(Runnable r)
+                    {
+                        return new SearchThread(r,
+                            "HistorySearch-" + (++threadCount));
+                    }
+                });
+        }
+
+        return this.searchExecutor;
+    }
+
+    /**
+     * A daemon thread of the search executor.
+     */
+    private static class SearchThread
+        extends Thread
+    {
+        SearchThread(Runnable r, String name)
+        {
+            super(r, name);
+            setDaemon(true);
+        }
+    }
+
     protected FileAccessService getFileAccessService()
     {
         return this.fileAccessService;
@@ -191,31 +400,31 @@ public class HistoryServiceImpl implements HistoryService {
     }
 
     /**
-     * Parse documents. Synchronized to avoid exception
-     * when concurrently parsing with same DocumentBuilder
+     * Parse documents. Every thread parses with its own DocumentBuilder,
+     * which cannot be used concurrently
      * @param file File the file to parse
      * @return Document the result document
      * @throws SAXException exception
      * @throws IOException exception
      */
-    protected synchronized Document parse(File file)
+    protected Document parse(File file)
         throws SAXException, IOException
     {
-        return builder.parse(file);
+        return ((DocumentBuilder) parsers.get()).parse(file);
     }
 
     /**
-     * Parse documents. Synchronized to avoid exception
-     * when concurrently parsing with same DocumentBuilder
+     * Parse documents. Every thread parses with its own DocumentBuilder,
+     * which cannot be used concurrently
      * @param in ByteArrayInputStream the stream to parse
      * @return Document the result document
      * @throws SAXException exception
      * @throws IOException exception
      */
-    protected synchronized Document parse(ByteArrayInputStream in)
+    protected Document parse(ByteArrayInputStream in)
         throws SAXException, IOException
     {
-        return builder.parse(in);
+        return ((DocumentBuilder) parsers.get()).parse(in);
     }
 
     private void findDatFiles(Vector vect, File directory)
@@ -289,8 +498,37 @@ public class HistoryServiceImpl implements HistoryService {
             Object isCacheEnabledObj =
                 this.configurationService.getProperty(HistoryService.CACHE_ENABLED_PROPERTY);
 
-            if(isCacheEnabledObj != null && isCacheEnabledObj.equals(HistoryService.CACHE_ENABLED))
-                cacheEnabled = true;
+            if(isCacheEnabledObj != null && isCacheEnabledObj.equals(HistoryService.CACHE_DISABLED))
+                documentCache.setLimits(0, 0);
+            else
+                documentCache.setLimits(
+                    getIntProperty(HistoryService.CACHE_MAX_DOCUMENTS_PROPERTY,
+                        DocumentCache.DEF_MAX_DOCUMENTS),
+                    getIntProperty(HistoryService.CACHE_MAX_MEMORY_PROPERTY,
+                        (int)(DocumentCache.DEF_MAX_MEMORY / 1024)) * 1024L);
+
+            Object storageObj =
+                this.configurationService.getProperty(HistoryService.STORAGE_PROPERTY);
+
+            if(storageObj != null && storageObj.equals(HistoryService.STORAGE_LOG))
+                logStorageEnabled = true;
+
+            Object writeBehindObj = this.configurationService
+                .getProperty(HistoryService.WRITE_BEHIND_ENABLED_PROPERTY);
+
+            if(writeBehindObj != null
+                && writeBehindObj.equals(HistoryService.WRITE_BEHIND_ENABLED)
+                && writeBehindQueue == null)
+                writeBehindQueue = new WriteBehindQueue(
+                    getIntProperty(
+                        HistoryService.WRITE_BEHIND_MAX_DELAY_PROPERTY,
+                        WriteBehindQueue.DEF_MAX_DELAY),
+                    getIntProperty(
+                        HistoryService.WRITE_BEHIND_BATCH_SIZE_PROPERTY,
+                        WriteBehindQueue.DEF_BATCH_SIZE),
+                    getIntProperty(
+                        HistoryService.WRITE_BEHIND_QUEUE_SIZE_PROPERTY,
+                        WriteBehindQueue.DEF_CAPACITY));
         }
     }
 
@@ -344,12 +582,96 @@ public class HistoryServiceImpl implements HistoryService {
     }
 
     /**
-     * Returns whether caching of readed documents is enabled or desibled.
-     * @return boolean
+     * Returns the integer value of a configuration property, or
+     * <tt>defaultValue</tt> if it is not set or not a number.
+     * @param propertyName String
+     * @param defaultValue int
+     * @return int
+     */
+    private int getIntProperty(String propertyName, int defaultValue)
+    {
+        Object value = this.configurationService.getProperty(propertyName);
+
+        if(value == null)
+            return defaultValue;
+
+        try
+        {
+            return Integer.parseInt(value.toString());
+        }
+        catch (NumberFormatException ex)
+        {
+            log.error(value + " is not a valid value for " + propertyName, ex);
+            return defaultValue;
+        }
+    }
+
+    /**
+     * Nothing to do, the service is ready once its dependencies are set.
+     */
+    public void activate()
+    {
+    }
+
+    /**
+     * Writes the records waiting in the write behind queue, if any, then
+     * stops the timer syncing the histories stored as logs and syncs and
+     * closes their segments, when the bundle is stopped, which is also how
+     * the application is shut down.
+     */
+    public void deactivate()
+    {
+        WriteBehindQueue queue = getWriteBehindQueue();
+        if (queue != null)
+            queue.close();
+
+        synchronized (this)
+        {
+            if (this.syncTimer != null)
+            {
+                this.syncTimer.cancel();
+                this.syncTimer = null;
+            }
+        }
+
+        List logHistories = new ArrayList();
+        synchronized (this.histories)
+        {
+            Iterator iter = this.histories.values().iterator();
+            while (iter.hasNext())
+            {
+                Object history = iter.next();
+                if (history instanceof LogHistoryImpl)
+                    logHistories.add(history);
+            }
+        }
+
+        Iterator iter = logHistories.iterator();
+        while (iter.hasNext())
+            ((LogHistoryImpl) iter.next()).close();
+    }
+
+    /**
+     * Returns the queue writing the records of the histories stored in XML,
+     * with its queue depth counters.
+     * @return WriteBehindQueue or null if records are written as they are
+     * added
      */
-    protected boolean isCacheEnabled()
+    public WriteBehindQueue getWriteBehindQueue()
     {
-        return cacheEnabled;
+        synchronized (this.syncRoot_Config)
+        {
+            return writeBehindQueue;
+        }
+    }
+
+    /**
+     * Returns the cache of parsed history files, shared by all histories.
+     * @return DocumentCache
+     */
+    public DocumentCache getDocumentCache()
+    {
+        return documentCache;
     }
 
     /**
@@ -361,8 +683,14 @@ public class HistoryServiceImpl implements HistoryService {
     public void purgeLocallyStoredHistory(HistoryID id)
         throws IOException
     {
+        // release the segment a log history may be writing to
+        Object history = this.histories.get(id);
+        if (history instanceof LogHistoryImpl)
+            ((LogHistoryImpl) history).close();
+
         // get the history direcoty coresponding the given id
         File dir = this.createHistoryDirectories(id);
+        documentCache.removeDirectory(dir);
         log.trace("Removing history directory " + dir);
         deleteDirAndContent(dir);
     }
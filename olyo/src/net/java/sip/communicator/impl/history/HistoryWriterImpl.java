@@ -79,6 +79,11 @@ public class HistoryWriterImpl implements HistoryWriter {
                            Date date)
         throws InvalidParameterException, IOException
     {
+        // the document and file the record is written to, and its position
+        Document doc;
+        String filename;
+        int recordIndex;
+
         // Synchronized to assure that two concurent threads can insert records
         // safely.
         synchronized (this.docCreateLock)
@@ -88,14 +93,20 @@ public class HistoryWriterImpl implements HistoryWriter {
             {
                 this.createNewDoc(date, this.currentDoc == null);
             }
+
+            doc = this.currentDoc;
+            filename = this.currentFile;
         }
 
-        synchronized (this.currentDoc)
+        synchronized (doc)
         {
-            Node root = this.currentDoc.getFirstChild();
+            Node root = doc.getFirstChild();
             synchronized (root)
             {
-                Element elem = this.currentDoc.createElement("record");
+                recordIndex = doc.getElementsByTagName("record")
+                    .getLength();
+
+                Element elem = doc.createElement("record");
                 elem.setAttribute("timestamp", Long.toString(date.getTime()));
 
                 for (int i = 0; i < propertyNames.length; i++)
@@ -108,10 +119,10 @@ public class HistoryWriterImpl implements HistoryWriter {
                         {
                             propertyName = propertyName.replaceFirst(CDATA_SUFFIX, "");
 
-                            Element propertyElement = this.currentDoc
+                            Element propertyElement = doc
                                 .createElement(propertyName);
 
-                            Text value = this.currentDoc
+                            Text value = doc
                                 .createCDATASection(propertyValues[i].replaceAll("\0", " "));
                             propertyElement.appendChild(value);
 
@@ -122,10 +133,10 @@ public class HistoryWriterImpl implements HistoryWriter {
                     {
                         if (propertyValues[i] != null)
                         {
-                            Element propertyElement = this.currentDoc
+                            Element propertyElement = doc
                                 .createElement(propertyName);
 
-                            Text value = this.currentDoc
+                            Text value = doc
                                 .createTextNode(propertyValues[i].replaceAll("\0", " "));
                             propertyElement.appendChild(value);
 
@@ -139,13 +150,35 @@ public class HistoryWriterImpl implements HistoryWriter {
             }
         }
 
-        // write changes
-        synchronized (this.docWriteLock)
+        WriteBehindQueue queue =
+            this.historyImpl.getHistoryServiceImpl().getWriteBehindQueue();
+
+        if (queue == null)
+        {
+            // write changes
+            synchronized (this.docWriteLock)
+            {
+                this.historyImpl.writeFile(filename, doc);
+            }
+        }
+        else
+        {
+            // the changes are written behind this thread
+            this.historyImpl.documentModified(filename, doc);
+        }
+
+        this.historyImpl.getKeywordIndex().recordAdded(
+            filename, recordIndex, propertyNames, propertyValues);
+        this.historyImpl.getTimeIndex().recordAdded(
+            filename, recordIndex, date.getTime());
+
+        // the queue may have been closed meanwhile, or waits for room
+        if (queue != null && !queue.recordAdded(this.historyImpl))
         {
-            if(historyImpl.getHistoryServiceImpl().isCacheEnabled())
-                this.historyImpl.writeFile(this.currentFile);
-            else
-                this.historyImpl.writeFile(this.currentFile, this.currentDoc);
+            synchronized (this.docWriteLock)
+            {
+                this.historyImpl.writeModifiedFiles();
+            }
         }
     }
 
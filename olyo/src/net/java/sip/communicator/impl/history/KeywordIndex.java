@@ -0,0 +1,692 @@
+/*
+ * SIP Communicator, the OpenSource Java VoIP and Instant Messaging client.
+ *
+ * Distributable under LGPL license.
+ * See terms of license at gnu.org.
+ */
+package net.java.sip.communicator.impl.history;
+
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+import net.java.sip.communicator.service.history.records.*;
+import net.java.sip.communicator.util.*;
+
+/**
+ * An inverted index of the words in the records of a history, used by the
+ * readers to answer keyword queries without reading every file.
+ * <p>
+ * The index is kept per history file (an XML document or a log segment):
+ * for every property name, the records having it and, for every word of
+ * its values, the records containing the word. Records are identified by
+ * their position in the file. Words are the runs of letters and digits of
+ * a value, lower cased.
+ * </p><p>
+ * Keywords keep the semantics of <tt>HistoryReaderImpl.matchKeyword</tt>,
+ * a case (in)sensitive substring match: every word of a keyword is
+ * contained in a word of a matching value, so the index returns the
+ * records having a word containing each word of each keyword, plus the
+ * records without the searched property, which always match. The readers
+ * check the candidates with <tt>matchKeyword</tt>. Keywords using regular
+ * expression constructs other than '.' cannot be answered by the index.
+ * </p><p>
+ * The index of a file is built the first time the file is searched and
+ * saved next to it, in a file with the <tt>INDEX_SUFFIX</tt> suffix, which
+ * is used as long as the file keeps the same length and modification time.
+ * Records added afterwards are indexed as they are written.
+ * </p><p>
+ * A file is indexed by the first thread needing its index, without any
+ * lock held, so that the other files can be searched and written
+ * meanwhile. The threads needing the index of the same file wait for it.
+ * </p>
+ */
+public class KeywordIndex
+{
+    private static Logger logger = Logger.getLogger(KeywordIndex.class);
+
+    /**
+     * The suffix of the files the index of a history file is saved in.
+     */
+    public static final String INDEX_SUFFIX = ".idx";
+
+    private static final int INDEX_MAGIC = 0x53434901;
+
+    private static final String CDATA_SUFFIX = "_CDATA";
+
+    /**
+     * The regular expression constructs which prevent the index from
+     * answering a query.
+     */
+    private static final String REGEXP_CHARS = "\\[](){}*+?^$|";
+
+    /**
+     * Reads the records of the files of a history.
+     */
+    public interface RecordSource
+    {
+        /**
+         * Returns the records of a file, in the order they were written,
+         * with null for a record which cannot be read.
+         *
+         * @param filename the name of the file
+         * @return a list of <tt>HistoryRecord</tt>s
+         * @throws IOException if the file cannot be read
+         */
+        public List loadRecords(String filename)
+            throws IOException;
+    }
+
+    private File directory;
+
+    private RecordSource source;
+
+    /**
+     * The <tt>FutureTask</tt>s loading or building the <tt>FileIndex</tt>es,
+     * by file name.
+     */
+    private ConcurrentMap fileIndexes = new ConcurrentHashMap();
+
+    /**
+     * Creates the index of the history whose files are in
+     * <tt>directory</tt>.
+     *
+     * @param directory the directory of the history
+     * @param source reads the records of the files of the history
+     */
+    public KeywordIndex(File directory, RecordSource source)
+    {
+        this.directory = directory;
+        this.source = source;
+    }
+
+    /**
+     * Tells whether the index can answer a query for <tt>keywords</tt>
+     * in <tt>field</tt>.
+     *
+     * @param keywords the keywords of the query
+     * @param field the property searched
+     * @return true if <tt>getCandidates</tt> may be used for the query
+     */
+    public static boolean canAnswer(String[] keywords, String field)
+    {
+        if (keywords == null || field == null)
+            return false;
+
+        boolean hasWords = false;
+        for (int i = 0; i < keywords.length; i++)
+        {
+            if (keywords[i] == null)
+                return false;
+
+            for (int j = 0; j < keywords[i].length(); j++)
+            {
+                if (REGEXP_CHARS.indexOf(keywords[i].charAt(j)) != -1)
+                    return false;
+            }
+
+            hasWords |= !tokenize(keywords[i]).isEmpty();
+        }
+
+        return hasWords;
+    }
+
+    /**
+     * Splits <tt>text</tt> in lower case words made of letters and digits.
+     *
+     * @param text the text to split
+     * @return the list of the distinct words of the text
+     */
+    public static Collection tokenize(String text)
+    {
+        Set words = new LinkedHashSet();
+        int start = -1;
+
+        for (int i = 0; i <= text.length(); i++)
+        {
+            boolean inWord = i < text.length()
+                && Character.isLetterOrDigit(text.charAt(i));
+
+            if (inWord && start < 0)
+            {
+                start = i;
+            }
+            else if (!inWord && start >= 0)
+            {
+                words.add(text.substring(start, i).toLowerCase(Locale.ENGLISH));
+                start = -1;
+            }
+        }
+
+        return words;
+    }
+
+    /**
+     * Returns the positions, in ascending order, of the records of a file
+     * which may match the keywords.
+     *
+     * @param filename the name of the file
+     * @param keywords the keywords, which <tt>canAnswer</tt>
+     * @param field the property searched
+     * @return the positions of the candidate records, or null if the file
+     * could not be indexed and has to be searched entirely
+     */
+    public int[] getCandidates(String filename,
+                               String[] keywords,
+                               String field)
+    {
+        FileIndex fileIndex = getFileIndex(filename);
+        if (fileIndex == null)
+            return null;
+
+        synchronized (fileIndex)
+        {
+            return getCandidates(fileIndex, keywords, field);
+        }
+    }
+
+    private static int[] getCandidates(FileIndex fileIndex,
+                                       String[] keywords,
+                                       String field)
+    {
+        BitSet candidates = new BitSet(fileIndex.recordCount);
+        FieldIndex fieldIndex = (FieldIndex) fileIndex.fields.get(field);
+
+        if (fieldIndex == null)
+        {
+            // no record has the field, they all match
+            candidates.set(0, fileIndex.recordCount);
+        }
+        else
+        {
+            BitSet matches = null;
+            for (int i = 0; i < keywords.length; i++)
+            {
+                Iterator words = tokenize(keywords[i]).iterator();
+                while (words.hasNext())
+                {
+                    BitSet wordMatches
+                        = fieldIndex.find((String) words.next());
+
+                    if (matches == null)
+                        matches = wordMatches;
+                    else
+                        matches.and(wordMatches);
+                }
+            }
+            if (matches != null)
+                candidates.or(matches);
+
+            // records without the field match whatever the keywords
+            BitSet missing = new BitSet(fileIndex.recordCount);
+            missing.set(0, fileIndex.recordCount);
+            missing.andNot(fieldIndex.present.toBitSet());
+            candidates.or(missing);
+        }
+
+        int[] result = new int[candidates.cardinality()];
+        int pos = 0;
+        for (int i = candidates.nextSetBit(0);
+             i >= 0;
+             i = candidates.nextSetBit(i + 1))
+        {
+            result[pos++] = i;
+        }
+
+        return result;
+    }
+
+    /**
+     * Indexes a record appended to a file. A record which does not follow
+     * the last indexed record of the file invalidates the index of the file,
+     * which will then be built again from the file.
+     *
+     * @param filename the name of the file
+     * @param position the position of the record in the file
+     * @param propertyNames the names of the properties of the record
+     * @param propertyValues the values of the properties of the record
+     */
+    public void recordAdded(String filename, int position,
+                            String[] propertyNames,
+                            String[] propertyValues)
+    {
+        FutureTask task = (FutureTask) this.fileIndexes.get(filename);
+
+        if (task == null && position == 0)
+        {
+            // a new file, whose index starts empty
+            task = new FutureTask(new Callable()
+            {
+                public Object call()
+                {
+                    return new FileIndex();
+                }
+            });
+            task.run();
+
+            Object other = this.fileIndexes.putIfAbsent(filename, task);
+            if (other != null)
+                task = (FutureTask) other;
+        }
+
+        if (task == null)
+        {
+            return;
+        }
+        else if (!task.isDone())
+        {
+            // the index being built may miss the record, build it again on
+            // the next search
+            this.fileIndexes.remove(filename, task);
+            return;
+        }
+
+        FileIndex fileIndex = getResult(filename, task);
+        if (fileIndex == null)
+            return;
+
+        synchronized (fileIndex)
+        {
+            if (fileIndex.recordCount != position)
+            {
+                this.fileIndexes.remove(filename, task);
+                return;
+            }
+
+            fileIndex.add(new HistoryRecord(
+                propertyNames, propertyValues, null));
+        }
+    }
+
+    /**
+     * Returns the index of a file, loading it or building it if needed, or
+     * waiting for the thread which is.
+     */
+    private FileIndex getFileIndex(final String filename)
+    {
+        FutureTask task = (FutureTask) this.fileIndexes.get(filename);
+        if (task == null)
+        {
+            FutureTask newTask = new FutureTask(new Callable()
+            {
+                public Object call()
+                {
+                    return loadFileIndex(filename);
+                }
+            });
+
+            task = (FutureTask) this.fileIndexes.putIfAbsent(filename, newTask);
+            if (task == null)
+            {
+                task = newTask;
+                task.run();
+            }
+        }
+
+        return getResult(filename, task);
+    }
+
+    /**
+     * Returns the index computed by <tt>task</tt>, forgetting the task if it
+     * failed so that the file is indexed again the next time.
+     */
+    private FileIndex getResult(String filename, FutureTask task)
+    {
+        FileIndex fileIndex = null;
+        try
+        {
+            fileIndex = (FileIndex) task.get();
+        }
+        catch (InterruptedException ex)
+        {
+            Thread.currentThread().interrupt();
+            return null;
+        }
+        catch (ExecutionException ex)
+        {
+            logger.error("Could not index history file " + filename,
+                ex.getCause());
+        }
+
+        if (fileIndex == null)
+            this.fileIndexes.remove(filename, task);
+
+        return fileIndex;
+    }
+
+    /**
+     * Loads the saved index of a file, or builds it from the records of the
+     * file and saves it.
+     *
+     * @return the index of the file, or null if it could not be built
+     */
+    private FileIndex loadFileIndex(String filename)
+    {
+        FileIndex fileIndex = null;
+        File file = new File(this.directory, filename);
+        File indexFile = new File(this.directory, filename + INDEX_SUFFIX);
+
+        // the version of the file the index is built from, taken before it
+        // is read so that records written meanwhile make the saved index
+        // out of date
+        long length = file.length();
+        long lastModified = file.lastModified();
+
+        if (indexFile.exists())
+        {
+            try
+            {
+                fileIndex = load(indexFile, file);
+            }
+            catch (IOException ex)
+            {
+                logger.error("Could not read the keyword index " + indexFile,
+                    ex);
+            }
+        }
+
+        if (fileIndex == null)
+        {
+            try
+            {
+                fileIndex = build(filename);
+            }
+            catch (IOException ex)
+            {
+                logger.error("Could not index history file " + file, ex);
+                return null;
+            }
+
+            try
+            {
+                save(fileIndex, indexFile, length, lastModified);
+            }
+            catch (IOException ex)
+            {
+                logger.error("Could not save the keyword index " + indexFile,
+                    ex);
+            }
+        }
+
+        return fileIndex;
+    }
+
+    private FileIndex build(String filename)
+        throws IOException
+    {
+        FileIndex fileIndex = new FileIndex();
+
+        Iterator records = this.source.loadRecords(filename).iterator();
+        while (records.hasNext())
+        {
+            fileIndex.add((HistoryRecord) records.next());
+        }
+
+        return fileIndex;
+    }
+
+    /**
+     * Loads the index of <tt>file</tt> from <tt>indexFile</tt>.
+     *
+     * @return the index, or null if it was saved for another version of
+     * the file
+     */
+    private static FileIndex load(File indexFile, File file)
+        throws IOException
+    {
+        DataInputStream in = new DataInputStream(
+            new BufferedInputStream(new FileInputStream(indexFile)));
+        try
+        {
+            if (in.readInt() != INDEX_MAGIC
+                || in.readLong() != file.length()
+                || in.readLong() != file.lastModified())
+                return null;
+
+            FileIndex fileIndex = new FileIndex();
+            fileIndex.recordCount = in.readInt();
+
+            int fieldCount = in.readInt();
+            for (int i = 0; i < fieldCount; i++)
+            {
+                FieldIndex fieldIndex = new FieldIndex();
+                fileIndex.fields.put(readString(in), fieldIndex);
+                fieldIndex.present = Postings.read(in);
+
+                int termCount = in.readInt();
+                for (int j = 0; j < termCount; j++)
+                {
+                    String term = readString(in);
+                    fieldIndex.terms.put(term, Postings.read(in));
+                }
+            }
+
+            return fileIndex;
+        }
+        finally
+        {
+            in.close();
+        }
+    }
+
+    /**
+     * Saves the index of the version of a file with <tt>length</tt> and
+     * <tt>lastModified</tt> to <tt>indexFile</tt>, through a temporary file
+     * so that a crash never leaves a partial index.
+     */
+    private static void save(FileIndex fileIndex, File indexFile,
+                             long length, long lastModified)
+        throws IOException
+    {
+        File tmpFile = new File(indexFile.getPath() + ".tmp");
+        DataOutputStream out = new DataOutputStream(
+            new BufferedOutputStream(new FileOutputStream(tmpFile)));
+        try
+        {
+            out.writeInt(INDEX_MAGIC);
+            out.writeLong(length);
+            out.writeLong(lastModified);
+            out.writeInt(fileIndex.recordCount);
+
+            out.writeInt(fileIndex.fields.size());
+            Iterator fields = fileIndex.fields.entrySet().iterator();
+            while (fields.hasNext())
+            {
+                Map.Entry field = (Map.Entry) fields.next();
+                FieldIndex fieldIndex = (FieldIndex) field.getValue();
+
+                writeString(out, (String) field.getKey());
+                fieldIndex.present.write(out);
+
+                out.writeInt(fieldIndex.terms.size());
+                Iterator terms = fieldIndex.terms.entrySet().iterator();
+                while (terms.hasNext())
+                {
+                    Map.Entry term = (Map.Entry) terms.next();
+                    writeString(out, (String) term.getKey());
+                    ((Postings) term.getValue()).write(out);
+                }
+            }
+        }
+        finally
+        {
+            out.close();
+        }
+
+        if ((indexFile.exists() && !indexFile.delete())
+            || !tmpFile.renameTo(indexFile))
+        {
+            tmpFile.delete();
+            throw new IOException("Could not replace " + indexFile);
+        }
+    }
+
+    private static void writeString(DataOutputStream out, String str)
+        throws IOException
+    {
+        byte[] bytes = str.getBytes("UTF-8");
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    private static String readString(DataInputStream in)
+        throws IOException
+    {
+        byte[] bytes = new byte[in.readInt()];
+        in.readFully(bytes);
+        return new String(bytes, "UTF-8");
+    }
+
+    /**
+     * The index of the records of one file.
+     */
+    private static class FileIndex
+    {
+        int recordCount = 0;
+
+        /**
+         * The <tt>FieldIndex</tt>es by property name.
+         */
+        Map fields = new HashMap();
+
+        /**
+         * Indexes the next record of the file. A null record, which could
+         * not be read, only takes its position.
+         */
+        void add(HistoryRecord record)
+        {
+            int position = this.recordCount++;
+            if (record == null)
+                return;
+
+            String[] names = record.getPropertyNames();
+            String[] values = record.getPropertyValues();
+            for (int i = 0; i < names.length; i++)
+            {
+                if (values[i] == null)
+                    continue;
+
+                String name = names[i];
+                if (name.endsWith(CDATA_SUFFIX))
+                    name = name.substring(0,
+                        name.length() - CDATA_SUFFIX.length());
+
+                FieldIndex fieldIndex = (FieldIndex) this.fields.get(name);
+                if (fieldIndex == null)
+                {
+                    fieldIndex = new FieldIndex();
+                    this.fields.put(name, fieldIndex);
+                }
+                fieldIndex.add(position, values[i]);
+            }
+        }
+    }
+
+    /**
+     * The index of the values of one property in a file.
+     */
+    private static class FieldIndex
+    {
+        /**
+         * The records having the property.
+         */
+        Postings present = new Postings();
+
+        /**
+         * The <tt>Postings</tt> of the records by word of their value.
+         */
+        Map terms = new HashMap();
+
+        void add(int position, String value)
+        {
+            this.present.add(position);
+
+            Iterator words = tokenize(value).iterator();
+            while (words.hasNext())
+            {
+                String word = (String) words.next();
+                Postings postings = (Postings) this.terms.get(word);
+                if (postings == null)
+                {
+                    postings = new Postings();
+                    this.terms.put(word, postings);
+                }
+                postings.add(position);
+            }
+        }
+
+        /**
+         * Returns the records having a word which contains <tt>word</tt>.
+         */
+        BitSet find(String word)
+        {
+            BitSet result = new BitSet();
+
+            Iterator terms = this.terms.entrySet().iterator();
+            while (terms.hasNext())
+            {
+                Map.Entry term = (Map.Entry) terms.next();
+                if (((String) term.getKey()).indexOf(word) != -1)
+                    ((Postings) term.getValue()).addTo(result);
+            }
+
+            return result;
+        }
+    }
+
+    /**
+     * A growable list of record positions.
+     */
+    private static class Postings
+    {
+        int[] positions = new int[2];
+
+        int size = 0;
+
+        void add(int position)
+        {
+            if (this.size > 0 && this.positions[this.size - 1] == position)
+                return;
+
+            if (this.size == this.positions.length)
+            {
+                int[] grown = new int[this.size * 2];
+                System.arraycopy(this.positions, 0, grown, 0, this.size);
+                this.positions = grown;
+            }
+            this.positions[this.size++] = position;
+        }
+
+        void addTo(BitSet bits)
+        {
+            for (int i = 0; i < this.size; i++)
+                bits.set(this.positions[i]);
+        }
+
+        BitSet toBitSet()
+        {
+            BitSet bits = new BitSet();
+            addTo(bits);
+            return bits;
+        }
+
+        void write(DataOutputStream out)
+            throws IOException
+        {
+            out.writeInt(this.size);
+            for (int i = 0; i < this.size; i++)
+                out.writeInt(this.positions[i]);
+        }
+
+        static Postings read(DataInputStream in)
+            throws IOException
+        {
+            Postings postings = new Postings();
+            postings.size = in.readInt();
+            postings.positions = new int[Math.max(2, postings.size)];
+            for (int i = 0; i < postings.size; i++)
+                postings.positions[i] = in.readInt();
+            return postings;
+        }
+    }
+}
@@ -0,0 +1,307 @@
+/*
+ * SIP Communicator, the OpenSource Java VoIP and Instant Messaging client.
+ *
+ * Distributable under LGPL license.
+ * See terms of license at gnu.org.
+ */
+package net.java.sip.communicator.impl.history;
+
+import java.io.*;
+import java.util.*;
+
+import net.java.sip.communicator.service.history.*;
+import net.java.sip.communicator.service.history.records.*;
+import net.java.sip.communicator.util.*;
+
+/**
+ * A history stored in append-only segment files instead of XML documents.
+ * Records are appended to the last segment, and a new segment is started
+ * once it reaches <tt>LogHistoryWriterImpl.MAX_SEGMENT_SIZE</tt>. Segments
+ * are named after the timestamp of their first record, like the XML files,
+ * so that queries only read the segments covering the requested period.
+ * See <tt>LogSegment</tt> for the format of the segments.
+ */
+public class LogHistoryImpl
+    implements History
+{
+    private static Logger log = Logger.getLogger(LogHistoryImpl.class);
+
+    private HistoryID id;
+
+    private HistoryRecordStructure historyRecordStructure;
+
+    private HistoryServiceImpl historyServiceImpl;
+
+    private File directory;
+
+    private LogHistoryReaderImpl reader;
+
+    private LogHistoryWriterImpl writer;
+
+    private KeywordIndex keywordIndex = null;
+
+    /**
+     * The segment files by the timestamp they are named after.
+     */
+    private SortedMap segments = new TreeMap();
+
+    /**
+     * The number of records in all the segments, or -1 until they have
+     * been counted.
+     */
+    private int recordCount = -1;
+
+    protected LogHistoryImpl(HistoryID id, File directory,
+            HistoryRecordStructure historyRecordStructure,
+            HistoryServiceImpl historyServiceImpl)
+    {
+        this.id = id;
+        this.directory = directory;
+        this.historyServiceImpl = historyServiceImpl;
+        this.historyRecordStructure = historyRecordStructure;
+        this.reader = null;
+        this.writer = null;
+
+        this.reloadSegmentList();
+    }
+
+    public HistoryID getID()
+    {
+        return this.id;
+    }
+
+    public HistoryRecordStructure getHistoryRecordsStructure()
+    {
+        return this.historyRecordStructure;
+    }
+
+    public synchronized HistoryReader getReader()
+    {
+        if (this.reader == null)
+        {
+            this.reader = new LogHistoryReaderImpl(this);
+        }
+
+        return this.reader;
+    }
+
+    public synchronized HistoryWriter getWriter()
+    {
+        if (this.writer == null)
+        {
+            this.writer = new LogHistoryWriterImpl(this);
+        }
+
+        return this.writer;
+    }
+
+    protected HistoryServiceImpl getHistoryServiceImpl()
+    {
+        return this.historyServiceImpl;
+    }
+
+    /**
+     * Returns the index of the words of the records of this history,
+     * creating it the first time.
+     *
+     * @return KeywordIndex
+     */
+    protected synchronized KeywordIndex getKeywordIndex()
+    {
+        if (this.keywordIndex == null)
+        {
+            this.keywordIndex = new KeywordIndex(this.directory,
+                new KeywordIndex.RecordSource()
+                {
+                    public List loadRecords(String filename)
+                        throws IOException
+                    {
+                        return LogSegment.read(new File(directory, filename));
+                    }
+                });
+        }
+
+        return this.keywordIndex;
+    }
+
+    /**
+     * Syncs and closes the segment records are appended to, if any. The
+     * history may still be used afterwards, the segment is then reopened.
+     */
+    protected synchronized void close()
+    {
+        if (this.writer != null)
+        {
+            this.writer.close();
+        }
+    }
+
+    private void reloadSegmentList()
+    {
+        synchronized (this.segments)
+        {
+            this.segments.clear();
+
+            File[] files = this.directory.listFiles();
+            if (files == null)
+                return;
+
+            String suffix = "." + LogSegment.SUPPORTED_FILETYPE;
+            for (int i = 0; i < files.length; i++)
+            {
+                String filename = files[i].getName();
+
+                if (files[i].isDirectory() || !filename.endsWith(suffix))
+                    continue;
+
+                try
+                {
+                    Long timestamp = new Long(filename.substring(0,
+                        filename.length() - suffix.length()));
+                    this.segments.put(timestamp, files[i]);
+                }
+                catch (NumberFormatException ex)
+                {
+                    log.warn("Ignoring unexpected history file " + files[i]);
+                }
+            }
+        }
+    }
+
+    /**
+     * Creates an empty segment for records starting at <tt>timestamp</tt>.
+     * The segment is named after a later time if a segment already has
+     * that name or a later one.
+     *
+     * @param timestamp the timestamp of the first record of the segment
+     * @return the new segment file
+     * @throws IOException if the segment cannot be created
+     */
+    protected File createSegment(long timestamp)
+        throws IOException
+    {
+        synchronized (this.segments)
+        {
+            if (!this.segments.isEmpty())
+            {
+                long last = ((Long) this.segments.lastKey()).longValue();
+                if (timestamp <= last)
+                    timestamp = last + 1;
+            }
+
+            File segment = new File(this.directory,
+                timestamp + "." + LogSegment.SUPPORTED_FILETYPE);
+            FileOutputStream out = new FileOutputStream(segment);
+            try
+            {
+                out.write(LogSegment.header());
+                out.getFD().sync();
+            }
+            finally
+            {
+                out.close();
+            }
+
+            this.segments.put(new Long(timestamp), segment);
+
+            return segment;
+        }
+    }
+
+    /**
+     * Returns the segment records are appended to.
+     *
+     * @return the last segment or null if there are no segments yet
+     */
+    protected File getLastSegment()
+    {
+        synchronized (this.segments)
+        {
+            if (this.segments.isEmpty())
+                return null;
+
+            return (File) this.segments.get(this.segments.lastKey());
+        }
+    }
+
+    /**
+     * Returns, oldest first, the segments which may hold records of the
+     * given period: the ones started within the period and the last one
+     * started before it.
+     *
+     * @param startDate the start of the period or null
+     * @param endDate the end of the period or null
+     * @return a list of segment files
+     */
+    protected List getSegments(Date startDate, Date endDate)
+    {
+        synchronized (this.segments)
+        {
+            SortedMap selected = this.segments;
+
+            if (endDate != null)
+            {
+                selected = selected.headMap(new Long(endDate.getTime()));
+            }
+
+            if (startDate != null)
+            {
+                Long start = new Long(startDate.getTime());
+                SortedMap before = selected.headMap(start);
+
+                if (!before.isEmpty())
+                    start = (Long) before.lastKey();
+
+                selected = selected.tailMap(start);
+            }
+
+            return new ArrayList(selected.values());
+        }
+    }
+
+    /**
+     * Returns the number of records in the history, counting them the first
+     * time.
+     *
+     * @return the number of records
+     */
+    protected int getRecordCount()
+    {
+        synchronized (this.segments)
+        {
+            if (this.recordCount < 0)
+            {
+                int count = 0;
+                Iterator i = this.segments.values().iterator();
+                while (i.hasNext())
+                {
+                    File segment = (File) i.next();
+                    try
+                    {
+                        count += LogSegment.count(segment);
+                    }
+                    catch (IOException ex)
+                    {
+                        log.error("Could not read history segment "
+                            + segment, ex);
+                    }
+                }
+                this.recordCount = count;
+            }
+
+            return this.recordCount;
+        }
+    }
+
+    /**
+     * Called by the writer after a record has been appended.
+     */
+    protected void recordAdded()
+    {
+        synchronized (this.segments)
+        {
+            if (this.recordCount >= 0)
+                this.recordCount++;
+        }
+    }
+}
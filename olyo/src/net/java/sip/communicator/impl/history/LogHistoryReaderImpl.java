@@ -0,0 +1,378 @@
+/*
+ * SIP Communicator, the OpenSource Java VoIP and Instant Messaging client.
+ *
+ * Distributable under LGPL license.
+ * See terms of license at gnu.org.
+ */
+package net.java.sip.communicator.impl.history;
+
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+import net.java.sip.communicator.service.history.*;
+import net.java.sip.communicator.service.history.event.*;
+import net.java.sip.communicator.service.history.records.*;
+import net.java.sip.communicator.util.*;
+
+/**
+ * Queries the segments of a <tt>LogHistoryImpl</tt>. The semantics of the
+ * queries are the ones of <tt>HistoryReaderImpl</tt>: only the segments
+ * which may hold records of the requested period are read, and the results
+ * are ordered by timestamp.
+ */
+public class LogHistoryReaderImpl
+    implements HistoryReader
+{
+    private static Logger logger = Logger.getLogger(LogHistoryReaderImpl.class);
+
+    private LogHistoryImpl historyImpl;
+
+    private Vector progressListeners = new Vector();
+
+    /**
+     * How many times the size of a segment its records are estimated to
+     * take in memory.
+     */
+    private static final int RECORDS_SIZE_FACTOR = 4;
+
+    protected LogHistoryReaderImpl(LogHistoryImpl historyImpl)
+    {
+        this.historyImpl = historyImpl;
+    }
+
+    public QueryResultSet findByStartDate(Date startDate)
+        throws RuntimeException
+    {
+        return find(startDate, null, null, null, false);
+    }
+
+    public QueryResultSet findByEndDate(Date endDate)
+        throws RuntimeException
+    {
+        return find(null, endDate, null, null, false);
+    }
+
+    public QueryResultSet findByPeriod(Date startDate, Date endDate)
+        throws RuntimeException
+    {
+        return find(startDate, endDate, null, null, false);
+    }
+
+    public QueryResultSet findByKeyword(String keyword, String field)
+        throws RuntimeException
+    {
+        return findByKeywords(new String[] { keyword }, field);
+    }
+
+    public QueryResultSet findByKeyword(String keyword, String field,
+                                        boolean caseSensitive)
+        throws RuntimeException
+    {
+        return findByKeywords(new String[] { keyword }, field, caseSensitive);
+    }
+
+    public QueryResultSet findByKeywords(String[] keywords, String field)
+        throws RuntimeException
+    {
+        return find(null, null, keywords, field, false);
+    }
+
+    public QueryResultSet findByKeywords(String[] keywords, String field,
+                                         boolean caseSensitive)
+        throws RuntimeException
+    {
+        return find(null, null, keywords, field, caseSensitive);
+    }
+
+    public QueryResultSet findByPeriod(Date startDate, Date endDate,
+                                       String[] keywords, String field)
+        throws UnsupportedOperationException
+    {
+        return find(startDate, endDate, keywords, field, false);
+    }
+
+    public QueryResultSet findByPeriod(Date startDate, Date endDate,
+                                       String[] keywords, String field,
+                                       boolean caseSensitive)
+        throws UnsupportedOperationException
+    {
+        return find(startDate, endDate, keywords, field, caseSensitive);
+    }
+
+    public QueryResultSet findLast(int count)
+        throws RuntimeException
+    {
+        return findLastRecordsBefore(null, count);
+    }
+
+    public QueryResultSet findFirstRecordsAfter(Date date, int count)
+        throws RuntimeException
+    {
+        TreeSet result = new TreeSet(
+            new HistoryReaderImpl.HistoryRecordComparator());
+
+        Iterator segments = this.historyImpl.getSegments(date, null).iterator();
+        while (segments.hasNext() && result.size() < count)
+        {
+            List records = readSegment((File) segments.next());
+
+            for (int i = 0; i < records.size() && result.size() < count; i++)
+            {
+                HistoryRecord record = (HistoryRecord) records.get(i);
+
+                if (HistoryReaderImpl.isInPeriod(
+                        record.getTimestamp(), date, null))
+                    result.add(record);
+            }
+        }
+
+        return new OrderedQueryResultSet(result);
+    }
+
+    public QueryResultSet findLastRecordsBefore(Date date, int count)
+        throws RuntimeException
+    {
+        TreeSet result = new TreeSet(
+            new HistoryReaderImpl.HistoryRecordComparator());
+
+        List segments = this.historyImpl.getSegments(null, date);
+        for (int s = segments.size() - 1; s >= 0 && result.size() < count; s--)
+        {
+            List records = readSegment((File) segments.get(s));
+
+            for (int i = records.size() - 1;
+                 i >= 0 && result.size() < count;
+                 i--)
+            {
+                HistoryRecord record = (HistoryRecord) records.get(i);
+
+                if (HistoryReaderImpl.isInPeriod(
+                        record.getTimestamp(), null, date))
+                    result.add(record);
+            }
+        }
+
+        return new OrderedQueryResultSet(result);
+    }
+
+    public int countRecords()
+        throws UnsupportedOperationException
+    {
+        return this.historyImpl.getRecordCount();
+    }
+
+    private QueryResultSet find(
+        final Date startDate, final Date endDate,
+        final String[] keywords, final String field,
+        final boolean caseSensitive)
+    {
+        TreeSet result = new TreeSet(
+            new HistoryReaderImpl.HistoryRecordComparator());
+
+        List segments = this.historyImpl.getSegments(startDate, endDate);
+
+        // keywords are looked up in the index when it can answer them
+        final KeywordIndex keywordIndex =
+            KeywordIndex.canAnswer(keywords, field)
+                ? this.historyImpl.getKeywordIndex() : null;
+
+        fireProgressStateChanged(startDate, endDate, keywords,
+            HistorySearchProgressListener.PROGRESS_MINIMUM_VALUE);
+
+        // the segments are searched concurrently, the results are merged
+        // in the order of the segments
+        List searches = this.historyImpl.getHistoryServiceImpl()
+            .submitSearches(segments, new HistoryServiceImpl.FileSearch()
+            {
+                public List search(Object segment)
+                {
+                    return findInSegment((File) segment, startDate, endDate,
+                        keywords, field, caseSensitive, keywordIndex);
+                }
+            });
+
+        for (int s = 0; s < segments.size(); s++)
+        {
+            result.addAll(HistoryServiceImpl.getSearchResult(
+                (Future) searches.get(s)));
+
+            fireProgressStateChanged(startDate, endDate, keywords,
+                HistorySearchProgressListener.PROGRESS_MAXIMUM_VALUE
+                    * (s + 1) / segments.size());
+        }
+
+        if (segments.isEmpty())
+        {
+            fireProgressStateChanged(startDate, endDate, keywords,
+                HistorySearchProgressListener.PROGRESS_MAXIMUM_VALUE);
+        }
+
+        return new OrderedQueryResultSet(result);
+    }
+
+    public HistoryRecordStream streamByPeriod(final Date startDate,
+                                              final Date endDate,
+                                              final String[] keywords,
+                                              final String field,
+                                              final boolean caseSensitive)
+        throws RuntimeException
+    {
+        List segments = this.historyImpl.getSegments(startDate, endDate);
+        List filenames = new ArrayList();
+        final Map segmentsByName = new HashMap();
+        for (int s = 0; s < segments.size(); s++)
+        {
+            File segment = (File) segments.get(s);
+            filenames.add(segment.getName());
+            segmentsByName.put(segment.getName(), segment);
+        }
+
+        final KeywordIndex keywordIndex = KeywordIndex.canAnswer(keywords, field)
+            ? this.historyImpl.getKeywordIndex() : null;
+
+        return new RecordStream(filenames)
+        {
+            protected List readFile(String filename)
+            {
+                return findInSegment((File) segmentsByName.get(filename),
+                    startDate, endDate, keywords, field, caseSensitive,
+                    keywordIndex);
+            }
+        };
+    }
+
+    /**
+     * Returns the records of a segment in the period and matching the
+     * keywords, in the order of the segment.
+     *
+     * @param keywordIndex the index of the history if it can answer the
+     * keywords, null otherwise
+     */
+    private List findInSegment(File segment,
+                               Date startDate, Date endDate,
+                               String[] keywords, String field,
+                               boolean caseSensitive,
+                               KeywordIndex keywordIndex)
+    {
+        List result = new ArrayList();
+
+        // the positions of the records which may match the keywords,
+        // null if all the records of the segment have to be checked
+        int[] candidates = null;
+        if (keywordIndex != null)
+        {
+            candidates = keywordIndex.getCandidates(
+                segment.getName(), keywords, field);
+
+            if (candidates != null && candidates.length == 0)
+                return result;
+        }
+
+        List records = readSegment(segment);
+
+        int count = (candidates == null)
+            ? records.size() : candidates.length;
+        for (int c = 0; c < count; c++)
+        {
+            int i = (candidates == null) ? c : candidates[c];
+            if (i >= records.size())
+                break;
+
+            HistoryRecord record = (HistoryRecord) records.get(i);
+
+            if (HistoryReaderImpl.isInPeriod(
+                    record.getTimestamp(), startDate, endDate)
+                && matchField(record, keywords, field, caseSensitive))
+            {
+                result.add(record);
+            }
+        }
+
+        return result;
+    }
+
+    /**
+     * Checks the value of <tt>field</tt> against the keywords. Records which
+     * do not have the field match, as in <tt>HistoryReaderImpl</tt>.
+     */
+    private boolean matchField(HistoryRecord record, String[] keywords,
+                               String field, boolean caseSensitive)
+    {
+        if (field == null)
+            return true;
+
+        String[] names = record.getPropertyNames();
+        String[] values = record.getPropertyValues();
+        for (int i = 0; i < names.length; i++)
+        {
+            if (field.equals(names[i])
+                && !HistoryReaderImpl.matchKeyword(
+                        values[i], keywords, caseSensitive))
+                return false;
+        }
+
+        return true;
+    }
+
+    /**
+     * Returns the records of a segment, from the document cache of the
+     * history service if they were read since the segment last changed.
+     */
+    private List readSegment(File segment)
+    {
+        DocumentCache cache
+            = this.historyImpl.getHistoryServiceImpl().getDocumentCache();
+        long length = segment.length();
+
+        List records = (List) cache.get(segment, length);
+        if (records != null)
+            return records;
+
+        try
+        {
+            records = LogSegment.read(segment);
+            cache.put(segment, records, length, RECORDS_SIZE_FACTOR);
+            return records;
+        }
+        catch (IOException ex)
+        {
+            logger.error("Could not read history segment " + segment, ex);
+            return new ArrayList();
+        }
+    }
+
+    private void fireProgressStateChanged(Date startDate, Date endDate,
+                         String[] keywords, int progress)
+    {
+        ProgressEvent event =
+            new ProgressEvent(this, startDate, endDate, keywords, progress);
+
+        synchronized(progressListeners)
+        {
+            Iterator iter = progressListeners.iterator();
+            while (iter.hasNext())
+            {
+                HistorySearchProgressListener item =
+                    (HistorySearchProgressListener) iter.next();
+                item.progressChanged(event);
+            }
+        }
+    }
+
+    public void addSearchProgressListener(HistorySearchProgressListener
+                                          listener)
+    {
+        synchronized(progressListeners){
+            progressListeners.add(listener);
+        }
+    }
+
+    public void removeSearchProgressListener(HistorySearchProgressListener
+                                             listener)
+    {
+        synchronized(progressListeners){
+            progressListeners.remove(listener);
+        }
+    }
+}
@@ -0,0 +1,249 @@
+/*
+ * SIP Communicator, the OpenSource Java VoIP and Instant Messaging client.
+ *
+ * Distributable under LGPL license.
+ * See terms of license at gnu.org.
+ */
+package net.java.sip.communicator.impl.history;
+
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.*;
+import java.util.*;
+
+import net.java.sip.communicator.service.history.*;
+import net.java.sip.communicator.service.history.records.*;
+import net.java.sip.communicator.util.*;
+
+/**
+ * Appends records to the last segment of a <tt>LogHistoryImpl</tt>. Adding a
+ * record costs a single write whatever the size of the history.
+ * <p>
+ * Records reach the operating system as soon as they are added, so they
+ * survive a crash of the application. They are synced to the disk in
+ * batches: once <tt>SYNC_BATCH</tt> records are waiting, or
+ * <tt>SYNC_DELAY</tt> ms after the first of them was added, so that a burst
+ * of messages costs one fsync instead of one per message.
+ * </p>
+ */
+public class LogHistoryWriterImpl
+    implements HistoryWriter
+{
+    private static Logger log = Logger.getLogger(LogHistoryWriterImpl.class);
+
+    /**
+     * The size after which records are appended to a new segment.
+     */
+    public static final long MAX_SEGMENT_SIZE = 1024 * 1024;
+
+    /**
+     * The number of records after which the segment is synced at once.
+     */
+    public static final int SYNC_BATCH = 32;
+
+    /**
+     * The longest time, in ms, a record waits to be synced.
+     */
+    public static final long SYNC_DELAY = 1000;
+
+    private LogHistoryImpl historyImpl;
+
+    private String[] structPropertyNames;
+
+    private RandomAccessFile currentSegment = null;
+
+    private FileChannel channel = null;
+
+    private String currentSegmentName = null;
+
+    /**
+     * The number of records in the current segment.
+     */
+    private int currentSegmentRecords = 0;
+
+    private int unsyncedRecords = 0;
+
+    private TimerTask syncTask = null;
+
+    protected LogHistoryWriterImpl(LogHistoryImpl historyImpl)
+    {
+        this.historyImpl = historyImpl;
+
+        HistoryRecordStructure struct = this.historyImpl
+                .getHistoryRecordsStructure();
+        this.structPropertyNames = struct.getPropertyNames();
+    }
+
+    public void addRecord(HistoryRecord record)
+        throws IOException
+    {
+        this.addRecord(record.getPropertyNames(), record.getPropertyValues(),
+                record.getTimestamp());
+    }
+
+    public void addRecord(String[] propertyValues)
+        throws IOException
+    {
+        this.addRecord(structPropertyNames, propertyValues, new Date());
+    }
+
+    public void addRecord(String[] propertyValues, Date timestamp)
+        throws IOException
+    {
+        this.addRecord(structPropertyNames, propertyValues, timestamp);
+    }
+
+    /**
+     * Appends a record to the current segment, starting a new one if it is
+     * full.
+     *
+     * @param propertyNames String[]
+     * @param propertyValues String[]
+     * @param date Date
+     * @throws IOException if the record could not be written
+     */
+    private synchronized void addRecord(String[] propertyNames,
+                                        String[] propertyValues,
+                                        Date date)
+        throws IOException
+    {
+        ByteBuffer record = ByteBuffer.wrap(
+            LogSegment.encode(propertyNames, propertyValues, date.getTime()));
+
+        if (this.channel == null)
+        {
+            openLastSegment(date);
+        }
+        else if (this.channel.size() > LogSegment.HEADER_SIZE
+            && this.channel.size() + record.remaining() > MAX_SEGMENT_SIZE)
+        {
+            closeSegment();
+            openSegment(this.historyImpl.createSegment(date.getTime()),
+                LogSegment.HEADER_SIZE, 0);
+        }
+
+        try
+        {
+            while (record.hasRemaining())
+                this.channel.write(record);
+        }
+        catch (IOException ex)
+        {
+            // the tail may now hold part of the record, recover it on the
+            // next write
+            closeSegment();
+            throw ex;
+        }
+
+        this.historyImpl.recordAdded();
+        this.historyImpl.getKeywordIndex().recordAdded(this.currentSegmentName,
+            this.currentSegmentRecords++, propertyNames, propertyValues);
+
+        this.unsyncedRecords++;
+        if (this.unsyncedRecords >= SYNC_BATCH)
+        {
+            sync();
+        }
+        else if (this.syncTask == null)
+        {
+            this.syncTask = new TimerTask()
+            {
+                public void run()
+                {
+                    sync();
+                }
+            };
+            this.historyImpl.getHistoryServiceImpl().getSyncTimer()
+                .schedule(this.syncTask, SYNC_DELAY);
+        }
+    }
+
+    /**
+     * Syncs the records added since the last sync to the disk.
+     */
+    protected synchronized void sync()
+    {
+        if (this.syncTask != null)
+        {
+            this.syncTask.cancel();
+            this.syncTask = null;
+        }
+
+        if (this.channel == null || this.unsyncedRecords == 0)
+            return;
+
+        try
+        {
+            this.channel.force(false);
+            this.unsyncedRecords = 0;
+        }
+        catch (IOException ex)
+        {
+            log.error("Failed to sync history segment", ex);
+        }
+    }
+
+    /**
+     * Syncs and closes the current segment.
+     */
+    protected synchronized void close()
+    {
+        sync();
+        closeSegment();
+    }
+
+    /**
+     * Reopens the last segment after recovering its tail, or starts the
+     * first segment.
+     *
+     * @param date the timestamp of the record about to be written
+     * @throws IOException if no segment could be opened
+     */
+    private void openLastSegment(Date date)
+        throws IOException
+    {
+        File segment = this.historyImpl.getLastSegment();
+
+        if (segment == null)
+        {
+            openSegment(this.historyImpl.createSegment(date.getTime()),
+                LogSegment.HEADER_SIZE, 0);
+        }
+        else
+        {
+            long length = LogSegment.recover(segment);
+            openSegment(segment, length, LogSegment.count(segment));
+        }
+    }
+
+    private void openSegment(File segment, long length, int recordCount)
+        throws IOException
+    {
+        this.currentSegment = new RandomAccessFile(segment, "rw");
+        this.channel = this.currentSegment.getChannel();
+        this.channel.position(length);
+        this.currentSegmentName = segment.getName();
+        this.currentSegmentRecords = recordCount;
+    }
+
+    private void closeSegment()
+    {
+        if (this.currentSegment == null)
+            return;
+
+        try
+        {
+            if (this.unsyncedRecords > 0)
+                this.channel.force(false);
+            this.currentSegment.close();
+        }
+        catch (IOException ex)
+        {
+            log.error("Failed to close history segment", ex);
+        }
+
+        this.currentSegment = null;
+        this.channel = null;
+        this.unsyncedRecords = 0;
+    }
+}
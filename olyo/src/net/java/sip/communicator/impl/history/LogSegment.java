@@ -0,0 +1,348 @@
+/*
+ * SIP Communicator, the OpenSource Java VoIP and Instant Messaging client.
+ *
+ * Distributable under LGPL license.
+ * See terms of license at gnu.org.
+ */
+package net.java.sip.communicator.impl.history;
+
+import java.io.*;
+import java.util.*;
+import java.util.zip.*;
+
+import net.java.sip.communicator.service.history.records.*;
+import net.java.sip.communicator.util.*;
+
+/**
+ * Reads and writes the segment files of the append-only history store.
+ * <p>
+ * A segment starts with a 4 bytes magic number followed by records which
+ * are only ever appended. Every record is written as
+ * <pre>
+ *   int     payload length
+ *   int     CRC32 of the payload
+ *   payload long timestamp, int property count, and for each property
+ *           its name and its value, as an int byte count followed by
+ *           the UTF-8 bytes
+ * </pre>
+ * A record torn by a crash, that is shorter than its length or failing
+ * its checksum, ends the segment: readers ignore it and everything after
+ * it, and <tt>recover</tt> truncates it before anything is appended. A
+ * segment which does not start with the header is not truncated but moved
+ * aside, so that whatever it holds is not lost.
+ */
+public class LogSegment
+{
+    private static Logger logger = Logger.getLogger(LogSegment.class);
+
+    public static final String SUPPORTED_FILETYPE = "log";
+
+    /**
+     * The first 4 bytes of every segment, "SCH" and the format version.
+     */
+    private static final int MAGIC = 0x53434801;
+
+    /**
+     * The size of the segment header.
+     */
+    public static final int HEADER_SIZE = 4;
+
+    /**
+     * Records longer than this are considered corrupted.
+     */
+    private static final int MAX_RECORD_SIZE = 16 * 1024 * 1024;
+
+    /**
+     * The suffix added to the name of a segment moved aside because its
+     * header is unreadable.
+     */
+    private static final String QUARANTINE_SUFFIX = ".corrupt";
+
+    private static final String CDATA_SUFFIX = "_CDATA";
+
+    /**
+     * Encodes a record, ready to be appended to a segment. Properties with
+     * a null value are left out and the _CDATA suffix is removed from the
+     * property names, as the XML store does.
+     *
+     * @param propertyNames the names of the properties
+     * @param propertyValues the values of the properties
+     * @param timestamp the timestamp of the record
+     * @return the bytes of the record, header included
+     * @throws IOException if the record is too large
+     */
+    public static byte[] encode(String[] propertyNames,
+                                String[] propertyValues,
+                                long timestamp)
+        throws IOException
+    {
+        ByteArrayOutputStream bout = new ByteArrayOutputStream(256);
+        DataOutputStream out = new DataOutputStream(bout);
+
+        // room for the length and the checksum
+        out.writeInt(0);
+        out.writeInt(0);
+
+        int count = 0;
+        for (int i = 0; i < propertyValues.length; i++)
+        {
+            if (propertyValues[i] != null)
+                count++;
+        }
+
+        out.writeLong(timestamp);
+        out.writeInt(count);
+        for (int i = 0; i < propertyNames.length; i++)
+        {
+            if (propertyValues[i] == null)
+                continue;
+
+            String name = propertyNames[i];
+            if (name.endsWith(CDATA_SUFFIX))
+                name = name.substring(0, name.length() - CDATA_SUFFIX.length());
+
+            writeString(out, name);
+            writeString(out, propertyValues[i]);
+        }
+        out.flush();
+
+        byte[] record = bout.toByteArray();
+        int length = record.length - 8;
+        if (length > MAX_RECORD_SIZE)
+            throw new IOException("History record too large: " + length);
+
+        CRC32 crc = new CRC32();
+        crc.update(record, 8, length);
+        writeInt(record, 0, length);
+        writeInt(record, 4, (int) crc.getValue());
+
+        return record;
+    }
+
+    /**
+     * Returns the header every segment starts with.
+     *
+     * @return the header of a new segment
+     */
+    public static byte[] header()
+    {
+        byte[] header = new byte[HEADER_SIZE];
+        writeInt(header, 0, MAGIC);
+        return header;
+    }
+
+    /**
+     * Reads all the complete records of a segment, in the order they were
+     * appended.
+     *
+     * @param segment the segment file
+     * @return a list of <tt>HistoryRecord</tt>s
+     * @throws IOException if the segment cannot be read
+     */
+    public static List read(File segment)
+        throws IOException
+    {
+        List records = new ArrayList();
+        scan(segment, records, null);
+        return records;
+    }
+
+    /**
+     * Counts the complete records of a segment. Their checksums are
+     * verified but they are not decoded.
+     *
+     * @param segment the segment file
+     * @return the number of records
+     * @throws IOException if the segment cannot be read
+     */
+    public static int count(File segment)
+        throws IOException
+    {
+        int[] recordCount = new int[1];
+        scan(segment, null, recordCount);
+        return recordCount[0];
+    }
+
+    /**
+     * Truncates a segment after its last complete record, so that records
+     * appended to it can be read back. A segment too short to hold its
+     * header gets a new header. A segment not starting with the header is
+     * renamed with the <tt>.corrupt</tt> suffix, which hides it from the
+     * history, and replaced by an empty one.
+     *
+     * @param segment the segment file
+     * @return the length of the segment after recovery
+     * @throws IOException if the segment cannot be read, moved aside or
+     * truncated
+     */
+    public static long recover(File segment)
+        throws IOException
+    {
+        long validLength = scan(segment, null, null);
+
+        if (validLength < HEADER_SIZE && segment.length() >= HEADER_SIZE)
+            quarantine(segment);
+
+        RandomAccessFile file = new RandomAccessFile(segment, "rw");
+        try
+        {
+            if (validLength < HEADER_SIZE)
+            {
+                logger.warn("Rewriting the header of history segment "
+                    + segment);
+                file.setLength(0);
+                file.write(header());
+                validLength = HEADER_SIZE;
+            }
+            else if (file.length() > validLength)
+            {
+                logger.warn("Dropping " + (file.length() - validLength)
+                    + " bytes of incomplete records at the end of "
+                    + segment);
+                file.setLength(validLength);
+            }
+            file.getFD().sync();
+        }
+        finally
+        {
+            file.close();
+        }
+
+        return validLength;
+    }
+
+    /**
+     * Renames a segment whose header is unreadable so that it is kept for
+     * inspection, out of the way of the history.
+     *
+     * @param segment the segment file
+     * @throws IOException if the segment cannot be renamed
+     */
+    private static void quarantine(File segment)
+        throws IOException
+    {
+        File quarantined = new File(segment.getPath() + QUARANTINE_SUFFIX);
+        for (int i = 1; quarantined.exists(); i++)
+        {
+            quarantined = new File(
+                segment.getPath() + QUARANTINE_SUFFIX + "." + i);
+        }
+
+        if (!segment.renameTo(quarantined))
+        {
+            throw new IOException("Failed to move aside the history segment "
+                + segment + " whose header is unreadable");
+        }
+
+        logger.error("Moved the history segment " + segment
+            + " whose header is unreadable to " + quarantined);
+    }
+
+    /**
+     * Reads a segment up to its end or up to its first incomplete record.
+     *
+     * @param segment the segment file
+     * @param records the list receiving the records, or null if they are
+     * not decoded
+     * @param recordCount the array whose first element receives the number
+     * of complete records, or null
+     * @return the length of the segment up to the end of its last complete
+     * record, or 0 if it does not start with a valid header
+     * @throws IOException if the segment cannot be read
+     */
+    private static long scan(File segment, List records, int[] recordCount)
+        throws IOException
+    {
+        DataInputStream in = new DataInputStream(
+            new BufferedInputStream(new FileInputStream(segment)));
+        long validLength = 0;
+        try
+        {
+            if (in.readInt() != MAGIC)
+            {
+                logger.error("Not a history segment: " + segment);
+                return 0;
+            }
+            validLength = HEADER_SIZE;
+
+            CRC32 crc = new CRC32();
+            byte[] payload = new byte[512];
+            while (true)
+            {
+                int length = in.readInt();
+                int checksum = in.readInt();
+                if (length < 12 || length > MAX_RECORD_SIZE)
+                    break;
+
+                if (payload.length < length)
+                    payload = new byte[Math.max(length, payload.length * 2)];
+                in.readFully(payload, 0, length);
+
+                crc.reset();
+                crc.update(payload, 0, length);
+                if ((int) crc.getValue() != checksum)
+                    break;
+
+                if (records != null)
+                    records.add(decode(payload, length));
+                if (recordCount != null)
+                    recordCount[0]++;
+                validLength += 8 + length;
+            }
+        }
+        catch (EOFException ex)
+        {
+            // the end of the segment or a torn record
+        }
+        finally
+        {
+            in.close();
+        }
+
+        return validLength;
+    }
+
+    private static HistoryRecord decode(byte[] payload, int length)
+        throws IOException
+    {
+        DataInputStream in = new DataInputStream(
+            new ByteArrayInputStream(payload, 0, length));
+
+        long timestamp = in.readLong();
+        int count = in.readInt();
+        String[] propertyNames = new String[count];
+        String[] propertyValues = new String[count];
+        for (int i = 0; i < count; i++)
+        {
+            propertyNames[i] = readString(in);
+            propertyValues[i] = readString(in);
+        }
+
+        return new HistoryRecord(propertyNames, propertyValues,
+            new Date(timestamp));
+    }
+
+    private static void writeString(DataOutputStream out, String str)
+        throws IOException
+    {
+        byte[] bytes = str.getBytes("UTF-8");
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    private static String readString(DataInputStream in)
+        throws IOException
+    {
+        byte[] bytes = new byte[in.readInt()];
+        in.readFully(bytes);
+        return new String(bytes, "UTF-8");
+    }
+
+    private static void writeInt(byte[] buf, int offset, int value)
+    {
+        buf[offset] = (byte) (value >>> 24);
+        buf[offset + 1] = (byte) (value >>> 16);
+        buf[offset + 2] = (byte) (value >>> 8);
+        buf[offset + 3] = (byte) value;
+    }
+}
@@ -0,0 +1,131 @@
+/*
+ * SIP Communicator, the OpenSource Java VoIP and Instant Messaging client.
+ *
+ * Distributable under LGPL license.
+ * See terms of license at gnu.org.
+ */
+package net.java.sip.communicator.impl.history;
+
+import java.util.*;
+
+import net.java.sip.communicator.service.history.*;
+import net.java.sip.communicator.service.history.records.*;
+
+/**
+ * A <tt>HistoryRecordStream</tt> over the files of a history, which reads
+ * the matching records of a file only when the records read so far may not
+ * all be older than the records of the file.
+ * <p>
+ * The files are named after the timestamp of their first record, which is
+ * taken as the lower bound of their timestamps, as the other queries do
+ * when they select files by date: records added with past dates are
+ * returned in order with the records of their file only.
+ * </p>
+ */
+abstract class RecordStream
+    implements HistoryRecordStream
+{
+    /**
+     * The read records not returned yet, oldest first.
+     */
+    private PriorityQueue buffer = new PriorityQueue(
+        16, new HistoryReaderImpl.HistoryRecordComparator());
+
+    private List filenames;
+
+    private int nextFile = 0;
+
+    private volatile boolean closed = false;
+
+    /**
+     * Creates a stream over the given files of a history.
+     *
+     * @param filenames the names of the files which may hold matching
+     * records, oldest first
+     */
+    RecordStream(List filenames)
+    {
+        this.filenames = filenames;
+    }
+
+    /**
+     * Returns the records of a file which match the query.
+     *
+     * @param filename the name of the file
+     * @return a list of <tt>HistoryRecord</tt>s
+     */
+    protected abstract List readFile(String filename);
+
+    public synchronized boolean hasNext()
+    {
+        if (this.closed)
+        {
+            this.buffer.clear();
+            return false;
+        }
+
+        // read files as long as the next one may hold older records than
+        // the ones read so far
+        while (this.nextFile < this.filenames.size()
+               && (this.buffer.isEmpty()
+                   || getTimestamp((HistoryRecord) this.buffer.peek())
+                        > getFirstTimestamp(
+                            (String) this.filenames.get(this.nextFile))))
+        {
+            this.buffer.addAll(
+                readFile((String) this.filenames.get(this.nextFile++)));
+
+            if (this.closed)
+                return false;
+        }
+
+        return !this.buffer.isEmpty();
+    }
+
+    public synchronized Object next()
+    {
+        if (!hasNext())
+            throw new NoSuchElementException();
+
+        return this.buffer.poll();
+    }
+
+    public HistoryRecord nextRecord()
+        throws NoSuchElementException
+    {
+        return (HistoryRecord) next();
+    }
+
+    public void close()
+    {
+        this.closed = true;
+    }
+
+    public void remove()
+    {
+        throw new UnsupportedOperationException("Cannot remove elements "
+                + "from underlaying collection.");
+    }
+
+    private static long getTimestamp(HistoryRecord record)
+    {
+        return record.getTimestamp().getTime();
+    }
+
+    /**
+     * Returns the timestamp a file is named after.
+     */
+    private static long getFirstTimestamp(String filename)
+    {
+        try
+        {
+            return Long.parseLong(
+                filename.substring(0, filename.lastIndexOf('.')));
+        }
+        catch (RuntimeException ex)
+        {
+            // unexpected name, read the file before returning anything
+            return Long.MIN_VALUE;
+        }
+    }
+}
@@ -0,0 +1,484 @@
+/*
+ * SIP Communicator, the OpenSource Java VoIP and Instant Messaging client.
+ *
+ * Distributable under LGPL license.
+ * See terms of license at gnu.org.
+ */
+package net.java.sip.communicator.impl.history;
+
+import java.io.*;
+import java.util.*;
+
+import net.java.sip.communicator.util.*;
+
+/**
+ * A sparse index of the timestamps of the records of a history, used by the
+ * readers to answer period and "last N" queries without going through every
+ * record of every file, and to count the records of the history.
+ * <p>
+ * For every file of the history the index keeps the number of records, the
+ * smallest and largest timestamps and the timestamp of one record every
+ * <tt>SAMPLE_INTERVAL</tt>. Records are identified by their position in the
+ * file. When the timestamps of a file are in ascending order, which is the
+ * case unless records were added with past dates, the samples narrow a
+ * period down to the positions of at most two blocks of records more than
+ * it contains. Otherwise only the smallest and largest timestamps are used.
+ * </p><p>
+ * The index of all the files is saved in the history directory, in the
+ * <tt>INDEX_FILENAME</tt> file, and the entry of a file is used as long as
+ * the file keeps the same length and modification time. Other entries are
+ * built again from the files. Records added afterwards are indexed as they
+ * are written.
+ * </p>
+ */
+public class TimeIndex
+{
+    private static Logger logger = Logger.getLogger(TimeIndex.class);
+
+    /**
+     * The name of the file the index is saved in.
+     */
+    public static final String INDEX_FILENAME = "time.index";
+
+    /**
+     * The number of records between two sampled timestamps.
+     */
+    static final int SAMPLE_INTERVAL = 16;
+
+    private static final int INDEX_MAGIC = 0x53435401;
+
+    /**
+     * Reads the timestamps of the records of the files of a history.
+     */
+    public interface TimestampSource
+    {
+        /**
+         * Returns the timestamps of the records of a file, in the order they
+         * were written.
+         *
+         * @param filename the name of the file
+         * @return the timestamps of the records
+         * @throws IOException if the file cannot be read
+         */
+        public long[] loadTimestamps(String filename)
+            throws IOException;
+    }
+
+    private File directory;
+
+    private TimestampSource source;
+
+    /**
+     * The <tt>FileEntry</tt>s by file name, of the files which were checked
+     * against the disk or written since the index was loaded.
+     */
+    private Map entries = new HashMap();
+
+    /**
+     * The entries read from the index file, not checked yet.
+     */
+    private Map savedEntries = null;
+
+    /**
+     * The number of records of the files of <tt>entries</tt>.
+     */
+    private int recordCount = 0;
+
+    /**
+     * Whether entries were built since the index was saved.
+     */
+    private boolean modified = false;
+
+    /**
+     * Creates the index of the history whose files are in
+     * <tt>directory</tt>.
+     *
+     * @param directory the directory of the history
+     * @param source reads the timestamps of the files of the history
+     */
+    public TimeIndex(File directory, TimestampSource source)
+    {
+        this.directory = directory;
+        this.source = source;
+    }
+
+    /**
+     * Returns the number of records of the given files, indexing the files
+     * which are not yet. Once all the files are indexed, the count is kept
+     * up to date as records are added and is returned as is.
+     *
+     * @param filenames the names of all the files of the history
+     * @return the number of records
+     */
+    public synchronized int getRecordCount(Collection filenames)
+    {
+        if (this.entries.size() != filenames.size())
+        {
+            Iterator i = filenames.iterator();
+            while (i.hasNext())
+                getEntry((String) i.next());
+
+            saveIfModified();
+        }
+
+        return this.recordCount;
+    }
+
+    /**
+     * Returns the positions of the records of a file whose timestamp may be
+     * after <tt>startDate</tt> and before <tt>endDate</tt>. The records
+     * outside of the returned positions are not in the period, the ones
+     * inside still have to be checked.
+     *
+     * @param filename the name of the file
+     * @param startDate the start of the period, or null
+     * @param endDate the end of the period, or null
+     * @return the first position and the position after the last one, or
+     * null if the file could not be indexed and has to be read entirely
+     */
+    public synchronized int[] getRange(String filename,
+                                       Date startDate,
+                                       Date endDate)
+    {
+        FileEntry entry = getEntry(filename);
+        saveIfModified();
+
+        if (entry == null)
+            return null;
+
+        int from = 0;
+        int to = entry.count;
+
+        if (entry.count == 0
+            || (startDate != null && entry.maxTimestamp <= startDate.getTime())
+            || (endDate != null && entry.minTimestamp >= endDate.getTime()))
+            return new int[] { 0, 0 };
+
+        if (!entry.ascending)
+            return new int[] { from, to };
+
+        if (startDate != null)
+        {
+            // the records up to the last sample not after the start date
+            // are not after it either
+            int sample = lastSampleNotAfter(entry, startDate.getTime());
+            if (sample > 0)
+                from = sample * SAMPLE_INTERVAL;
+        }
+
+        if (endDate != null)
+        {
+            // the records from the first sample not before the end date
+            // are not before it either
+            int sample = lastSampleBefore(entry, endDate.getTime()) + 1;
+            if (sample < entry.sampleCount)
+                to = sample * SAMPLE_INTERVAL;
+        }
+
+        return new int[] { from, Math.max(from, to) };
+    }
+
+    /**
+     * Indexes a record appended to a file. A record which does not follow
+     * the last indexed record of the file invalidates the entry of the file,
+     * which will then be built again from the file.
+     *
+     * @param filename the name of the file
+     * @param position the position of the record in the file
+     * @param timestamp the timestamp of the record
+     */
+    public synchronized void recordAdded(String filename, int position,
+                                         long timestamp)
+    {
+        FileEntry entry = (FileEntry) this.entries.get(filename);
+
+        if (entry == null && position == 0)
+        {
+            entry = new FileEntry();
+            this.entries.put(filename, entry);
+        }
+        else if (entry == null)
+        {
+            return;
+        }
+        else if (entry.count != position)
+        {
+            this.entries.remove(filename);
+            this.recordCount -= entry.count;
+            return;
+        }
+
+        entry.add(timestamp);
+        this.recordCount++;
+
+        // the entry will be saved as out of date, the file is saved along
+        // with every record and the index only when files were indexed
+        entry.length = -1;
+    }
+
+    /**
+     * Returns the entry of a file, loading it or building it if needed.
+     */
+    private FileEntry getEntry(String filename)
+    {
+        FileEntry entry = (FileEntry) this.entries.get(filename);
+        if (entry != null)
+            return entry;
+
+        File file = new File(this.directory, filename);
+
+        if (this.savedEntries == null)
+            this.savedEntries = load();
+
+        entry = (FileEntry) this.savedEntries.remove(filename);
+        if (entry != null
+            && (entry.length != file.length()
+                || entry.lastModified != file.lastModified()))
+            entry = null;
+
+        if (entry == null)
+        {
+            entry = new FileEntry();
+            entry.length = file.length();
+            entry.lastModified = file.lastModified();
+
+            try
+            {
+                long[] timestamps = this.source.loadTimestamps(filename);
+                for (int i = 0; i < timestamps.length; i++)
+                    entry.add(timestamps[i]);
+            }
+            catch (IOException ex)
+            {
+                logger.error("Could not index history file " + file, ex);
+                return null;
+            }
+
+            this.modified = true;
+        }
+
+        this.entries.put(filename, entry);
+        this.recordCount += entry.count;
+
+        return entry;
+    }
+
+    private static int lastSampleNotAfter(FileEntry entry, long time)
+    {
+        int low = 0;
+        int high = entry.sampleCount - 1;
+        int result = -1;
+        while (low <= high)
+        {
+            int mid = (low + high) >>> 1;
+            if (entry.samples[mid] <= time)
+            {
+                result = mid;
+                low = mid + 1;
+            }
+            else
+                high = mid - 1;
+        }
+        return result;
+    }
+
+    private static int lastSampleBefore(FileEntry entry, long time)
+    {
+        int low = 0;
+        int high = entry.sampleCount - 1;
+        int result = -1;
+        while (low <= high)
+        {
+            int mid = (low + high) >>> 1;
+            if (entry.samples[mid] < time)
+            {
+                result = mid;
+                low = mid + 1;
+            }
+            else
+                high = mid - 1;
+        }
+        return result;
+    }
+
+    /**
+     * Loads the entries saved in the index file.
+     *
+     * @return the saved entries by file name, empty if there is no index
+     * file or it cannot be read
+     */
+    private Map load()
+    {
+        Map result = new HashMap();
+        File indexFile = new File(this.directory, INDEX_FILENAME);
+        if (!indexFile.exists())
+            return result;
+
+        try
+        {
+            DataInputStream in = new DataInputStream(
+                new BufferedInputStream(new FileInputStream(indexFile)));
+            try
+            {
+                if (in.readInt() != INDEX_MAGIC)
+                    return result;
+
+                int entryCount = in.readInt();
+                for (int i = 0; i < entryCount; i++)
+                {
+                    String filename = in.readUTF();
+                    FileEntry entry = new FileEntry();
+                    entry.length = in.readLong();
+                    entry.lastModified = in.readLong();
+                    entry.count = in.readInt();
+                    entry.ascending = in.readBoolean();
+                    entry.minTimestamp = in.readLong();
+                    entry.maxTimestamp = in.readLong();
+                    entry.sampleCount = in.readInt();
+                    entry.samples = new long[Math.max(1, entry.sampleCount)];
+                    for (int j = 0; j < entry.sampleCount; j++)
+                        entry.samples[j] = in.readLong();
+
+                    result.put(filename, entry);
+                }
+            }
+            finally
+            {
+                in.close();
+            }
+        }
+        catch (IOException ex)
+        {
+            logger.error("Could not read the time index " + indexFile, ex);
+            result.clear();
+        }
+
+        return result;
+    }
+
+    private void saveIfModified()
+    {
+        if (!this.modified)
+            return;
+
+        try
+        {
+            save();
+            this.modified = false;
+        }
+        catch (IOException ex)
+        {
+            logger.error("Could not save the time index of " + this.directory,
+                ex);
+        }
+    }
+
+    /**
+     * Saves the entries to the index file, through a temporary file so that
+     * a crash never leaves a partial index. The entries of files which were
+     * written to since they were indexed are saved as out of date.
+     */
+    private void save()
+        throws IOException
+    {
+        File indexFile = new File(this.directory, INDEX_FILENAME);
+        File tmpFile = new File(this.directory, INDEX_FILENAME + ".tmp");
+
+        Map allEntries = new HashMap();
+        if (this.savedEntries != null)
+            allEntries.putAll(this.savedEntries);
+        allEntries.putAll(this.entries);
+
+        DataOutputStream out = new DataOutputStream(
+            new BufferedOutputStream(new FileOutputStream(tmpFile)));
+        try
+        {
+            out.writeInt(INDEX_MAGIC);
+            out.writeInt(allEntries.size());
+
+            Iterator i = allEntries.entrySet().iterator();
+            while (i.hasNext())
+            {
+                Map.Entry mapEntry = (Map.Entry) i.next();
+                FileEntry entry = (FileEntry) mapEntry.getValue();
+
+                out.writeUTF((String) mapEntry.getKey());
+                out.writeLong(entry.length);
+                out.writeLong(entry.lastModified);
+                out.writeInt(entry.count);
+                out.writeBoolean(entry.ascending);
+                out.writeLong(entry.minTimestamp);
+                out.writeLong(entry.maxTimestamp);
+                out.writeInt(entry.sampleCount);
+                for (int j = 0; j < entry.sampleCount; j++)
+                    out.writeLong(entry.samples[j]);
+            }
+        }
+        finally
+        {
+            out.close();
+        }
+
+        if ((indexFile.exists() && !indexFile.delete())
+            || !tmpFile.renameTo(indexFile))
+        {
+            tmpFile.delete();
+            throw new IOException("Could not replace " + indexFile);
+        }
+    }
+
+    /**
+     * The index of the timestamps of one file.
+     */
+    private static class FileEntry
+    {
+        /**
+         * The length and modification time of the file when it was indexed,
+         * -1 if it was written to since.
+         */
+        long length = -1;
+
+        long lastModified = -1;
+
+        int count = 0;
+
+        /**
+         * Whether the timestamps of the records never decrease.
+         */
+        boolean ascending = true;
+
+        long minTimestamp = Long.MAX_VALUE;
+
+        long maxTimestamp = Long.MIN_VALUE;
+
+        /**
+         * The timestamps of the records at the multiples of
+         * <tt>SAMPLE_INTERVAL</tt>.
+         */
+        long[] samples = new long[1];
+
+        int sampleCount = 0;
+
+        void add(long timestamp)
+        {
+            if (timestamp < this.maxTimestamp)
+                this.ascending = false;
+
+            if (this.count % SAMPLE_INTERVAL == 0)
+            {
+                if (this.sampleCount == this.samples.length)
+                {
+                    long[] newSamples = new long[this.samples.length * 2];
+                    System.arraycopy(this.samples, 0, newSamples, 0,
+                                     this.sampleCount);
+                    this.samples = newSamples;
+                }
+                this.samples[this.sampleCount++] = timestamp;
+            }
+
+            this.minTimestamp = Math.min(this.minTimestamp, timestamp);
+            this.maxTimestamp = Math.max(this.maxTimestamp, timestamp);
+            this.count++;
+        }
+    }
+}
@@ -0,0 +1,364 @@
+/*
+ * SIP Communicator, the OpenSource Java VoIP and Instant Messaging client.
+ *
+ * Distributable under LGPL license.
+ * See terms of license at gnu.org.
+ */
+package net.java.sip.communicator.impl.history;
+
+import java.io.*;
+import java.util.*;
+
+import net.java.sip.communicator.util.*;
+
+/**
+ * Writes the records added to the histories stored in XML behind the threads
+ * adding them, which are often the threads of the protocol stacks.
+ * <p>
+ * Records are added to the documents of their history right away, so they
+ * are found by the readers, and the history is queued. A background thread
+ * writes the modified documents of the queued histories together: once
+ * <tt>batchSize</tt> records are waiting, or <tt>maxDelay</tt> ms after the
+ * first of them was added, so that a burst of records costs one write of
+ * every modified document. The documents are synced to the disk when they
+ * are written.
+ * </p><p>
+ * The queue is bounded: once <tt>capacity</tt> records are waiting to be
+ * written, the threads adding records wait for them. Closing the queue
+ * writes the waiting records in the closing thread and the records added
+ * afterwards are written by the histories as they are added.
+ * </p>
+ */
+public class WriteBehindQueue
+    implements Runnable
+{
+    private static Logger logger = Logger.getLogger(WriteBehindQueue.class);
+
+    /**
+     * The default longest time, in ms, a record waits to be written.
+     */
+    public static final int DEF_MAX_DELAY = 1000;
+
+    /**
+     * The default number of records written at once.
+     */
+    public static final int DEF_BATCH_SIZE = 64;
+
+    /**
+     * The default number of waiting records after which the threads adding
+     * records wait.
+     */
+    public static final int DEF_CAPACITY = 1024;
+
+    private long maxDelay;
+
+    private int batchSize;
+
+    private int capacity;
+
+    /**
+     * The histories with records waiting to be written, in the order they
+     * were queued.
+     */
+    private Set histories = new LinkedHashSet();
+
+    /**
+     * The number of records waiting to be taken by a writing thread.
+     */
+    private int pendingRecords = 0;
+
+    /**
+     * The number of records not written yet, the pending ones and the ones
+     * being written.
+     */
+    private int queueDepth = 0;
+
+    /**
+     * The time the first of the pending records was added.
+     */
+    private long firstPendingTime = 0;
+
+    private boolean closed = false;
+
+    private Thread thread;
+
+    private int maxQueueDepth = 0;
+
+    private long writeCount = 0;
+
+    private long writtenRecordCount = 0;
+
+    private long waitCount = 0;
+
+    /**
+     * Creates the queue and starts its thread.
+     *
+     * @param maxDelay the longest time, in ms, a record waits to be written
+     * @param batchSize the number of records written without waiting
+     * @param capacity the number of waiting records after which the threads
+     * adding records wait, not less than <tt>batchSize</tt>
+     */
+    public WriteBehindQueue(long maxDelay, int batchSize, int capacity)
+    {
+        this.maxDelay = Math.max(0, maxDelay);
+        this.batchSize = Math.max(1, batchSize);
+        this.capacity = Math.max(this.batchSize, capacity);
+
+        this.thread = new Thread(this, "HistoryWriteBehind");
+        this.thread.setDaemon(true);
+        this.thread.start();
+    }
+
+    /**
+     * Queues the writing of a record added to the documents of a history.
+     * Waits while the queue is full.
+     *
+     * @param history the history the record was added to
+     * @return false if the queue is closed and the history has to write the
+     * record itself
+     */
+    public synchronized boolean recordAdded(HistoryImpl history)
+    {
+        if (this.closed)
+            return false;
+
+        if (this.pendingRecords == 0)
+            this.firstPendingTime = System.currentTimeMillis();
+
+        this.histories.add(history);
+        this.pendingRecords++;
+        this.queueDepth++;
+        this.maxQueueDepth = Math.max(this.maxQueueDepth, this.queueDepth);
+
+        // the thread of the queue starts waiting for the first record to be
+        // late, or writes a full batch
+        if (this.pendingRecords == 1
+            || this.pendingRecords >= this.batchSize)
+            notifyAll();
+
+        if (this.queueDepth > this.capacity)
+        {
+            this.waitCount++;
+            boolean interrupted = false;
+            while (this.queueDepth > this.capacity && !this.closed)
+            {
+                try
+                {
+                    wait();
+                }
+                catch (InterruptedException ex)
+                {
+                    interrupted = true;
+                }
+            }
+            if (interrupted)
+                Thread.currentThread().interrupt();
+        }
+
+        return true;
+    }
+
+    /**
+     * Writes the waiting records in the calling thread and waits for the
+     * ones being written by the thread of the queue.
+     */
+    public void flush()
+    {
+        List batch;
+        int records;
+        synchronized (this)
+        {
+            batch = new ArrayList(this.histories);
+            records = takePending();
+        }
+
+        write(batch, records);
+
+        synchronized (this)
+        {
+            boolean interrupted = false;
+            while (this.queueDepth > 0 && this.thread.isAlive())
+            {
+                try
+                {
+                    wait(this.maxDelay + 1000);
+                }
+                catch (InterruptedException ex)
+                {
+                    interrupted = true;
+                }
+            }
+            if (interrupted)
+                Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Writes the waiting records and stops the thread of the queue. The
+     * records added afterwards are written as they are added.
+     */
+    public void close()
+    {
+        synchronized (this)
+        {
+            if (this.closed)
+                return;
+            this.closed = true;
+            notifyAll();
+        }
+
+        flush();
+        logger.info(toString());
+    }
+
+    /**
+     * Writes the queued histories as batches of records become ready.
+     */
+    public void run()
+    {
+        while (true)
+        {
+            List batch;
+            int records;
+
+            synchronized (this)
+            {
+                try
+                {
+                    while (this.pendingRecords == 0 && !this.closed)
+                        wait();
+
+                    // waits for a full batch or for the first record to
+                    // have waited long enough
+                    while (this.pendingRecords < this.batchSize
+                        && !this.closed)
+                    {
+                        long left = this.firstPendingTime + this.maxDelay
+                            - System.currentTimeMillis();
+                        if (left <= 0)
+                            break;
+                        wait(left);
+                    }
+                }
+                catch (InterruptedException ex)
+                {
+                    logger.error("The history write behind thread was "
+                        + "interrupted", ex);
+                    this.closed = true;
+                }
+
+                if (this.closed)
+                {
+                    // close() writes what is left
+                    notifyAll();
+                    return;
+                }
+
+                batch = new ArrayList(this.histories);
+                records = takePending();
+            }
+
+            write(batch, records);
+        }
+    }
+
+    /**
+     * Takes the pending records to be written. Called under the lock of the
+     * queue.
+     *
+     * @return the number of taken records
+     */
+    private int takePending()
+    {
+        int records = this.pendingRecords;
+        this.histories.clear();
+        this.pendingRecords = 0;
+        return records;
+    }
+
+    /**
+     * Writes the modified documents of the histories of a batch.
+     */
+    private void write(List batch, int records)
+    {
+        for (int i = 0; i < batch.size(); i++)
+        {
+            HistoryImpl history = (HistoryImpl) batch.get(i);
+            try
+            {
+                history.writeModifiedFiles();
+            }
+            catch (IOException ex)
+            {
+                logger.error("Could not write history " + history.getID(),
+                    ex);
+            }
+            catch (RuntimeException ex)
+            {
+                logger.error("Could not write history " + history.getID(),
+                    ex);
+            }
+        }
+
+        synchronized (this)
+        {
+            this.queueDepth -= records;
+            if (records > 0)
+            {
+                this.writeCount++;
+                this.writtenRecordCount += records;
+            }
+            notifyAll();
+        }
+    }
+
+    /**
+     * Returns the number of records added and not written yet.
+     */
+    public synchronized int getQueueDepth()
+    {
+        return this.queueDepth;
+    }
+
+    /**
+     * Returns the largest number of records which were waiting to be
+     * written at once.
+     */
+    public synchronized int getMaxQueueDepth()
+    {
+        return this.maxQueueDepth;
+    }
+
+    /**
+     * Returns the number of batches of records written.
+     */
+    public synchronized long getWriteCount()
+    {
+        return this.writeCount;
+    }
+
+    public synchronized long getWrittenRecordCount()
+    {
+        return this.writtenRecordCount;
+    }
+
+    /**
+     * Returns the number of times a thread adding a record waited for the
+     * queue to have room.
+     */
+    public synchronized long getWaitCount()
+    {
+        return this.waitCount;
+    }
+
+    /**
+     * Returns a one line summary of the counters, suitable for logging.
+     */
+    public synchronized String toString()
+    {
+        return "History write behind: " + this.queueDepth + " records queued"
+            + " (max " + this.maxQueueDepth + "); " + this.writtenRecordCount
+            + " records written in " + this.writeCount + " batches; "
+            + this.waitCount + " waits for room";
+    }
+}
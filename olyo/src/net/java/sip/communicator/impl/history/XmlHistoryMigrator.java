@@ -0,0 +1,167 @@
+/*
+ * SIP Communicator, the OpenSource Java VoIP and Instant Messaging client.
+ *
+ * Distributable under LGPL license.
+ * See terms of license at gnu.org.
+ */
+package net.java.sip.communicator.impl.history;
+
+import java.io.*;
+import java.util.*;
+
+import org.w3c.dom.*;
+
+import net.java.sip.communicator.service.history.*;
+import net.java.sip.communicator.service.history.records.*;
+import net.java.sip.communicator.util.*;
+
+/**
+ * Copies the records of a history stored in XML documents to segments of
+ * the append-only store, in the directory of the history.
+ * <p>
+ * The segments are first written to a temporary directory and moved in
+ * place once all the documents have been read, then a marker file records
+ * that the history has been migrated. An interrupted migration is simply
+ * started again. The XML documents are left untouched, so switching back
+ * to the XML store shows the history as it was before the migration.
+ * </p>
+ */
+public class XmlHistoryMigrator
+{
+    private static Logger logger = Logger.getLogger(XmlHistoryMigrator.class);
+
+    /**
+     * The file created in the directory of a history once it is migrated.
+     */
+    public static final String MIGRATED_MARKER = "xml.migrated";
+
+    /**
+     * The directory the segments are written to during the migration.
+     */
+    private static final String MIGRATION_DIRECTORY = "migration.tmp";
+
+    private HistoryServiceImpl historyServiceImpl;
+
+    public XmlHistoryMigrator(HistoryServiceImpl historyServiceImpl)
+    {
+        this.historyServiceImpl = historyServiceImpl;
+    }
+
+    /**
+     * Tells whether the directory of a history holds XML documents which
+     * have not been migrated yet.
+     *
+     * @param directory the directory of the history
+     * @return true if <tt>migrate</tt> should be called for the history
+     */
+    public static boolean isMigrationNeeded(File directory)
+    {
+        if (new File(directory, MIGRATED_MARKER).exists())
+            return false;
+
+        File[] files = directory.listFiles();
+        if (files == null)
+            return false;
+
+        for (int i = 0; i < files.length; i++)
+        {
+            if (!files[i].isDirectory()
+                && files[i].getName().endsWith(HistoryImpl.SUPPORTED_FILETYPE))
+                return true;
+        }
+
+        return false;
+    }
+
+    /**
+     * Copies the records of the XML documents of a history to segments in
+     * the same directory.
+     *
+     * @param id the ID of the history
+     * @param directory the directory of the history
+     * @param structure the structure of the records of the history
+     * @return the number of records copied
+     * @throws IOException if the segments could not be written
+     */
+    public int migrate(HistoryID id, File directory,
+                       HistoryRecordStructure structure)
+        throws IOException
+    {
+        File tmpDir = new File(directory, MIGRATION_DIRECTORY);
+        deleteDirectory(tmpDir);
+        if (!tmpDir.mkdir())
+            throw new IOException("Could not create " + tmpDir);
+
+        HistoryImpl xmlHistory
+            = new HistoryImpl(id, directory, structure, historyServiceImpl);
+        LogHistoryImpl logHistory
+            = new LogHistoryImpl(id, tmpDir, structure, historyServiceImpl);
+        LogHistoryWriterImpl writer
+            = (LogHistoryWriterImpl) logHistory.getWriter();
+
+        int count = 0;
+        try
+        {
+            Iterator files = xmlHistory.getFileList();
+            while (files.hasNext())
+            {
+                String filename = (String) files.next();
+                Document doc = xmlHistory.getDocumentForFile(filename);
+
+                if (doc == null)
+                {
+                    logger.error("Skipping unreadable history file "
+                        + filename + " of " + directory);
+                    continue;
+                }
+
+                NodeList nodes = doc.getElementsByTagName("record");
+                for (int i = 0; i < nodes.getLength(); i++)
+                {
+                    HistoryRecord record
+                        = HistoryImpl.createRecord(nodes.item(i));
+                    if (record != null)
+                    {
+                        writer.addRecord(record);
+                        count++;
+                    }
+                }
+            }
+        }
+        finally
+        {
+            writer.close();
+        }
+
+        File[] segments = tmpDir.listFiles();
+        for (int i = 0; i < segments.length; i++)
+        {
+            File target = new File(directory, segments[i].getName());
+            if ((target.exists() && !target.delete())
+                || !segments[i].renameTo(target))
+                throw new IOException("Could not move " + segments[i]
+                    + " to " + directory);
+        }
+        deleteDirectory(tmpDir);
+
+        new FileOutputStream(new File(directory, MIGRATED_MARKER)).close();
+
+        logger.info("Migrated " + count + " records of " + directory
+            + " to the append-only history store");
+
+        return count;
+    }
+
+    private static void deleteDirectory(File dir)
+    {
+        File[] content = dir.listFiles();
+        if (content == null)
+            return;
+
+        for (int i = 0; i < content.length; i++)
+        {
+            content[i].delete();
+        }
+        dir.delete();
+    }
+}
@@ -1195,39 +1195,13 @@ public class CallSessionImpl
      */
     private void initializePortNumbers()
     {
-        //first reset to default values
-        minPortNumber = 5000;
-        maxPortNumber = 6000;
-
-        //then set to anything the user might have specified.
-        String minPortNumberStr = MediaActivator.getConfigurationService()
-            .getString(MediaService.MIN_PORT_NUMBER_PROPERTY_NAME);
-
-        if (minPortNumberStr != null)
-        {
-            try{
-                minPortNumber = Integer.parseInt(minPortNumberStr);
-            }catch (NumberFormatException ex){
-                logger.warn(minPortNumberStr
-                            + " is not a valid min port number value. "
-                            +"using min port " + minPortNumber);
-            }
-        }
-
-        String maxPortNumberStr = MediaActivator.getConfigurationService()
-            .getString(MediaService.MAX_PORT_NUMBER_PROPERTY_NAME);
-
-        if (maxPortNumberStr != null)
-        {
-            try{
-                maxPortNumber = Integer.parseInt(maxPortNumberStr);
-            }catch (NumberFormatException ex){
-                logger.warn(maxPortNumberStr
-                            + " is not a valid max port number value. "
-                            +"using max port " + maxPortNumber,
-                            ex);
-            }
-        }
+        //use anything the user might have specified or the default values.
+        minPortNumber = MediaServiceImpl.getIntProperty(
+            MediaService.MIN_PORT_NUMBER_PROPERTY_NAME,
+            MediaServiceImpl.MIN_PORT_NUMBER_DEFAULT_VALUE);
+        maxPortNumber = MediaServiceImpl.getIntProperty(
+            MediaService.MAX_PORT_NUMBER_PROPERTY_NAME,
+            MediaServiceImpl.MAX_PORT_NUMBER_DEFAULT_VALUE);
     }
 
     /**
@@ -1340,26 +1314,56 @@ public class CallSessionImpl
                         , ex);
         }
 
+        //take ports that are ready from the pool if there are any for this
+        //destination, so that we don't wait on stun queries.
+        MediaPortPool portPool = mediaServCallback.getPortPool();
+
         //initialize audio rtp manager.
-        audioSessionAddress = new SessionAddress(inAddrAny, minPortNumber);
-        audioPublicAddress = allocatePort(intendedDestination,
-                                          audioSessionAddress,
-                                          bindRetries);
+        MediaPortPool.PortPair audioPorts
+            = portPool.take(intendedDestination);
+        if (audioPorts != null)
+        {
+            audioSessionAddress = new SessionAddress(
+                inAddrAny, audioPorts.getDataPort(),
+                inAddrAny, audioPorts.getControlPort());
+            audioPublicAddress = audioPorts.getPublicAddress();
+        }
+        else
+        {
+            audioSessionAddress
+                = new SessionAddress(inAddrAny, minPortNumber);
+            audioPublicAddress = allocatePort(intendedDestination,
+                                              audioSessionAddress,
+                                              bindRetries);
+
+            //augment min port number so that no one else tries to bind here.
+            minPortNumber = audioSessionAddress.getDataPort() + 2;
+        }
 
         logger.debug("AudioSessionAddress="+audioSessionAddress);
         logger.debug("AudioPublicAddress="+audioPublicAddress);
 
-        //augment min port number so that no one else tries to bind here.
-        minPortNumber = audioSessionAddress.getDataPort() + 2;
-
         //initialize video rtp manager.
-        videoSessionAddress = new SessionAddress(inAddrAny, minPortNumber);
-        videoPublicAddress = allocatePort(intendedDestination,
-                                          videoSessionAddress,
-                                          bindRetries);
-
-        //augment min port number so that no one else tries to bind here.
-        minPortNumber = videoSessionAddress.getDataPort() + 2;
+        MediaPortPool.PortPair videoPorts
+            = portPool.take(intendedDestination);
+        if (videoPorts != null)
+        {
+            videoSessionAddress = new SessionAddress(
+                inAddrAny, videoPorts.getDataPort(),
+                inAddrAny, videoPorts.getControlPort());
+            videoPublicAddress = videoPorts.getPublicAddress();
+        }
+        else
+        {
+            videoSessionAddress
+                = new SessionAddress(inAddrAny, minPortNumber);
+            videoPublicAddress = allocatePort(intendedDestination,
+                                              videoSessionAddress,
+                                              bindRetries);
+
+            //augment min port number so that no one else tries to bind here.
+            minPortNumber = videoSessionAddress.getDataPort() + 2;
+        }
 
         //if we have reached the max port number - reinit.
         if(minPortNumber > maxPortNumber -2)
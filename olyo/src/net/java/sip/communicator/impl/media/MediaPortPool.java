@@ -0,0 +1,444 @@
+/*
+ * SIP Communicator, the OpenSource Java VoIP and Instant Messaging client.
+ *
+ * Distributable under LGPL license.
+ * See terms of license at gnu.org.
+ */
+package net.java.sip.communicator.impl.media;
+
+import java.io.*;
+import java.net.*;
+import java.util.*;
+
+import net.java.sip.communicator.service.netaddr.*;
+import net.java.sip.communicator.util.*;
+
+/**
+ * Keeps a few pairs of RTP/RTCP ports of the media port range bound, with
+ * their public addresses resolved ahead of time, so that a call session can
+ * take a ready pair instead of waiting on a STUN round trip while the call is
+ * being set up.
+ *
+ * The ports of a pair waiting in the pool are held by sockets bound on them.
+ * Their public address is resolved through the network address manager for
+ * the destination of the last call, and resolved again before the binding it
+ * opened in a NAT expires. A STUN query binds the port itself, so the data
+ * port is only released for the time of the query. A pair is only handed to
+ * a session whose destination is reached through the same local address as
+ * the one the pool resolves for, so that the session gets the same public
+ * address it would have got by resolving it itself.
+ *
+ * The pool is maintained by a timer thread and is meant to be shared by all
+ * the call sessions of the media service, and closed when it stops.
+ */
+public class MediaPortPool
+{
+    private static final Logger logger = Logger.getLogger(MediaPortPool.class);
+
+    /**
+     * The name of the property holding the number of port pairs kept ready.
+     */
+    public static final String POOL_SIZE_PROPERTY_NAME
+        = "net.java.sip.communicator.impl.media.PORT_POOL_SIZE";
+
+    /**
+     * The number of port pairs kept ready by default, enough for the audio
+     * and video ports of two calls.
+     */
+    public static final int POOL_SIZE_DEFAULT_VALUE = 4;
+
+    /**
+     * The name of the property holding the number of milliseconds after
+     * which the public address of a pair is resolved again.
+     */
+    public static final String REFRESH_INTERVAL_PROPERTY_NAME
+        = "net.java.sip.communicator.impl.media.PORT_POOL_REFRESH_INTERVAL";
+
+    /**
+     * The number of milliseconds after which the public address of a pair is
+     * resolved again by default, below the shortest UDP binding lifetimes of
+     * common NATs.
+     */
+    public static final long REFRESH_INTERVAL_DEFAULT_VALUE = 20000;
+
+    private final NetworkAddressManagerService netAddressManager;
+
+    private final int minPortNumber;
+
+    private final int maxPortNumber;
+
+    private final int size;
+
+    private final long refreshInterval;
+
+    /**
+     * The ready pairs, in the order their public addresses were resolved.
+     */
+    private final LinkedList pairs = new LinkedList();
+
+    /**
+     * The destination the public addresses of the pairs are resolved for, or
+     * <tt>null</tt> until a session has asked for a pair.
+     */
+    private InetAddress destination = null;
+
+    /**
+     * The local address <tt>destination</tt> is reached through.
+     */
+    private InetAddress localAddress = null;
+
+    /**
+     * The number of times the destination has changed, which tells the
+     * maintenance whether the pairs it resolved are still wanted.
+     */
+    private int generation = 0;
+
+    /**
+     * The data port the next pair is looked for from. The pool looks from
+     * the top of the range down, while call sessions allocating ports
+     * themselves look from the bottom up.
+     */
+    private int nextPort;
+
+    private final Timer timer = new Timer("MediaPortPool", true);
+
+    private boolean closed = false;
+
+    /**
+     * Creates a pool keeping <tt>size</tt> pairs of ports between
+     * <tt>minPortNumber</tt> and <tt>maxPortNumber</tt> ready.
+     *
+     * @param netAddressManager the service resolving public addresses
+     * @param minPortNumber the lowest port a pair may be bound on
+     * @param maxPortNumber the highest port a pair may be bound on
+     * @param size the number of pairs kept ready
+     * @param refreshInterval the number of milliseconds after which the
+     * public address of a pair is resolved again
+     */
+    public MediaPortPool(NetworkAddressManagerService netAddressManager,
+                         int minPortNumber,
+                         int maxPortNumber,
+                         int size,
+                         long refreshInterval)
+    {
+        this.netAddressManager = netAddressManager;
+        this.minPortNumber = minPortNumber;
+        this.maxPortNumber = maxPortNumber;
+        this.size = size;
+        this.refreshInterval = refreshInterval;
+        this.nextPort = getTopPort();
+
+        long period = Math.max(refreshInterval / 4, 100);
+        this.timer.schedule(new MaintenanceTask(), period, period);
+    }
+
+    /**
+     * Takes a ready pair whose public address is the one the data port has
+     * for <tt>intendedDestination</tt>, and releases its ports so that the
+     * caller could bind on them. If there is none, the pool starts getting
+     * pairs ready for the destination and <tt>null</tt> is returned, and the
+     * caller has to allocate its ports itself.
+     *
+     * @param intendedDestination the address the ports are going to send
+     * media to
+     * @return a pair of free ports with the public address of the data port,
+     * or <tt>null</tt> if there is no ready pair for the destination
+     */
+    public PortPair take(InetAddress intendedDestination)
+    {
+        if (intendedDestination == null || size <= 0)
+            return null;
+
+        InetAddress local
+            = netAddressManager.getLocalHost(intendedDestination);
+
+        PortPair pair = null;
+        synchronized (this)
+        {
+            if (closed)
+                return null;
+
+            if (destination == null
+                || !localAddress.equals(local)
+                || (destination instanceof Inet6Address)
+                        != (intendedDestination instanceof Inet6Address))
+            {
+                logger.debug("Getting media ports ready for "
+                             + intendedDestination + " through " + local);
+                destination = intendedDestination;
+                localAddress = local;
+                generation++;
+                releasePairs();
+            }
+            else if (!pairs.isEmpty())
+            {
+                pair = (PortPair) pairs.removeLast();
+            }
+            timer.schedule(new MaintenanceTask(), 0);
+        }
+
+        if (pair != null)
+            pair.release();
+        return pair;
+    }
+
+    /**
+     * Returns the number of pairs ready to be taken.
+     *
+     * @return the number of pairs ready to be taken
+     */
+    public synchronized int getReadyCount()
+    {
+        return pairs.size();
+    }
+
+    /**
+     * Stops maintaining the pool and releases the ports of its pairs.
+     */
+    public synchronized void close()
+    {
+        closed = true;
+        timer.cancel();
+        releasePairs();
+    }
+
+    /**
+     * Resolves again the public addresses of the pairs resolved longer than
+     * the refresh interval ago, then binds and resolves new pairs until there
+     * are enough. Runs in the timer thread only.
+     */
+    private void maintain()
+    {
+        InetAddress dst;
+        int gen;
+        synchronized (this)
+        {
+            if (closed || destination == null)
+                return;
+            dst = destination;
+            gen = generation;
+        }
+
+        while (true)
+        {
+            PortPair pair;
+            synchronized (this)
+            {
+                if (closed || gen != generation || pairs.isEmpty())
+                    break;
+                pair = (PortPair) pairs.getFirst();
+                if (System.currentTimeMillis() - pair.resolvedTime
+                        < refreshInterval)
+                    break;
+                pairs.removeFirst();
+            }
+            if (resolve(pair, dst))
+                put(pair, gen);
+            else
+                pair.release();
+        }
+
+        while (true)
+        {
+            synchronized (this)
+            {
+                if (closed || gen != generation || pairs.size() >= size)
+                    break;
+            }
+
+            PortPair pair = bindPair();
+            if (pair == null)
+            {
+                logger.warn("No free media ports left between "
+                            + minPortNumber + " and " + maxPortNumber);
+                break;
+            }
+            if (!resolve(pair, dst))
+            {
+                // try again on the next run rather than keep failing now
+                pair.release();
+                break;
+            }
+            put(pair, gen);
+        }
+    }
+
+    /**
+     * Adds a pair resolved for the destination of <tt>gen</tt> to the ready
+     * ones, or releases it if the destination has changed meanwhile.
+     */
+    private synchronized void put(PortPair pair, int gen)
+    {
+        if (closed || gen != generation || pairs.size() >= size)
+            pair.release();
+        else
+            pairs.addLast(pair);
+    }
+
+    /**
+     * Releases the ports of all the ready pairs.
+     */
+    private void releasePairs()
+    {
+        while (!pairs.isEmpty())
+            ((PortPair) pairs.removeFirst()).release();
+    }
+
+    /**
+     * Returns the highest data port of the range, whose control port is in
+     * the range too.
+     */
+    private int getTopPort()
+    {
+        return minPortNumber
+            + 2 * Math.max(0, (maxPortNumber - 1 - minPortNumber) / 2);
+    }
+
+    /**
+     * Binds sockets on the next pair of free ports of the range.
+     *
+     * @return the bound pair or <tt>null</tt> if no pair of the range is free
+     */
+    private PortPair bindPair()
+    {
+        int top = getTopPort();
+        for (int i = (top - minPortNumber) / 2; i >= 0; i--)
+        {
+            int port = nextPort;
+            nextPort = (port - 2 < minPortNumber) ? top : port - 2;
+
+            DatagramSocket dataHolder = null;
+            try
+            {
+                dataHolder = new DatagramSocket(port);
+                DatagramSocket controlHolder = new DatagramSocket(port + 1);
+                return new PortPair(port, dataHolder, controlHolder);
+            }
+            catch (SocketException ex)
+            {
+                // one of the ports is taken, try the next pair
+                if (dataHolder != null)
+                    dataHolder.close();
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Resolves the public address of the data port of <tt>pair</tt> for
+     * <tt>dst</tt>, releasing the port for the time of the query.
+     *
+     * @return whether the address was resolved and the port bound again
+     */
+    private boolean resolve(PortPair pair, InetAddress dst)
+    {
+        pair.dataHolder.close();
+        pair.dataHolder = null;
+
+        try
+        {
+            InetSocketAddress publicAddress
+                = netAddressManager.getPublicAddressFor(dst, pair.dataPort);
+            if (publicAddress == null)
+                return false;
+            pair.dataHolder = new DatagramSocket(pair.dataPort);
+            pair.publicAddress = publicAddress;
+            pair.resolvedTime = System.currentTimeMillis();
+            return true;
+        }
+        catch (IOException ex)
+        {
+            logger.debug("Failed to get media port " + pair.dataPort
+                         + " ready", ex);
+            return false;
+        }
+    }
+
+    /**
+     * A pair of an RTP data port and the RTCP control port above it, with
+     * the public address of the data port.
+     */
+    public static class PortPair
+    {
+        private final int dataPort;
+
+        private InetSocketAddress publicAddress = null;
+
+        private long resolvedTime = 0;
+
+        private DatagramSocket dataHolder;
+
+        private DatagramSocket controlHolder;
+
+        private PortPair(int dataPort,
+                         DatagramSocket dataHolder,
+                         DatagramSocket controlHolder)
+        {
+            this.dataPort = dataPort;
+            this.dataHolder = dataHolder;
+            this.controlHolder = controlHolder;
+        }
+
+        /**
+         * Returns the RTP port of this pair.
+         *
+         * @return the RTP port of this pair
+         */
+        public int getDataPort()
+        {
+            return dataPort;
+        }
+
+        /**
+         * Returns the RTCP port of this pair.
+         *
+         * @return the RTCP port of this pair
+         */
+        public int getControlPort()
+        {
+            return dataPort + 1;
+        }
+
+        /**
+         * Returns the public address of the RTP port of this pair.
+         *
+         * @return the public address of the RTP port of this pair
+         */
+        public InetSocketAddress getPublicAddress()
+        {
+            return publicAddress;
+        }
+
+        /**
+         * Closes the sockets holding the ports of this pair.
+         */
+        private void release()
+        {
+            if (dataHolder != null)
+                dataHolder.close();
+            if (controlHolder != null)
+                controlHolder.close();
+            dataHolder = null;
+            controlHolder = null;
+        }
+    }
+
+    /**
+     * Maintains the pool in the timer thread.
+     */
+    private class MaintenanceTask
+        extends TimerTask
+    {
+        public void run()
+        {
+            try
+            {
+                maintain();
+            }
+            catch (RuntimeException ex)
+            {
+                logger.error("Failed to maintain the media port pool", ex);
+            }
+        }
+    }
+}
@@ -13,6 +13,7 @@ import javax.sdp.*;
 import javax.media.Time;
 
 import net.java.sip.communicator.impl.media.device.*;
+import net.java.sip.communicator.service.configuration.event.*;
 import net.java.sip.communicator.service.media.*;
 import net.java.sip.communicator.service.media.event.*;
 import net.java.sip.communicator.service.protocol.*;
@@ -37,7 +38,7 @@ public class MediaServiceImpl
     /**
      * Our logger.
      */
-    private Logger logger = Logger.getLogger(MediaServiceImpl.class);
+    private static Logger logger = Logger.getLogger(MediaServiceImpl.class);
 
     /**
      * The SdpFactory instance that we use for construction of all sdp
@@ -101,6 +102,31 @@ public class MediaServiceImpl
      */
     private Map activeCallSessions =  new Hashtable();
 
+    /**
+     * The pool of ready media ports call sessions take their ports from,
+     * created when the first call session needs it.
+     */
+    private MediaPortPool portPool = null;
+
+    /**
+     * The minimum port number media is bound upon unless the configuration
+     * says otherwise.
+     */
+    static final int MIN_PORT_NUMBER_DEFAULT_VALUE = 5000;
+
+    /**
+     * The maximum port number media is bound upon unless the configuration
+     * says otherwise.
+     */
+    static final int MAX_PORT_NUMBER_DEFAULT_VALUE = 6000;
+
+    /**
+     * Drops the port pool when the port range changes, so that it is created
+     * again over the new range.
+     */
+    private final PropertyChangeListener portRangeListener
+        = new PortRangeListener();
+
     /**
      * Default constructor
      */
@@ -221,6 +247,11 @@ public class MediaServiceImpl
     public void start()
     {
         new DeviceConfigurationThread().run();
+
+        MediaActivator.getConfigurationService().addPropertyChangeListener(
+            MIN_PORT_NUMBER_PROPERTY_NAME, portRangeListener);
+        MediaActivator.getConfigurationService().addPropertyChangeListener(
+            MAX_PORT_NUMBER_PROPERTY_NAME, portRangeListener);
     }
 
     /**
@@ -236,9 +267,81 @@ public class MediaServiceImpl
         {
             logger.error("Failed to properly close capture devices.", ex);
         }
+
+        MediaActivator.getConfigurationService().removePropertyChangeListener(
+            MIN_PORT_NUMBER_PROPERTY_NAME, portRangeListener);
+        MediaActivator.getConfigurationService().removePropertyChangeListener(
+            MAX_PORT_NUMBER_PROPERTY_NAME, portRangeListener);
+        closePortPool();
         isStarted = false;
     }
 
+    /**
+     * Returns the pool of ready media ports shared by all call sessions,
+     * creating it over the port range of the configuration if necessary.
+     *
+     * @return the pool of ready media ports
+     */
+    synchronized MediaPortPool getPortPool()
+    {
+        if (portPool == null)
+        {
+            portPool = new MediaPortPool(
+                MediaActivator.getNetworkAddressManagerService(),
+                getIntProperty(MIN_PORT_NUMBER_PROPERTY_NAME,
+                               MIN_PORT_NUMBER_DEFAULT_VALUE),
+                getIntProperty(MAX_PORT_NUMBER_PROPERTY_NAME,
+                               MAX_PORT_NUMBER_DEFAULT_VALUE),
+                getIntProperty(MediaPortPool.POOL_SIZE_PROPERTY_NAME,
+                               MediaPortPool.POOL_SIZE_DEFAULT_VALUE),
+                getIntProperty(MediaPortPool.REFRESH_INTERVAL_PROPERTY_NAME,
+                    (int) MediaPortPool.REFRESH_INTERVAL_DEFAULT_VALUE));
+        }
+        return portPool;
+    }
+
+    /**
+     * Closes the port pool, if any, so that the next call session needing it
+     * creates it again.
+     */
+    private synchronized void closePortPool()
+    {
+        if (portPool != null)
+        {
+            portPool.close();
+            portPool = null;
+        }
+    }
+
+    /**
+     * Returns the integer value of a property of the configuration, or
+     * <tt>defaultValue</tt> if it is not set or is not a number. Call sessions
+     * read their port range through it too.
+     *
+     * @param name the name of the property
+     * @param defaultValue the value to return if the property has no valid
+     * value
+     * @return the value of the property
+     */
+    static int getIntProperty(String name, int defaultValue)
+    {
+        String value
+            = MediaActivator.getConfigurationService().getString(name);
+
+        if (value != null && value.length() > 0)
+        {
+            try
+            {
+                return Integer.parseInt(value);
+            }
+            catch (NumberFormatException ex)
+            {
+                logger.warn(value + " is not a valid value for " + name, ex);
+            }
+        }
+        return defaultValue;
+    }
+
     /**
      * Returns true if the media service implementation is initialized and ready
      * for use by other services, and false otherwise.
@@ -363,6 +466,20 @@ public class MediaServiceImpl
         return deviceConfiguration;
     }
 
+    /**
+     * Closes the port pool when the minimum or maximum port number changes.
+     */
+    private class PortRangeListener
+        implements PropertyChangeListener
+    {
+        public void propertyChange(PropertyChangeEvent evt)
+        {
+            logger.debug("The media port range has changed, dropping the "
+                         + "port pool");
+            closePortPool();
+        }
+    }
+
     /**
      * We use this thread to detect, initialize and configure all capture
      * devices.
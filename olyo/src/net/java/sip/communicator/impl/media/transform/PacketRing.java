@@ -0,0 +1,187 @@
+/*
+ * SIP Communicator, the OpenSource Java VoIP and Instant Messaging client.
+ *
+ * Distributable under LGPL license.
+ * See terms of license at gnu.org.
+ */
+package net.java.sip.communicator.impl.media.transform;
+
+/**
+ * A fixed ring of preallocated packet buffers, filled by a single producer
+ * (the thread receiving the packets of a socket) and emptied by a single
+ * consumer (the thread handing them to the RTPManager).
+ *
+ * The producer gets the next free packet with <tt>getFreePacket()</tt>, fills
+ * it and makes it visible with <tt>publish()</tt>, which copies a packet
+ * given in place of the free one into the slot, so that the slots always
+ * hold their preallocated packets and buffers. The consumer gets the
+ * oldest published packet with <tt>getPacket()</tt> and gives its buffer back
+ * with <tt>release()</tt>. Each side only writes its own index and both are
+ * volatile, so packets are handed over without locks and without allocating
+ * anything per packet. Every method must be called by its own side only.
+ */
+class PacketRing
+{
+    /**
+     * The buffers of the slots of the ring.
+     */
+    private final byte[][] buffers;
+
+    /**
+     * The packets of the slots of the ring, over the buffers of the slots.
+     */
+    private final RawPacket[] packets;
+
+    /**
+     * The number of slots minus one, the capacity being a power of two.
+     */
+    private final int mask;
+
+    /**
+     * The number of packets published so far, written by the producer only.
+     */
+    private volatile long head = 0;
+
+    /**
+     * The number of packets released so far, written by the consumer only.
+     */
+    private volatile long tail = 0;
+
+    /**
+     * Creates a ring of at least <tt>capacity</tt> buffers of
+     * <tt>packetSize</tt> bytes.
+     *
+     * @param capacity the number of packets the ring holds, rounded up to a
+     * power of two
+     * @param packetSize the size of the buffer of every packet
+     */
+    PacketRing(int capacity, int packetSize)
+    {
+        int size = 1;
+        while (size < capacity)
+        {
+            size <<= 1;
+        }
+
+        this.buffers = new byte[size][];
+        this.packets = new RawPacket[size];
+        for (int i = 0; i < size; i++)
+        {
+            this.buffers[i] = new byte[packetSize];
+            this.packets[i] = new RawPacket(this.buffers[i], 0, 0);
+        }
+        this.mask = size - 1;
+    }
+
+    /**
+     * Returns the number of packets the ring holds.
+     *
+     * @return the number of packets the ring holds
+     */
+    int getCapacity()
+    {
+        return this.buffers.length;
+    }
+
+    /**
+     * Returns the packet of the next free slot, spanning its whole buffer,
+     * or <tt>null</tt> if all the slots hold published packets. Called by
+     * the producer.
+     *
+     * @return the packet of the next free slot, or <tt>null</tt> if the ring
+     * is full
+     */
+    RawPacket getFreePacket()
+    {
+        long head = this.head;
+        if (head - this.tail > this.mask)
+        {
+            return null;
+        }
+
+        int slot = (int) head & this.mask;
+        RawPacket pkt = this.packets[slot];
+        pkt.setPacket(this.buffers[slot], 0, this.buffers[slot].length);
+        return pkt;
+    }
+
+    /**
+     * Makes the packet of the slot last returned by <tt>getFreePacket()</tt>
+     * visible to the consumer. Called by the producer.
+     *
+     * @param pkt the packet to hand over, which is the free packet or the
+     * packet a transformer returned for it, whose content is then copied
+     * into the slot
+     * @return <tt>false</tt> if <tt>pkt</tt> does not fit in the buffer of
+     * the slot and was not published, <tt>true</tt> otherwise
+     */
+    boolean publish(RawPacket pkt)
+    {
+        long head = this.head;
+        int slot = (int) head & this.mask;
+        byte[] buffer = this.buffers[slot];
+        int offset = pkt.getOffset();
+        int length = pkt.getLength();
+
+        if (pkt.getBuffer() != buffer)
+        {
+            if (length > buffer.length)
+            {
+                return false;
+            }
+            System.arraycopy(pkt.getBuffer(), offset, buffer, 0, length);
+            offset = 0;
+        }
+        this.packets[slot].setPacket(buffer, offset, length);
+
+        this.head = head + 1;
+        return true;
+    }
+
+    /**
+     * Returns the oldest published packet, or <tt>null</tt> if there is
+     * none. Called by the consumer.
+     *
+     * @return the oldest published packet, or <tt>null</tt> if the ring is
+     * empty
+     */
+    RawPacket getPacket()
+    {
+        long tail = this.tail;
+        if (tail == this.head)
+        {
+            return null;
+        }
+        return this.packets[(int) tail & this.mask];
+    }
+
+    /**
+     * Gives the slot of the packet last returned by <tt>getPacket()</tt>
+     * back to the producer. Called by the consumer.
+     */
+    void release()
+    {
+        this.tail = this.tail + 1;
+    }
+
+    /**
+     * Returns whether there is no published packet.
+     *
+     * @return whether there is no published packet
+     */
+    boolean isEmpty()
+    {
+        return this.tail == this.head;
+    }
+
+    /**
+     * Returns the number of packets released so far, which tells the
+     * consumer whether a packet was taken.
+     *
+     * @return the number of packets released so far
+     */
+    long getReleasedCount()
+    {
+        return this.tail;
+    }
+}
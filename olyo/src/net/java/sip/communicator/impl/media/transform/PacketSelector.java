@@ -0,0 +1,225 @@
+/*
+ * SIP Communicator, the OpenSource Java VoIP and Instant Messaging client.
+ *
+ * Distributable under LGPL license.
+ * See terms of license at gnu.org.
+ */
+package net.java.sip.communicator.impl.media.transform;
+
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+import net.java.sip.communicator.util.*;
+
+/**
+ * A small, fixed pool of threads receiving the RTP and RTCP packets of all
+ * the TransformConnectors created over it. Every thread drives a Selector
+ * over the non-blocking DatagramChannels of the sockets of the connectors,
+ * receives their packets in a direct buffer, reverse transforms them and
+ * hands them to the RTPManager, so the number of threads stays the same
+ * however many calls there are.
+ *
+ * Whoever creates a PacketSelector owns it and closes it once the
+ * connectors created over it are closed.
+ */
+public class PacketSelector
+{
+    private static final Logger logger
+        = Logger.getLogger(PacketSelector.class);
+
+    /**
+     * The threads of this selector.
+     */
+    private final SelectorThread[] threads;
+
+    /**
+     * The index of the thread the next channel is registered with.
+     */
+    private int nextThread = 0;
+
+    /**
+     * Creates a PacketSelector with the given number of threads.
+     *
+     * @param threadCount the number of threads receiving packets
+     * @throws IOException if a Selector could not be opened
+     */
+    public PacketSelector(int threadCount)
+        throws IOException
+    {
+        this.threads = new SelectorThread[Math.max(1, threadCount)];
+        for (int i = 0; i < this.threads.length; i++)
+        {
+            this.threads[i] = new SelectorThread(i);
+            this.threads[i].start();
+        }
+    }
+
+    /**
+     * Returns the number of threads receiving packets.
+     *
+     * @return the number of threads receiving packets
+     */
+    public int getThreadCount()
+    {
+        return this.threads.length;
+    }
+
+    /**
+     * Stops the threads of this selector and closes their Selectors. The
+     * channels of the connectors are closed by the connectors.
+     */
+    public void close()
+    {
+        for (int i = 0; i < this.threads.length; i++)
+        {
+            this.threads[i].closed = true;
+            this.threads[i].selector.wakeup();
+        }
+    }
+
+    /**
+     * Makes one of the threads receive the packets of a channel for a
+     * stream, until the channel is closed.
+     *
+     * @param channel the non-blocking channel of the socket of the stream
+     * @param stream the stream receiving the packets of the channel
+     */
+    synchronized void register(DatagramChannel channel,
+                               TransformInputStream stream)
+    {
+        SelectorThread thread = this.threads[this.nextThread];
+        this.nextThread = (this.nextThread + 1) % this.threads.length;
+
+        // a channel cannot be registered while the thread is selecting, so
+        // the thread registers it itself
+        thread.registrations.add(new Object[] { channel, stream });
+        thread.selector.wakeup();
+    }
+
+    /**
+     * Wakes the threads up, so that their Selectors forget the channels
+     * that were closed and the sockets of the channels are released.
+     */
+    void wakeup()
+    {
+        for (int i = 0; i < this.threads.length; i++)
+        {
+            this.threads[i].selector.wakeup();
+        }
+    }
+
+    /**
+     * A thread selecting the readable channels registered with it and
+     * receiving their packets.
+     */
+    private static class SelectorThread
+        extends Thread
+    {
+        private final Selector selector;
+
+        /**
+         * The channels and streams waiting to be registered with the
+         * selector, as arrays of a channel and a stream.
+         */
+        private final Queue registrations = new ConcurrentLinkedQueue();
+
+        /**
+         * The buffer packets are received in.
+         */
+        private final ByteBuffer buffer = ByteBuffer.allocateDirect(
+            TransformInputStream.MAX_PACKET_SIZE);
+
+        private volatile boolean closed = false;
+
+        SelectorThread(int index)
+            throws IOException
+        {
+            super("PacketSelector-" + index);
+            setDaemon(true);
+            this.selector = Selector.open();
+        }
+
+        public void run()
+        {
+            while (!this.closed)
+            {
+                try
+                {
+                    this.selector.select();
+                }
+                catch (IOException e)
+                {
+                    logger.error("Failed to select media channels", e);
+                    break;
+                }
+
+                registerChannels();
+
+                Iterator keys = this.selector.selectedKeys().iterator();
+                while (keys.hasNext())
+                {
+                    SelectionKey key = (SelectionKey) keys.next();
+                    keys.remove();
+
+                    if (!key.isValid() || !key.isReadable())
+                    {
+                        continue;
+                    }
+
+                    try
+                    {
+                        ((TransformInputStream) key.attachment())
+                            .receivePackets((DatagramChannel) key.channel(),
+                                            this.buffer);
+                    }
+                    catch (IOException e)
+                    {
+                        // the channel was closed meanwhile, or an ICMP error
+                        // was reported for it
+                        if (!key.channel().isOpen())
+                        {
+                            key.cancel();
+                        }
+                    }
+                    catch (RuntimeException e)
+                    {
+                        logger.error("Failed to handle a media packet", e);
+                    }
+                }
+            }
+
+            try
+            {
+                this.selector.close();
+            }
+            catch (IOException e)
+            {
+                logger.debug("Failed to close a selector", e);
+            }
+        }
+
+        /**
+         * Registers the channels waiting to be registered.
+         */
+        private void registerChannels()
+        {
+            Object[] registration;
+            while ((registration = (Object[]) this.registrations.poll())
+                        != null)
+            {
+                try
+                {
+                    ((DatagramChannel) registration[0]).register(
+                        this.selector, SelectionKey.OP_READ, registration[1]);
+                }
+                catch (ClosedChannelException e)
+                {
+                    // the connector was closed before it received anything
+                }
+            }
+        }
+    }
+}
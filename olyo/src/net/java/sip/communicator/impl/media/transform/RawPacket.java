@@ -52,6 +52,21 @@ public class RawPacket
         this.length = length;
     }
 
+    /**
+     * Make this RawPacket represent another packet, reusing this object
+     * instead of creating a new one for every packet.
+     * 
+     * @param buffer Byte array holding the content of the packet
+     * @param offset Start offset of packet content inside buffer
+     * @param length Length of the packet's data
+     */
+    public void setPacket(byte[] buffer, int offset, int length)
+    {
+        this.buffer = buffer;
+        this.offset = offset;
+        this.length = length;
+    }
+
     /**
      * Get buffer containing the content of this packet
      *
@@ -171,6 +186,31 @@ public class RawPacket
         
         return region;
     }
+
+    /**
+     * Read a byte region from specified offset with specified length into
+     * the given buffer
+     *
+     * @param offset start offset of the region to be read
+     * @param length length of the region to be read
+     * @param outBuff output buffer receiving the region, at its start
+     * @return false if the region is not within this packet or does not fit
+     * in outBuff, true if it was read
+     */
+    public boolean readRegionToBuff(int offset, int length, byte[] outBuff)
+    {
+        int startOffset = this.offset + offset;
+        if (offset < 0 || length <= 0
+            || offset + length > this.length
+            || outBuff.length < length)
+        {
+            return false;
+        }
+
+        System.arraycopy(this.buffer, startOffset, outBuff, 0, length);
+
+        return true;
+    }
     
     /**
      * Append a byte array to then end of the packet. This will change the data
@@ -180,17 +220,41 @@ public class RawPacket
      */
     public void append(byte[] data)
     {
-        if (data == null || data.length == 0)
+        if (data == null)
         {
             return;
         }
-        
-        byte[] newBuffer = new byte[this.length + data.length];
-        System.arraycopy(this.buffer, this.offset, newBuffer, 0, this.length);
-        System.arraycopy(data, 0, newBuffer, this.length, data.length);
-        this.offset = 0;
-        this.length = this.length + data.length;
-        this.buffer = newBuffer;
+
+        append(data, data.length);
+    }
+
+    /**
+     * Append the first <tt>len</tt> bytes of a byte array to the end of the
+     * packet. The bytes are written in place when the buffer of this packet
+     * has room for them after the packet, otherwise the packet is copied to
+     * a new, larger buffer.
+     *
+     * @param data byte array holding the bytes to append
+     * @param len the number of bytes to append
+     */
+    public void append(byte[] data, int len)
+    {
+        if (data == null || len <= 0)
+        {
+            return;
+        }
+
+        if (this.offset + this.length + len > this.buffer.length)
+        {
+            byte[] newBuffer = new byte[this.length + len];
+            System.arraycopy(this.buffer, this.offset,
+                             newBuffer, 0, this.length);
+            this.offset = 0;
+            this.buffer = newBuffer;
+        }
+
+        System.arraycopy(data, 0, this.buffer, this.offset + this.length, len);
+        this.length = this.length + len;
     }
     
     /**
@@ -8,6 +8,7 @@ package net.java.sip.communicator.impl.media.transform;
 
 import java.io.*;
 import java.net.*;
+import java.nio.channels.*;
 
 import javax.media.protocol.*;
 import javax.media.rtp.*;
@@ -28,6 +29,10 @@ import javax.media.rtp.*;
  * With TransformConnector, people can implement RTP/RTCP packets transformation
  * and/or manipulation by implementing the TransformEngine interface. 
  * 
+ * A TransformConnector created over a PacketSelector uses non-blocking
+ * DatagramChannels, whose packets are received by the threads of the
+ * selector, and starts no thread of its own.
+ * 
  * @see TransformEngine
  * @see RTPConnector
  * @see RTPManager
@@ -78,6 +83,13 @@ public class TransformConnector
      */
     private DatagramSocket ctrlSocket;
 
+    /**
+     * The PacketSelector receiving the packets of the sockets, or
+     * <tt>null</tt> if the input streams receive them with their own
+     * threads.
+     */
+    private PacketSelector selector;
+
     /**
      * Construct a TransformConnector based on the given local RTP session
      * address and a customized TransformEngine.
@@ -90,24 +102,85 @@ public class TransformConnector
      */
     public TransformConnector(SessionAddress localAddr, TransformEngine engine)
         throws InvalidSessionAddressException
+    {
+        this(localAddr, engine, null);
+    }
+
+    /**
+     * Construct a TransformConnector based on the given local RTP session
+     * address and a customized TransformEngine, whose packets are received
+     * by the threads of a PacketSelector.
+     * 
+     * @param localAddr The local listen address of this RTP session
+     * @param engine TransformEngine object which contains your transformation
+     * logic
+     * @param selector the PacketSelector receiving the packets, or
+     * <tt>null</tt> to receive them with threads of this connector
+     *        
+     * @throws InvalidSessionAddressException if session address is invalid,
+     */
+    public TransformConnector(SessionAddress localAddr,
+                              TransformEngine engine,
+                              PacketSelector selector)
+        throws InvalidSessionAddressException
     {
         this.localAddr = localAddr;
         this.engine = engine;
+        this.selector = selector;
 
         try
         {
-            this.dataSocket = new DatagramSocket(this.localAddr.getDataPort(),
-                                            this.localAddr.getDataAddress());
-            this.ctrlSocket = new DatagramSocket(
-                                            this.localAddr.getControlPort(),
-                                            this.localAddr.getControlAddress());
+            this.dataSocket = createSocket(this.localAddr.getDataAddress(),
+                                           this.localAddr.getDataPort());
+            try
+            {
+                this.ctrlSocket = createSocket(
+                                    this.localAddr.getControlAddress(),
+                                    this.localAddr.getControlPort());
+            }
+            catch (IOException e)
+            {
+                this.dataSocket.close();
+                throw e;
+            }
         }
-        catch (SocketException e)
+        catch (IOException e)
         {
             throw new InvalidSessionAddressException();
         }
     }
 
+    /**
+     * Creates a socket bound to the given address and port, over a
+     * non-blocking channel if the packets are received by a PacketSelector.
+     *
+     * @param addr the address to bind the socket to
+     * @param port the port to bind the socket to
+     * @return the bound socket
+     * @throws IOException if the socket could not be bound
+     */
+    private DatagramSocket createSocket(InetAddress addr, int port)
+        throws IOException
+    {
+        if (this.selector == null)
+        {
+            return new DatagramSocket(port, addr);
+        }
+
+        DatagramChannel channel = DatagramChannel.open();
+        try
+        {
+            channel.configureBlocking(false);
+            channel.socket().bind(new InetSocketAddress(addr, port));
+        }
+        catch (IOException e)
+        {
+            channel.close();
+            throw e;
+        }
+        return channel.socket();
+    }
+
     /**
      * Closes this RTPConnector object 
      *
@@ -135,6 +208,11 @@ public class TransformConnector
 
         this.ctrlSocket.close();
         this.ctrlSocket = null;
+
+        if (this.selector != null)
+        {
+            this.selector.wakeup();
+        }
     }
 
     /**
@@ -220,8 +298,7 @@ public class TransformConnector
     {
         if (this.ctrlInputStream == null)
         {
-            this.ctrlInputStream =
-                new TransformInputStream(this.ctrlSocket,
+            this.ctrlInputStream = createInputStream(this.ctrlSocket,
                                         this.engine.getRTCPTransformer());
         }
 
@@ -252,14 +329,32 @@ public class TransformConnector
     {
         if (this.dataInputStream == null)
         {
-            this.dataInputStream =
-                new TransformInputStream(this.dataSocket,
+            this.dataInputStream = createInputStream(this.dataSocket,
                                          this.engine.getRTPTransformer());
         }
 
         return this.dataInputStream;
     }
 
+    /**
+     * Creates the input stream of a socket, receiving its packets with the
+     * PacketSelector if there is one.
+     *
+     * @param socket the socket of the stream
+     * @param transformer the PacketTransformer of the stream
+     * @return the input stream of the socket
+     */
+    private TransformInputStream createInputStream(
+                                            DatagramSocket socket,
+                                            PacketTransformer transformer)
+    {
+        if (this.selector == null)
+        {
+            return new TransformInputStream(socket, transformer);
+        }
+        return new TransformInputStream(socket, transformer, this.selector);
+    }
+
     /* (non-Javadoc)
      * @see javax.media.rtp.RTPConnector#getDataOutputStream()
      */
@@ -8,9 +8,14 @@ package net.java.sip.communicator.impl.media.transform;
 
 import java.io.*;
 import java.net.*;
+import java.nio.*;
+import java.nio.channels.*;
+import java.util.concurrent.locks.*;
 
 import javax.media.protocol.*;
 
+import net.java.sip.communicator.util.*;
+
 /**
  * TransformInputStream implements PushSourceStream. It is used by RTPManager
  * to receive RTP/RTCP packet datas.
@@ -20,11 +25,36 @@ import javax.media.protocol.*;
  * received, it is first reverse transformed through PacketTransformer defined
  * by user. And then returned as normal RTP/RTCP packets to RTPManager.
  * 
+ * A receiver thread receives the packets straight into the preallocated
+ * buffers of a PacketRing and reverse transforms them there, while the worker
+ * thread hands them to the RTPManager, so a slow RTPManager does not keep the
+ * socket from being read. The worker thread is only woken up when it waited
+ * for packets. Packets the transformer rejects are counted as dropped, and
+ * packets arriving while the ring is full are counted as overflows.
+ * 
+ * A TransformInputStream created over a PacketSelector starts no thread.
+ * The channel of its socket is read by a thread of the selector, which
+ * reverse transforms the packets and hands them to the RTPManager itself.
+ * 
  * @author Bing SU (nova.su@gmail.com)
  */
 public class TransformInputStream
     implements PushSourceStream, Runnable
 {
+    private static final Logger logger
+        = Logger.getLogger(TransformInputStream.class);
+
+    /**
+     * The size of the buffer of every received packet, the transfer size the
+     * RTPManager is asked for.
+     */
+    static final int MAX_PACKET_SIZE = 2 * 1024;
+
+    /**
+     * The number of received packets the ring holds.
+     */
+    private static final int RING_CAPACITY = 32;
+
     /**
      * UDP socket used to receive data.
      */
@@ -39,18 +69,13 @@ public class TransformInputStream
     /**
      * SourceTransferHandler object which is used to read packets.
      */
-    private SourceTransferHandler transferHandler;
+    private volatile SourceTransferHandler transferHandler;
 
-    /**
-     * Whether we received some data.
-     */
-    private boolean gotData;
-    
     /**
      * Whether this stream is closed. Used to control the termination of worker
      * thread.
      */
-    private boolean closed;
+    private volatile boolean closed;
     
     /**
      * Worker thread we use to call transfer handle to received the data
@@ -58,9 +83,31 @@ public class TransformInputStream
     private Thread recvThread;
 
     /**
-     * Packet receive buffer
+     * Whether the worker thread is waiting for packets and has to be
+     * unparked when one is published.
      */
-    private byte[] buffer = new byte[65535];
+    private volatile boolean waiting;
+
+    /**
+     * The ring the received packets are handed over in.
+     */
+    private final PacketRing ring
+        = new PacketRing(RING_CAPACITY, MAX_PACKET_SIZE);
+
+    /**
+     * The number of packets received from the socket.
+     */
+    private volatile long receivedPackets = 0;
+
+    /**
+     * The number of packets rejected by the transformer.
+     */
+    private volatile long droppedPackets = 0;
+
+    /**
+     * The number of packets dropped because the ring was full.
+     */
+    private volatile long overflowPackets = 0;
 
     /**
      * Construct a TransformInputStream based on the receiving socket and 
@@ -77,33 +124,120 @@ public class TransformInputStream
         this.transformer = transformer;
 
         this.closed = false;
-        this.gotData = false;
 
-        this.recvThread = new Thread(this);
+        this.recvThread = new Thread(this,
+            "TransformInputStream-worker-" + socket.getLocalPort());
+        this.recvThread.setDaemon(true);
         this.recvThread.start();
+
+        Thread receiver = new Thread(
+            "TransformInputStream-receiver-" + socket.getLocalPort())
+        {
+            public void run()
+            {
+                receivePackets();
+            }
+        };
+        receiver.setDaemon(true);
+        receiver.start();
+    }
+
+    /**
+     * Construct a TransformInputStream based on the receiving socket and
+     * PacketTransformer, whose packets are received by a thread of a
+     * PacketSelector instead of threads of its own.
+     *
+     * @param socket data receiving socket, whose channel is non-blocking
+     * @param transformer packet transformer used
+     * @param selector the PacketSelector receiving the packets
+     */
+    TransformInputStream(DatagramSocket socket,
+                         PacketTransformer transformer,
+                         PacketSelector selector)
+    {
+        this.socket = socket;
+
+        this.transformer = transformer;
+
+        this.closed = false;
+
+        selector.register(socket.getChannel(), this);
     }
 
     /**
-     * Close this stream, stops the worker thread.
+     * Close this stream, stops the worker thread. The receiver thread stops
+     * when the socket is closed.
      */
-    public synchronized void close()
+    public void close()
     {
         this.closed = true;
 
-        notifyAll();
+        LockSupport.unpark(this.recvThread);
+
+        if (this.droppedPackets > 0 || this.overflowPackets > 0)
+        {
+            logger.info("Closed the input stream of "
+                + this.socket.getLocalSocketAddress()
+                + " after receiving " + this.receivedPackets
+                + " packets, dropping " + this.droppedPackets
+                + " rejected ones and " + this.overflowPackets
+                + " ones not read in time");
+        }
     }
 
-    /* (non-Javadoc)
-     * @see javax.media.protocol.PushSourceStream#read(byte[], int, int)
+    /**
+     * Returns the number of packets received from the socket of this stream.
+     *
+     * @return the number of packets received from the socket of this stream
      */
-    public int read(byte[] buffer, int offset, int length)
-        throws IOException
+    public long getReceivedPackets()
     {
-        
-        // loop until we get a valid packet
-        while (true)
+        return this.receivedPackets;
+    }
+
+    /**
+     * Returns the number of received packets the transformer rejected.
+     *
+     * @return the number of received packets the transformer rejected
+     */
+    public long getDroppedPackets()
+    {
+        return this.droppedPackets;
+    }
+
+    /**
+     * Returns the number of received packets dropped because the ring was
+     * full, that is because the RTPManager did not read them in time.
+     *
+     * @return the number of received packets dropped because the ring was
+     * full
+     */
+    public long getOverflowPackets()
+    {
+        return this.overflowPackets;
+    }
+
+    /**
+     * Receives the packets of the socket in the buffers of the ring and
+     * reverse transforms them, until the socket is closed. Run by the
+     * receiver thread.
+     */
+    private void receivePackets()
+    {
+        DatagramPacket p = new DatagramPacket(new byte[0], 0);
+        byte[] overflowBuffer = new byte[MAX_PACKET_SIZE];
+
+        while (!this.closed)
         {
-            DatagramPacket p = new DatagramPacket(this.buffer, 0, 65535);
+            RawPacket pkt = this.ring.getFreePacket();
+            if (pkt == null)
+            {
+                p.setData(overflowBuffer, 0, overflowBuffer.length);
+            }
+            else
+            {
+                p.setData(pkt.getBuffer(), 0, pkt.getBuffer().length);
+            }
 
             try
             {
@@ -111,47 +245,152 @@ public class TransformInputStream
             }
             catch (IOException e)
             {
-                return -1;
+                if (this.closed || this.socket.isClosed())
+                {
+                    break;
+                }
+
+                logger.warn("Failed to receive a packet on "
+                            + this.socket.getLocalSocketAddress(), e);
+                continue;
             }
+            this.receivedPackets++;
 
-            RawPacket pkt =
-                this.transformer.reverseTransform(new RawPacket(this.buffer,
-                                                                0,
-                                                                p.getLength()));
-            
-            // If the reverse transformed result is not valid,
-            // then we will not deliver this packet.
             if (pkt == null)
             {
+                this.overflowPackets++;
                 continue;
             }
-            else
+
+            if (publishPacket(pkt, p.getLength()) && this.waiting)
             {
-                if (length < pkt.getLength())
-                {
-                    throw new IOException("Input buffer not big enough for "
-                                          + String.valueOf(pkt.getLength()));
-                }
-            
-                System.arraycopy(pkt.getBuffer(), pkt.getOffset(), buffer, offset,
-                                 pkt.getLength());
+                LockSupport.unpark(this.recvThread);
+            }
+        }
+    }
 
-                synchronized (this)
-                {
-                    this.gotData = true;
-                    notifyAll();
-                }
+    /**
+     * Receives the packets waiting in the channel of the socket in the
+     * buffers of the ring, reverse transforms them and hands them to the
+     * transfer handler. Run by a thread of the PacketSelector when the
+     * channel is readable.
+     *
+     * @param channel the channel of the socket of this stream
+     * @param buffer the direct buffer the selector thread receives in
+     * @throws IOException if receiving from the channel fails
+     */
+    void receivePackets(DatagramChannel channel, ByteBuffer buffer)
+        throws IOException
+    {
+        // do not keep the thread from the other channels for too long
+        for (int i = 0; i < this.ring.getCapacity() && !this.closed; i++)
+        {
+            buffer.clear();
+            if (channel.receive(buffer) == null)
+            {
+                break;
+            }
+            buffer.flip();
+            this.receivedPackets++;
 
-                return pkt.getLength();
+            RawPacket pkt = this.ring.getFreePacket();
+            if (pkt == null)
+            {
+                this.overflowPackets++;
+                continue;
+            }
+
+            int length = Math.min(buffer.remaining(), pkt.getBuffer().length);
+            buffer.get(pkt.getBuffer(), 0, length);
+
+            if (publishPacket(pkt, length))
+            {
+                transferPackets();
             }
         }
     }
 
+    /**
+     * Reverse transforms a packet received in the free packet of the ring
+     * and publishes it, or counts it as dropped if the transformer rejects
+     * it or returns a packet too large for the ring.
+     *
+     * @param pkt the free packet of the ring
+     * @param length the length of the received packet
+     * @return whether the packet was published
+     */
+    private boolean publishPacket(RawPacket pkt, int length)
+    {
+        pkt.setPacket(pkt.getBuffer(), 0, length);
+        pkt = this.transformer.reverseTransform(pkt);
+
+        // If the reverse transformed result is not valid,
+        // then we will not deliver this packet.
+        if (pkt == null || !this.ring.publish(pkt))
+        {
+            this.droppedPackets++;
+            return false;
+        }
+
+        return true;
+    }
+
+    /**
+     * Hands the published packets to the transfer handler, in the thread of
+     * the PacketSelector, until the ring is empty or the handler does not
+     * read.
+     */
+    private void transferPackets()
+    {
+        SourceTransferHandler handler = this.transferHandler;
+
+        while (handler != null && !this.ring.isEmpty() && !this.closed)
+        {
+            long released = this.ring.getReleasedCount();
+            handler.transferData(this);
+
+            if (this.ring.getReleasedCount() == released)
+            {
+                break;
+            }
+        }
+    }
+
+    /**
+     * Copies the oldest received packet into <tt>buffer</tt>. Returns 0
+     * without waiting if no packet was received.
+     *
+     * @see javax.media.protocol.PushSourceStream#read(byte[], int, int)
+     */
+    public int read(byte[] buffer, int offset, int length)
+        throws IOException
+    {
+        RawPacket pkt = this.ring.getPacket();
+        if (pkt == null)
+        {
+            return 0;
+        }
+
+        int pktLength = pkt.getLength();
+        if (length < pktLength)
+        {
+            this.ring.release();
+            throw new IOException("Input buffer not big enough for "
+                                  + String.valueOf(pktLength));
+        }
+
+        System.arraycopy(pkt.getBuffer(), pkt.getOffset(), buffer, offset,
+                         pktLength);
+        this.ring.release();
+
+        return pktLength;
+    }
+
     /* (non-Javadoc)
      * @see javax.media.protocol.PushSourceStream#setTransferHandler
      * (javax.media.protocol.SourceTransferHandler)
      */
-    public synchronized void setTransferHandler(SourceTransferHandler handler)
+    public void setTransferHandler(SourceTransferHandler handler)
     {
         if (this.closed) return;
 
@@ -159,8 +398,7 @@ public class TransformInputStream
 
         if (this.transferHandler != null)
         {
-            this.gotData = true;
-            notifyAll();
+            LockSupport.unpark(this.recvThread);
         }
     }
 
@@ -169,7 +407,7 @@ public class TransformInputStream
      */
     public int getMinimumTransferSize()
     {
-        return 2 * 1024; // twice the MTU size, just to be safe.
+        return MAX_PACKET_SIZE; // twice the MTU size, just to be safe.
     }
 
     // ----- Not applicable methods -----
@@ -214,32 +452,40 @@ public class TransformInputStream
         return new Object[0];
     }
 
-    /* (non-Javadoc)
+    /**
+     * Hands the received packets to the transfer handler, one
+     * <tt>transferData</tt> call per packet, and waits for packets when
+     * there are none.
+     *
      * @see java.lang.Runnable#run()
      */
     public void run()
     {
         while (!this.closed)
         {
-            synchronized (TransformInputStream.this)
+            SourceTransferHandler handler = this.transferHandler;
+
+            if (handler == null || this.ring.isEmpty())
             {
-                while (!this.gotData && !this.closed)
+                // check again after telling the receiver we wait, so that a
+                // packet published meanwhile unparks us
+                this.waiting = true;
+                if ((this.transferHandler == null || this.ring.isEmpty())
+                    && !this.closed)
                 {
-                    try
-                    {
-                        TransformInputStream.this.wait();
-                    }
-                    catch (InterruptedException e)
-                    {
-                        // nothing should be done here ?
-                    }
+                    LockSupport.park();
                 }
-                this.gotData = false;
+                this.waiting = false;
+                continue;
             }
 
-            if (this.transferHandler != null && !this.closed)
+            long released = this.ring.getReleasedCount();
+            handler.transferData(this);
+
+            if (this.ring.getReleasedCount() == released)
             {
-                this.transferHandler.transferData(TransformInputStream.this);
+                // the handler did not read the packet, do not spin on it
+                LockSupport.parkNanos(1000000);
             }
         }
     }
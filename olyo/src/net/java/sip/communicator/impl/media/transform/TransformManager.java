@@ -39,6 +39,34 @@ public class TransformManager
                                                          SRTPPolicy srtpPolicy,
                                                          SRTPPolicy srtcpPolicy)
         throws InvalidSessionAddressException
+    {
+        return createSRTPConnector(addr, masterKey, masterSalt, srtpPolicy,
+                                   srtcpPolicy, null);
+    }
+
+    /**
+     * Create a SRTP TransformConnector, which will provide SRTP encryption /
+     * decryption functionality, using algorithms defined in RFC3711, and
+     * whose packets are received by the threads of a PacketSelector.
+     * 
+     * @param addr local RTP session listen address
+     * @param masterKey master key of this SRTP session
+     * @param masterSalt master salt of this SRTP session
+     * @param srtpPolicy SRTP policy for this SRTP session
+     * @param srtcpPolicy SRTCP policy for this SRTP session
+     * @param selector the PacketSelector shared by the connectors, or
+     * <tt>null</tt> for a connector receiving with its own threads
+     * @return the TransformConnector used for SRTP encyption/decryption
+     * @throws InvalidSessionAddressException if the local RTP session address
+     * is invalid
+     */
+    public static TransformConnector createSRTPConnector(SessionAddress addr,
+                                                         byte[] masterKey,
+                                                         byte[] masterSalt,
+                                                         SRTPPolicy srtpPolicy,
+                                                         SRTPPolicy srtcpPolicy,
+                                                         PacketSelector selector)
+        throws InvalidSessionAddressException
     {
         SRTPTransformEngine engine = new SRTPTransformEngine(masterKey,
                                                              masterSalt,
@@ -46,7 +74,7 @@ public class TransformManager
                                                              srtcpPolicy);
 
         TransformConnector connector = null;
-        connector = new TransformConnector(addr, engine);
+        connector = new TransformConnector(addr, engine, selector);
 
         return connector;
     }
@@ -64,9 +92,28 @@ public class TransformManager
      */
     public static TransformConnector createDummyConnector(SessionAddress addr)
         throws InvalidSessionAddressException
+    {
+        return createDummyConnector(addr, null);
+    }
+
+    /**
+     * Create a dummy TransformConnector whose packets are received by the
+     * threads of a PacketSelector.
+     * 
+     * @param addr local RTP session address
+     * @param selector the PacketSelector shared by the connectors, or
+     * <tt>null</tt> for a connector receiving with its own threads
+     * @return A dummy TransformationConnector object
+     * @throws InvalidSessionAddressException if the local RTP session address
+     * is invalid
+     */
+    public static TransformConnector createDummyConnector(SessionAddress addr,
+                                                      PacketSelector selector)
+        throws InvalidSessionAddressException
     {
         DummyTransformEngine engine = new DummyTransformEngine();
-        TransformConnector connector = new TransformConnector(addr, engine);
+        TransformConnector connector =
+            new TransformConnector(addr, engine, selector);
         return connector;
     }
 }
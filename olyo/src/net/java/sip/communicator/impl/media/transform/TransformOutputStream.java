@@ -6,11 +6,16 @@
  */
 package net.java.sip.communicator.impl.media.transform;
 
+import java.io.*;
 import java.net.*;
+import java.nio.*;
+import java.nio.channels.*;
 import java.util.*;
 
 import javax.media.rtp.*;
 
+import net.java.sip.communicator.util.*;
+
 /**
  * TransformOutputStream implements OutputDataStream. It is use by RTPManager
  * to send RTP/RTCP packet data out.
@@ -20,11 +25,18 @@ import javax.media.rtp.*;
  * the packet using user define PacketTransformer and then send it out through
  * network to all the stream targets. 
  * 
+ * When the socket has a channel, as the sockets of connectors over a
+ * PacketSelector do, the packets are sent through the channel from a direct
+ * buffer.
+ * 
  * @author Bing SU (nova.su@gmail.com)
  */
 public class TransformOutputStream
     implements OutputDataStream
 {
+    private static final Logger logger
+        = Logger.getLogger(TransformOutputStream.class);
+
     /**
      * UDP socket used to send packet data
      */
@@ -45,6 +57,44 @@ public class TransformOutputStream
      */
     private Vector remotePorts;
 
+    /**
+     * Stream targets' socket addresses, corresponding to their ip addresses.
+     */
+    private Vector remoteSocketAddrs;
+
+    /**
+     * The channel of the socket, or <tt>null</tt> if it has none
+     */
+    private final DatagramChannel channel;
+
+    /**
+     * Direct buffer packets are sent from through <tt>channel</tt>
+     */
+    private ByteBuffer channelBuffer;
+
+    /**
+     * Room left after the packet in <tt>sendBuffer</tt>, so that trailers
+     * such as SRTP authentication tags are written in place.
+     */
+    private static final int TRAILER_ROOM = 32;
+
+    /**
+     * Buffer the packets are copied to and transformed in, reused for every
+     * packet.
+     */
+    private byte[] sendBuffer = new byte[1500 + TRAILER_ROOM];
+
+    /**
+     * RawPacket reused for every packet.
+     */
+    private final RawPacket sendPacket = new RawPacket(null, 0, 0);
+
+    /**
+     * DatagramPacket reused for every packet and target.
+     */
+    private final DatagramPacket sendDatagram = new DatagramPacket(
+        this.sendBuffer, 0);
+
     /**
      * Construct a TransformOutputStream based on the given UDP socket and
      * PacketTransformer
@@ -59,6 +109,14 @@ public class TransformOutputStream
         this.transformer = transformer;
         this.remoteAddrs = new Vector();
         this.remotePorts = new Vector();
+        this.remoteSocketAddrs = new Vector();
+
+        this.channel = socket.getChannel();
+        if (this.channel != null)
+        {
+            this.channelBuffer
+                = ByteBuffer.allocateDirect(this.sendBuffer.length);
+        }
     }
 
     /**
@@ -67,10 +125,12 @@ public class TransformOutputStream
      * @param remoteAddr target ip address
      * @param remotePort target port
      */
-    public void addTarget(InetAddress remoteAddr, int remotePort)
+    public synchronized void addTarget(InetAddress remoteAddr, int remotePort)
     {
         this.remoteAddrs.add(remoteAddr);
         this.remotePorts.add(new Integer(remotePort));
+        this.remoteSocketAddrs.add(
+            new InetSocketAddress(remoteAddr, remotePort));
     }
 
     /**
@@ -81,34 +141,58 @@ public class TransformOutputStream
      * @return true if the target is in stream target list and can be removed
      *         false if not
      */
-    public boolean removeTarget(InetAddress remoteAddr, int remotePort)
+    public synchronized boolean removeTarget(InetAddress remoteAddr,
+                                             int remotePort)
     {
-        boolean ok = true;
-        ok = ok && this.remoteAddrs.remove(remoteAddr);
-        ok = ok && this.remoteAddrs.remove(new Integer(remotePort));
+        int index = this.remoteSocketAddrs.indexOf(
+            new InetSocketAddress(remoteAddr, remotePort));
+        if (index < 0)
+        {
+            return false;
+        }
 
-        return ok;
+        this.remoteAddrs.removeElementAt(index);
+        this.remotePorts.removeElementAt(index);
+        this.remoteSocketAddrs.removeElementAt(index);
+
+        return true;
     }
 
     /**
      * Remove all stream targets from this session.
      */
-    public void removeTargets()
+    public synchronized void removeTargets()
     {
         this.remoteAddrs.removeAllElements();
         this.remotePorts.removeAllElements();
+        this.remoteSocketAddrs.removeAllElements();
     }
 
     /* (non-Javadoc)
      * @see javax.media.rtp.OutputDataStream#write(byte[], int, int)
      */
-    public int write(byte[] buffer, int offset, int length)
+    public synchronized int write(byte[] buffer, int offset, int length)
     {
-        // Transformation could be non-inplace, we shall not modify the the old
-        // buffer
-        RawPacket pkt = this.transformer.transform(new RawPacket(buffer,
-                                                                offset,
-                                                                length));
+        // Transformation is done in place, we shall not modify the old
+        // buffer, so the packet is copied to our own buffer, which has room
+        // for the trailers the transformer appends
+        if (this.sendBuffer.length < length + TRAILER_ROOM)
+        {
+            this.sendBuffer = new byte[length + TRAILER_ROOM];
+        }
+        System.arraycopy(buffer, offset, this.sendBuffer, 0, length);
+        this.sendPacket.setPacket(this.sendBuffer, 0, length);
+
+        RawPacket pkt = this.transformer.transform(this.sendPacket);
+
+        if (this.channel != null)
+        {
+            return sendThroughChannel(pkt) ? length : -1;
+        }
+
+        this.sendDatagram.setData(pkt.getBuffer(),
+                                  pkt.getOffset(),
+                                  pkt.getLength());
 
         for (int i = 0; i < this.remoteAddrs.size(); ++i)
         {
@@ -119,15 +203,14 @@ public class TransformOutputStream
 
             try
             {
-                this.socket.send(new DatagramPacket(pkt.getBuffer(),
-                                                    pkt.getOffset(),
-                                                    pkt.getLength(),
-                                                    remoteAddr,
-                                                    remotePort));
+                this.sendDatagram.setAddress(remoteAddr);
+                this.sendDatagram.setPort(remotePort);
+                this.socket.send(this.sendDatagram);
             }
             catch (Exception e)
             {
-                // TODO error handling
+                logger.warn("Failed to send a packet to " + remoteAddr + ":"
+                            + remotePort, e);
                 return -1;
             }
         }
@@ -135,4 +218,42 @@ public class TransformOutputStream
         // yes, we should return the pre-transformed packet length
         return length;
     }
+
+    /**
+     * Sends a transformed packet to all the stream targets through the
+     * channel of the socket. A packet the channel has no room for is dropped,
+     * as the network would drop it.
+     *
+     * @param pkt the transformed packet
+     * @return false if sending failed, true otherwise
+     */
+    private boolean sendThroughChannel(RawPacket pkt)
+    {
+        if (this.channelBuffer.capacity() < pkt.getLength())
+        {
+            this.channelBuffer = ByteBuffer.allocateDirect(pkt.getLength());
+        }
+        this.channelBuffer.clear();
+        this.channelBuffer.put(pkt.getBuffer(), pkt.getOffset(),
+                               pkt.getLength());
+        this.channelBuffer.flip();
+
+        for (int i = 0; i < this.remoteSocketAddrs.size(); ++i)
+        {
+            SocketAddress remoteAddr
+                = (SocketAddress) this.remoteSocketAddrs.elementAt(i);
+            try
+            {
+                this.channelBuffer.rewind();
+                this.channel.send(this.channelBuffer, remoteAddr);
+            }
+            catch (IOException e)
+            {
+                logger.warn("Failed to send a packet to " + remoteAddr, e);
+                return false;
+            }
+        }
+
+        return true;
+    }
 }
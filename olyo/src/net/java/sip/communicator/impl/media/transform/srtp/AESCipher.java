@@ -33,6 +33,9 @@ import org.bouncycastle.crypto.params.*;
  * It encrypts and decrypts data in 128bit blocks. This implementation is based
  * on Bouncy Castle (http://www.bouncycastle.org). 
  * 
+ * The key schedule is computed once, and again only when switching between
+ * encryption and decryption, not for every block.
+ * 
  * @author Bing SU (nova.su@gmail.com)
  */
 public class AESCipher
@@ -52,6 +55,12 @@ public class AESCipher
      */
     private AESFastEngine aesCipher;
 
+    /**
+     * Whether <tt>aesCipher</tt> has been initialized for encryption, as
+     * opposed to decryption.
+     */
+    private boolean forEncryption;
+
     /**
      * Construct an AESCipher using specified key, which is 128bit long
      *
@@ -67,6 +76,9 @@ public class AESCipher
 
         this.aesCipher = new AESFastEngine();
         this.keyParam  = new KeyParameter(key);
+
+        this.aesCipher.init(true, this.keyParam);
+        this.forEncryption = true;
     }
 
     /**
@@ -79,7 +91,11 @@ public class AESCipher
      */
     public void encryptBlock(byte[] in, int inOff, byte[] out, int outOff)
     {
-        this.aesCipher.init(true, this.keyParam);
+        if (!this.forEncryption)
+        {
+            this.aesCipher.init(true, this.keyParam);
+            this.forEncryption = true;
+        }
         this.aesCipher.processBlock(in, inOff, out, outOff);
     }
 
@@ -93,7 +109,11 @@ public class AESCipher
      */
     public void decryptBlock(byte[] in, int inOff, byte[] out, int outOff)
     {
-        this.aesCipher.init(false, this.keyParam);
+        if (this.forEncryption)
+        {
+            this.aesCipher.init(false, this.keyParam);
+            this.forEncryption = false;
+        }
         this.aesCipher.processBlock(in, inOff, out, outOff);
     }
 }
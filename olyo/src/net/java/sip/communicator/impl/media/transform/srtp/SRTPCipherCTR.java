@@ -49,6 +49,9 @@ package net.java.sip.communicator.impl.media.transform.srtp;
  *
  * We use AESCipher to handle basic AES encryption / decryption.
  * 
+ * A SRTPCipherCTR keeps its counter block and key stream block between
+ * packets, so it must not be used by several threads at the same time.
+ * 
  * @author Bing SU (nova.su@gmail.com)
  */
 public class SRTPCipherCTR implements SRTPCipher
@@ -57,6 +60,16 @@ public class SRTPCipherCTR implements SRTPCipher
      * The AESCihper object we used to do basic AES encryption / decryption
      */
     private AESCipher aesCipher;
+
+    /**
+     * The counter block being encrypted
+     */
+    private final byte[] counterBlock = new byte[AESCipher.BLOCK_SIZE];
+
+    /**
+     * The key stream block computed from <tt>counterBlock</tt>
+     */
+    private final byte[] streamBlock = new byte[AESCipher.BLOCK_SIZE];
  
     /**
      * Construct a SRTPCipherCTR object using given encryption key
@@ -80,13 +93,25 @@ public class SRTPCipherCTR implements SRTPCipher
             return;
         }
 
-        byte[] cipherStream = new byte[len];
+        final int BLKLEN = AESCipher.BLOCK_SIZE;
 
-        getCipherStream(cipherStream, len, iv);
+        System.arraycopy(iv, 0, this.counterBlock, 0, 14);
 
-        for (int i = 0; i < len; i++)
+        // XOR the data with the key stream one block at a time
+        for (int ctr = 0; ctr * BLKLEN < len; ctr++)
         {
-            data[i + off] ^= cipherStream[i];
+            this.counterBlock[14] = (byte) ((ctr & 0xFF00) >> 8);
+            this.counterBlock[15] = (byte) ((ctr & 0x00FF));
+
+            this.aesCipher.encryptBlock(this.counterBlock, 0,
+                                        this.streamBlock, 0);
+
+            int blockOff = off + ctr * BLKLEN;
+            int blockLen = Math.min(BLKLEN, len - ctr * BLKLEN);
+            for (int i = 0; i < blockLen; i++)
+            {
+                data[blockOff + i] ^= this.streamBlock[i];
+            }
         }
     }
 
@@ -102,8 +127,8 @@ public class SRTPCipherCTR implements SRTPCipher
     {
         final int BLKLEN = AESCipher.BLOCK_SIZE;
         
-        byte[] in  = new byte[BLKLEN];
-        byte[] tmp = new byte[BLKLEN];
+        byte[] in  = this.counterBlock;
+        byte[] tmp = this.streamBlock;
 
         System.arraycopy(iv, 0, in, 0, 14);
 
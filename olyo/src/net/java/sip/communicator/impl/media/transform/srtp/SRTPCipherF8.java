@@ -51,6 +51,10 @@ import java.util.*;
  *
  * We use AESCipher to handle basic AES encryption / decryption.
  * 
+ * The cipher keyed with the masked key and the F8 context are created once
+ * and reused for every packet, so a SRTPCipherF8 must not be used by several
+ * threads at the same time.
+ * 
  * @author Bing SU (nova.su@gmail.com)
  */
 public class SRTPCipherF8 implements SRTPCipher
@@ -76,6 +80,17 @@ public class SRTPCipherF8 implements SRTPCipher
      */
     private final static int BLKLEN = AESCipher.BLOCK_SIZE;
 
+    /**
+     * The AESCipher keyed with the masked key, used to compute the derived
+     * IV (IV')
+     */
+    private AESCipher maskCipher;
+
+    /**
+     * The F8 context reused for every packet
+     */
+    private F8Context f8ctx;
+
     /**
      * F8 mode encryption context, see RFC3711 section 4.1.2 for detailed
      * description.
@@ -103,20 +118,6 @@ public class SRTPCipherF8 implements SRTPCipher
 
         this.salt = new byte[salt.length];
         System.arraycopy(salt, 0, this.salt, 0, salt.length);
-    }
-
-    /* (non-Javadoc)
-     * @see net.java.sip.communicator.impl.media.transform.srtp.
-     * SRTPCipher#process(byte[], int, int, byte[])
-     */
-    public void process(byte[] data, int off, int len, byte[] iv)
-    {
-        F8Context f8ctx = new F8Context();
-
-        /*
-         * Get memory for the derived IV (IV')
-         */
-        f8ctx.ivAccent = new byte[BLKLEN];
 
         /*
          * Get memory for the special key. This is the key to compute the
@@ -147,20 +148,29 @@ public class SRTPCipherF8 implements SRTPCipher
         /*
          * Prepare the a new AES cipher with the special key to compute IV'
          */
-        AESCipher cipher = new AESCipher(maskedKey);
+        this.maskCipher = new AESCipher(maskedKey);
+
+        this.f8ctx = new F8Context();
+        this.f8ctx.ivAccent = new byte[BLKLEN];
+        this.f8ctx.S = new byte[BLKLEN];
+    }
+
+    /* (non-Javadoc)
+     * @see net.java.sip.communicator.impl.media.transform.srtp.
+     * SRTPCipher#process(byte[], int, int, byte[])
+     */
+    public void process(byte[] data, int off, int len, byte[] iv)
+    {
+        F8Context f8ctx = this.f8ctx;
 
         /*
          * Use the masked key to encrypt the original IV to produce IV'.
          */
-        cipher.encryptBlock(iv, 0, f8ctx.ivAccent, 0);
-
-        saltMask = null;
-        maskedKey = null;
+        this.maskCipher.encryptBlock(iv, 0, f8ctx.ivAccent, 0);
 
         f8ctx.J = 0;                    // initialize the counter
-        f8ctx.S = new byte[BLKLEN];     // get the key stream buffer
         
-        Arrays.fill(f8ctx.S, (byte) 0);
+        Arrays.fill(f8ctx.S, (byte) 0); // clear the key stream buffer
         
         int inLen = len;
         
@@ -26,8 +26,6 @@
 */
 package net.java.sip.communicator.impl.media.transform.srtp;
 
-import java.util.*;
-
 import net.java.sip.communicator.impl.media.transform.*;
 
 /**
@@ -52,6 +50,12 @@ import net.java.sip.communicator.impl.media.transform.*;
  * automatically using some key management protocol, such as MIKEY (RFC3880) or
  * Phil Zimmermann's ZRTP protocol (draft-zimmermann-avt-zrtp-01).
  * 
+ * The ciphers and the digest keyed with the session keys, and the buffers
+ * used while processing a packet, are created when the session keys are
+ * derived and reused for every packet, so that no memory is allocated per
+ * packet. An SRTPCryptoContext must therefore not process packets in several
+ * threads at the same time.
+ * 
  * @author Bing SU (nova.su@gmail.com)
  */
 public class SRTPCryptoContext
@@ -136,6 +140,26 @@ public class SRTPCryptoContext
      */
     private SRTPDigest digest;
 
+    /**
+     * The Counter Mode cipher keyed with the session encryption key
+     */
+    private SRTPCipherCTR cipherCtr;
+
+    /**
+     * The F8 Mode cipher keyed with the session encryption and salting keys
+     */
+    private SRTPCipherF8 cipherF8;
+
+    /**
+     * Buffer receiving the initialization vector of the packet
+     */
+    private final byte[] ivStore = new byte[16];
+
+    /**
+     * Buffer receiving the authentication tag of a received packet
+     */
+    private byte[] tagStore;
+
     /**
      * Construct an empty SRTPCryptoContext using ssrc.
      * The other parameters are set to default null value.
@@ -223,6 +247,7 @@ public class SRTPCryptoContext
 
             case SRTPPolicy.HMACSHA1_AUTHENTICATION:
                 this.authKey = new byte[policy.getAuthKeyLength()];
+                this.tagStore = new byte[policy.getAuthTagLength()];
                 break;
         }
     }
@@ -319,7 +344,7 @@ public class SRTPCryptoContext
         if (this.policy.getAuthType() == SRTPPolicy.HMACSHA1_AUTHENTICATION)
         {
             byte[] tag = authenticatePacketHMCSHA1(pkt);
-            pkt.append(tag);
+            pkt.append(tag, this.policy.getAuthTagLength());
         }
 
         /* Update the ROC if necessary */
@@ -355,14 +380,23 @@ public class SRTPCryptoContext
         {
             int tagLength = this.policy.getAuthTagLength();
 
-            byte[] originalTag =
-                pkt.readRegion(pkt.getLength() - tagLength, tagLength);
+            if (!pkt.readRegionToBuff(pkt.getLength() - tagLength, tagLength,
+                                      this.tagStore))
+            {
+                return false;
+            }
             
             pkt.shrink(tagLength);
             
             byte[] calculatedTag = authenticatePacketHMCSHA1(pkt);
 
-            if (!Arrays.equals(originalTag, calculatedTag))
+            // compare all the bytes, not to tell how many of them matched
+            int diff = 0;
+            for (int i = 0; i < tagLength; i++)
+            {
+                diff |= this.tagStore[i] ^ calculatedTag[i];
+            }
+            if (diff != 0)
             {
                 return false;
             }
@@ -403,7 +437,7 @@ public class SRTPCryptoContext
         int   seqNum = PacketManipulator.GetRTPSequenceNumber(pkt);
         long  index  = ((long) this.roc << 16) | (long) seqNum;
 
-        byte[] iv = new byte[16];
+        byte[] iv = this.ivStore;
         System.arraycopy(this.saltKey, 0, iv, 0, 4);
 
         int i;
@@ -420,12 +454,10 @@ public class SRTPCryptoContext
 
         iv[14] = iv[15] = 0;
 
-        SRTPCipher cipher = new SRTPCipherCTR(this.encKey);
-
         final int payloadOffset = PacketManipulator.GetRTPHeaderLength(pkt);
         final int payloadLength = PacketManipulator.GetRTPPayloadLength(pkt);
         
-        cipher.process(pkt.getBuffer(), pkt.getOffset() + payloadOffset,
+        this.cipherCtr.process(pkt.getBuffer(), pkt.getOffset() + payloadOffset,
                        payloadLength, iv);
     }
     
@@ -441,7 +473,7 @@ public class SRTPCryptoContext
         int     seqNum   = PacketManipulator.GetRTPSequenceNumber(pkt);
         byte    payload  = PacketManipulator.GetRTPPayloadType(pkt);
 
-        byte[] iv = new byte[16];
+        byte[] iv = this.ivStore;
         
         iv[0] = 0;
         iv[1] = (byte) (isMarked ? 0x80 : 0x00);
@@ -450,8 +482,7 @@ public class SRTPCryptoContext
         iv[3] = (byte) seqNum;
 
         // set the TimeStamp in network order into IV
-        byte[] timeStamp = PacketManipulator.ReadTimeStampIntoByteArray(pkt);
-        System.arraycopy(timeStamp, 0, iv, 4, 4);
+        System.arraycopy(pkt.getBuffer(), pkt.getOffset() + 4, iv, 4, 4);
         
         // set the SSRC in network order into IV
         iv[8]  = (byte) (ssrc >> 24);
@@ -465,44 +496,25 @@ public class SRTPCryptoContext
         iv[14] = (byte) (this.roc >>  8);
         iv[15] = (byte) this.roc;
         
-        SRTPCipher cipher = new SRTPCipherF8(this.encKey, this.saltKey);
-        
         final int payloadOffset = PacketManipulator.GetRTPHeaderLength(pkt);
         final int payloadLength = PacketManipulator.GetRTPPayloadLength(pkt);
 
-        cipher.process(pkt.getBuffer(), pkt.getOffset() + payloadOffset,
+        this.cipherF8.process(pkt.getBuffer(), pkt.getOffset() + payloadOffset,
                        payloadLength, iv);
     }
 
     /**
      * Authenticate a packet using HMC SHA1 method.
-     * Calculated authentication tag is returned.
+     * Calculated authentication tag is returned, in its first
+     * <tt>getAuthTagLength()</tt> bytes of a buffer reused for every packet.
      *
      * @param pkt the RTP packet to be authenticated
      * @return authentication tag of pkt
      */
     private byte[] authenticatePacketHMCSHA1(RawPacket pkt)
     {
-        byte[][] chunks = new byte[2][];
-        int[] chunkLength = new int[2];
-
-        chunks[0] = pkt.getBuffer();
-        chunkLength[0] = pkt.getLength();
-        
-        chunks[1] = new byte[4];
-        chunks[1][0] = (byte) (this.roc >> 24);
-        chunks[1][1] = (byte) (this.roc >> 16);
-        chunks[1][2] = (byte) (this.roc >>  8);
-        chunks[1][3] = (byte) this.roc;
-
-        chunkLength[1] = 4;
-
-        byte[] result = this.digest.authHMACSHA1(chunks, chunkLength);
-        byte[] tag = new byte[this.policy.getAuthTagLength()];
-
-        System.arraycopy(result, 0, tag, 0, this.policy.getAuthTagLength());
-        
-        return tag;
+        return this.digest.authHMACSHA1(pkt.getBuffer(), pkt.getOffset(),
+                                        pkt.getLength(), this.roc);
     }
     
     /**
@@ -632,6 +644,18 @@ public class SRTPCryptoContext
         computeIv(iv, label, index, this.keyDerivationRate, this.masterSalt);
         aes = new SRTPCipherCTR(this.masterKey);
         aes.getCipherStream(this.saltKey, this.policy.getSaltKeyLength(), iv);
+
+        // key the ciphers with the new session keys
+        switch (this.policy.getEncType())
+        {
+            case SRTPPolicy.AESCM_ENCRYPTION:
+                this.cipherCtr = new SRTPCipherCTR(this.encKey);
+                break;
+
+            case SRTPPolicy.AESF8_ENCRYPTION:
+                this.cipherF8 = new SRTPCipherF8(this.encKey, this.saltKey);
+                break;
+        }
     }
 
     /**
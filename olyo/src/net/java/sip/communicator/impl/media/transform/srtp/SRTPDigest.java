@@ -24,6 +24,12 @@ public class SRTPDigest
      * Bouncy Castle's HMAC algorithm provider
      */
     private HMac hmac;
+
+    /**
+     * Buffer receiving the digests computed by <tt>authHMACSHA1</tt> with a
+     * roll over counter, reused for every packet
+     */
+    private byte[] result;
     
     /**
      * Construct a SRTPDigest based on given authentication key
@@ -34,6 +40,7 @@ public class SRTPDigest
     {
         this.hmac = new HMac(new SHA1Digest());
         this.hmac.init(new KeyParameter(key));
+        this.result = new byte[this.hmac.getMacSize()];
     }
     
     /**
@@ -58,4 +65,31 @@ public class SRTPDigest
 
         return result;
     }
+
+    /**
+     * Calculate the HMC SHA1 digest of a packet followed by its roll over
+     * counter, as SRTP authenticates packets.
+     * 
+     * The returned array is reused by the next call, so the digest has to be
+     * used before this digest is asked for another one.
+     * 
+     * @param data byte array holding the packet
+     * @param off start offset of the packet in data
+     * @param len length of the packet
+     * @param roc the roll over counter of the packet
+     * @return byte array holding the digest result
+     */
+    public byte[] authHMACSHA1(byte[] data, int off, int len, int roc)
+    {
+        this.hmac.reset();
+
+        this.hmac.update(data, off, len);
+        this.hmac.update((byte) (roc >> 24));
+        this.hmac.update((byte) (roc >> 16));
+        this.hmac.update((byte) (roc >> 8));
+        this.hmac.update((byte) roc);
+        this.hmac.doFinal(this.result, 0);
+
+        return this.result;
+    }
 }
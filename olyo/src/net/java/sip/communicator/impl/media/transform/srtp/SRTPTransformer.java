@@ -53,6 +53,18 @@ public class SRTPTransformer
      */
     private Hashtable contexts;
 
+    /**
+     * The context of the last transformed packet, used for the next packet
+     * of the same SSRC without looking it up in <tt>contexts</tt>
+     */
+    private SRTPCryptoContext lastTransformContext;
+
+    /**
+     * The context of the last reverse transformed packet, used for the next
+     * packet of the same SSRC without looking it up in <tt>contexts</tt>
+     */
+    private SRTPCryptoContext lastReverseContext;
+
     /**
      * Construct a SRTPTransformer
      *
@@ -72,14 +84,19 @@ public class SRTPTransformer
     {
         long ssrc = PacketManipulator.GetRTPSSRC(pkt);
 
-        SRTPCryptoContext context =
-            (SRTPCryptoContext) this.contexts.get(new Long(ssrc));
-        
-        if (context == null)
+        SRTPCryptoContext context = this.lastTransformContext;
+        if (context == null || context.getSSRC() != ssrc)
         {
-            context = this.engine.getDefaultContext().deriveContext(ssrc, 0, 0);
-            context.deriveSrtpKeys(0);
-            this.contexts.put(new Long(ssrc), context);
+            context = (SRTPCryptoContext) this.contexts.get(new Long(ssrc));
+        
+            if (context == null)
+            {
+                context =
+                    this.engine.getDefaultContext().deriveContext(ssrc, 0, 0);
+                context.deriveSrtpKeys(0);
+                this.contexts.put(new Long(ssrc), context);
+            }
+            this.lastTransformContext = context;
         }
         
         context.transformPacket(pkt);
@@ -95,14 +112,19 @@ public class SRTPTransformer
     {
         long ssrc  = PacketManipulator.GetRTPSSRC(pkt);
         int seqNum = PacketManipulator.GetRTPSequenceNumber(pkt);
-        SRTPCryptoContext context =
-            (SRTPCryptoContext) this.contexts.get(new Long(ssrc));
- 
-        if (context == null)
+        SRTPCryptoContext context = this.lastReverseContext;
+        if (context == null || context.getSSRC() != ssrc)
         {
-            context = this.engine.getDefaultContext().deriveContext(ssrc, 0, 0);
-            context.deriveSrtpKeys(seqNum);
-            this.contexts.put(new Long(ssrc), context);
+            context = (SRTPCryptoContext) this.contexts.get(new Long(ssrc));
+ 
+            if (context == null)
+            {
+                context =
+                    this.engine.getDefaultContext().deriveContext(ssrc, 0, 0);
+                context.deriveSrtpKeys(seqNum);
+                this.contexts.put(new Long(ssrc), context);
+            }
+            this.lastReverseContext = context;
         }
 
         boolean validPacket = context.reverseTransformPacket(pkt);
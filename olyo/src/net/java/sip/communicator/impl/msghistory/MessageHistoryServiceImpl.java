@@ -8,6 +8,7 @@ package net.java.sip.communicator.impl.msghistory;
 
 import java.io.*;
 import java.util.*;
+import java.util.concurrent.*;
 
 import org.osgi.framework.*;
 import net.java.sip.communicator.service.contactlist.*;
@@ -61,7 +62,12 @@ public class MessageHistoryServiceImpl
 
     private Object syncRoot_HistoryService = new Object();
 
-    private Hashtable progressListeners = new Hashtable();
+    private Vector progressListeners = new Vector();
+
+    /**
+     * Runs the searches of the histories of the contacts of a metacontact.
+     */
+    private ThreadPoolExecutor searchExecutor = null;
 
     public HistoryService getHistoryService()
     {
@@ -77,39 +83,17 @@ public class MessageHistoryServiceImpl
      * @return Collection of MessageReceivedEvents or MessageDeliveredEvents
      * @throws RuntimeException
      */
-    public Collection findByStartDate(MetaContact contact, Date startDate)
+    public Collection findByStartDate(MetaContact contact,
+                                      final Date startDate)
         throws RuntimeException
     {
-        TreeSet result = new TreeSet(new MessageEventComparator());
-        // get the readers for this contact
-        Hashtable readers = getHistoryReaders(contact);
-
-        int recordsCount = countRecords(readers);
-        
-        Iterator iter = readers.keySet().iterator();
-        while (iter.hasNext())
+        return findInHistories(contact, new HistorySearch()
         {
-            Contact item = (Contact)iter.next();
-            HistoryReader reader = (HistoryReader)readers.get(item);
-
-            // add the progress listeners
-            addHistorySearchProgressListeners(reader, recordsCount);
-            Iterator recs = reader.findByStartDate(startDate);
-            while (recs.hasNext())
+            public QueryResultSet find(HistoryReader reader)
             {
-                result.add(convertHistoryRecordToMessageEvent((HistoryRecord)recs.next(), item));
+                return reader.findByStartDate(startDate);
             }
-        }
-
-        // now remove this listeners
-        iter = readers.values().iterator();
-        while (iter.hasNext())
-        {
-            HistoryReader item = (HistoryReader) iter.next();
-            removeHistorySearchProgressListeners(item);
-        }
-
-        return result;
+        });
     }
 
     /**
@@ -121,40 +105,17 @@ public class MessageHistoryServiceImpl
      * @return Collection of MessageReceivedEvents or MessageDeliveredEvents
      * @throws RuntimeException
      */
-    public Collection findByEndDate(MetaContact contact, Date endDate)
+    public Collection findByEndDate(MetaContact contact,
+                                    final Date endDate)
         throws RuntimeException
     {
-        TreeSet result = new TreeSet(new MessageEventComparator());
-
-        // get the readers for this contact
-        Hashtable readers = getHistoryReaders(contact);
-
-        int recordsCount = countRecords(readers);
-        
-        Iterator iter = readers.keySet().iterator();
-        while (iter.hasNext())
+        return findInHistories(contact, new HistorySearch()
         {
-            Contact item = (Contact)iter.next();
-            HistoryReader reader = (HistoryReader)readers.get(item);
-
-            // add the progress listeners
-            addHistorySearchProgressListeners(reader, recordsCount);
-            Iterator recs = reader.findByEndDate(endDate);
-            while (recs.hasNext())
+            public QueryResultSet find(HistoryReader reader)
             {
-                result.add(convertHistoryRecordToMessageEvent((HistoryRecord)recs.next(), item));
+                return reader.findByEndDate(endDate);
             }
-        }
-
-        // now remove this listeners
-        iter = readers.values().iterator();
-        while (iter.hasNext())
-        {
-            HistoryReader item = (HistoryReader) iter.next();
-            removeHistorySearchProgressListeners(item);
-        }
-
-        return result;
+        });
     }
 
     /**
@@ -167,40 +128,17 @@ public class MessageHistoryServiceImpl
      * @return Collection of MessageReceivedEvents or MessageDeliveredEvents
      * @throws RuntimeException
      */
-    public Collection findByPeriod(MetaContact contact, Date startDate, Date endDate)
+    public Collection findByPeriod(MetaContact contact,
+                                   final Date startDate, final Date endDate)
         throws RuntimeException
     {
-        TreeSet result = new TreeSet(new MessageEventComparator());
-        // get the readers for this contact
-        Hashtable readers = getHistoryReaders(contact);
-
-        int recordsCount = countRecords(readers);
-        
-        Iterator iter = readers.keySet().iterator();
-        while (iter.hasNext())
+        return findInHistories(contact, new HistorySearch()
         {
-            Contact item = (Contact)iter.next();
-            HistoryReader reader = (HistoryReader)readers.get(item);
-
-            // add the progress listeners
-            addHistorySearchProgressListeners(reader, recordsCount);
-
-            Iterator recs = reader.findByPeriod(startDate, endDate);
-            while (recs.hasNext())
+            public QueryResultSet find(HistoryReader reader)
             {
-                result.add(convertHistoryRecordToMessageEvent((HistoryRecord)recs.next(), item));
+                return reader.findByPeriod(startDate, endDate);
             }
-        }
-
-        // now remove this listeners
-        iter = readers.values().iterator();
-        while (iter.hasNext())
-        {
-            HistoryReader item = (HistoryReader) iter.next();
-            removeHistorySearchProgressListeners(item);
-        }
-
-        return result;
+        });
     }
 
     /**
@@ -262,35 +200,16 @@ public class MessageHistoryServiceImpl
      * @return Collection of MessageReceivedEvents or MessageDeliveredEvents
      * @throws RuntimeException
      */
-    public Collection findLast(MetaContact contact, int count)
+    public Collection findLast(MetaContact contact, final int count)
         throws RuntimeException
     {
-        TreeSet result = new TreeSet(new MessageEventComparator());
-
-        Iterator iter = contact.getContacts();
-        while (iter.hasNext())
+        TreeSet result = findInHistories(contact, new HistorySearch()
         {
-            Contact item = (Contact) iter.next();
-
-            try
+            public QueryResultSet find(HistoryReader reader)
             {
-                History history = this.getHistory(null, item);
-
-                HistoryReader reader = history.getReader();
-                Iterator recs = reader.findLast(count);
-                while (recs.hasNext())
-                {
-                    result.add(
-                        convertHistoryRecordToMessageEvent(
-                            (HistoryRecord)recs.next(),
-                            item));
-
-                }
-            } catch (IOException e)
-            {
-                logger.error("Could not read history", e);
+                return reader.findLast(count);
             }
-        }
+        });
 
         LinkedList resultAsList = new LinkedList(result);
         int startIndex = resultAsList.size() - count;
@@ -311,35 +230,17 @@ public class MessageHistoryServiceImpl
      * @return Collection of MessageReceivedEvents or MessageDeliveredEvents
      * @throws RuntimeException
      */
-    public Collection findFirstMessagesAfter(MetaContact contact, Date date,
-                                        int count) throws RuntimeException
+    public Collection findFirstMessagesAfter(MetaContact contact,
+                                             final Date date,
+                                             final int count) throws RuntimeException
     {
-        TreeSet result = new TreeSet(new MessageEventComparator());
-
-        Iterator iter = contact.getContacts();
-        while (iter.hasNext())
+        TreeSet result = findInHistories(contact, new HistorySearch()
         {
-            Contact item = (Contact) iter.next();
-
-            try
+            public QueryResultSet find(HistoryReader reader)
             {
-                History history = this.getHistory(null, item);
-
-                HistoryReader reader = history.getReader();
-                Iterator recs = reader.findFirstRecordsAfter(date, count);
-                while (recs.hasNext())
-                {
-                    result.add(
-                        convertHistoryRecordToMessageEvent(
-                            (HistoryRecord)recs.next(),
-                            item));
-
-                }
-            } catch (IOException e)
-            {
-                logger.error("Could not read history", e);
+                return reader.findFirstRecordsAfter(date, count);
             }
-        }
+        });
 
         LinkedList resultAsList = new LinkedList(result);
         
@@ -360,35 +261,17 @@ public class MessageHistoryServiceImpl
      * @return Collection of MessageReceivedEvents or MessageDeliveredEvents
      * @throws RuntimeException
      */
-    public Collection findLastMessagesBefore(MetaContact contact, Date date,
-                                         int count) throws RuntimeException
+    public Collection findLastMessagesBefore(MetaContact contact,
+                                             final Date date,
+                                             final int count) throws RuntimeException
     {
-        TreeSet result = new TreeSet(new MessageEventComparator());
-
-        Iterator iter = contact.getContacts();
-        while (iter.hasNext())
+        TreeSet result = findInHistories(contact, new HistorySearch()
         {
-            Contact item = (Contact) iter.next();
-
-            try
-            {
-                History history = this.getHistory(null, item);
-
-                HistoryReader reader = history.getReader();
-                Iterator recs = reader.findLastRecordsBefore(date, count);
-                while (recs.hasNext())
-                {
-                    result.add(
-                        convertHistoryRecordToMessageEvent(
-                            (HistoryRecord)recs.next(),
-                            item));
-
-                }
-            } catch (IOException e)
+            public QueryResultSet find(HistoryReader reader)
             {
-                logger.error("Could not read history", e);
+                return reader.findLastRecordsBefore(date, count);
             }
-        }
+        });
 
         LinkedList resultAsList = new LinkedList(result);
         int startIndex = resultAsList.size() - count;
@@ -399,6 +282,52 @@ public class MessageHistoryServiceImpl
         return resultAsList.subList(startIndex, resultAsList.size());
     }
 
+    /**
+     * Searches in the background the messages exchanged by all the contacts
+     * in the supplied metacontact between the given dates and having the
+     * given keywords, and delivers them to <tt>listener</tt> as they are
+     * found, oldest first. The histories of the contacts are streamed and
+     * merged by timestamp, so only the records of the files being read are
+     * held in memory.
+     *
+     * @param contact MetaContact
+     * @param startDate Date the start date of the conversations, or null
+     * @param endDate Date the end date of the conversations, or null
+     * @param keywords array of keywords, or null
+     * @param caseSensitive is keywords search case sensitive
+     * @param limit the maximum number of messages to deliver, 0 for all of
+     * them
+     * @param listener receives the found messages
+     * @return the running query, which may be canceled
+     * @throws RuntimeException
+     */
+    public MessageHistoryQuery queryByPeriod(MetaContact contact,
+                            Date startDate, Date endDate,
+                            String[] keywords, boolean caseSensitive,
+                            int limit, MessageHistoryQueryListener listener)
+        throws RuntimeException
+    {
+        MessageHistoryQueryImpl query =
+            new MessageHistoryQueryImpl(limit, listener);
+
+        Hashtable readers = getHistoryReaders(contact);
+        Iterator iter = readers.keySet().iterator();
+        while (iter.hasNext())
+        {
+            Contact item = (Contact) iter.next();
+            HistoryReader reader = (HistoryReader) readers.get(item);
+
+            query.addStream(item, reader.streamByPeriod(
+                startDate, endDate, keywords, SEARCH_FIELD, caseSensitive));
+        }
+
+        Thread queryThread = new Thread(query, "MessageHistoryQuery");
+        queryThread.setDaemon(true);
+        queryThread.start();
+
+        return query;
+    }
+
     /**
      * Returns the history by specified local and remote contact
      * if one of them is null the default is used
@@ -650,6 +579,15 @@ public class MessageHistoryServiceImpl
         // start listening for newly register or removed protocol providers
         bc.removeServiceListener(this);
 
+        synchronized(this)
+        {
+            if(searchExecutor != null)
+            {
+                searchExecutor.shutdown();
+                searchExecutor = null;
+            }
+        }
+
         ServiceReference[] protocolProviderRefs = null;
         try
         {
@@ -994,9 +932,8 @@ public class MessageHistoryServiceImpl
                                           listener)
     {
         synchronized(progressListeners){
-            HistorySearchProgressListener wrapperListener =
-                new SearchProgressWrapper(listener);
-            progressListeners.put(listener, wrapperListener);
+            if(!progressListeners.contains(listener))
+                progressListeners.add(listener);
         }
     }
 
@@ -1014,47 +951,212 @@ public class MessageHistoryServiceImpl
     }
 
     /**
-     * Add the registered MessageHistorySearchProgressListeners
-     * to the given HistoryReader
+     * Adds to the given HistoryReaders a listener aggregating their
+     * progress for the registered MessageHistorySearchProgressListeners
      *
-     * @param reader HistoryReader
-     * @param countRecords number of records will search
+     * @param readers the HistoryReaders of the search
+     * @return the added listener or null if there are no registered
+     *          MessageHistorySearchProgressListeners
      */
-    private void addHistorySearchProgressListeners(
-        HistoryReader reader, int countRecords)
+    private SearchProgress addHistorySearchProgressListeners(
+        Collection readers)
     {
+        MessageHistorySearchProgressListener[] listeners;
         synchronized(progressListeners)
         {
-            Iterator iter = progressListeners.values().iterator();
-            while (iter.hasNext())
-            {
-                SearchProgressWrapper l =
-                    (SearchProgressWrapper) iter.next();
-                l.setCurrentValues(reader, countRecords);
-                reader.addSearchProgressListener(l);
-            }
+            if(progressListeners.isEmpty())
+                return null;
+
+            listeners = (MessageHistorySearchProgressListener[])
+                progressListeners.toArray(
+                    new MessageHistorySearchProgressListener[
+                        progressListeners.size()]);
+        }
+
+        SearchProgress progress = new SearchProgress(readers, listeners);
+
+        Iterator iter = readers.iterator();
+        while (iter.hasNext())
+        {
+            HistoryReader reader = (HistoryReader) iter.next();
+            reader.addSearchProgressListener(progress);
+        }
+
+        return progress;
+    }
+
+    /**
+     * Removes a listener added by addHistorySearchProgressListeners
+     * from its HistoryReaders
+     *
+     * @param progress the listener, may be null
+     */
+    private void removeHistorySearchProgressListeners(SearchProgress progress)
+    {
+        if(progress == null)
+            return;
+
+        Iterator iter = progress.getReaders().iterator();
+        while (iter.hasNext())
+        {
+            HistoryReader reader = (HistoryReader) iter.next();
+            reader.removeSearchProgressListener(progress);
         }
     }
 
     /**
-     * Removes the registered MessageHistorySearchProgressListeners
-     * from the given HistoryReader
+     * Searches the histories of all the contacts in the supplied
+     * metacontact, one search thread per history, and merges the found
+     * messages in timestamp order. The progress of the searches is
+     * aggregated for the registered MessageHistorySearchProgressListeners,
+     * which are notified from the search threads.
      *
-     * @param reader HistoryReader
+     * @param contact MetaContact
+     * @param search the search to run on the history of every contact
+     * @return TreeSet of MessageReceivedEvents or MessageDeliveredEvents
+     * @throws RuntimeException
      */
-    private void removeHistorySearchProgressListeners(HistoryReader reader)
+    private TreeSet findInHistories(MetaContact contact,
+                                    final HistorySearch search)
     {
-        synchronized(progressListeners)
+        TreeSet result = new TreeSet(new MessageEventComparator());
+        // get the readers for this contact
+        Hashtable readers = getHistoryReaders(contact);
+
+        // add the progress listeners
+        SearchProgress progress =
+            addHistorySearchProgressListeners(readers.values());
+
+        List searches = new ArrayList(readers.size());
+        try
         {
-            Iterator iter = progressListeners.values().iterator();
+            Iterator iter = readers.entrySet().iterator();
             while (iter.hasNext())
             {
-                SearchProgressWrapper l =
-                    (SearchProgressWrapper) iter.next();
-                l.clear();
-                reader.removeSearchProgressListener(l);
+                Map.Entry entry = (Map.Entry) iter.next();
+                final Contact item = (Contact) entry.getKey();
+                final HistoryReader reader = (HistoryReader) entry.getValue();
+
+                FutureTask task = new FutureTask(new Callable()
+                {
+                    public Object call()
+                    {
+                        List messages = new ArrayList();
+                        Iterator recs = search.find(reader);
+                        while (recs.hasNext())
+                        {
+                            messages.add(convertHistoryRecordToMessageEvent(
+                                (HistoryRecord) recs.next(), item));
+                        }
+                        return messages;
+                    }
+                });
+                searches.add(task);
+
+                // a single history is searched by the calling thread
+                if(readers.size() == 1)
+                    task.run();
+                else
+                    getSearchExecutor().execute(task);
             }
+
+            // the results are merged in the order the searches were started,
+            // so that the same messages are kept as by a sequential search
+            for (int i = 0; i < searches.size(); i++)
+            {
+                result.addAll(getSearchResult((Future) searches.get(i)));
+            }
+        }
+        finally
+        {
+            // the searches left when one failed are not needed anymore
+            for (int i = 0; i < searches.size(); i++)
+            {
+                ((Future) searches.get(i)).cancel(false);
+            }
+
+            // now remove this listeners
+            removeHistorySearchProgressListeners(progress);
+        }
+
+        return result;
+    }
+
+    /**
+     * Waits for the result of a search started by findInHistories.
+     *
+     * @param result the Future result of the search
+     * @return the List of messages found by the search
+     * @throws RuntimeException if the search failed or the thread was
+     *          interrupted
+     */
+    private static List getSearchResult(Future result)
+    {
+        try
+        {
+            return (List) result.get();
+        }
+        catch (InterruptedException ex)
+        {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException(
+                "Interrupted while searching message history", ex);
+        }
+        catch (ExecutionException ex)
+        {
+            if(ex.getCause() instanceof RuntimeException)
+                throw (RuntimeException) ex.getCause();
+            if(ex.getCause() instanceof Error)
+                throw (Error) ex.getCause();
+            throw new RuntimeException(ex.getCause());
+        }
+    }
+
+    /**
+     * Returns the executor running the searches of the histories, creating
+     * it the first time. It has one thread per processor, so that a search
+     * of many contacts uses all of them.
+     *
+     * @return ThreadPoolExecutor
+     */
+    private synchronized ThreadPoolExecutor getSearchExecutor()
+    {
+        if(searchExecutor == null)
+        {
+            int threads = Runtime.getRuntime().availableProcessors();
+
+            searchExecutor = new ThreadPoolExecutor(
+                threads, threads, 0L, TimeUnit.MILLISECONDS,
+                new LinkedBlockingQueue(),
+                new ThreadFactory()
+                {
+                    private int threadCount = 0;
+
+                    public synchronized Thread newThread(Runnable r)
+                    {
+                        Thread thread = new Thread(r,
+                            "MessageHistorySearch-" + (++threadCount));
+                        thread.setDaemon(true);
+                        return thread;
+                    }
+                });
         }
+
+        return searchExecutor;
+    }
+
+    /**
+     * A search of the history of one contact.
+     */
+    private interface HistorySearch
+    {
+        /**
+         * Runs the search on the given HistoryReader.
+         *
+         * @param reader the reader of the history of a contact
+         * @return the found records
+         */
+        public QueryResultSet find(HistoryReader reader);
     }
 
     /**
@@ -1070,43 +1172,19 @@ public class MessageHistoryServiceImpl
      * @return Collection of MessageReceivedEvents or MessageDeliveredEvents
      * @throws RuntimeException
      */
-    public Collection findByPeriod(MetaContact contact, Date startDate,
-                                   Date endDate, String[] keywords,
-                                   boolean caseSensitive)
+    public Collection findByPeriod(MetaContact contact, final Date startDate,
+                                   final Date endDate, final String[] keywords,
+                                   final boolean caseSensitive)
         throws RuntimeException
     {
-        TreeSet result = new TreeSet(new MessageEventComparator());
-        // get the readers for this contact
-        Hashtable readers = getHistoryReaders(contact);
-
-        int recordsCount = countRecords(readers);
-        
-        Iterator iter = readers.keySet().iterator();
-        while (iter.hasNext())
+        return findInHistories(contact, new HistorySearch()
         {
-            Contact item = (Contact) iter.next();
-            HistoryReader reader = (HistoryReader) readers.get(item);
-
-            // add the progress listeners
-            addHistorySearchProgressListeners(reader, recordsCount);
-            Iterator recs = reader.findByPeriod(startDate, endDate, keywords,
-                                                SEARCH_FIELD, caseSensitive);
-            while (recs.hasNext())
+            public QueryResultSet find(HistoryReader reader)
             {
-                result.add(convertHistoryRecordToMessageEvent( (HistoryRecord) recs.
-                    next(), item));
+                return reader.findByPeriod(startDate, endDate, keywords,
+                                           SEARCH_FIELD, caseSensitive);
             }
-        }
-
-        // now remove this listeners
-        iter = readers.values().iterator();
-        while (iter.hasNext())
-        {
-            HistoryReader item = (HistoryReader) iter.next();
-            removeHistorySearchProgressListeners(item);
-        }
-
-        return result;
+        });
     }
 
     /**
@@ -1119,42 +1197,18 @@ public class MessageHistoryServiceImpl
      * @return Collection of MessageReceivedEvents or MessageDeliveredEvents
      * @throws RuntimeException
      */
-    public Collection findByKeyword(MetaContact contact, String keyword,
-                                    boolean caseSensitive)
+    public Collection findByKeyword(MetaContact contact, final String keyword,
+                                    final boolean caseSensitive)
         throws RuntimeException
     {
-        TreeSet result = new TreeSet(new MessageEventComparator());
-        // get the readers for this contact
-        Hashtable readers = getHistoryReaders(contact);
-
-        int recordsCount = countRecords(readers);
-        
-        Iterator iter = readers.keySet().iterator();
-        while (iter.hasNext())
+        return findInHistories(contact, new HistorySearch()
         {
-            Contact item = (Contact) iter.next();
-            HistoryReader reader = (HistoryReader) readers.get(item);
-
-            // add the progress listeners
-            addHistorySearchProgressListeners(reader, recordsCount);
-            Iterator recs = reader.
-                findByKeyword(keyword, SEARCH_FIELD, caseSensitive);
-            while (recs.hasNext())
+            public QueryResultSet find(HistoryReader reader)
             {
-                result.add(convertHistoryRecordToMessageEvent( (HistoryRecord) recs.
-                    next(), item));
+                return reader.findByKeyword(keyword, SEARCH_FIELD,
+                                            caseSensitive);
             }
-        }
-
-        // now remove this listeners
-        iter = readers.values().iterator();
-        while (iter.hasNext())
-        {
-            HistoryReader item = (HistoryReader) iter.next();
-            removeHistorySearchProgressListeners(item);
-        }
-
-        return result;
+        });
     }
 
     /**
@@ -1167,42 +1221,19 @@ public class MessageHistoryServiceImpl
      * @return Collection of MessageReceivedEvents or MessageDeliveredEvents
      * @throws RuntimeException
      */
-    public Collection findByKeywords(MetaContact contact, String[] keywords,
-                                     boolean caseSensitive)
+    public Collection findByKeywords(MetaContact contact,
+                                     final String[] keywords,
+                                     final boolean caseSensitive)
         throws RuntimeException
     {
-        TreeSet result = new TreeSet(new MessageEventComparator());
-        // get the readers for this contact
-        Hashtable readers = getHistoryReaders(contact);
-
-        int recordsCount = countRecords(readers);
-        
-        Iterator iter = readers.keySet().iterator();
-        while (iter.hasNext())
+        return findInHistories(contact, new HistorySearch()
         {
-            Contact item = (Contact) iter.next();
-            HistoryReader reader = (HistoryReader) readers.get(item);
-
-            // add the progress listeners
-            addHistorySearchProgressListeners(reader, recordsCount);
-            Iterator recs = reader.
-                findByKeywords(keywords, SEARCH_FIELD, caseSensitive);
-            while (recs.hasNext())
+            public QueryResultSet find(HistoryReader reader)
             {
-                result.add(convertHistoryRecordToMessageEvent( (HistoryRecord) recs.
-                    next(), item));
+                return reader.findByKeywords(keywords, SEARCH_FIELD,
+                                             caseSensitive);
             }
-        }
-
-        // now remove this listeners
-        iter = readers.values().iterator();
-        while (iter.hasNext())
-        {
-            HistoryReader item = (HistoryReader) iter.next();
-            removeHistorySearchProgressListeners(item);
-        }
-
-        return result;
+        });
     }
 
     /**
@@ -1275,7 +1306,8 @@ public class MessageHistoryServiceImpl
                 this.getHistoryForMultiChat(null, room).getReader();
 
             // add the progress listeners
-            addHistorySearchProgressListeners(reader, 1);
+            SearchProgress progress =
+                addHistorySearchProgressListeners(Collections.singleton(reader));
 
             Iterator recs = reader.findByStartDate(startDate);
             while (recs.hasNext())
@@ -1284,7 +1316,7 @@ public class MessageHistoryServiceImpl
                     (HistoryRecord)recs.next(), room));
             }
 
-            removeHistorySearchProgressListeners(reader);
+            removeHistorySearchProgressListeners(progress);
         } catch (IOException e)
         {
             logger.error("Could not read history", e);
@@ -1313,7 +1345,8 @@ public class MessageHistoryServiceImpl
                 this.getHistoryForMultiChat(null, room).getReader();
 
             // add the progress listeners
-            addHistorySearchProgressListeners(reader, 1);
+            SearchProgress progress =
+                addHistorySearchProgressListeners(Collections.singleton(reader));
 
             Iterator recs = reader.findByEndDate(endDate);
             while (recs.hasNext())
@@ -1322,7 +1355,7 @@ public class MessageHistoryServiceImpl
                     (HistoryRecord)recs.next(), room));
             }
 
-            removeHistorySearchProgressListeners(reader);
+            removeHistorySearchProgressListeners(progress);
         } catch (IOException e)
         {
             logger.error("Could not read history", e);
@@ -1352,7 +1385,8 @@ public class MessageHistoryServiceImpl
                 this.getHistoryForMultiChat(null, room).getReader();
 
             // add the progress listeners
-            addHistorySearchProgressListeners(reader, 1);
+            SearchProgress progress =
+                addHistorySearchProgressListeners(Collections.singleton(reader));
 
             Iterator recs = reader.findByPeriod(startDate, endDate);
             while (recs.hasNext())
@@ -1361,7 +1395,7 @@ public class MessageHistoryServiceImpl
                     (HistoryRecord)recs.next(), room));
             }
 
-            removeHistorySearchProgressListeners(reader);
+            removeHistorySearchProgressListeners(progress);
         } catch (IOException e)
         {
             logger.error("Could not read history", e);
@@ -1414,7 +1448,8 @@ public class MessageHistoryServiceImpl
                 this.getHistoryForMultiChat(null, room).getReader();
 
             // add the progress listeners
-            addHistorySearchProgressListeners(reader, 1);
+            SearchProgress progress =
+                addHistorySearchProgressListeners(Collections.singleton(reader));
 
             Iterator recs = reader.findByPeriod(startDate, endDate, keywords,
                                                 SEARCH_FIELD, caseSensitive);
@@ -1424,7 +1459,7 @@ public class MessageHistoryServiceImpl
                     (HistoryRecord)recs.next(), room));
             }
 
-            removeHistorySearchProgressListeners(reader);
+            removeHistorySearchProgressListeners(progress);
         } catch (IOException e)
         {
             logger.error("Could not read history", e);
@@ -1470,7 +1505,8 @@ public class MessageHistoryServiceImpl
                 this.getHistoryForMultiChat(null, room).getReader();
 
             // add the progress listeners
-            addHistorySearchProgressListeners(reader, 1);
+            SearchProgress progress =
+                addHistorySearchProgressListeners(Collections.singleton(reader));
 
             Iterator recs = reader.
                 findByKeyword(keyword, SEARCH_FIELD, caseSensitive);
@@ -1480,7 +1516,7 @@ public class MessageHistoryServiceImpl
                     (HistoryRecord)recs.next(), room));
             }
 
-            removeHistorySearchProgressListeners(reader);
+            removeHistorySearchProgressListeners(progress);
         } catch (IOException e)
         {
             logger.error("Could not read history", e);
@@ -1526,7 +1562,8 @@ public class MessageHistoryServiceImpl
                 this.getHistoryForMultiChat(null, room).getReader();
 
             // add the progress listeners
-            addHistorySearchProgressListeners(reader, 1);
+            SearchProgress progress =
+                addHistorySearchProgressListeners(Collections.singleton(reader));
 
             Iterator recs = reader.
                 findByKeywords(keywords, SEARCH_FIELD, caseSensitive);
@@ -1536,7 +1573,7 @@ public class MessageHistoryServiceImpl
                     (HistoryRecord)recs.next(), room));
             }
 
-            removeHistorySearchProgressListeners(reader);
+            removeHistorySearchProgressListeners(progress);
         } catch (IOException e)
         {
             logger.error("Could not read history", e);
@@ -1672,85 +1709,100 @@ public class MessageHistoryServiceImpl
     }
 
     /**
-     * A wrapper around HistorySearchProgressListener
-     * that fires events for MessageHistorySearchProgressListener
+     * Aggregates the progress of the searches of several histories, which may
+     * run concurrently, into the progress of one search and fires it to
+     * MessageHistorySearchProgressListeners. Every history weighs
+     * its share of the searched records. The fired progress never goes back
+     * and reaches the maximum only once all the histories were searched.
      */
-    private class SearchProgressWrapper
+    private class SearchProgress
         implements HistorySearchProgressListener
     {
-        private MessageHistorySearchProgressListener listener = null;
-        int allRecords = 0;
-        HistoryReader reader = null;
-        double currentReaderProgressRatio = 0;
-        double accumulatedRatio = 0;
-        double currentProgress = 0;
-        double lastHistoryProgress = 0;
-        
-        // used for more precise calculations with double values
-        int raiser = 1000;
+        private MessageHistorySearchProgressListener[] listeners;
+
+        private Collection readers;
 
-        SearchProgressWrapper(MessageHistorySearchProgressListener listener)
+        /**
+         * The weight of every reader in the aggregated progress, by reader.
+         */
+        private Hashtable weights = new Hashtable();
+
+        /**
+         * The last progress of every reader, by reader.
+         */
+        private Hashtable progresses = new Hashtable();
+
+        private int lastProgress = -1;
+
+        SearchProgress(Collection readers,
+                       MessageHistorySearchProgressListener[] listeners)
         {
-            this.listener = listener;
+            this.readers = readers;
+            this.listeners = listeners;
+
+            int[] counts = new int[readers.size()];
+            int allRecords = 0;
+            Iterator iter = readers.iterator();
+            for (int i = 0; iter.hasNext(); i++)
+            {
+                counts[i] = ((HistoryReader) iter.next()).countRecords();
+                allRecords += counts[i];
+            }
+
+            iter = readers.iterator();
+            for (int i = 0; iter.hasNext(); i++)
+            {
+                double weight = (allRecords == 0)
+                    ? 1.0 / counts.length
+                    : (double) counts[i] / allRecords;
+                weights.put(iter.next(), new Double(weight));
+            }
         }
-        
-        private void setCurrentValues(HistoryReader currentReader, int allRecords)
+
+        Collection getReaders()
         {
-            this.allRecords = allRecords;
-            this.reader = currentReader;
-            currentReaderProgressRatio = 
-                    (double)currentReader.countRecords()/allRecords * raiser;
-            accumulatedRatio += currentReaderProgressRatio;
+            return readers;
         }
 
-        public void progressChanged(ProgressEvent evt)
+        public synchronized void progressChanged(ProgressEvent evt)
         {
-            int progress = getProgressMapping(evt);
-            currentProgress = progress;
+            if(!weights.containsKey(evt.getSource()))
+                return;
 
-            listener.progressChanged(
-                new net.java.sip.communicator.service.msghistory.event.
-                    ProgressEvent(MessageHistoryServiceImpl.this,
-                    evt, progress/raiser));
-        }
+            progresses.put(evt.getSource(), new Integer(evt.getProgress()));
 
-        /**
-         * Calculates the progress according the count of the records
-         * we will search
-         * @param historyProgress int
-         * @return int
-         */
-        private int getProgressMapping(ProgressEvent evt)
-        {
-            double tmpHistoryProgress = 
-                    currentReaderProgressRatio * evt.getProgress();
-            
-            currentProgress += tmpHistoryProgress - lastHistoryProgress;
-            
-            if(evt.getProgress() == HistorySearchProgressListener.PROGRESS_MAXIMUM_VALUE)
+            double sum = 0;
+            boolean finished = progresses.size() == weights.size();
+            Iterator iter = progresses.entrySet().iterator();
+            while (iter.hasNext())
             {
-                lastHistoryProgress = 0;
-                
-                // this is the last one and the last event fire the max
-                // there will be looses in currentProgress due to the devision
-                if((int)accumulatedRatio == raiser)
-                    currentProgress = raiser *
-                        MessageHistorySearchProgressListener.PROGRESS_MAXIMUM_VALUE;
+                Map.Entry entry = (Map.Entry) iter.next();
+                int readerProgress = ((Integer) entry.getValue()).intValue();
+
+                sum += ((Double) weights.get(entry.getKey())).doubleValue()
+                    * readerProgress;
+                if(readerProgress
+                    < HistorySearchProgressListener.PROGRESS_MAXIMUM_VALUE)
+                    finished = false;
             }
-            else
-                lastHistoryProgress = tmpHistoryProgress;
-            
-            return (int)currentProgress;
-        }
 
-        /**
-         * clear the values
-         */
-        void clear()
-        {            
-            allRecords = 0;
-            currentProgress = 0;
-            lastHistoryProgress = 0;
+            int progress = finished
+                ? MessageHistorySearchProgressListener.PROGRESS_MAXIMUM_VALUE
+                : Math.min((int) sum, MessageHistorySearchProgressListener
+                                        .PROGRESS_MAXIMUM_VALUE - 1);
+
+            if(progress <= lastProgress)
+                return;
+            lastProgress = progress;
+
+            net.java.sip.communicator.service.msghistory.event.ProgressEvent
+                msgEvt = new net.java.sip.communicator.service.msghistory.
+                    event.ProgressEvent(MessageHistoryServiceImpl.this,
+                                        evt, progress);
+            for (int i = 0; i < listeners.length; i++)
+            {
+                listeners[i].progressChanged(msgEvt);
+            }
         }
     }
 
@@ -1851,6 +1903,158 @@ public class MessageHistoryServiceImpl
         }
     }
 
+    /**
+     * Merges the record streams of the histories of the contacts of a
+     * metacontact by timestamp and delivers the messages to the listener of
+     * the query, until the streams end, the limit is reached or the query
+     * is canceled.
+     */
+    private class MessageHistoryQueryImpl
+        implements MessageHistoryQuery,
+                   Runnable
+    {
+        private int limit;
+
+        private MessageHistoryQueryListener listener;
+
+        /**
+         * The next record of every stream which is not exhausted, in
+         * <tt>StreamHead</tt>s ordered by the timestamp of the record.
+         */
+        private PriorityQueue heads = new PriorityQueue(4, new Comparator()
+        {
+            public int compare(Object o1, Object o2)
+            {
+                return ((StreamHead) o1).record.getTimestamp().compareTo(
+                    ((StreamHead) o2).record.getTimestamp());
+            }
+        });
+
+        /**
+         * The <tt>StreamHead</tt>s of all the streams.
+         */
+        private List streams = new ArrayList();
+
+        private volatile boolean canceled = false;
+
+        private volatile boolean finished = false;
+
+        private volatile int messageCount = 0;
+
+        MessageHistoryQueryImpl(int limit,
+                                MessageHistoryQueryListener listener)
+        {
+            this.limit = limit;
+            this.listener = listener;
+        }
+
+        /**
+         * Adds the records of the history of a contact to the query, before
+         * it is run.
+         */
+        void addStream(Contact contact, HistoryRecordStream stream)
+        {
+            streams.add(new StreamHead(contact, stream));
+        }
+
+        public void run()
+        {
+            try
+            {
+                Iterator i = streams.iterator();
+                while (i.hasNext() && !canceled)
+                    advance((StreamHead) i.next());
+
+                while (!canceled
+                       && !heads.isEmpty()
+                       && (limit <= 0 || messageCount < limit))
+                {
+                    StreamHead head = (StreamHead) heads.poll();
+
+                    Object message = convertHistoryRecordToMessageEvent(
+                        head.record, head.contact);
+                    advance(head);
+
+                    // the listener is called without holding any lock, as it
+                    // may cancel the query itself
+                    if (canceled)
+                        break;
+
+                    messageCount++;
+                    listener.messageFound(
+                        new MessageHistoryQueryEvent(this, message));
+                }
+            }
+            catch (RuntimeException ex)
+            {
+                logger.error("Could not search history", ex);
+            }
+            finally
+            {
+                Iterator i = streams.iterator();
+                while (i.hasNext())
+                    ((StreamHead) i.next()).stream.close();
+
+                finished = true;
+                listener.queryFinished(new MessageHistoryQueryEvent(this, null));
+            }
+        }
+
+        /**
+         * Puts back the head of a stream with its next record, if any.
+         */
+        private void advance(StreamHead head)
+        {
+            if (head.stream.hasNext())
+            {
+                head.record = head.stream.nextRecord();
+                heads.add(head);
+            }
+        }
+
+        public void cancel()
+        {
+            canceled = true;
+
+            Iterator i = streams.iterator();
+            while (i.hasNext())
+                ((StreamHead) i.next()).stream.close();
+        }
+
+        public boolean isCanceled()
+        {
+            return canceled;
+        }
+
+        public boolean isFinished()
+        {
+            return finished;
+        }
+
+        public int getMessageCount()
+        {
+            return messageCount;
+        }
+    }
+
+    /**
+     * The next record of a stream of a <tt>MessageHistoryQueryImpl</tt>.
+     */
+    private static class StreamHead
+    {
+        private Contact contact;
+
+        private HistoryRecordStream stream;
+
+        private HistoryRecord record = null;
+
+        StreamHead(Contact contact, HistoryRecordStream stream)
+        {
+            this.contact = contact;
+            this.stream = stream;
+        }
+    }
+
     /**
      * Used to compare MessageDeliveredEvent or MessageReceivedEvent
      * and to be ordered in TreeSet according their timestamp
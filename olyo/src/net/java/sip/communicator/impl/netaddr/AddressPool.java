@@ -28,10 +28,10 @@ public class AddressPool
 
     private void initPool()
     {
-        Enumeration localIfaces = null;
+        Map localAddresses = null;
         try
         {
-            localIfaces = NetworkInterface.getNetworkInterfaces();
+            localAddresses = getLocalAddresses();
         }
         catch (SocketException ex)
         {
@@ -39,8 +39,40 @@ public class AddressPool
                 "Failed to retrieve local interfaces!");
         }
 
+        Iterator addresses = localAddresses.entrySet().iterator();
+        while (addresses.hasNext())
+        {
+            Map.Entry entry = (Map.Entry) addresses.next();
+
+            AddressPoolEntry addrEntry =
+                new AddressPoolEntry((InetAddress) entry.getKey(),
+                                     (NetworkInterface) entry.getValue());
+            AddressDiagnosticsKit diagKit =
+                    new AddressDiagnosticsKit(addrEntry);
+
+            addressEntries.add(addrEntry);
+            diagnosticsKits.put(addrEntry, diagKit);
+            diagKit.start();
+        }
+    }
+
+    /**
+     * Scans all local interfaces and returns their addresses, but the
+     * loopback ones, mapped to the interfaces they belong to, in the order
+     * the interfaces were found.
+     *
+     * @return a map of the non-loopback local addresses to their
+     * <tt>NetworkInterface</tt>s.
+     * @throws SocketException if the local interfaces could not be retrieved.
+     */
+    static Map getLocalAddresses()
+        throws SocketException
+    {
+        Map localAddresses = new LinkedHashMap();
+        Enumeration localIfaces = NetworkInterface.getNetworkInterfaces();
+
         //loop over all local network interfaces
-        while (localIfaces.hasMoreElements())
+        while (localIfaces != null && localIfaces.hasMoreElements())
         {
             NetworkInterface iFace =
                 (NetworkInterface) localIfaces.nextElement();
@@ -56,16 +88,11 @@ public class AddressPool
                 if(address.isLoopbackAddress())
                     continue;
 
-                AddressPoolEntry addrEntry =
-                    new AddressPoolEntry(address, iFace);
-                AddressDiagnosticsKit diagKit =
-                        new AddressDiagnosticsKit(addrEntry);
-
-                addressEntries.add(addrEntry);
-                diagnosticsKits.put(addrEntry, diagKit);
-                diagKit.start();
+                localAddresses.put(address, iFace);
             } //addresses loop
         } //interfaces loop
+
+        return localAddresses;
     }
 
     public static void main(String[] args)
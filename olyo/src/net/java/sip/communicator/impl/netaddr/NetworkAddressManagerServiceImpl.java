@@ -15,6 +15,7 @@ import net.java.sip.communicator.util.*;
 import net.java.stun4j.*;
 import net.java.stun4j.client.*;
 import java.util.*;
+import java.util.concurrent.*;
 import java.io.*;
 
 
@@ -81,10 +82,35 @@ public class NetworkAddressManagerServiceImpl
 
 
     /**
-     * The socket that we use for dummy connections during selection of a local
-     * address that has to be used when communicating with a specific location.
+     * The local host addresses found for the destinations we've been asked
+     * about, mapped to the prefixes of the destinations (see
+     * getRoutePrefix()).
      */
-    DatagramSocket localHostFinderSocket = null;
+    private final Map routeCache = new ConcurrentHashMap();
+
+    /**
+     * The number of times the addresses of the local interfaces have been
+     * found to change. Routes cached before the last change are not used.
+     */
+    private volatile int routeGeneration = 0;
+
+    /**
+     * The timer checking the addresses of the local interfaces for changes.
+     */
+    private Timer interfaceWatcher = null;
+
+    /**
+     * The name of the property containing the number of milliseconds between
+     * two checks of the addresses of the local interfaces.
+     */
+    public static final String INTERFACE_CHECK_INTERVAL_PROPERTY_NAME
+        = "net.java.sip.communicator.impl.netaddr.INTERFACE_CHECK_INTERVAL";
+
+    /**
+     * The default number of milliseconds between two checks of the addresses
+     * of the local interfaces.
+     */
+    public static final long INTERFACE_CHECK_INTERVAL_DEFAULT_VALUE = 5000;
 
     /**
      * A random (unused)local port to use when trying to select a local host
@@ -136,7 +162,7 @@ public class NetworkAddressManagerServiceImpl
          String portStr = NetaddrActivator.getConfigurationService().getString(
              PROP_STUN_SERVER_PORT);
 
-         this.localHostFinderSocket = initRandomPortSocket();
+         startInterfaceWatcher();
 
          if (stunAddressStr == null
              || portStr == null)
@@ -200,6 +226,12 @@ public class NetworkAddressManagerServiceImpl
      {
          try
          {
+            if (interfaceWatcher != null)
+            {
+                interfaceWatcher.cancel();
+                interfaceWatcher = null;
+            }
+
             try{
                 detector.shutDown();
             }catch (Exception ex){
@@ -235,19 +267,58 @@ public class NetworkAddressManagerServiceImpl
      * @return an InetAddress instance representing the local host, and that
      * a socket can bind upon or distribute to peers as a contact address.
      */
-    public synchronized InetAddress getLocalHost(InetAddress intendedDestination)
+    public InetAddress getLocalHost(InetAddress intendedDestination)
+    {
+        //the local host is cached per destination prefix until the addresses
+        //of the local interfaces change, so that looking it up again for the
+        //same few destinations neither connects a socket nor waits on other
+        //lookups.
+        String prefix = getRoutePrefix(intendedDestination);
+        int generation = routeGeneration;
+        CachedRoute route = (CachedRoute) routeCache.get(prefix);
+        if (route != null && route.generation == generation)
+            return route.localHost;
+
+        InetAddress localHost = findLocalHost(intendedDestination);
+        if (localHost != null)
+            routeCache.put(prefix, new CachedRoute(localHost, generation));
+        return localHost;
+    }
+
+    /**
+     * Determines the local host address the system would use for sending to
+     * <tt>intendedDestination</tt>.
+     *
+     * @param intendedDestination the destination that we'd like to use the
+     * localhost address with.
+     *
+     * @return the local host address for <tt>intendedDestination</tt>.
+     */
+    private InetAddress findLocalHost(InetAddress intendedDestination)
     {
-        //no point in making sure that the localHostFinderSocket is initialized.
-        //better let it through a NullPointerException.
         InetAddress localHost = null;
-        localHostFinderSocket.connect(intendedDestination
-                                      , this.RANDOM_ADDR_DISC_PORT);
-        localHost = localHostFinderSocket.getLocalAddress();
-        localHostFinderSocket.disconnect();
+        DatagramSocket localHostFinderSocket = null;
+        try
+        {
+            //a socket of our own, so that lookups don't wait on each other.
+            localHostFinderSocket = new DatagramSocket();
+            localHostFinderSocket.connect(intendedDestination
+                                          , this.RANDOM_ADDR_DISC_PORT);
+            localHost = localHostFinderSocket.getLocalAddress();
+        }
+        catch (SocketException ex)
+        {
+            logger.warn("Failed to create a local host discovery socket", ex);
+        }
+        finally
+        {
+            if (localHostFinderSocket != null)
+                localHostFinderSocket.close();
+        }
         //windows socket implementations return the any address so we need to
         //find something else here ... InetAddress.getLocalHost seems to work
         //better on windows so lets hope it'll do the trick.
-        if( localHost.isAnyLocalAddress())
+        if(localHost == null || localHost.isAnyLocalAddress())
         {
             try
             {
@@ -296,6 +367,59 @@ public class NetworkAddressManagerServiceImpl
         return localHost;
     }
 
+    /**
+     * Returns the prefix that the local host of a destination is cached for,
+     * i.e. its /24 network for an IPv4 destination and its /64 network for
+     * an IPv6 one.
+     *
+     * @param destination the destination whose prefix we need.
+     *
+     * @return the prefix of <tt>destination</tt>.
+     */
+    private static String getRoutePrefix(InetAddress destination)
+    {
+        byte[] address = destination.getAddress();
+        int length = (address.length == 4) ? 3 : 8;
+
+        StringBuffer prefix = new StringBuffer();
+        for (int i = 0; i < length; i++)
+        {
+            if (i > 0)
+                prefix.append('.');
+            prefix.append(address[i] & 0xFF);
+        }
+        return prefix.append('/').append(length * 8).toString();
+    }
+
+    /**
+     * Starts the timer that forgets the cached local host addresses whenever
+     * the addresses of the local interfaces change.
+     */
+    private void startInterfaceWatcher()
+    {
+        long interval = INTERFACE_CHECK_INTERVAL_DEFAULT_VALUE;
+        String intervalStr = NetaddrActivator.getConfigurationService()
+            .getString(INTERFACE_CHECK_INTERVAL_PROPERTY_NAME);
+        if (intervalStr != null && intervalStr.length() > 0)
+        {
+            try
+            {
+                interval = Long.parseLong(intervalStr);
+            }
+            catch (NumberFormatException ex)
+            {
+                logger.error(intervalStr + " is not a valid interval. "
+                             + "Defaulting to "
+                             + INTERFACE_CHECK_INTERVAL_DEFAULT_VALUE,
+                             ex);
+            }
+        }
+
+        if (interfaceWatcher != null)
+            interfaceWatcher.cancel();
+        interfaceWatcher = new Timer("InterfaceWatcher", true);
+        interfaceWatcher.schedule(new InterfaceCheckTask(), interval, interval);
+    }
 
     /**
      * The method queries a Stun server for a binding for the specified port.
@@ -645,4 +769,58 @@ public class NetworkAddressManagerServiceImpl
         stunServerTestThread.start();
 
     }
+
+    /**
+     * A local host address cached for a destination prefix, with the route
+     * generation it was found in.
+     */
+    private static class CachedRoute
+    {
+        private final InetAddress localHost;
+
+        private final int generation;
+
+        CachedRoute(InetAddress localHost, int generation)
+        {
+            this.localHost = localHost;
+            this.generation = generation;
+        }
+    }
+
+    /**
+     * Compares the addresses of the local interfaces, as the address pool
+     * finds them, with those of the previous check, and makes
+     * getLocalHost() forget the cached routes when they differ.
+     */
+    private class InterfaceCheckTask
+        extends TimerTask
+    {
+        private Set localAddresses = getLocalAddresses();
+
+        public void run()
+        {
+            Set addresses = getLocalAddresses();
+            if (addresses == null || addresses.equals(localAddresses))
+                return;
+
+            logger.info("Local addresses changed to " + addresses
+                        + ". Forgetting cached local hosts.");
+            localAddresses = addresses;
+            routeGeneration++;
+            routeCache.clear();
+        }
+
+        private Set getLocalAddresses()
+        {
+            try
+            {
+                return new HashSet(AddressPool.getLocalAddresses().keySet());
+            }
+            catch (SocketException ex)
+            {
+                logger.debug("Failed to retrieve local interfaces", ex);
+                return null;
+            }
+        }
+    }
 }
@@ -0,0 +1,67 @@
+package net.java.sip.communicator.impl.protocol.sip;
+
+import java.util.Set;
+import java.util.concurrent.Future;
+
+/**
+ * An extension of the <tt>DHTAccessService</tt> which lets the invoker issue 
+ * PUT/GET/REMOVE operations without waiting for the overlay round trip. 
+ * Several operations may be in flight at the same time; the maximum number 
+ * of concurrent requests is specified by the implementation.
+ * <p>
+ * The blocking methods inherited from <tt>DHTAccessService</tt> remain 
+ * available and behave exactly as before, so existing invokers do not have 
+ * to be changed.
+ * </p>
+ */
+public interface AsyncDHTAccessService extends DHTAccessService {
+	
+	/**
+	 * Asynchronous version of <tt>DHTAccessService.put()</tt>.
+	 * 
+	 * @param key the 'key' to be inserted.
+	 * @param value the 'value' correspond to the 'key'.
+	 * @param ttl Time-To-Live value of the key-value pair, measured in Second.
+	 * @param secret optional secret which allows removing the pair later.
+	 * @param listener optional listener notified when the operation completes.
+	 * Please specify it to be null if you do not need the notification.
+	 * 
+	 * @return a <tt>Future</tt> which completes when the PUT is done. Its 
+	 * <tt>get()</tt> method throws an <tt>ExecutionException</tt> wrapping the 
+	 * exception the blocking <tt>put()</tt> would have thrown.
+	 */
+	Future<Object> putAsync(Object key, Object value, int ttl, String secret,
+			DHTOperationListener listener);
+	
+	/**
+	 * Asynchronous version of <tt>DHTAccessService.get()</tt>.
+	 * 
+	 * @param key the 'key' to be retrieved.
+	 * @param listener optional listener notified when the operation completes.
+	 * Please specify it to be null if you do not need the notification.
+	 * 
+	 * @return a <tt>Future</tt> whose value is the set of ALL the values 
+	 * correspond to the key.
+	 */
+	Future<Set<Object>> getAsync(Object key, DHTOperationListener listener);
+	
+	/**
+	 * Asynchronous version of <tt>DHTAccessService.remove()</tt>.
+	 * 
+	 * @param key the 'key' to be removed.
+	 * @param value the 'value' to be removed.
+	 * @param secret the secret which is used when PUT the key-value pair.
+	 * @param listener optional listener notified when the operation completes.
+	 * Please specify it to be null if you do not need the notification.
+	 * 
+	 * @return a <tt>Future</tt> which completes when the REMOVE is done.
+	 */
+	Future<Object> removeAsync(Object key, Object value, String secret,
+			DHTOperationListener listener);
+	
+	/**
+	 * Stops accepting new operations and releases the worker threads once the 
+	 * operations already in flight are done.
+	 */
+	void shutdown();
+}
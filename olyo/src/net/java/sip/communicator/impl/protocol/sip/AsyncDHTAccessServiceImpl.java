@@ -0,0 +1,337 @@
+package net.java.sip.communicator.impl.protocol.sip;
+
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import net.java.sip.communicator.util.Logger;
+
+/**
+ * An <tt>AsyncDHTAccessService</tt> which executes the operations of a 
+ * blocking <tt>DHTAccessService</tt> on a bounded pool of worker threads. 
+ * Each worker owns at most one request to the overlay at a time, so the 
+ * size of the pool is also the number of gateway connections kept busy.
+ * <p>
+ * The blocking methods submit the operation to the pool and wait for its 
+ * completion, which keeps the existing invokers working unchanged. When 
+ * they are called by a worker, e.g. from an operation listener, they run 
+ * the operation in the calling thread instead, so that the workers never 
+ * wait on operations queued behind them.
+ * </p>
+ */
+public class AsyncDHTAccessServiceImpl implements AsyncDHTAccessService{
+
+	private static final Logger logger = 
+		Logger.getLogger(AsyncDHTAccessServiceImpl.class);
+	
+	/**
+	 * The number of requests in flight used when no other value is specified.
+	 */
+	public static final int DEF_MAX_REQUESTS_IN_FLIGHT = 4;
+	
+	/**
+	 * The blocking service which actually talks to the overlay.
+	 */
+	private final DHTAccessService delegate;
+	
+	/**
+	 * The pool executing the operations.
+	 */
+	private final ThreadPoolExecutor executor;
+	
+	/**
+	 * Tells whether the current thread is a worker of the pool.
+	 */
+	private final ThreadLocal<Boolean> isWorker = new ThreadLocal<Boolean>();
+	
+	/**
+	 * The counters the latency of the lookups is added to.
+	 */
+	private volatile DHTAccessMetrics metrics = new DHTAccessMetrics();
+	
+	/**
+	 * Creates a new instance which executes the operations of 
+	 * <tt>delegate</tt> with at most <tt>maxRequestsInFlight</tt> concurrent 
+	 * requests.
+	 * 
+	 * @param delegate the blocking service which talks to the overlay.
+	 * @param maxRequestsInFlight the maximum number of concurrent requests.
+	 * If it is not a positive integer, DEF_MAX_REQUESTS_IN_FLIGHT is used.
+	 */
+	public AsyncDHTAccessServiceImpl(DHTAccessService delegate, 
+			int maxRequestsInFlight){
+		if (null == delegate){
+			throw new IllegalArgumentException("The parameter 'delegate' is null.");
+		}
+		if (0 >= maxRequestsInFlight){
+			maxRequestsInFlight = DEF_MAX_REQUESTS_IN_FLIGHT;
+		}
+		
+		this.delegate = delegate;
+		
+		//the core threads are only started when requests arrive
+		this.executor = new ThreadPoolExecutor(
+				maxRequestsInFlight, maxRequestsInFlight,
+				0L, TimeUnit.MILLISECONDS, 
+				new LinkedBlockingQueue<Runnable>(),
+				new WorkerThreadFactory());
+	}
+	
+	/**
+	 * Creates a new instance which executes the operations of 
+	 * <tt>delegate</tt> with at most DEF_MAX_REQUESTS_IN_FLIGHT concurrent 
+	 * requests.
+	 * 
+	 * @param delegate the blocking service which talks to the overlay.
+	 */
+	public AsyncDHTAccessServiceImpl(DHTAccessService delegate){
+		this(delegate, DEF_MAX_REQUESTS_IN_FLIGHT);
+	}
+	
+	/**
+	 * Sets the counters the latency of the lookups is added to, so that 
+	 * they can be shared with the other layers of the DHT access service.
+	 * 
+	 * @param metrics the counters to use.
+	 */
+	public void setMetrics(DHTAccessMetrics metrics){
+		if (null == metrics){
+			throw new IllegalArgumentException("The parameter 'metrics' is null.");
+		}
+		this.metrics = metrics;
+	}
+	
+	public DHTAccessMetrics getMetrics(){
+		return metrics;
+	}
+
+	public Future<Object> putAsync(Object key, Object value, int ttl, 
+			String secret, DHTOperationListener listener) {
+		return submit(key, listener, putOperation(key, value, ttl, secret));
+	}
+
+	public Future<Set<Object>> getAsync(Object key, 
+			DHTOperationListener listener) {
+		return submit(key, listener, getOperation(key));
+	}
+
+	public Future<Object> removeAsync(Object key, Object value, 
+			String secret, DHTOperationListener listener) {
+		return submit(key, listener, removeOperation(key, value, secret));
+	}
+
+	/**
+	 * Blocking adapter of putAsync().
+	 */
+	public void put(Object key, Object value, int ttl, String secret) 
+		throws Exception {
+		waitFor(submitBlocking(key, putOperation(key, value, ttl, secret)));
+	}
+
+	/**
+	 * Blocking adapter of getAsync().
+	 * !!NOTE: the return value is a set of byte[].
+	 */
+	public Set<Object> get(Object key) throws Exception {
+		return waitFor(submitBlocking(key, getOperation(key)));
+	}
+
+	/**
+	 * Issues a GET for each of the keys at once, so that up to 
+	 * maxRequestsInFlight keys are retrieved concurrently, and waits for all 
+	 * of them.
+	 */
+	public Map<Object, Set<Object>> getAll(Collection<?> keys) throws Exception {
+		if (null == keys){
+			throw new IllegalArgumentException("The parameter 'keys' is null.");
+		}
+		
+		Map<Object, Future<Set<Object>>> pending = 
+			new HashMap<Object, Future<Set<Object>>>();
+		for (Iterator it = keys.iterator(); it.hasNext();){
+			Object key = it.next();
+			if (!pending.containsKey(key)){
+				pending.put(key, submitBlocking(key, getOperation(key)));
+			}
+		}
+		
+		Map<Object, Set<Object>> results = new HashMap<Object, Set<Object>>();
+		Exception failure = null;
+		for (Iterator<Map.Entry<Object, Future<Set<Object>>>> it = 
+				pending.entrySet().iterator(); it.hasNext();){
+			Map.Entry<Object, Future<Set<Object>>> entry = it.next();
+			try{
+				results.put(entry.getKey(), waitFor(entry.getValue()));
+			}catch(Exception e){
+				//keep waiting so that no request outlives the call
+				if (null == failure){
+					failure = e;
+				}
+			}
+		}
+		
+		if (null != failure){
+			throw failure;
+		}
+		return results;
+	}
+
+	/**
+	 * Blocking adapter of removeAsync().
+	 */
+	public void remove(Object key, Object value, String secret) 
+		throws Exception {
+		waitFor(submitBlocking(key, removeOperation(key, value, secret)));
+	}
+	
+	public void shutdown() {
+		executor.shutdown();
+	}
+	
+	private Callable<Object> putOperation(final Object key, 
+			final Object value, final int ttl, final String secret) {
+		return new Callable<Object>(){
+			public Object call() throws Exception {
+				delegate.put(key, value, ttl, secret);
+				return null;
+			}
+		};
+	}
+	
+	private Callable<Set<Object>> getOperation(final Object key) {
+		return new Callable<Set<Object>>(){
+			public Set<Object> call() throws Exception {
+				//the time spent in the queue is not part of the lookup
+				long start = System.currentTimeMillis();
+				Set<Object> values = delegate.get(key);
+				metrics.lookupCompleted(System.currentTimeMillis() - start);
+				return values;
+			}
+		};
+	}
+	
+	private Callable<Object> removeOperation(final Object key, 
+			final Object value, final String secret) {
+		return new Callable<Object>(){
+			public Object call() throws Exception {
+				delegate.remove(key, value, secret);
+				return null;
+			}
+		};
+	}
+	
+	/**
+	 * Queues <tt>operation</tt> for execution and arranges for 
+	 * <tt>listener</tt> to be notified of its outcome.
+	 */
+	private <T> Future<T> submit(Object key, DHTOperationListener listener,
+			Callable<T> operation) {
+		if (null == key){
+			throw new IllegalArgumentException("The parameter 'key' is null.");
+		}
+		
+		DHTOperation<T> task = new DHTOperation<T>(key, listener, operation);
+		executor.execute(task);
+		return task;
+	}
+	
+	/**
+	 * Queues <tt>operation</tt> for a blocking method, or runs it at once 
+	 * when the caller is a worker, which must not wait on the queue.
+	 */
+	private <T> Future<T> submitBlocking(Object key, Callable<T> operation) {
+		if (!Boolean.TRUE.equals(isWorker.get())){
+			return submit(key, null, operation);
+		}
+		if (null == key){
+			throw new IllegalArgumentException("The parameter 'key' is null.");
+		}
+		
+		DHTOperation<T> task = new DHTOperation<T>(key, null, operation);
+		task.run();
+		return task;
+	}
+	
+	/**
+	 * Waits for <tt>future</tt> and rethrows the exception of the operation, 
+	 * if any, as the blocking DHTAccessService would have done.
+	 */
+	private static <T> T waitFor(Future<T> future) throws Exception {
+		try{
+			return future.get();
+		}catch(ExecutionException e){
+			Throwable cause = e.getCause();
+			if (cause instanceof Exception){
+				throw (Exception)cause;
+			}
+			throw e;
+		}
+	}
+	
+	/**
+	 * A queued DHT operation which notifies its listener once it is done.
+	 */
+	private static class DHTOperation<T> extends FutureTask<T> {
+		
+		private final Object key;
+		
+		private final DHTOperationListener listener;
+		
+		DHTOperation(Object key, DHTOperationListener listener, 
+				Callable<T> operation){
+			super(operation);
+			this.key = key;
+			this.listener = listener;
+		}
+		
+		protected void done() {
+			if (null == listener || isCancelled()){
+				return;
+			}
+			
+			try{
+				listener.operationCompleted(key, get());
+			}catch(ExecutionException e){
+				Throwable cause = e.getCause();
+				listener.operationFailed(key, (cause instanceof Exception) 
+						? (Exception)cause : e);
+			}catch(InterruptedException e){
+				//cannot happen, the task is already done
+				logger.debug("Interrupted while reading a completed result", e);
+			}catch(RuntimeException e){
+				logger.error("DHTOperationListener failed for key " + key, e);
+			}
+		}
+	}
+	
+	/**
+	 * Creates daemon worker threads so that pending DHT requests never keep 
+	 * the JVM alive, and marks them as workers of this pool.
+	 */
+	private class WorkerThreadFactory implements ThreadFactory {
+		
+		private int threadCount = 0;
+		
+		public synchronized Thread newThread(final Runnable r) {
+			Runnable worker = new Runnable(){
+				public void run() {
+					isWorker.set(Boolean.TRUE);
+					r.run();
+				}
+			};
+			Thread t = new Thread(worker, "DHTAccessWorker-" + (++threadCount));
+			t.setDaemon(true);
+			return t;
+		}
+	}
+}
@@ -0,0 +1,533 @@
+package net.java.sip.communicator.impl.protocol.sip;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.Timer;
+import java.util.TimerTask;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+
+import net.java.sip.communicator.util.Logger;
+
+/**
+ * An <tt>AsyncDHTAccessService</tt> which keeps a bounded, TTL-aware cache of 
+ * the values retrieved from the DHT in front of another 
+ * <tt>AsyncDHTAccessService</tt>. It is used to map AORs to the contact 
+ * addresses registered by their owners, so that repeated calls, MESSAGEs and 
+ * SUBSCRIBEs to the same peer do not go to the overlay every time.
+ * <p>
+ * An entry lives at most as long as the TTL the values were PUT with (the 
+ * registration expiration used by <tt>SipRegistrarConnection</tt>), keys 
+ * without any value are cached for a shorter negative TTL, and entries which 
+ * are still used are refreshed in the background before they expire. 
+ * Invokers call <tt>invalidateLocation()</tt> when a request sent to a cached 
+ * address fails, so that the next lookup goes to the overlay again.
+ * </p>
+ */
+public class CachingDHTAccessService implements AsyncDHTAccessService{
+
+	private static final Logger logger = 
+		Logger.getLogger(CachingDHTAccessService.class);
+	
+	/**
+	 * Default values of the cache parameters, TTLs are measured in Second.
+	 */
+	public static final int DEF_MAX_ENTRIES = 512;
+	public static final int DEF_POSITIVE_TTL = 300;
+	public static final int DEF_NEGATIVE_TTL = 15;
+	
+	/**
+	 * Entries which are used after this fraction of their lifetime are 
+	 * refreshed in the background.
+	 */
+	private static final double REFRESH_RATIO = 0.75;
+	
+	/**
+	 * How often the refresh task looks for entries to refresh, in ms.
+	 */
+	private static final long REFRESH_PERIOD = 5000;
+	
+	private final AsyncDHTAccessService delegate;
+	
+	private final int maxEntries;
+	
+	private final int negativeTtl;
+	
+	/**
+	 * The positive TTL. It is lowered to the TTL of the PUTs made through 
+	 * this service, values registered by peers are assumed to use the same.
+	 */
+	private volatile int positiveTtl;
+	
+	/**
+	 * The cached entries in access order, so that the least recently used 
+	 * one is evicted first. All accesses are synchronized on the map itself.
+	 */
+	private final LinkedHashMap<Object, CacheEntry> entries;
+	
+	/**
+	 * The sequence numbers of the last invalidations of the keys invalidated 
+	 * lately, so that a GET which was sent before its key was invalidated 
+	 * does not cache the values it got. It is bounded like the entries, and 
+	 * the greatest sequence number of the invalidations it forgot is kept in 
+	 * forgottenInvalidation. All accesses are synchronized on entries.
+	 */
+	private final LinkedHashMap<Object, Long> invalidations;
+	
+	/**
+	 * The sequence number of the last invalidation of any key.
+	 */
+	private long invalidationSeq = 0;
+	
+	/**
+	 * The greatest sequence number of the invalidations which were dropped 
+	 * from <tt>invalidations</tt>.
+	 */
+	private long forgottenInvalidation = 0;
+	
+	private final Timer refreshTimer;
+	
+	/**
+	 * The counters the cache hits and misses are added to.
+	 */
+	private volatile DHTAccessMetrics metrics = new DHTAccessMetrics();
+	
+	/**
+	 * Creates a new cache in front of <tt>delegate</tt>.
+	 * 
+	 * @param delegate the service which actually accesses the overlay.
+	 * @param maxEntries the maximum number of keys kept in the cache.
+	 * @param positiveTtl the maximum lifetime of a key with values, in Second.
+	 * @param negativeTtl the lifetime of a key without any value, in Second. 
+	 * If it is not a positive integer, keys without value are not cached.
+	 */
+	public CachingDHTAccessService(AsyncDHTAccessService delegate,
+			final int maxEntries, int positiveTtl, int negativeTtl){
+		if (null == delegate){
+			throw new IllegalArgumentException("The parameter 'delegate' is null.");
+		}else if (0 >= maxEntries || 0 >= positiveTtl){
+			throw new IllegalArgumentException("Illegal cache parameters: " 
+					+ maxEntries + " entries, TTL " + positiveTtl);
+		}
+		
+		this.delegate = delegate;
+		this.maxEntries = maxEntries;
+		this.positiveTtl = positiveTtl;
+		this.negativeTtl = negativeTtl;
+		
+		this.entries = new LinkedHashMap<Object, CacheEntry>(16, 0.75f, true){
+			protected boolean removeEldestEntry(
+					Map.Entry<Object, CacheEntry> eldest) {
+				return size() > CachingDHTAccessService.this.maxEntries;
+			}
+		};
+		this.invalidations = new LinkedHashMap<Object, Long>(){
+			protected boolean removeEldestEntry(
+					Map.Entry<Object, Long> eldest) {
+				if (size() <= CachingDHTAccessService.this.maxEntries){
+					return false;
+				}
+				forgottenInvalidation = Math.max(forgottenInvalidation, 
+						eldest.getValue().longValue());
+				return true;
+			}
+		};
+		
+		this.refreshTimer = new Timer(true);
+		this.refreshTimer.schedule(
+				new RefreshTask(), REFRESH_PERIOD, REFRESH_PERIOD);
+	}
+	
+	/**
+	 * Creates a new cache in front of <tt>delegate</tt> with the default 
+	 * parameters.
+	 * 
+	 * @param delegate the service which actually accesses the overlay.
+	 */
+	public CachingDHTAccessService(AsyncDHTAccessService delegate){
+		this(delegate, DEF_MAX_ENTRIES, DEF_POSITIVE_TTL, DEF_NEGATIVE_TTL);
+	}
+	
+	/**
+	 * Sets the counters the cache hits and misses are added to, so that they 
+	 * can be shared with the other layers of the DHT access service.
+	 * 
+	 * @param metrics the counters to use.
+	 */
+	public void setMetrics(DHTAccessMetrics metrics){
+		if (null == metrics){
+			throw new IllegalArgumentException("The parameter 'metrics' is null.");
+		}
+		this.metrics = metrics;
+	}
+	
+	/**
+	 * Returns the counters of this service: the cache hits and misses, and 
+	 * whatever the layers sharing them count.
+	 */
+	public DHTAccessMetrics getMetrics(){
+		return metrics;
+	}
+	
+	/**
+	 * Returns the cached values of <tt>key</tt> or retrieves them from the 
+	 * overlay if they are not cached or have expired.
+	 * !!NOTE: the return value is a set of byte[].
+	 */
+	public Set<Object> get(Object key) throws Exception {
+		Set<Object> values = lookup(key);
+		if (null != values){
+			return values;
+		}
+		
+		long seq = getInvalidationSeq();
+		values = delegate.get(key);
+		store(key, values, seq);
+		return values;
+	}
+	
+	/**
+	 * Only the keys which are not in the cache are retrieved from the overlay.
+	 */
+	public Map<Object, Set<Object>> getAll(Collection<?> keys) throws Exception {
+		if (null == keys){
+			throw new IllegalArgumentException("The parameter 'keys' is null.");
+		}
+		
+		Map<Object, Set<Object>> results = new HashMap<Object, Set<Object>>();
+		List<Object> missingKeys = new ArrayList<Object>();
+		for (Iterator it = keys.iterator(); it.hasNext();){
+			Object key = it.next();
+			Set<Object> values = lookup(key);
+			if (null != values){
+				results.put(key, values);
+			}else{
+				missingKeys.add(key);
+			}
+		}
+		
+		if (!missingKeys.isEmpty()){
+			long seq = getInvalidationSeq();
+			Map<Object, Set<Object>> fetched = delegate.getAll(missingKeys);
+			for (Iterator<Map.Entry<Object, Set<Object>>> it = 
+					fetched.entrySet().iterator(); it.hasNext();){
+				Map.Entry<Object, Set<Object>> entry = it.next();
+				store(entry.getKey(), entry.getValue(), seq);
+				results.put(entry.getKey(), entry.getValue());
+			}
+		}
+		
+		return results;
+	}
+	
+	/**
+	 * Cached values are returned in an already completed <tt>Future</tt>, 
+	 * and <tt>listener</tt> is notified before this method returns.
+	 */
+	public Future<Set<Object>> getAsync(Object key, 
+			DHTOperationListener listener) {
+		final Set<Object> values = lookup(key);
+		if (null == values){
+			return fetchAsync(key, listener);
+		}
+		
+		FutureTask<Set<Object>> future = new FutureTask<Set<Object>>(
+				new Callable<Set<Object>>(){
+					public Set<Object> call() {
+						return values;
+					}
+				});
+		future.run();
+		if (null != listener){
+			listener.operationCompleted(key, values);
+		}
+		return future;
+	}
+	
+	/**
+	 * Retrieves the values of <tt>key</tt> from the overlay and caches them, 
+	 * unless the key is invalidated meanwhile.
+	 */
+	private Future<Set<Object>> fetchAsync(Object key, 
+			final DHTOperationListener listener) {
+		final long seq = getInvalidationSeq();
+		return delegate.getAsync(key, new DHTOperationListener(){
+			public void operationCompleted(Object key, Object result) {
+				store(key, (Set<Object>)result, seq);
+				if (null != listener){
+					listener.operationCompleted(key, result);
+				}
+			}
+			
+			public void operationFailed(Object key, Exception cause) {
+				if (null != listener){
+					listener.operationFailed(key, cause);
+				}
+			}
+		});
+	}
+	
+	/**
+	 * The values of <tt>key</tt> change, so the cached ones are dropped. 
+	 * The TTL of the PUT also bounds how long values are cached.
+	 */
+	public void put(Object key, Object value, int ttl, String secret) 
+		throws Exception {
+		invalidate(key);
+		adjustPositiveTtl(ttl);
+		delegate.put(key, value, ttl, secret);
+	}
+	
+	public Future<Object> putAsync(Object key, Object value, int ttl, 
+			String secret, DHTOperationListener listener) {
+		invalidate(key);
+		adjustPositiveTtl(ttl);
+		return delegate.putAsync(key, value, ttl, secret, listener);
+	}
+	
+	public void remove(Object key, Object value, String secret) 
+		throws Exception {
+		invalidate(key);
+		delegate.remove(key, value, secret);
+	}
+	
+	public Future<Object> removeAsync(Object key, Object value, String secret, 
+			DHTOperationListener listener) {
+		invalidate(key);
+		return delegate.removeAsync(key, value, secret, listener);
+	}
+	
+	/**
+	 * Drops the cached values of <tt>key</tt>.
+	 * 
+	 * @param key the key to drop from the cache.
+	 */
+	public void invalidate(Object key) {
+		synchronized(entries){
+			entries.remove(key);
+			invalidations.put(key, new Long(++invalidationSeq));
+		}
+	}
+	
+	/**
+	 * Drops every cached key which has <tt>location</tt> among its values. 
+	 * This is called when a request sent to <tt>location</tt> fails, as the 
+	 * peer has most probably moved or gone offline.
+	 * 
+	 * @param location the value which turned out to be unreachable, usually 
+	 * the request URI of the failed request.
+	 */
+	public void invalidateLocation(String location) {
+		if (null == location){
+			return;
+		}
+		
+		location = location.trim();
+		synchronized(entries){
+			List<Object> keys = new ArrayList<Object>();
+			for (Iterator<Map.Entry<Object, CacheEntry>> it = 
+					entries.entrySet().iterator(); it.hasNext();){
+				Map.Entry<Object, CacheEntry> mapEntry = it.next();
+				if (mapEntry.getValue().containsLocation(location)){
+					keys.add(mapEntry.getKey());
+				}
+			}
+			for (Iterator<Object> it = keys.iterator(); it.hasNext();){
+				invalidate(it.next());
+			}
+		}
+	}
+	
+	public void shutdown() {
+		refreshTimer.cancel();
+		synchronized(entries){
+			entries.clear();
+		}
+		delegate.shutdown();
+	}
+	
+	/**
+	 * Returns the cached values of <tt>key</tt> or null if they are not 
+	 * cached or have expired.
+	 */
+	private Set<Object> lookup(Object key) {
+		if (null == key){
+			throw new IllegalArgumentException("The parameter 'key' is null.");
+		}
+		
+		long now = System.currentTimeMillis();
+		synchronized(entries){
+			CacheEntry entry = entries.get(key);
+			if (null != entry && entry.expirationTime <= now){
+				entries.remove(key);
+				entry = null;
+			}
+			if (null == entry){
+				metrics.cacheMiss();
+				return null;
+			}
+			
+			metrics.cacheHit();
+			entry.used = true;
+			return entry.values;
+		}
+	}
+	
+	/**
+	 * Returns the sequence number of the last invalidation, to be passed to 
+	 * store() with the values of a GET sent after this call.
+	 */
+	private long getInvalidationSeq() {
+		synchronized(entries){
+			return invalidationSeq;
+		}
+	}
+	
+	/**
+	 * Caches the values of <tt>key</tt> retrieved by a GET sent when the 
+	 * last invalidation was <tt>seq</tt>, unless the key was invalidated 
+	 * since, as the values may then be stale.
+	 */
+	private void store(Object key, Set<Object> values, long seq) {
+		int ttl = values.isEmpty() ? negativeTtl : positiveTtl;
+		if (0 >= ttl){
+			return;
+		}
+		
+		CacheEntry entry = new CacheEntry(values, ttl);
+		synchronized(entries){
+			Long invalidation = invalidations.get(key);
+			if (forgottenInvalidation > seq 
+					|| (null != invalidation && invalidation.longValue() > seq)){
+				return;
+			}
+			entries.put(key, entry);
+		}
+	}
+	
+	private void adjustPositiveTtl(int ttl) {
+		if (0 < ttl && ttl < positiveTtl){
+			positiveTtl = ttl;
+		}
+	}
+	
+	/**
+	 * The cached values of a key.
+	 */
+	private static class CacheEntry {
+		
+		final Set<Object> values;
+		
+		final long refreshTime;
+		
+		final long expirationTime;
+		
+		/**
+		 * Whether the entry has been used since it was stored. Only entries 
+		 * which are used are refreshed.
+		 */
+		boolean used = false;
+		
+		/**
+		 * Whether a refresh of the entry has been issued.
+		 */
+		boolean refreshing = false;
+		
+		CacheEntry(Set<Object> values, int ttl){
+			long now = System.currentTimeMillis();
+			this.values = Collections.unmodifiableSet(new HashSet<Object>(values));
+			this.refreshTime = now + (long)(ttl * 1000L * REFRESH_RATIO);
+			this.expirationTime = now + ttl * 1000L;
+		}
+		
+		boolean containsLocation(String location) {
+			for (Iterator it = values.iterator(); it.hasNext();){
+				Object value = it.next();
+				String valueStr = (value instanceof byte[]) 
+					? new String((byte[])value) : value.toString();
+				if (location.equals(valueStr.trim())){
+					return true;
+				}
+			}
+			return false;
+		}
+	}
+	
+	/**
+	 * Refreshes in the background the entries which are still used and are 
+	 * about to expire, and drops the expired ones.
+	 */
+	private class RefreshTask extends TimerTask {
+		
+		public void run() {
+			long now = System.currentTimeMillis();
+			List<Object> keysToRefresh = new ArrayList<Object>();
+			List<CacheEntry> entriesToRefresh = new ArrayList<CacheEntry>();
+			
+			synchronized(entries){
+				for (Iterator<Map.Entry<Object, CacheEntry>> it = 
+						entries.entrySet().iterator(); it.hasNext();){
+					Map.Entry<Object, CacheEntry> mapEntry = it.next();
+					CacheEntry entry = mapEntry.getValue();
+					
+					if (entry.expirationTime <= now){
+						it.remove();
+					}else if (entry.refreshTime <= now && entry.used 
+							&& !entry.refreshing){
+						entry.refreshing = true;
+						keysToRefresh.add(mapEntry.getKey());
+						entriesToRefresh.add(entry);
+					}
+				}
+			}
+			
+			for (int i = 0; i < keysToRefresh.size(); i++){
+				Object key = keysToRefresh.get(i);
+				final CacheEntry entry = entriesToRefresh.get(i);
+				logger.debug("Refreshing the cached DHT values of " + key);
+				boolean sent = false;
+				try{
+					fetchAsync(key, new DHTOperationListener(){
+						public void operationCompleted(Object key, 
+								Object result) {
+							endRefresh(entry);
+						}
+						
+						public void operationFailed(Object key, 
+								Exception cause) {
+							logger.debug("Couldn't refresh " + key, cause);
+							endRefresh(entry);
+						}
+					});
+					sent = true;
+				}catch(RuntimeException e){
+					//e.g. the delegate is shutting down
+					logger.debug("Couldn't refresh " + key, e);
+				}finally{
+					if (!sent){
+						endRefresh(entry);
+					}
+				}
+			}
+		}
+		
+		/**
+		 * Lets <tt>entry</tt> be refreshed again, if it is still cached 
+		 * because its refresh failed or was not cached.
+		 */
+		private void endRefresh(CacheEntry entry) {
+			synchronized(entries){
+				entry.refreshing = false;
+			}
+		}
+	}
+}
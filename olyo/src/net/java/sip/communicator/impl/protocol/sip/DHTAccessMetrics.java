@@ -0,0 +1,233 @@
+package net.java.sip.communicator.impl.protocol.sip;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Counters describing how the DHT is accessed: how long lookups take, how
+ * often the gateway asks us to retry or is over capacity, and how many
+ * lookups are answered by the location cache. A single instance is shared
+ * by the layers of the DHT access service, and all its methods may be
+ * called concurrently.
+ * <p>
+ * Lookup latencies are counted in a histogram of power of two buckets:
+ * bucket 0 holds the lookups which took less than 1 ms, bucket i the ones
+ * which took from 2^(i-1) to 2^i - 1 ms, and the last bucket everything
+ * longer.
+ * </p>
+ */
+public class DHTAccessMetrics {
+
+	/**
+	 * The number of buckets of the latency histogram. The last one starts
+	 * at 2^(LATENCY_BUCKETS - 2) ms, about 65 s.
+	 */
+	public static final int LATENCY_BUCKETS = 18;
+
+	private final AtomicLongArray lookupLatencies =
+		new AtomicLongArray(LATENCY_BUCKETS);
+
+	private final AtomicLong lookupCount = new AtomicLong();
+
+	private final AtomicLong lookupTimeSum = new AtomicLong();
+
+	private final AtomicLong retryCount = new AtomicLong();
+
+	private final AtomicLong overCapacityCount = new AtomicLong();
+
+	private final AtomicLong rejectedCount = new AtomicLong();
+
+	private final AtomicLong hedgeCount = new AtomicLong();
+
+	private final AtomicLong failoverCount = new AtomicLong();
+
+	private final AtomicLong cacheHitCount = new AtomicLong();
+
+	private final AtomicLong cacheMissCount = new AtomicLong();
+
+	/**
+	 * Counts a lookup which went to the overlay.
+	 *
+	 * @param millis how long the lookup took, in ms.
+	 */
+	public void lookupCompleted(long millis) {
+		if (0 > millis){
+			millis = 0;
+		}
+		lookupLatencies.incrementAndGet(bucketOf(millis));
+		lookupCount.incrementAndGet();
+		lookupTimeSum.addAndGet(millis);
+	}
+
+	/**
+	 * Counts a request which the gateway answered with RETRY_CODE.
+	 */
+	public void retried() {
+		retryCount.incrementAndGet();
+	}
+
+	/**
+	 * Counts a request which the gateway answered with OVER_CAPACITY_CODE.
+	 */
+	public void overCapacity() {
+		overCapacityCount.incrementAndGet();
+	}
+
+	/**
+	 * Counts a request which was not sent because the circuit breaker of its
+	 * gateway was open.
+	 */
+	public void rejected() {
+		rejectedCount.incrementAndGet();
+	}
+
+	/**
+	 * Counts a GET sent to a second gateway because the first one was slow.
+	 */
+	public void hedged() {
+		hedgeCount.incrementAndGet();
+	}
+
+	/**
+	 * Counts a request sent to another gateway because one failed.
+	 */
+	public void failedOver() {
+		failoverCount.incrementAndGet();
+	}
+
+	/**
+	 * Counts a lookup answered by the location cache.
+	 */
+	public void cacheHit() {
+		cacheHitCount.incrementAndGet();
+	}
+
+	/**
+	 * Counts a lookup the location cache could not answer.
+	 */
+	public void cacheMiss() {
+		cacheMissCount.incrementAndGet();
+	}
+
+	public long getLookupCount() {
+		return lookupCount.get();
+	}
+
+	/**
+	 * Returns the mean latency of the lookups, in ms.
+	 */
+	public long getMeanLookupLatency() {
+		long count = lookupCount.get();
+		return (0 == count) ? 0 : lookupTimeSum.get() / count;
+	}
+
+	/**
+	 * Returns a copy of the latency histogram.
+	 */
+	public long[] getLookupLatencyHistogram() {
+		long[] histogram = new long[LATENCY_BUCKETS];
+		for (int i = 0; i < LATENCY_BUCKETS; i++){
+			histogram[i] = lookupLatencies.get(i);
+		}
+		return histogram;
+	}
+
+	/**
+	 * Returns an upper bound of the given percentile of the lookup latency,
+	 * that is the upper bound of the bucket it falls into, in ms.
+	 *
+	 * @param percentile the percentile, between 0 and 100.
+	 * @return an upper bound of the percentile, or -1 if no lookup has
+	 * been counted yet.
+	 */
+	public long getLookupLatencyPercentile(double percentile) {
+		long[] histogram = getLookupLatencyHistogram();
+		long total = 0;
+		for (int i = 0; i < histogram.length; i++){
+			total += histogram[i];
+		}
+		if (0 == total){
+			return -1;
+		}
+
+		long rank = (long)Math.ceil(total * percentile / 100.0);
+		long seen = 0;
+		for (int i = 0; i < histogram.length; i++){
+			seen += histogram[i];
+			if (seen >= rank){
+				return upperBoundOf(i);
+			}
+		}
+		return upperBoundOf(LATENCY_BUCKETS - 1);
+	}
+
+	public long getRetryCount() {
+		return retryCount.get();
+	}
+
+	public long getOverCapacityCount() {
+		return overCapacityCount.get();
+	}
+
+	public long getRejectedCount() {
+		return rejectedCount.get();
+	}
+
+	public long getHedgeCount() {
+		return hedgeCount.get();
+	}
+
+	public long getFailoverCount() {
+		return failoverCount.get();
+	}
+
+	public long getCacheHitCount() {
+		return cacheHitCount.get();
+	}
+
+	public long getCacheMissCount() {
+		return cacheMissCount.get();
+	}
+
+	/**
+	 * Returns the fraction of the lookups answered by the location cache,
+	 * between 0 and 1.
+	 */
+	public double getCacheHitRate() {
+		long hits = cacheHitCount.get();
+		long total = hits + cacheMissCount.get();
+		return (0 == total) ? 0 : (double)hits / total;
+	}
+
+	/**
+	 * Returns a one line summary of the counters, suitable for logging.
+	 */
+	public String toString() {
+		return "DHT lookups: " + getLookupCount()
+			+ ", mean " + getMeanLookupLatency() + " ms"
+			+ ", p50 <" + getLookupLatencyPercentile(50) + " ms"
+			+ ", p95 <" + getLookupLatencyPercentile(95) + " ms"
+			+ ", p99 <" + getLookupLatencyPercentile(99) + " ms"
+			+ "; retries: " + getRetryCount()
+			+ "; over capacity: " + getOverCapacityCount()
+			+ "; rejected: " + getRejectedCount()
+			+ "; hedged: " + getHedgeCount()
+			+ "; failovers: " + getFailoverCount()
+			+ "; cache hits: " + getCacheHitCount()
+			+ "/" + (getCacheHitCount() + getCacheMissCount());
+	}
+
+	private static int bucketOf(long millis) {
+		int bucket = 0;
+		while (millis > 0 && bucket < LATENCY_BUCKETS - 1){
+			millis >>= 1;
+			bucket++;
+		}
+		return bucket;
+	}
+
+	private static long upperBoundOf(int bucket) {
+		return (bucket >= LATENCY_BUCKETS - 1)
+			? Long.MAX_VALUE : (1L << bucket);
+	}
+}
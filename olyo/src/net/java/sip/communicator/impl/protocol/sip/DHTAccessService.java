@@ -1,5 +1,7 @@
 package net.java.sip.communicator.impl.protocol.sip;
 
+import java.util.Collection;
+import java.util.Map;
 import java.util.Set;
 
 /**
@@ -53,6 +55,22 @@ public interface DHTAccessService {
 	 */
 	Set<Object> get(Object key) throws Exception;
 	
+	/**
+	 * This method returns ALL the values of each of the given keys. It lets 
+	 * the invoker resolve many keys (e.g. the AORs of a whole buddy list) 
+	 * with as few round trips to the overlay as the implementation allows.
+	 * 
+	 * @param keys the 'keys' to be retrieved. The format of each key is in 
+	 * accordance with that is defined in DHTAccessService.put()
+	 * 
+	 * @return a map from each of the given keys to the set of ALL the values 
+	 * correspond to it. A key without any value is mapped to an empty set.
+	 * 
+	 * @throws Exception indicate the GET operation fails for at least one 
+	 * of the keys.
+	 */
+	Map<Object, Set<Object>> getAll(Collection<?> keys) throws Exception;
+	
 	/**
 	 * Remove the kay-value pair in the DHT. In case that there are multiple values
 	 * corresponding to one key, each REMOVE operation will ONLY remove the value 
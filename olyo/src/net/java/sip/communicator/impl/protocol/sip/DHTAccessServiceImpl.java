@@ -1,21 +1,34 @@
 package net.java.sip.communicator.impl.protocol.sip;
 
+import java.io.IOException;
+import java.io.InputStream;
 import java.net.MalformedURLException;
 import java.net.URL;
+import java.net.URLConnection;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Iterator;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.Map;
+import java.util.Random;
 import java.util.Set;
 
 import org.apache.xmlrpc.XmlRpcException;
 import org.apache.xmlrpc.XmlRpcRequest;
 import org.apache.xmlrpc.client.XmlRpcClient;
+import org.apache.xmlrpc.client.XmlRpcClientException;
+import org.apache.xmlrpc.client.XmlRpcHttpClientConfig;
 import org.apache.xmlrpc.client.XmlRpcClientConfigImpl;
 import org.apache.xmlrpc.client.XmlRpcClientRequestImpl;
+import org.apache.xmlrpc.client.XmlRpcSunHttpTransport;
+import org.apache.xmlrpc.client.XmlRpcTransport;
+import org.apache.xmlrpc.client.XmlRpcTransportFactory;
+import org.apache.xmlrpc.common.XmlRpcStreamRequestConfig;
 
 import net.java.sip.communicator.util.Logger;
 
@@ -28,15 +41,55 @@ public class DHTAccessServiceImpl implements DHTAccessService{
 
 	private static final Logger logger = Logger.getLogger(DHTAccessServiceImpl.class);
 	
-	private static XmlRpcClient xmlRpcClient = null;
+	/**
+	 * The XML-RPC clients, one per gateway URL. A client is safe for 
+	 * concurrent use as long as each request carries its own config and 
+	 * gets its own transport, see getClientForEndpoint().
+	 */
+	private static final Map<String, XmlRpcClient> clientsByEndpoint = 
+		new HashMap<String, XmlRpcClient>();
+	
+	/**
+	 * The circuit breakers, one per gateway URL, shared by all the instances 
+	 * using the gateway. Guarded by clientsByEndpoint.
+	 */
+	private static final Map<String, DHTCircuitBreaker> breakersByEndpoint = 
+		new HashMap<String, DHTCircuitBreaker>();
+	
+	private static final Random random = new Random();
+	
+	private final XmlRpcClient xmlRpcClient;
+	
+	private final DHTCircuitBreaker breaker;
+	
+	private final XmlRpcClientConfigImpl cfg;
 	
-	private XmlRpcClientConfigImpl cfg;
+	/**
+	 * The counters the RETRY and OVER_CAPACITY answers are added to.
+	 */
+	private volatile DHTAccessMetrics metrics = new DHTAccessMetrics();
 	
 	//default address of RPC server
 	private static final String DEF_RPC_SERVER_URL_STR = 
 		new String("http://127.0.0.1:3998/");
 	
-	private static MessageDigest md = null;
+	/**
+	 * A MessageDigest is not thread-safe, so each thread has its own.
+	 */
+	private static final ThreadLocal<MessageDigest> digests = 
+		new ThreadLocal<MessageDigest>(){
+			protected MessageDigest initialValue() {
+				try{
+					return MessageDigest.getInstance(HASH_ALG_NAME);
+				}catch(NoSuchAlgorithmException e){
+					//this should never happen, just log it
+					logger.error("NoSuchAlgorithmException occur while " +
+							"initialize digest in DHTAccessServiceImpl.\n" +
+							"The eror msg is:\n" + e.getMessage());
+					return null;
+				}
+			}
+		};
 
 	private static final String ENCODE = new String("US-ASCII");
 	
@@ -60,6 +113,40 @@ public class DHTAccessServiceImpl implements DHTAccessService{
 	private static final int RETRY_CODE = 2;
 	
 	private static final int DEF_TTL = 3600; //used by remove()
+	
+	/**
+	 * Default retry policy, in ms. The delay before the n-th retry of a 
+	 * request answered with RETRY_CODE is drawn between half and all of 
+	 * min(DEF_MAX_BACKOFF, DEF_INITIAL_BACKOFF * 2^n), and an operation 
+	 * fails with a DHTUnavailableException when it cannot complete within 
+	 * DEF_OPERATION_TIMEOUT.
+	 */
+	public static final long DEF_INITIAL_BACKOFF = 100;
+	public static final long DEF_MAX_BACKOFF = 5000;
+	public static final long DEF_OPERATION_TIMEOUT = 30000;
+	
+	private long initialBackoff = DEF_INITIAL_BACKOFF;
+	
+	private long maxBackoff = DEF_MAX_BACKOFF;
+	
+	private long operationTimeout = DEF_OPERATION_TIMEOUT;
+	
+	/**
+	 * Default bounds of the number of values requested by one GET.
+	 * The gateway may return fewer values than requested, but never more.
+	 */
+	public static final int DEF_MIN_VALUES_PER_GET = 4;
+	public static final int DEF_MAX_VALUES_PER_GET = 64;
+	
+	private int minValuesPerGet = DEF_MIN_VALUES_PER_GET;
+	private int maxValuesPerGet = DEF_MAX_VALUES_PER_GET;
+	
+	/**
+	 * The number of values requested by the first GET of a key. It adapts to 
+	 * the number of values found by the previous GETs so that most keys are 
+	 * retrieved in a single round trip.
+	 */
+	private volatile int valuesPerGet = DEF_MIN_VALUES_PER_GET;
 
 	/**
 	 * Create a new instance for DHTAccessServiceImpl with a String which 
@@ -69,10 +156,6 @@ public class DHTAccessServiceImpl implements DHTAccessService{
 	 */
 	public DHTAccessServiceImpl(String rpcServerURLStr) 
 		throws MalformedURLException{
-		if (null == DHTAccessServiceImpl.xmlRpcClient){
-			DHTAccessServiceImpl.xmlRpcClient = new XmlRpcClient();
-		}
-		
 		URL rpcServerURL = null;
 		
 		try{
@@ -87,17 +170,45 @@ public class DHTAccessServiceImpl implements DHTAccessService{
 		
 		this.cfg = new XmlRpcClientConfigImpl();
 		this.cfg.setServerURL(rpcServerURL);
-		xmlRpcClient.setConfig(this.cfg);
+		this.cfg.setConnectionTimeout((int)operationTimeout);
+		this.cfg.setReplyTimeout((int)operationTimeout);
+		this.xmlRpcClient = getClientForEndpoint(rpcServerURL, this.cfg);
 		
-		try{
-			if (null == md){
-				md = MessageDigest.getInstance(HASH_ALG_NAME);
+		synchronized(clientsByEndpoint){
+			DHTCircuitBreaker endpointBreaker = 
+				breakersByEndpoint.get(rpcServerURL.toString());
+			if (null == endpointBreaker){
+				endpointBreaker = new DHTCircuitBreaker();
+				breakersByEndpoint.put(rpcServerURL.toString(), endpointBreaker);
 			}
-		}catch(NoSuchAlgorithmException e){
-			//this should never happen, just log it
-			logger.error("NoSuchAlgorithmException occur while initialize " +
-					"digest in the constructor of DHTAccessServiceImpl.\n" +
-					"The eror msg is:\n" + e.getMessage());
+			this.breaker = endpointBreaker;
+		}
+	}
+	
+	/**
+	 * Returns the XML-RPC client of the gateway at <tt>url</tt>, creating it 
+	 * with <tt>cfg</tt> as its default config if there is none yet.
+	 * The default transport factory of the client hands the same transport, 
+	 * and therefore the same connection, to all the threads, so the client 
+	 * is given a factory creating a transport per request. The transports 
+	 * keep the connections to the gateway alive, see KeepAliveTransport.
+	 */
+	private static XmlRpcClient getClientForEndpoint(URL url, 
+			XmlRpcClientConfigImpl cfg){
+		synchronized(clientsByEndpoint){
+			XmlRpcClient client = clientsByEndpoint.get(url.toString());
+			if (null == client){
+				final XmlRpcClient newClient = new XmlRpcClient();
+				newClient.setConfig(cfg);
+				newClient.setTransportFactory(new XmlRpcTransportFactory(){
+					public XmlRpcTransport getTransport() {
+						return new KeepAliveTransport(newClient);
+					}
+				});
+				client = newClient;
+				clientsByEndpoint.put(url.toString(), client);
+			}
+			return client;
 		}
 	}
 	
@@ -109,6 +220,74 @@ public class DHTAccessServiceImpl implements DHTAccessService{
 	public DHTAccessServiceImpl() throws MalformedURLException{
 		this(null);
 	}
+	
+	/**
+	 * Sets the counters the RETRY and OVER_CAPACITY answers of the gateway 
+	 * are added to, so that they can be shared with the other layers of the 
+	 * DHT access service.
+	 * 
+	 * @param metrics the counters to use.
+	 */
+	public void setMetrics(DHTAccessMetrics metrics){
+		if (null == metrics){
+			throw new IllegalArgumentException("The parameter 'metrics' is null.");
+		}
+		this.metrics = metrics;
+	}
+	
+	/**
+	 * Sets how requests answered with RETRY_CODE are retried, and how long 
+	 * an operation may take.
+	 * @param initialBackoff the upper bound of the delay before the first 
+	 * retry, in ms.
+	 * @param maxBackoff the upper bound of the delay before any retry, in ms.
+	 * @param operationTimeout the time after which an operation fails, 
+	 * retries included, in ms. It also bounds the time to connect to the 
+	 * gateway and to wait for each of its replies.
+	 */
+	public void setRetryPolicy(long initialBackoff, long maxBackoff, 
+			long operationTimeout){
+		if (0 >= initialBackoff || initialBackoff > maxBackoff 
+				|| 0 >= operationTimeout || Integer.MAX_VALUE < operationTimeout){
+			throw new IllegalArgumentException("Illegal retry policy: " 
+					+ initialBackoff + "/" + maxBackoff + "/" 
+					+ operationTimeout + " ms");
+		}
+		this.initialBackoff = initialBackoff;
+		this.maxBackoff = maxBackoff;
+		this.operationTimeout = operationTimeout;
+		this.cfg.setConnectionTimeout((int)operationTimeout);
+		this.cfg.setReplyTimeout((int)operationTimeout);
+	}
+	
+	/**
+	 * Returns whether the gateway of this instance is considered available, 
+	 * that is whether its circuit breaker is closed.
+	 */
+	public boolean isAvailable(){
+		return !breaker.isOpen();
+	}
+	
+	public URL getServerURL(){
+		return this.cfg.getServerURL();
+	}
+	
+	/**
+	 * Sets the bounds of the number of values requested by one GET.
+	 * @param min the number of values requested by the first GET of a key 
+	 * when no multi-valued key has been seen yet. 
+	 * @param max the upper bound of the number of values requested by a GET.
+	 */
+	public void setValuesPerGet(int min, int max){
+		if (0 >= min || min > max){
+			throw new IllegalArgumentException("Illegal values per GET: [" 
+					+ min + ", " + max + "]");
+		}
+		
+		this.minValuesPerGet = min;
+		this.maxValuesPerGet = max;
+		this.valuesPerGet = min;
+	}
 
 	/**
 	 * !!NOTE: the return value is a set of byte[].
@@ -121,8 +300,9 @@ public class DHTAccessServiceImpl implements DHTAccessService{
 		List paramList = new ArrayList();
 		Set resultSet = new HashSet();
 		
-		//return at most 1 value in each operation
-		int maxNumOfReturnValue = 1;
+		//ask for as many values as the previous keys had, and ask for more
+		//in each following round trip if the key has more values
+		int maxNumOfReturnValue = valuesPerGet;
 		
 		//1st parameter, "key" which is base64
 		byte [] keyHashResult = hashUsingSHA1(key);
@@ -140,24 +320,37 @@ public class DHTAccessServiceImpl implements DHTAccessService{
 		//4th parameter, and the application name (<string>).
 		paramList.add(DHT_APP_NAME);
 		
+		long deadline = System.currentTimeMillis() + operationTimeout;
 		while(true){
 			XmlRpcRequest request = new XmlRpcClientRequestImpl(this.cfg, GET_METHOD_NAME,paramList);
 			Object [] result = null;
 			
+			if (System.currentTimeMillis() >= deadline){
+				breaker.recordFailure();
+				throw new DHTUnavailableException("GET of " + key 
+						+ " did not complete within " + operationTimeout + " ms");
+			}
+			
 			try{
-				result = (Object[])xmlRpcClient.execute(request);
+				result = (Object[])execute(request);
 				logger.info("Making GET request to: " + this.cfg.getServerURL()+"\n"
 						+ "the key is :" + key + "\n");
 				
 				Object retValue[] = (Object[])result[0];
-				if (1 == retValue.length){
-					resultSet.add((byte[])retValue[0]);
+				for (int i = 0; i < retValue.length; i++){
+					resultSet.add((byte[])retValue[i]);
 				}
 				
 				placemark = (byte[])result[1];
 				if (0 >= placemark.length){
+					breaker.recordSuccess();
 					break;
 				}else{
+					if (retValue.length >= maxNumOfReturnValue){
+						maxNumOfReturnValue = Math.min(
+								maxNumOfReturnValue * 2, maxValuesPerGet);
+						paramList.set(1, maxNumOfReturnValue);
+					}
 					paramList.remove(2);//placemark is the 3rd param
 					paramList.add(2, placemark);
 				}
@@ -168,8 +361,32 @@ public class DHTAccessServiceImpl implements DHTAccessService{
 			}
 		}
 		
+		//a racy update is harmless, the page size is only a hint
+		valuesPerGet = Math.max(minValuesPerGet, 
+				Math.min(resultSet.size() + 1, maxValuesPerGet));
+		
 		return resultSet;
 	}
+	
+	/**
+	 * The keys are retrieved one after the other, each of them with as few 
+	 * round trips as the adaptive page size allows. 
+	 * AsyncDHTAccessServiceImpl retrieves them concurrently.
+	 */
+	public Map<Object, Set<Object>> getAll(Collection<?> keys) throws Exception {
+		if (null == keys){
+			throw new IllegalArgumentException("The parameter 'keys' is null.");
+		}
+		
+		Map<Object, Set<Object>> results = new HashMap<Object, Set<Object>>();
+		for (Iterator it = keys.iterator(); it.hasNext();){
+			Object key = it.next();
+			if (!results.containsKey(key)){
+				results.put(key, get(key));
+			}
+		}
+		return results;
+	}
 
 	/**
 	 * Construct a XML-RPC request for PUT message and send it.
@@ -222,39 +439,16 @@ public class DHTAccessServiceImpl implements DHTAccessService{
 		 * Then send the request and receive response.
 		 */
 		XmlRpcRequest request = new XmlRpcClientRequestImpl(this.cfg, PUT_METHOD_NAME,paramList);
-		Object result = null;
-		Integer resultCode = null;
-		try{			
-			do{
-				//execute the request in the blocking mode
-				result = xmlRpcClient.execute(request);
-				logger.info("Making PUT request to: " + this.cfg.getServerURL()+"\n"
-						+"The key is: " + key.toString()
-						+"\nthe value is: " + value.toString()+"\n");
-				
-				if (result instanceof Integer){
-					resultCode = Integer.class.cast(result);
-				}else{
-					//This should never happen
-					logger.error("The return value is in the type of: "
-							+result.getClass()
-							+"\nillegal type of return value.");
-					throw new Exception("The return value is in the type of: "
-							+result.getClass()
-							+"\nillegal type of return value.");
-				}
-				
-				logger.info("The return code is: "+ resultCode +"\n");
-			}while(RETRY_CODE == resultCode);
+		logger.info("Making PUT request to: " + this.cfg.getServerURL()+"\n"
+				+"The key is: " + key.toString()
+				+"\nthe value is: " + value.toString()+"\n");
+		try{
+			executeWithRetries(request);
 		}catch(XmlRpcException e){
 			logger.error("XML-RPC failed when execute xmlRpcClient.execute(request) in put().\n" +
 					"Throw XmlRpcException to the invoker of this method.");
 			throw new XmlRpcException("XML-RPC failed when execute xmlRpcClient.execute(request) in put()", e);
 		}
-		
-		if (OVER_CAPACITY_CODE == resultCode){
-			throw new DHTOverCapacityException();
-		}		
 	}
 
 	public void remove(Object key, Object value, String secret) throws Exception {
@@ -287,41 +481,184 @@ public class DHTAccessServiceImpl implements DHTAccessService{
 		paramList.add(DHT_APP_NAME);
 		
 		XmlRpcRequest request = new XmlRpcClientRequestImpl(this.cfg, REMOVE_METHOD_NAME,paramList);
-		Object result = null;
-		Integer resultCode = null;
-		try{			
-			do{
-				//execute the request in the blocking mode
-				result = xmlRpcClient.execute(request);
-				logger.info("Making REMOVE request to: " + this.cfg.getServerURL()+"\n"
-						+"The key is: " + key.toString()
-						+"\nthe value is: " + value.toString()+"\n");
-				
-				resultCode = Integer.class.cast(result);
-				
-				logger.info("The return code is: "+ resultCode +"\n");
-			}while(RETRY_CODE == resultCode);
+		logger.info("Making REMOVE request to: " + this.cfg.getServerURL()+"\n"
+				+"The key is: " + key.toString()
+				+"\nthe value is: " + value.toString()+"\n");
+		try{
+			executeWithRetries(request);
 		}catch(XmlRpcException e){
 			logger.error("XML-RPC failed when execute xmlRpcClient.execute(request) in remove().\n" +
 					"Throw XmlRpcException to the invoker of this method.");
 			throw new XmlRpcException("XML-RPC failed when execute xmlRpcClient.execute(request) in remove()", e);
 		}
+	}
+	
+	/**
+	 * Executes a put or rm request, retrying it while the gateway answers 
+	 * RETRY_CODE, with a jittered exponential backoff bounded by the 
+	 * deadline of the operation.
+	 * @throws DHTOverCapacityException if the gateway is over capacity.
+	 * @throws DHTUnavailableException if the deadline is reached or the 
+	 * circuit breaker of the gateway is open.
+	 */
+	private void executeWithRetries(XmlRpcRequest request) throws Exception {
+		long deadline = System.currentTimeMillis() + operationTimeout;
 		
-		if (OVER_CAPACITY_CODE == resultCode){
-			throw new DHTOverCapacityException();
-		}		
+		for (int attempt = 0; ; attempt++){
+			Object result = execute(request);
+			if (!(result instanceof Integer)){
+				//This should never happen
+				breaker.recordFailure();
+				logger.error("The return value is in the type of: "
+						+result.getClass()
+						+"\nillegal type of return value.");
+				throw new Exception("The return value is in the type of: "
+						+result.getClass()
+						+"\nillegal type of return value.");
+			}
+			
+			int resultCode = ((Integer)result).intValue();
+			logger.info("The return code is: "+ resultCode +"\n");
+			
+			if (OVER_CAPACITY_CODE == resultCode){
+				breaker.recordFailure();
+				metrics.overCapacity();
+				throw new DHTOverCapacityException();
+			}else if (RETRY_CODE != resultCode){
+				breaker.recordSuccess();
+				return;
+			}
+			
+			metrics.retried();
+			long backoff = nextBackoff(attempt);
+			if (System.currentTimeMillis() + backoff >= deadline){
+				breaker.recordFailure();
+				throw new DHTUnavailableException(request.getMethodName() 
+						+ " was still asked to retry after " + (attempt + 1) 
+						+ " attempts, giving up");
+			}
+			Thread.sleep(backoff);
+		}
 	}
 	
-	private byte[] hashUsingSHA1(Object o) throws HashOperationFailedException {
+	/**
+	 * Executes <tt>request</tt> once, unless the circuit breaker of the 
+	 * gateway is open. Transport failures are recorded by the breaker, the 
+	 * invoker records the outcome of the answered requests.
+	 */
+	private Object execute(XmlRpcRequest request) 
+		throws XmlRpcException, DHTUnavailableException {
+		if (!breaker.allowRequest()){
+			metrics.rejected();
+			throw new DHTUnavailableException("The DHT gateway " 
+					+ this.cfg.getServerURL() + " failed too often recently");
+		}
+		
 		try{
-			md.update(o.toString().getBytes());
-			MessageDigest tmpMD = (MessageDigest)md.clone();
-			md.reset();
-			return tmpMD.digest();
-		}catch(CloneNotSupportedException e){
+			//execute the request in the blocking mode
+			return xmlRpcClient.execute(request);
+		}catch(XmlRpcException e){
+			breaker.recordFailure();
+			throw e;
+		}
+	}
+	
+	/**
+	 * Returns the delay before the retry following the given attempt: a 
+	 * random value between half and all of the exponential backoff, so that 
+	 * the clients of a congested gateway do not retry in lockstep.
+	 */
+	private long nextBackoff(int attempt) {
+		long backoff = maxBackoff;
+		if (attempt < 31){
+			backoff = Math.min(maxBackoff, initialBackoff << attempt);
+		}
+		
+		long half = backoff / 2;
+		synchronized(random){
+			return half + (long)(random.nextDouble() * (backoff - half));
+		}
+	}
+	
+	private byte[] hashUsingSHA1(Object o) throws HashOperationFailedException {
+		MessageDigest md = digests.get();
+		if (null == md){
 			throw new HashOperationFailedException(
-					"CloneNotSupportedException when calculating Hash value", e);
-		}		
+					HASH_ALG_NAME + " is not available");
+		}
+		
+		//digest() resets md, it is ready for the next hash of this thread
+		return md.digest(o.toString().getBytes());
+	}
+	
+	/**
+	 * A transport which leaves the connection open once the response has 
+	 * been read, so that the JDK keeps it alive and reuses it for the next 
+	 * request to the same gateway (see the http.keepAlive and 
+	 * http.maxConnections system properties). XmlRpcSunHttpTransport 
+	 * disconnects after each request, which costs a TCP handshake per 
+	 * put/get/remove. Connections are still dropped when a request fails.
+	 */
+	private static class KeepAliveTransport extends XmlRpcSunHttpTransport {
+		
+		private InputStream responseStream = null;
+		
+		private boolean responseRead = false;
+		
+		private int connectionTimeout = 0;
+		
+		private int replyTimeout = 0;
+		
+		KeepAliveTransport(XmlRpcClient client){
+			super(client);
+		}
+		
+		/**
+		 * XmlRpcSunHttpTransport ignores the timeouts of the config, they 
+		 * are applied to the connection in newURLConnection().
+		 */
+		public Object sendRequest(XmlRpcRequest request) 
+			throws XmlRpcException {
+			XmlRpcHttpClientConfig config = 
+				(XmlRpcHttpClientConfig)request.getConfig();
+			connectionTimeout = config.getConnectionTimeout();
+			replyTimeout = config.getReplyTimeout();
+			return super.sendRequest(request);
+		}
+		
+		protected URLConnection newURLConnection(URL url) throws IOException {
+			URLConnection conn = super.newURLConnection(url);
+			conn.setConnectTimeout(connectionTimeout);
+			conn.setReadTimeout(replyTimeout);
+			return conn;
+		}
+		
+		protected InputStream getInputStream() throws XmlRpcException {
+			responseStream = super.getInputStream();
+			return responseStream;
+		}
+		
+		protected Object readResponse(XmlRpcStreamRequestConfig config, 
+				InputStream stream) throws XmlRpcException {
+			Object result = super.readResponse(config, stream);
+			responseRead = true;
+			return result;
+		}
+		
+		protected void close() throws XmlRpcClientException {
+			if (!responseRead){
+				super.close();
+				return;
+			}
+			
+			try{
+				//closing the fully read stream hands the connection back to 
+				//the keep-alive cache
+				responseStream.close();
+			}catch(IOException e){
+				super.close();
+			}
+		}
 	}
 	
 	/**
@@ -0,0 +1,329 @@
+package net.java.sip.communicator.impl.protocol.sip;
+
+import java.net.MalformedURLException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+
+import net.java.sip.communicator.service.configuration.ConfigurationService;
+import net.java.sip.communicator.util.Logger;
+
+/**
+ * Creates and owns the DHT access service of the SIP bundle: a blocking
+ * backend (the XML-RPC gateway client or an embedded Overlay Weaver node),
+ * the pool executing its operations asynchronously and the location cache
+ * in front of them. A single stack is shared by all SIP providers, so that
+ * they share the gateway connections, the cache and the counters, and so
+ * that at most one DHT node runs in the JVM.
+ * <p>
+ * The stack is configured with the properties below, which are read once,
+ * when it is created.
+ * </p>
+ */
+public class DHTAccessServiceManager {
+
+	private static final Logger logger =
+		Logger.getLogger(DHTAccessServiceManager.class);
+
+	/**
+	 * The name of the property under which the user may specify how many DHT
+	 * requests may be in flight at the same time.
+	 */
+	private static final String DHT_MAX_REQUESTS_IN_FLIGHT =
+		"net.java.sip.communicator.impl.protocol.sip.DHT_MAX_REQUESTS_IN_FLIGHT";
+
+	/**
+	 * The names of the properties under which the user may specify the
+	 * bounds of the number of values requested by one DHT GET.
+	 */
+	private static final String DHT_MIN_VALUES_PER_GET =
+		"net.java.sip.communicator.impl.protocol.sip.DHT_MIN_VALUES_PER_GET";
+	private static final String DHT_MAX_VALUES_PER_GET =
+		"net.java.sip.communicator.impl.protocol.sip.DHT_MAX_VALUES_PER_GET";
+
+	/**
+	 * The name of the property under which the user may specify how many ms
+	 * a request to the XML-RPC gateway may take, retries included.
+	 */
+	private static final String DHT_OPERATION_TIMEOUT =
+		"net.java.sip.communicator.impl.protocol.sip.DHT_OPERATION_TIMEOUT";
+
+	/**
+	 * The names of the properties under which the user may specify the
+	 * number of AORs kept in the DHT location cache, and how many seconds
+	 * AORs with and without a registered contact address are kept.
+	 */
+	private static final String DHT_CACHE_MAX_ENTRIES =
+		"net.java.sip.communicator.impl.protocol.sip.DHT_CACHE_MAX_ENTRIES";
+	private static final String DHT_CACHE_TTL =
+		"net.java.sip.communicator.impl.protocol.sip.DHT_CACHE_TTL";
+	private static final String DHT_CACHE_NEGATIVE_TTL =
+		"net.java.sip.communicator.impl.protocol.sip.DHT_CACHE_NEGATIVE_TTL";
+
+	/**
+	 * The name of the property under which the user may choose how the DHT
+	 * is accessed: through the XML-RPC gateway (the default) or by an
+	 * Overlay Weaver node embedded in the client.
+	 */
+	private static final String DHT_BACKEND =
+		"net.java.sip.communicator.impl.protocol.sip.DHT_BACKEND";
+
+	/**
+	 * The value of DHT_BACKEND which selects the embedded DHT node.
+	 */
+	private static final String DHT_BACKEND_EMBEDDED = "EMBEDDED";
+
+	/**
+	 * The name of the property under which the user may specify the URL of
+	 * the XML-RPC gateway, e.g. "http://127.0.0.1:3998/", or the URLs of
+	 * several gateways separated by commas or spaces.
+	 */
+	private static final String DHT_GATEWAY_URL =
+		"net.java.sip.communicator.impl.protocol.sip.DHT_GATEWAY_URL";
+
+	/**
+	 * The name of the property under which the user may specify the
+	 * percentile of the GET latency after which a GET is sent to a second
+	 * gateway, when several are configured.
+	 */
+	private static final String DHT_HEDGE_PERCENTILE =
+		"net.java.sip.communicator.impl.protocol.sip.DHT_HEDGE_PERCENTILE";
+
+	/**
+	 * The names of the properties under which the user may specify the port
+	 * the embedded DHT node listens on, and the "host:port" of the node it
+	 * joins the overlay through.
+	 */
+	private static final String DHT_NODE_PORT =
+		"net.java.sip.communicator.impl.protocol.sip.DHT_NODE_PORT";
+	private static final String DHT_BOOTSTRAP_NODE =
+		"net.java.sip.communicator.impl.protocol.sip.DHT_BOOTSTRAP_NODE";
+
+	private final ConfigurationService configurationService;
+
+	/**
+	 * The counters shared by all the layers of the stack.
+	 */
+	private final DHTAccessMetrics metrics = new DHTAccessMetrics();
+
+	private CachingDHTAccessService dhtAccessService = null;
+
+	/**
+	 * The DHT node running in this JVM when the embedded backend is used.
+	 */
+	private OverlayWeaverDHTAccessService embeddedDHTNode = null;
+	
+	/**
+	 * The client of the gateways when several are configured.
+	 */
+	private MultiGatewayDHTAccessService multiGatewayAccessor = null;
+	
+	private boolean stopped = false;
+
+	/**
+	 * Creates a manager reading the configuration of the stack from
+	 * <tt>configurationService</tt>. Nothing is created before the first
+	 * call to getDHTAccessService().
+	 *
+	 * @param configurationService the service holding the DHT properties.
+	 */
+	public DHTAccessServiceManager(ConfigurationService configurationService){
+		this.configurationService = configurationService;
+	}
+
+	/**
+	 * Returns the DHT access service, creating it the first time.
+	 *
+	 * @return the shared <tt>CachingDHTAccessService</tt>, or null if the
+	 * manager has been stopped.
+	 */
+	public synchronized CachingDHTAccessService getDHTAccessService(){
+		if (null != dhtAccessService || stopped){
+			return dhtAccessService;
+		}
+
+		DHTAccessService backend = createBackend();
+
+		AsyncDHTAccessServiceImpl asyncAccessor = new AsyncDHTAccessServiceImpl(
+				backend,
+				getIntProperty(DHT_MAX_REQUESTS_IN_FLIGHT,
+						AsyncDHTAccessServiceImpl.DEF_MAX_REQUESTS_IN_FLIGHT));
+		asyncAccessor.setMetrics(metrics);
+
+		dhtAccessService = new CachingDHTAccessService(asyncAccessor,
+				getIntProperty(DHT_CACHE_MAX_ENTRIES,
+						CachingDHTAccessService.DEF_MAX_ENTRIES),
+				getIntProperty(DHT_CACHE_TTL,
+						CachingDHTAccessService.DEF_POSITIVE_TTL),
+				getIntProperty(DHT_CACHE_NEGATIVE_TTL,
+						CachingDHTAccessService.DEF_NEGATIVE_TTL));
+		dhtAccessService.setMetrics(metrics);
+
+		return dhtAccessService;
+	}
+
+	/**
+	 * Returns the counters of the stack.
+	 */
+	public DHTAccessMetrics getMetrics(){
+		return metrics;
+	}
+
+	/**
+	 * Shuts the stack down and stops the embedded DHT node, if any.
+	 */
+	public synchronized void stop(){
+		stopped = true;
+		
+		if (null != dhtAccessService){
+			logger.info(metrics.toString());
+			dhtAccessService.shutdown();
+			dhtAccessService = null;
+		}
+
+		if (null != embeddedDHTNode){
+			embeddedDHTNode.stop();
+			embeddedDHTNode = null;
+		}
+
+		if (null != multiGatewayAccessor){
+			multiGatewayAccessor.stop();
+			multiGatewayAccessor = null;
+		}
+	}
+
+	/**
+	 * Creates the blocking DHT accessor selected by the DHT_BACKEND property:
+	 * either an XML-RPC client of the gateway at DHT_GATEWAY_URL (default),
+	 * or an Overlay Weaver node running in this JVM. If the configured
+	 * gateways are not valid, the client of the default gateway is returned.
+	 *
+	 * @return the blocking DHT accessor.
+	 */
+	private DHTAccessService createBackend(){
+		String backendName = configurationService.getString(DHT_BACKEND);
+
+		if (DHT_BACKEND_EMBEDDED.equalsIgnoreCase(backendName)){
+			try{
+				embeddedDHTNode = new OverlayWeaverDHTAccessService(
+						getIntProperty(DHT_NODE_PORT, -1),
+						configurationService.getString(DHT_BOOTSTRAP_NODE));
+				return embeddedDHTNode;
+			}catch(Exception e){
+				logger.error("Failed to start the embedded DHT node, "
+						+ "falling back to the XML-RPC gateway", e);
+			}
+		}
+
+		List<String> gatewayURLs = new ArrayList<String>();
+		String gatewayURLsStr = configurationService.getString(DHT_GATEWAY_URL);
+		if (null != gatewayURLsStr){
+			String[] urls = gatewayURLsStr.split("[,\\s]+");
+			for (int i = 0; i < urls.length; i++){
+				if (0 < urls[i].length()){
+					gatewayURLs.add(urls[i]);
+				}
+			}
+		}
+
+		try{
+			if (1 < gatewayURLs.size()){
+				multiGatewayAccessor = new MultiGatewayDHTAccessService(
+						gatewayURLs,
+						getIntProperty(DHT_HEDGE_PERCENTILE,
+								(int)MultiGatewayDHTAccessService.DEF_HEDGE_PERCENTILE),
+						MultiGatewayDHTAccessService.DEF_PROBE_PERIOD);
+				multiGatewayAccessor.setMetrics(metrics);
+				for (Iterator<DHTAccessServiceImpl> it = 
+						multiGatewayAccessor.getGateways().iterator(); 
+						it.hasNext();){
+					configureGateway(it.next());
+				}
+				return multiGatewayAccessor;
+			}
+
+			DHTAccessServiceImpl xmlRpcAccessor = new DHTAccessServiceImpl(
+					gatewayURLs.isEmpty() ? null : gatewayURLs.get(0));
+			xmlRpcAccessor.setMetrics(metrics);
+			configureGateway(xmlRpcAccessor);
+			return xmlRpcAccessor;
+		}catch(MalformedURLException e){
+			logger.error("Invalid DHT gateway URL, "
+					+ "falling back to the default gateway", e);
+			return createDefaultGateway();
+		}catch(IllegalArgumentException e){
+			logger.error("Invalid DHT hedging percentile, "
+					+ "falling back to the default gateway", e);
+			return createDefaultGateway();
+		}
+	}
+
+	/**
+	 * Creates the client of the default XML-RPC gateway, used when the
+	 * configured gateways are not valid.
+	 *
+	 * @return the client of the default gateway.
+	 */
+	private DHTAccessService createDefaultGateway(){
+		try{
+			DHTAccessServiceImpl xmlRpcAccessor = new DHTAccessServiceImpl();
+			xmlRpcAccessor.setMetrics(metrics);
+			configureGateway(xmlRpcAccessor);
+			return xmlRpcAccessor;
+		}catch(MalformedURLException e){
+			// the default URL is a constant, this should never happen
+			throw new IllegalStateException(
+					"Invalid default DHT gateway URL", e);
+		}
+	}
+
+	/**
+	 * Applies the configured retry policy and page size to the client of a
+	 * gateway.
+	 */
+	private void configureGateway(DHTAccessServiceImpl xmlRpcAccessor){
+		try{
+			xmlRpcAccessor.setRetryPolicy(
+					DHTAccessServiceImpl.DEF_INITIAL_BACKOFF,
+					DHTAccessServiceImpl.DEF_MAX_BACKOFF,
+					getIntProperty(DHT_OPERATION_TIMEOUT,
+							(int)DHTAccessServiceImpl.DEF_OPERATION_TIMEOUT));
+		}catch(IllegalArgumentException e){
+			logger.error("Ignoring the configured DHT operation timeout", e);
+		}
+		try{
+			xmlRpcAccessor.setValuesPerGet(
+					getIntProperty(DHT_MIN_VALUES_PER_GET,
+							DHTAccessServiceImpl.DEF_MIN_VALUES_PER_GET),
+					getIntProperty(DHT_MAX_VALUES_PER_GET,
+							DHTAccessServiceImpl.DEF_MAX_VALUES_PER_GET));
+		}catch(IllegalArgumentException e){
+			logger.error("Ignoring the configured DHT page size", e);
+		}
+	}
+
+	/**
+	 * Returns the integer value of the configuration property
+	 * <tt>propertyName</tt> or <tt>defaultValue</tt> if the property is not
+	 * set or is not a valid integer.
+	 *
+	 * @param propertyName the name of the property.
+	 * @param defaultValue the value to return if the property is not usable.
+	 * @return the integer value of the property.
+	 */
+	private int getIntProperty(String propertyName, int defaultValue){
+		String valueStr = configurationService.getString(propertyName);
+
+		if (null == valueStr || 0 == valueStr.length()){
+			return defaultValue;
+		}
+
+		try{
+			return Integer.parseInt(valueStr);
+		}catch(NumberFormatException e){
+			logger.error(valueStr + " is not a valid value for "
+					+ propertyName + ". Expected an integer", e);
+			return defaultValue;
+		}
+	}
+}
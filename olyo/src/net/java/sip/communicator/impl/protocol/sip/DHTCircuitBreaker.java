@@ -0,0 +1,78 @@
+package net.java.sip.communicator.impl.protocol.sip;
+
+/**
+ * Keeps track of the consecutive failures of a DHT gateway, so that requests 
+ * fail fast instead of piling up on a gateway which is down or overloaded.
+ * <p>
+ * After <tt>failureThreshold</tt> consecutive failures the breaker opens and 
+ * rejects all requests for <tt>openPeriod</tt> ms. Then it lets a single 
+ * probe request through per period, until one of them succeeds and closes 
+ * it again.
+ * </p>
+ */
+public class DHTCircuitBreaker {
+	
+	public static final int DEF_FAILURE_THRESHOLD = 5;
+	
+	public static final long DEF_OPEN_PERIOD = 30000;
+	
+	private final int failureThreshold;
+	
+	private final long openPeriod;
+	
+	private int consecutiveFailures = 0;
+	
+	/**
+	 * The time before which the open breaker rejects the requests.
+	 */
+	private long openUntil = 0;
+	
+	public DHTCircuitBreaker(int failureThreshold, long openPeriod){
+		if (0 >= failureThreshold || 0 > openPeriod){
+			throw new IllegalArgumentException("Illegal breaker parameters: " 
+					+ failureThreshold + " failures, " + openPeriod + " ms");
+		}
+		this.failureThreshold = failureThreshold;
+		this.openPeriod = openPeriod;
+	}
+	
+	public DHTCircuitBreaker(){
+		this(DEF_FAILURE_THRESHOLD, DEF_OPEN_PERIOD);
+	}
+	
+	/**
+	 * Returns whether a request may be sent to the gateway now. When the 
+	 * breaker is open and its period is over, the request is let through as 
+	 * the probe of the next period.
+	 */
+	public synchronized boolean allowRequest() {
+		if (consecutiveFailures < failureThreshold){
+			return true;
+		}
+		
+		long now = System.currentTimeMillis();
+		if (now < openUntil){
+			return false;
+		}
+		
+		//no other probe until the next period, whatever the outcome of this 
+		//one, so a lost outcome cannot keep the breaker shut
+		openUntil = now + openPeriod;
+		return true;
+	}
+	
+	public synchronized void recordSuccess() {
+		consecutiveFailures = 0;
+	}
+	
+	public synchronized void recordFailure() {
+		consecutiveFailures++;
+		if (consecutiveFailures == failureThreshold){
+			openUntil = System.currentTimeMillis() + openPeriod;
+		}
+	}
+	
+	public synchronized boolean isOpen() {
+		return consecutiveFailures >= failureThreshold;
+	}
+}
@@ -0,0 +1,27 @@
+package net.java.sip.communicator.impl.protocol.sip;
+
+/**
+ * A listener that is notified when an asynchronous operation issued through an 
+ * <tt>AsyncDHTAccessService</tt> completes. Notifications are delivered on the 
+ * worker thread that executed the operation, so implementations should return 
+ * quickly and must not block on other DHT operations.
+ */
+public interface DHTOperationListener {
+	
+	/**
+	 * Called when a DHT operation completes successfully.
+	 * 
+	 * @param key the key the operation was issued for.
+	 * @param result the result of the operation: the <tt>Set</tt> of values 
+	 * for a GET, <tt>null</tt> for a PUT or a REMOVE.
+	 */
+	void operationCompleted(Object key, Object result);
+	
+	/**
+	 * Called when a DHT operation fails.
+	 * 
+	 * @param key the key the operation was issued for.
+	 * @param cause the exception that made the operation fail.
+	 */
+	void operationFailed(Object key, Exception cause);
+}
@@ -0,0 +1,12 @@
+package net.java.sip.communicator.impl.protocol.sip;
+
+/**
+ * Thrown when a DHT operation fails fast: its gateway has failed too often 
+ * recently, or the gateway kept asking to retry until the deadline of the 
+ * operation.
+ */
+public class DHTUnavailableException extends Exception {
+	public DHTUnavailableException(String msg){
+		super(msg);
+	}
+}
@@ -0,0 +1,499 @@
+package net.java.sip.communicator.impl.protocol.sip;
+
+import java.net.MalformedURLException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.Timer;
+import java.util.TimerTask;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import net.java.sip.communicator.util.Logger;
+
+/**
+ * A <tt>DHTAccessService</tt> which spreads the requests over several
+ * XML-RPC gateways of the same overlay.
+ * <p>
+ * The round-trip time of each gateway is estimated from its GETs and from
+ * a probe GET sent periodically, and each request goes to the fastest
+ * gateway whose circuit breaker is closed. A request which fails is sent to
+ * the next gateway. A GET which is not answered after the given percentile
+ * of the GET latency is sent to the next gateway too, and the first answer
+ * is used, which cuts the tail latency when a gateway is slow.
+ * </p><p>
+ * The gateways are probed concurrently. A gateway which does not answer its
+ * probe within the probe timeout, much shorter than the operation timeout,
+ * is ranked as if it took that long, and is not probed again until the
+ * probe completes.
+ * </p>
+ */
+public class MultiGatewayDHTAccessService implements DHTAccessService{
+
+	private static final Logger logger =
+		Logger.getLogger(MultiGatewayDHTAccessService.class);
+
+	/**
+	 * The percentile of the GET latency after which a GET is hedged, used
+	 * when no other value is specified.
+	 */
+	public static final double DEF_HEDGE_PERCENTILE = 95;
+
+	/**
+	 * How often the gateways are probed, in ms.
+	 */
+	public static final long DEF_PROBE_PERIOD = 30000;
+
+	/**
+	 * How long a probe is waited for before its gateway is ranked as slow,
+	 * in ms.
+	 */
+	public static final long DEF_PROBE_TIMEOUT = 2000;
+
+	/**
+	 * The bounds of the hedging delay in ms, and the delay used until
+	 * enough GETs have been timed.
+	 */
+	private static final long MIN_HEDGE_DELAY = 10;
+	private static final long MAX_HEDGE_DELAY = 5000;
+	private static final long DEF_HEDGE_DELAY = 500;
+
+	/**
+	 * The number of timed GETs after which the percentile is trusted.
+	 */
+	private static final int MIN_SAMPLES = 20;
+
+	/**
+	 * The key of the probe GETs. Nobody registers it, so the answer is small.
+	 */
+	private static final String PROBE_KEY = "SIP-Communicator-gateway-probe";
+
+	private final List<Gateway> gateways;
+
+	private final double hedgePercentile;
+
+	private final long probeTimeout;
+
+	/**
+	 * The latency of the GETs sent to the gateways, whichever the gateway,
+	 * which the hedging delay is derived from.
+	 */
+	private final DHTAccessMetrics getLatencies = new DHTAccessMetrics();
+
+	private volatile DHTAccessMetrics metrics = new DHTAccessMetrics();
+
+	/**
+	 * Runs the hedged GETs.
+	 */
+	private final ExecutorService executor;
+
+	private final Timer probeTimer;
+
+	/**
+	 * Creates a service for the gateways at <tt>gatewayURLs</tt>.
+	 *
+	 * @param gatewayURLs the URLs of the gateways, e.g.
+	 * "http://127.0.0.1:3998/".
+	 * @param hedgePercentile the percentile of the GET latency after which a
+	 * GET is sent to a second gateway.
+	 * @param probePeriod how often the round-trip time of the gateways is
+	 * measured, in ms.
+	 * @param probeTimeout how long a probe is waited for, in ms.
+	 * @throws MalformedURLException if one of the URLs is invalid.
+	 */
+	public MultiGatewayDHTAccessService(List<String> gatewayURLs,
+			double hedgePercentile, long probePeriod, long probeTimeout)
+		throws MalformedURLException{
+		if (null == gatewayURLs || gatewayURLs.isEmpty()){
+			throw new IllegalArgumentException("No gateway URL.");
+		}else if (0 >= hedgePercentile || 100 < hedgePercentile
+				|| 0 >= probePeriod || 0 >= probeTimeout){
+			throw new IllegalArgumentException("Illegal hedging parameters: "
+					+ hedgePercentile + "%, probe every " + probePeriod
+					+ " ms for " + probeTimeout + " ms");
+		}
+
+		List<Gateway> gatewayList = new ArrayList<Gateway>();
+		for (Iterator<String> it = gatewayURLs.iterator(); it.hasNext();){
+			gatewayList.add(new Gateway(new DHTAccessServiceImpl(it.next())));
+		}
+		this.gateways = Collections.unmodifiableList(gatewayList);
+		this.hedgePercentile = hedgePercentile;
+		this.probeTimeout = probeTimeout;
+
+		this.executor = Executors.newCachedThreadPool(new ThreadFactory(){
+			private int threadCount = 0;
+
+			public synchronized Thread newThread(Runnable r) {
+				Thread t = new Thread(r, "DHTGatewayWorker-" + (++threadCount));
+				t.setDaemon(true);
+				return t;
+			}
+		});
+
+		this.probeTimer = new Timer(true);
+		this.probeTimer.schedule(new ProbeTask(), 0, probePeriod);
+	}
+
+	/**
+	 * Creates a service for the gateways at <tt>gatewayURLs</tt>, probing
+	 * them for at most DEF_PROBE_TIMEOUT.
+	 */
+	public MultiGatewayDHTAccessService(List<String> gatewayURLs,
+			double hedgePercentile, long probePeriod)
+		throws MalformedURLException{
+		this(gatewayURLs, hedgePercentile, probePeriod, DEF_PROBE_TIMEOUT);
+	}
+
+	/**
+	 * Creates a service for the gateways at <tt>gatewayURLs</tt>, hedging
+	 * GETs at DEF_HEDGE_PERCENTILE and probing every DEF_PROBE_PERIOD.
+	 */
+	public MultiGatewayDHTAccessService(List<String> gatewayURLs)
+		throws MalformedURLException{
+		this(gatewayURLs, DEF_HEDGE_PERCENTILE, DEF_PROBE_PERIOD);
+	}
+
+	/**
+	 * Returns the clients of the gateways, so that they can be configured.
+	 */
+	public List<DHTAccessServiceImpl> getGateways(){
+		List<DHTAccessServiceImpl> accessors =
+			new ArrayList<DHTAccessServiceImpl>();
+		for (Iterator<Gateway> it = gateways.iterator(); it.hasNext();){
+			accessors.add(it.next().accessor);
+		}
+		return accessors;
+	}
+
+	/**
+	 * Sets the counters of the hedged and failed over requests, which are
+	 * also given to the clients of the gateways.
+	 *
+	 * @param metrics the counters to use.
+	 */
+	public void setMetrics(DHTAccessMetrics metrics){
+		if (null == metrics){
+			throw new IllegalArgumentException("The parameter 'metrics' is null.");
+		}
+		this.metrics = metrics;
+		for (Iterator<Gateway> it = gateways.iterator(); it.hasNext();){
+			it.next().accessor.setMetrics(metrics);
+		}
+	}
+
+	/**
+	 * Sends the GET to the fastest gateway, then to the next one if there is
+	 * no answer after the hedging delay or if it fails.
+	 * !!NOTE: the return value is a set of byte[].
+	 */
+	public Set<Object> get(Object key) throws Exception {
+		if (null == key){
+			throw new IllegalArgumentException("The parameter 'key' is null.");
+		}
+
+		List<Gateway> ranked = rankGateways();
+		if (1 == ranked.size()){
+			return ranked.get(0).get(key);
+		}
+
+		CompletionService<Set<Object>> completion =
+			new ExecutorCompletionService<Set<Object>>(executor);
+		int next = 0;
+		int pending = 0;
+		Exception failure = null;
+
+		completion.submit(new TimedGet(ranked.get(next++), key));
+		pending++;
+
+		Future<Set<Object>> done =
+			completion.poll(getHedgeDelay(), TimeUnit.MILLISECONDS);
+		if (null == done && next < ranked.size()){
+			metrics.hedged();
+			completion.submit(new TimedGet(ranked.get(next++), key));
+			pending++;
+		}
+
+		//the slower GETs are not cancelled, they still time their gateway
+		while (0 < pending){
+			if (null == done){
+				done = completion.take();
+			}
+			pending--;
+
+			try{
+				return done.get();
+			}catch(ExecutionException e){
+				failure = (e.getCause() instanceof Exception)
+					? (Exception)e.getCause() : e;
+				logger.debug("GET of " + key + " failed", failure);
+
+				if (0 == pending && next < ranked.size()){
+					metrics.failedOver();
+					completion.submit(new TimedGet(ranked.get(next++), key));
+					pending++;
+				}
+			}
+			done = null;
+		}
+
+		throw failure;
+	}
+
+	/**
+	 * The keys are retrieved one after the other.
+	 * AsyncDHTAccessServiceImpl retrieves them concurrently.
+	 */
+	public Map<Object, Set<Object>> getAll(Collection<?> keys) throws Exception {
+		if (null == keys){
+			throw new IllegalArgumentException("The parameter 'keys' is null.");
+		}
+
+		Map<Object, Set<Object>> results = new HashMap<Object, Set<Object>>();
+		for (Iterator it = keys.iterator(); it.hasNext();){
+			Object key = it.next();
+			if (!results.containsKey(key)){
+				results.put(key, get(key));
+			}
+		}
+		return results;
+	}
+
+	/**
+	 * Sends the PUT to the fastest gateway, then to the next ones while it
+	 * fails. Putting the same value twice is harmless.
+	 */
+	public void put(Object key, Object value, int ttl, String secret)
+		throws Exception {
+		Exception failure = null;
+		for (Iterator<Gateway> it = rankGateways().iterator(); it.hasNext();){
+			if (null != failure){
+				metrics.failedOver();
+			}
+			try{
+				it.next().accessor.put(key, value, ttl, secret);
+				return;
+			}catch(IllegalArgumentException e){
+				throw e;
+			}catch(Exception e){
+				logger.debug("PUT of " + key + " failed", e);
+				failure = e;
+			}
+		}
+		throw failure;
+	}
+
+	/**
+	 * Sends the remove to the fastest gateway, then to the next ones while
+	 * it fails.
+	 */
+	public void remove(Object key, Object value, String secret)
+		throws Exception {
+		Exception failure = null;
+		for (Iterator<Gateway> it = rankGateways().iterator(); it.hasNext();){
+			if (null != failure){
+				metrics.failedOver();
+			}
+			try{
+				it.next().accessor.remove(key, value, secret);
+				return;
+			}catch(IllegalArgumentException e){
+				throw e;
+			}catch(Exception e){
+				logger.debug("Remove of " + key + " failed", e);
+				failure = e;
+			}
+		}
+		throw failure;
+	}
+
+	/**
+	 * Stops probing the gateways.
+	 */
+	public void stop(){
+		probeTimer.cancel();
+		executor.shutdown();
+	}
+
+	/**
+	 * Returns the gateways in the order they should be tried: the available
+	 * ones first, the ones never timed before the others so that they get
+	 * timed, then by increasing round-trip time.
+	 */
+	private List<Gateway> rankGateways(){
+		List<Gateway> ranked = new ArrayList<Gateway>(gateways);
+		Collections.sort(ranked, new Comparator<Gateway>(){
+			public int compare(Gateway g1, Gateway g2) {
+				boolean available1 = g1.accessor.isAvailable();
+				boolean available2 = g2.accessor.isAvailable();
+				if (available1 != available2){
+					return available1 ? -1 : 1;
+				}
+				long rtt1 = g1.rtt;
+				long rtt2 = g2.rtt;
+				return (rtt1 < rtt2) ? -1 : ((rtt1 == rtt2) ? 0 : 1);
+			}
+		});
+		return ranked;
+	}
+
+	/**
+	 * Returns how long a GET waits for its gateway before it is hedged.
+	 */
+	private long getHedgeDelay(){
+		if (getLatencies.getLookupCount() < MIN_SAMPLES){
+			return DEF_HEDGE_DELAY;
+		}
+		return Math.max(MIN_HEDGE_DELAY, Math.min(MAX_HEDGE_DELAY,
+				getLatencies.getLookupLatencyPercentile(hedgePercentile)));
+	}
+
+	/**
+	 * A gateway and the estimate of its round-trip time.
+	 */
+	private class Gateway {
+
+		final DHTAccessServiceImpl accessor;
+
+		/**
+		 * The smoothed round-trip time in ms, -1 until the gateway answers.
+		 */
+		volatile long rtt = -1;
+
+		/**
+		 * Whether a probe of the gateway is in flight. Only the probe task
+		 * sets it.
+		 */
+		volatile boolean probing = false;
+
+		Gateway(DHTAccessServiceImpl accessor){
+			this.accessor = accessor;
+		}
+
+		/**
+		 * Sends a GET to the gateway and times it.
+		 */
+		Set<Object> get(Object key) throws Exception {
+			long start = System.currentTimeMillis();
+			Set<Object> values = accessor.get(key);
+			long elapsed = System.currentTimeMillis() - start;
+
+			getLatencies.lookupCompleted(elapsed);
+			//a racy update only loses a sample
+			long previous = rtt;
+			rtt = (0 > previous) ? elapsed : (7 * previous + elapsed) / 8;
+			return values;
+		}
+
+		/**
+		 * Ranks the gateway as taking at least the probe timeout, until its
+		 * probe completes.
+		 */
+		void probeTimedOut(){
+			if (rtt < probeTimeout){
+				rtt = probeTimeout;
+			}
+		}
+	}
+
+	private static class TimedGet implements Callable<Set<Object>> {
+
+		private final Gateway gateway;
+
+		private final Object key;
+
+		TimedGet(Gateway gateway, Object key){
+			this.gateway = gateway;
+			this.key = key;
+		}
+
+		public Set<Object> call() throws Exception {
+			return gateway.get(key);
+		}
+	}
+
+	/**
+	 * Times a gateway with a GET.
+	 */
+	private static class Probe implements Runnable {
+
+		private final Gateway gateway;
+
+		Probe(Gateway gateway){
+			this.gateway = gateway;
+		}
+
+		public void run() {
+			try{
+				gateway.get(PROBE_KEY);
+			}catch(Exception e){
+				logger.debug("Probe of " + gateway.accessor.getServerURL()
+						+ " failed", e);
+			}finally{
+				gateway.probing = false;
+			}
+		}
+	}
+
+	/**
+	 * Times every gateway with a GET, so that the idle ones keep an up to
+	 * date round-trip time. The probes run concurrently on the executor,
+	 * and the timer thread waits at most the probe timeout for them.
+	 */
+	private class ProbeTask extends TimerTask {
+
+		public void run() {
+			List<Gateway> probed = new ArrayList<Gateway>();
+			List<Future<?>> probes = new ArrayList<Future<?>>();
+			for (Iterator<Gateway> it = gateways.iterator(); it.hasNext();){
+				Gateway gateway = it.next();
+				if (gateway.probing){
+					//still waiting for the previous probe
+					continue;
+				}
+				gateway.probing = true;
+				try{
+					probes.add(executor.submit(new Probe(gateway)));
+					probed.add(gateway);
+				}catch(RejectedExecutionException e){
+					//the service is stopping
+					gateway.probing = false;
+					return;
+				}
+			}
+
+			long deadline = System.currentTimeMillis() + probeTimeout;
+			for (int i = 0; i < probes.size(); i++){
+				try{
+					probes.get(i).get(
+							Math.max(0, deadline - System.currentTimeMillis()),
+							TimeUnit.MILLISECONDS);
+				}catch(TimeoutException e){
+					logger.debug("Probe of "
+							+ probed.get(i).accessor.getServerURL()
+							+ " timed out");
+					probed.get(i).probeTimedOut();
+				}catch(ExecutionException e){
+					//the probe logs its own failures
+				}catch(InterruptedException e){
+					return;
+				}
+			}
+		}
+	}
+}
@@ -75,7 +75,7 @@ public class OperationSetBasicInstantMessagingSipImpl
      */
     private SipStatusEnum sipStatusEnum;
     
-    private DHTAccessService dhtAccessor;
+    private CachingDHTAccessService dhtAccessor;
 
     /**
      * Creates an instance of this operation set.
@@ -103,11 +103,8 @@ public class OperationSetBasicInstantMessagingSipImpl
 
         this.sipStatusEnum = sipProvider.getSipStatusEnum();
         
-        try {
-			this.dhtAccessor =  new DHTAccessServiceImpl();
-		} catch (MalformedURLException e) {
-			// Never happen
-		}
+        if (sipProvider.isP2PSIP())
+            this.dhtAccessor = sipProvider.getDHTAccessService();
     }
 
     /**
@@ -389,7 +386,8 @@ public class OperationSetBasicInstantMessagingSipImpl
         {
             toAddress = parseAddressStr(to.getAddress());
             
-            toAddress = resolveInDHT(toAddress);
+            if (sipProvider.isP2PSIP())
+                toAddress = resolveInDHT(toAddress);
 
             logger.info("After resolve toAddress in createMessage()" + ((SipURI) toAddress.getURI()).getHost());
             
@@ -795,6 +793,10 @@ public class OperationSetBasicInstantMessagingSipImpl
 
             Request req = timeoutEvent.getClientTransaction().getRequest();
 
+            // the address we got from the DHT is probably no longer valid
+            if (sipProvider.isP2PSIP())
+                dhtAccessor.invalidateLocation(req.getRequestURI().toString());
+
             // get the content
             String content = null;
             try
@@ -61,7 +61,7 @@ public class OperationSetBasicTelephonySipImpl
         = "net.java.sip.communicator.impl.protocol.sip."
         +"FAIL_CALLS_ON_DEST_USER_MISMATCH";
     
-    private DHTAccessService dhtAccessor = null;
+    private CachingDHTAccessService dhtAccessor = null;
 
     /**
      * Creates a new instance and adds itself as an <tt>INVITE</tt> method
@@ -86,11 +86,7 @@ public class OperationSetBasicTelephonySipImpl
   */
    
         if(protocolProvider.isP2PSIP()){
-        try{
-        	this.dhtAccessor = new DHTAccessServiceImpl();
-        }catch(MalformedURLException e){
-        	//this never happen
-        }
+        	this.dhtAccessor = protocolProvider.getDHTAccessService();
         }
     }
 	
@@ -976,6 +972,11 @@ public class OperationSetBasicTelephonySipImpl
             return;
         }
 
+        //the address we got from the DHT is probably no longer valid
+        if (protocolProvider.isP2PSIP())
+            dhtAccessor.invalidateLocation(
+                transaction.getRequest().getRequestURI().toString());
+
         //change status
         callParticipant.setState(CallParticipantState.FAILED
                                 , "The remote party has not replied!"
@@ -258,7 +258,14 @@ implements OperationSetPersistentPresence, SipListener
 
 //	@author Dong
 
-	private DHTAccessService dhtAccessor = null;
+	private CachingDHTAccessService dhtAccessor = null;
+
+	/**
+	 * The values retrieved from the DHT by a bulk GET for contacts which are
+	 * about to be polled. Each entry is consumed by the next subscription to
+	 * its contact.
+	 */
+	private Hashtable prefetchedDHTValues = new Hashtable();
 
 	// private ContactSipImpl contactSipImpl=null;
 
@@ -289,11 +296,7 @@ implements OperationSetPersistentPresence, SipListener
 		enableP2PSIP=provider.isP2PSIP();
 
 		if(enableP2PSIP){
-			try{
-				this.dhtAccessor = new DHTAccessServiceImpl();
-			}catch(MalformedURLException e){
-				//this never happen
-			}
+			this.dhtAccessor = provider.getDHTAccessService();
 		}
 
 
@@ -1400,16 +1403,18 @@ implements OperationSetPersistentPresence, SipListener
 
 		else{
 
-			Set resultSet = null;
+			Set resultSet = (Set)prefetchedDHTValues.remove(
+					toAddress.toString().trim());
 			try{
-				resultSet = dhtAccessor.get(toAddress.toString().trim());
+				if (resultSet == null)
+					resultSet = dhtAccessor.get(toAddress.toString().trim());
 
 			}catch (Exception e) {
 				//There is exception in DHT GET operation
 				logger.error("Exception in DHT Operation: " + e.getMessage(), e);
 			}
 
-			if (0 == resultSet.size()){
+			if (resultSet == null || 0 == resultSet.size()){
 				logger.info("No result found in DHT. key = " + toAddress.toString().trim());
 				throw new OperationFailedException(
 						"The target contact is not online.", 
@@ -3300,6 +3305,12 @@ Added by Dong Fengyu
 	{
 		logger.error("timeout reached, it looks really abnormal: " +
 				timeoutEvent.toString());
+
+		// the address we got from the DHT is probably no longer valid
+		if (enableP2PSIP && !timeoutEvent.isServerTransaction()) {
+			dhtAccessor.invalidateLocation(timeoutEvent.getClientTransaction()
+					.getRequest().getRequestURI().toString());
+		}
 	}
 
 	/**
@@ -4544,6 +4555,66 @@ Added by Dong Fengyu
 		return curStatus;
 	}
 
+	/**
+	 * Forces the poll of several contacts. In P2PSIP mode the addresses of
+	 * all the contacts are retrieved from the DHT with a single bulk GET
+	 * before the subscriptions are sent.
+	 *
+	 * @param contacts the <tt>ContactSipImpl</tt>s to poll
+	 */
+	private void forcePollContacts(List contacts) {
+		if (this.presenceEnabled == false) {
+			return;
+		}
+
+		if (enableP2PSIP) {
+			prefetchInDHT(contacts);
+		}
+
+		Iterator contactsIter = contacts.iterator();
+		while (contactsIter.hasNext()) {
+			forcePollContact((ContactSipImpl) contactsIter.next());
+		}
+
+		// don't let values which were not consumed go stale
+		prefetchedDHTValues.clear();
+	}
+
+	/**
+	 * Retrieves from the DHT the values of every contact in the list which
+	 * is going to be subscribed to, and keeps them for createSubscription().
+	 *
+	 * @param contacts the <tt>ContactSipImpl</tt>s about to be polled
+	 */
+	private void prefetchInDHT(List contacts) {
+		List keys = new ArrayList();
+		Iterator contactsIter = contacts.iterator();
+		while (contactsIter.hasNext()) {
+			ContactSipImpl contact = (ContactSipImpl) contactsIter.next();
+
+			if (contact.getClientDialog() != null || !contact.isResolvable())
+				continue;
+
+			try {
+				keys.add(parseAddressStr(contact.getAddress())
+						.toString().trim());
+			} catch (ParseException ex) {
+				logger.error("Can't parse the address of " + contact, ex);
+			}
+		}
+
+		if (keys.size() == 0) {
+			return;
+		}
+
+		try {
+			prefetchedDHTValues.putAll(dhtAccessor.getAll(keys));
+		} catch (Exception e) {
+			//each contact will be looked up on its own
+			logger.error("Exception in DHT bulk GET: " + e.getMessage(), e);
+		}
+	}
+
 	/**
 	 * Forces the poll of a contact to update its current state.
 	 *
@@ -4851,6 +4922,7 @@ Added by Dong Fengyu
 		 */
 		public void run() {
 			// send a subscription for every contact
+			List contactsToPoll = new ArrayList();
 			Iterator groupsIter = getServerStoredContactListRoot()
 			.subgroups();
 			while (groupsIter.hasNext()) {
@@ -4860,13 +4932,12 @@ Added by Dong Fengyu
 				Iterator contactsIter = group.contacts();
 
 				while (contactsIter.hasNext()) {
-					ContactSipImpl contact = (ContactSipImpl)
-					contactsIter.next();
-
-					// poll this contact
-					forcePollContact(contact);
+					contactsToPoll.add(contactsIter.next());
 				}
 			}
+
+			// poll these contacts
+			forcePollContacts(contactsToPoll);
 		}
 	}
 
@@ -4929,6 +5000,7 @@ Added by Dong Fengyu
 				}
 
 				// send a subscription for every contact
+				List contactsToPoll = new ArrayList();
 				Iterator groupsIter = getServerStoredContactListRoot()
 				.subgroups();
 				while (groupsIter.hasNext()) {
@@ -4947,11 +5019,13 @@ Added by Dong Fengyu
 							continue;
 						}
 
-						// try to subscribe to this contact
-						forcePollContact(contact);
+						contactsToPoll.add(contact);
 					}
 				}
 
+				// try to subscribe to these contacts
+				forcePollContacts(contactsToPoll);
+
 				// create a new Timer (the last one has been cancelled)
 				timer = new Timer(true);
 
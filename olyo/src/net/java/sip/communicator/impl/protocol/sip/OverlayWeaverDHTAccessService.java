@@ -0,0 +1,189 @@
+package net.java.sip.communicator.impl.protocol.sip;
+
+import java.io.UnsupportedEncodingException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import ow.dht.ByteArray;
+import ow.dht.DHT;
+import ow.dht.DHTConfiguration;
+import ow.dht.DHTFactory;
+import ow.dht.ValueInfo;
+import ow.id.ID;
+
+import net.java.sip.communicator.util.Logger;
+
+/**
+ * A DHT Access Service which runs an Overlay Weaver node inside the JVM and 
+ * calls its routing API directly, instead of sending XML-RPC requests to an 
+ * external gateway.
+ * <p>
+ * Keys, values and secrets are mapped onto the overlay exactly as the 
+ * Overlay Weaver XML-RPC gateway maps the requests of 
+ * <tt>DHTAccessServiceImpl</tt>, so clients using either implementation see 
+ * each other's registrations in the same overlay.
+ * </p>
+ */
+public class OverlayWeaverDHTAccessService implements DHTAccessService{
+
+	private static final Logger logger = 
+		Logger.getLogger(OverlayWeaverDHTAccessService.class);
+	
+	private static final String ENCODE = new String("UTF-8");
+	
+	/**
+	 * The embedded DHT node. The TTL and the secret of a PUT are set on the 
+	 * node before the PUT itself, so PUTs are synchronized on it.
+	 */
+	private final DHT<String> dht;
+	
+	private final int idSizeInByte;
+	
+	/**
+	 * Starts a DHT node listening on <tt>selfPort</tt> and makes it join the 
+	 * overlay through <tt>bootstrapNode</tt>.
+	 * 
+	 * @param selfPort the port the node listens on. If it is not a positive 
+	 * integer, the Overlay Weaver default port is used.
+	 * @param bootstrapNode a String which looks like "host:port", the address 
+	 * of a node already in the overlay. If it is null, the node starts a new 
+	 * overlay by itself.
+	 * @throws Exception if the node cannot be started or cannot join the 
+	 * overlay.
+	 */
+	public OverlayWeaverDHTAccessService(int selfPort, String bootstrapNode) 
+		throws Exception{
+		DHTConfiguration config = DHTFactory.getDefaultConfiguration();
+		if (0 < selfPort){
+			config.setSelfPort(selfPort);
+		}
+		config.setValueClass(String.class);
+		config.setDirectoryType("VolatileMap");
+		config.setDoUPnPNATTraversal(false);
+		
+		this.dht = DHTFactory.getDHT(config);
+		this.idSizeInByte = 
+			dht.getRoutingAlgorithmConfiguration().getIDSizeInByte();
+		
+		if (null != bootstrapNode && 0 < bootstrapNode.trim().length()){
+			try{
+				dht.joinOverlay(bootstrapNode.trim());
+			}catch(Exception e){
+				dht.stop();
+				throw e;
+			}
+			logger.info("Joined the overlay through " + bootstrapNode);
+		}else{
+			logger.info("Started a new overlay, bootstrap node not specified.");
+		}
+	}
+	
+	public void put(Object key, Object value, int ttl, String secret) 
+		throws Exception {
+		if (null == key){
+			throw new IllegalArgumentException("The parameter 'key' is null.");
+		}else if (null == value){
+			throw new IllegalArgumentException("The parameter 'value' is null.");
+		}else if (0 >= ttl){
+			throw new IllegalArgumentException("The parameter 'ttl' is not positive.");
+		}
+		
+		ByteArray hashedSecret = (null == secret) 
+			? null : new ByteArray(secret.getBytes()).hashWithSHA1();
+		
+		synchronized(dht){
+			dht.setHashedSecretForPut(hashedSecret);
+			dht.setTTLForPut(ttl * 1000L);
+			dht.put(toID(key), value.toString());
+		}
+	}
+	
+	/**
+	 * !!NOTE: the return value is a set of byte[].
+	 */
+	public Set<Object> get(Object key) throws Exception {
+		if (null == key){
+			throw new IllegalArgumentException("The parameter 'key' is null.");
+		}
+		
+		return toValueSet(dht.get(toID(key)));
+	}
+	
+	/**
+	 * All the keys are looked up by the node in one call.
+	 */
+	public Map<Object, Set<Object>> getAll(Collection<?> keys) throws Exception {
+		if (null == keys){
+			throw new IllegalArgumentException("The parameter 'keys' is null.");
+		}
+		
+		List<Object> keyList = new ArrayList<Object>(new HashSet<Object>(keys));
+		ID[] ids = new ID[keyList.size()];
+		for (int i = 0; i < ids.length; i++){
+			ids[i] = toID(keyList.get(i));
+		}
+		
+		Set<ValueInfo<String>>[] valueSets = dht.get(ids);
+		
+		Map<Object, Set<Object>> results = new HashMap<Object, Set<Object>>();
+		for (int i = 0; i < ids.length; i++){
+			if (null == valueSets[i]){
+				//Overlay Weaver reports a failed lookup as a null set
+				throw new Exception("DHT GET failed for key: " + keyList.get(i));
+			}
+			results.put(keyList.get(i), toValueSet(valueSets[i]));
+		}
+		return results;
+	}
+	
+	public void remove(Object key, Object value, String secret) 
+		throws Exception {
+		if (null == key){
+			throw new IllegalArgumentException("The parameter 'key' is null.");
+		}else if (null == value){
+			throw new IllegalArgumentException("The parameter 'value' is null.");
+		}else if (null == secret){
+			throw new IllegalArgumentException("The parameter 'secret' is null.");
+		}
+		
+		//the value is identified by its hash, as the gateway does for "rm"
+		dht.remove(toID(key), new ID[]{toID(value)}, 
+				new ByteArray(secret.getBytes()).hashWithSHA1());
+	}
+	
+	/**
+	 * Makes the node leave the overlay and releases its sockets and threads.
+	 */
+	public void stop() {
+		dht.stop();
+	}
+	
+	/**
+	 * The gateway turns the SHA-1 hashes sent by DHTAccessServiceImpl into 
+	 * IDs, so the same is done here.
+	 */
+	private ID toID(Object o) {
+		byte[] hash = new ByteArray(o.toString().getBytes())
+			.hashWithSHA1().getBytes();
+		return ID.getID(hash, idSizeInByte);
+	}
+	
+	private static Set<Object> toValueSet(Set<ValueInfo<String>> valueInfos) 
+		throws UnsupportedEncodingException {
+		Set<Object> resultSet = new HashSet<Object>();
+		if (null == valueInfos){
+			return resultSet;
+		}
+		
+		for (Iterator<ValueInfo<String>> it = valueInfos.iterator(); it.hasNext();){
+			resultSet.add(it.next().getValue().getBytes(ENCODE));
+		}
+		return resultSet;
+	}
+}
@@ -332,6 +332,31 @@ implements ProtocolProviderService, SipListener
 		return enableP2PSIP;
 	}
 
+	/**
+	 * Returns the DHT accessor that the registrar connection and the
+	 * operation sets of this provider use to put/get data to/from the DHT
+	 * overlay. It is shared by all SIP providers, see
+	 * <tt>DHTAccessServiceManager</tt>, and created when the first P2PSIP
+	 * provider asks for it.
+	 *
+	 * @return the <tt>CachingDHTAccessService</tt> of the SIP bundle.
+	 * @throws IllegalStateException if this provider does not use P2PSIP or
+	 * the SIP bundle is not started.
+	 */
+	public CachingDHTAccessService getDHTAccessService()
+	{
+		if(!enableP2PSIP)
+			throw new IllegalStateException(
+				"The DHT is only accessed by P2PSIP accounts.");
+
+		CachingDHTAccessService dhtAccessService
+			= SipActivator.getDHTAccessService();
+		if(dhtAccessService == null)
+			throw new IllegalStateException(
+				"The DHT access service of the SIP bundle is stopped.");
+		return dhtAccessService;
+	}
+
 
 	/**
 	 * the two parameters below are used in many locations,they show that 
@@ -22,9 +22,11 @@ import net.java.sip.communicator.service.media.*;
 public class SipActivator
     implements BundleActivator
 {
-    private Logger logger = Logger.getLogger(SipActivator.class.getName());
+    private static Logger logger
+        = Logger.getLogger(SipActivator.class.getName());
 
     private        ServiceRegistration  sipPpFactoryServReg   = null;
+    private static ServiceRegistration  dhtAccessServReg      = null;
     private static BundleContext        bundleContext         = null;
     private static ConfigurationService configurationService  = null;
     private static NetworkAddressManagerService networkAddressManagerService
@@ -33,6 +35,8 @@ public class SipActivator
 
     private static ProtocolProviderFactorySipImpl sipProviderFactory = null;
 
+    private static DHTAccessServiceManager dhtAccessServiceManager = null;
+
     /**
      * Called when this bundle is started so the Framework can perform the
      * bundle-specific activities necessary to start this bundle.
@@ -50,6 +54,12 @@ public class SipActivator
         Hashtable hashtable = new Hashtable();
         hashtable.put(ProtocolProviderFactory.PROTOCOL, ProtocolNames.SIP);
 
+        //the DHT access service is shared by all the sip providers and by
+        //the other bundles which need to access the overlay. it is only
+        //created when the first P2PSIP provider asks for it.
+        dhtAccessServiceManager
+            = new DHTAccessServiceManager(getConfigurationService());
+
         sipProviderFactory = new ProtocolProviderFactorySipImpl();
 
         //load all sip providers
@@ -127,6 +137,34 @@ public class SipActivator
         return sipProviderFactory;
     }
 
+    /**
+     * Returns the DHT access service shared by all the sip providers,
+     * creating it and registering it in the bundle context the first time.
+     * @return the <tt>CachingDHTAccessService</tt> of this bundle or null if
+     * the bundle is not started.
+     */
+    public static synchronized CachingDHTAccessService getDHTAccessService()
+    {
+        if(dhtAccessServiceManager == null)
+            return null;
+
+        CachingDHTAccessService dhtAccessService
+            = dhtAccessServiceManager.getDHTAccessService();
+        if(dhtAccessService != null && dhtAccessServReg == null)
+        {
+            Hashtable hashtable = new Hashtable();
+            hashtable.put(ProtocolProviderFactory.PROTOCOL, ProtocolNames.SIP);
+
+            dhtAccessServReg = bundleContext.registerService(
+                    AsyncDHTAccessService.class.getName(),
+                    dhtAccessService,
+                    hashtable);
+
+            logger.debug("SIP DHT Access Service ... [REGISTERED]");
+        }
+        return dhtAccessService;
+    }
+
     /**
      * Returns a reference to a MediaService implementation currently registered
      * in the bundle context or null if no such implementation was found.
@@ -161,5 +199,15 @@ public class SipActivator
     {
         sipProviderFactory.stop();
         sipPpFactoryServReg.unregister();
+
+        synchronized(SipActivator.class)
+        {
+            if(dhtAccessServReg != null)
+            {
+                dhtAccessServReg.unregister();
+                dhtAccessServReg = null;
+            }
+            dhtAccessServiceManager.stop();
+        }
     }
 }
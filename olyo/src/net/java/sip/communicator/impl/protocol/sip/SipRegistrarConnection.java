@@ -9,6 +9,7 @@ package net.java.sip.communicator.impl.protocol.sip;
 import java.net.*;
 import java.text.*;
 import java.util.*;
+import java.util.concurrent.*;
 import javax.sip.*;
 import javax.sip.address.*;
 import javax.sip.header.*;
@@ -117,7 +118,7 @@ public class SipRegistrarConnection
     /**
      * the accessor used to put/get data to/from DHT overlay
      */
-    private DHTAccessService dhtAccessor = null;
+    private CachingDHTAccessService dhtAccessor = null;
     /**
      * the secret used to remove the key-value pair
      */
@@ -215,12 +216,7 @@ public class SipRegistrarConnection
              
              this.registrationsExpiration = expirationTimeout;
              
-             try {
-     			dhtAccessor = new DHTAccessServiceImpl();
-     		} catch (MalformedURLException e) {
-     			//this should never happen
-     			logger.error("exception in DHTAccessServiceImpl()", e);
-     		}
+             dhtAccessor = sipProvider.getDHTAccessService();
          }
     }		
 
@@ -322,6 +318,8 @@ public class SipRegistrarConnection
                     
 	 Set resultSet = null;
         try{
+        	//we need what is in the overlay now, not what we may have cached
+        	dhtAccessor.invalidate(userName);
         	resultSet = dhtAccessor.get(userName);
         }catch (Exception e) {
         	//There is exception in DHT GET operation
@@ -331,17 +329,23 @@ public class SipRegistrarConnection
         	logger.info("No result found in DHT. key = " + userName);
         }else{	 
         String valueFromDHT = null;	
+        List pendingRemovals = new ArrayList(resultSet.size());
 	
         for(Iterator it = resultSet.iterator(); it.hasNext();){
         	valueFromDHT = new String((byte[])it.next());
 
 		logger.info("detect a value From DHT="+valueFromDHT);
 		
-	  //remove this old k-v pair remain in dht before put a new k-v pair
-	
+	  //remove this old k-v pair remain in dht before put a new k-v pair.
+	  //the removals are sent together and only then waited for.
+		pendingRemovals.add(dhtAccessor.removeAsync(
+			userName, valueFromDHT, DHT_SECRET_STR, null));
+        }
+
+        for(Iterator it = pendingRemovals.iterator(); it.hasNext();){
 		try
 		{
-		dhtAccessor.remove(userName,valueFromDHT,DHT_SECRET_STR);
+		((Future)it.next()).get();
 		}catch(Exception e){
         	throw new OperationFailedException(
         			"DHT remove() failed", 
@@ -7,6 +7,7 @@
 package net.java.sip.communicator.plugin.sipaccregwizz;
 
 import org.osgi.framework.*;
+import net.java.sip.communicator.impl.protocol.sip.*;
 import net.java.sip.communicator.service.configuration.*;
 import net.java.sip.communicator.service.gui.*;
 import net.java.sip.communicator.service.protocol.*;
@@ -82,6 +83,23 @@ public class SIPAccRegWizzActivator implements BundleActivator {
         return (ProtocolProviderFactory) bundleContext.getService(serRefs[0]);  
     }
 
+    /**
+     * Returns the DHT access service registered by the SIP protocol provider
+     * bundle.
+     * @return the <tt>AsyncDHTAccessService</tt> of the SIP bundle or null if
+     * there is none
+     */
+    public static AsyncDHTAccessService getDHTAccessService() {
+
+        ServiceReference serRef = bundleContext.getServiceReference(
+            AsyncDHTAccessService.class.getName());
+
+        if (serRef == null)
+            return null;
+
+        return (AsyncDHTAccessService) bundleContext.getService(serRef);
+    }
+
     /**
      * Returns the <tt>UIService</tt>.
      * 
@@ -247,8 +247,12 @@ public class SIPAccountRegistrationWizard
      			
 	      if(registration.isEnablePassCheck()&&registration.isP2PSIP()){
  
+                //use the DHT access service of the SIP bundle when it is 
+                //registered, so that its connections and cache are shared
+                this.dhtAccessor = SIPAccRegWizzActivator.getDHTAccessService();
                 try{
-                  this.dhtAccessor = new DHTAccessServiceImpl();
+                  if (this.dhtAccessor == null)
+                    this.dhtAccessor = new DHTAccessServiceImpl();
 		    logger.info("create the dhtAccessor successful!");
                 }catch(MalformedURLException e){
                 logger.info("create the dhtAccessor false!");
@@ -171,6 +171,27 @@ public interface HistoryReader {
      */
     public QueryResultSet findLastRecordsBefore(Date date, int count) throws RuntimeException;
 
+    /**
+     * Searches for all history records containing all <tt>keywords</tt>,
+     * with timestamp between <tt>startDate</tt> and <tt>endDate</tt>, and
+     * returns them as they are read from the history instead of once they
+     * have all been found. The stream may be closed before all the records
+     * are read.
+     *
+     * @param startDate start of the interval in which we search, or null
+     * @param endDate end of the interval in which we search, or null
+     * @param keywords array of keywords we search for, or null
+     * @param field the field where to look for the keyword
+     * @param caseSensitive is keywords search case sensitive
+     * @return the found records, oldest first
+     * @throws RuntimeException
+     *             Thrown if an exception occurs during the execution of the
+     *             query, such as internal IO error.
+     */
+    public HistoryRecordStream streamByPeriod(Date startDate, Date endDate,
+                                String[] keywords, String field, boolean caseSensitive)
+        throws RuntimeException;
+
     /**
      * Adding progress listener for monitoring progress of search process
      *
@@ -0,0 +1,39 @@
+/*
+ * SIP Communicator, the OpenSource Java VoIP and Instant Messaging client.
+ *
+ * Distributable under LGPL license.
+ * See terms of license at gnu.org.
+ */
+package net.java.sip.communicator.service.history;
+
+import java.util.*;
+
+import net.java.sip.communicator.service.history.records.*;
+
+/**
+ * The records found by a streaming query of a <tt>HistoryReader</tt>, in
+ * ascending timestamp order. Unlike a <tt>QueryResultSet</tt>, the records
+ * are not all found before the first one is returned: the history is read
+ * as the stream is iterated, so only the records of the files being read
+ * are held in memory and a stream which is no longer needed can be closed
+ * without reading the rest of the history.
+ */
+public interface HistoryRecordStream
+    extends Iterator
+{
+    /**
+     * A strongly-typed variant of <tt>next()</tt>.
+     *
+     * @return the next history record.
+     *
+     * @throws NoSuchElementException
+     *             iteration has no more elements.
+     */
+    HistoryRecord nextRecord() throws NoSuchElementException;
+
+    /**
+     * Stops the query: the stream returns no more records. May be called
+     * from another thread than the one iterating the stream.
+     */
+    void close();
+}
@@ -24,14 +24,63 @@ public interface HistoryService {
 
     /**
      * Property and values used to be set in configuration
-     * Used in implementation to cache every opened history document
-     * or not to cache them and to access them on every read
+     * Used in implementation to cache the most recently opened history
+     * documents (the default) or not to cache them and to access them on
+     * every read
      */
     public static String CACHE_ENABLED_PROPERTY =
         "net.java.sip.communicator.service.history.CACHE_ENABLED";
     public static String CACHE_ENABLED = "true";
     public static String CACHE_DISABLED = "false";
 
+    /**
+     * Properties used to be set in configuration
+     * Used in implementation to bound the cache of history documents, shared
+     * by all histories: the maximum number of cached documents and the
+     * maximum memory, in KB, they are estimated to take
+     */
+    public static String CACHE_MAX_DOCUMENTS_PROPERTY =
+        "net.java.sip.communicator.service.history.CACHE_MAX_DOCUMENTS";
+    public static String CACHE_MAX_MEMORY_PROPERTY =
+        "net.java.sip.communicator.service.history.CACHE_MAX_MEMORY";
+
+    /**
+     * Property and values used to be set in configuration
+     * Used in implementation to choose how records are stored: in XML
+     * documents (the default) or in append-only log segments. Histories
+     * stored in XML are migrated when they are opened with the log storage.
+     */
+    public static String STORAGE_PROPERTY =
+        "net.java.sip.communicator.service.history.STORAGE";
+    public static String STORAGE_XML = "xml";
+    public static String STORAGE_LOG = "log";
+
+    /**
+     * Property and values used to be set in configuration
+     * Used in implementation to write the records added to histories stored
+     * in XML behind the threads adding them (disabled by default): the
+     * records are queued and the modified documents written together by a
+     * background thread
+     */
+    public static String WRITE_BEHIND_ENABLED_PROPERTY =
+        "net.java.sip.communicator.service.history.WRITE_BEHIND_ENABLED";
+    public static String WRITE_BEHIND_ENABLED = "true";
+    public static String WRITE_BEHIND_DISABLED = "false";
+
+    /**
+     * Properties used to be set in configuration
+     * Used in implementation to bound the write behind queue: the longest
+     * time, in ms, a record waits to be written, the number of records
+     * written at once without waiting and the number of records after which
+     * the threads adding records wait for them to be written
+     */
+    public static String WRITE_BEHIND_MAX_DELAY_PROPERTY =
+        "net.java.sip.communicator.service.history.WRITE_BEHIND_MAX_DELAY";
+    public static String WRITE_BEHIND_BATCH_SIZE_PROPERTY =
+        "net.java.sip.communicator.service.history.WRITE_BEHIND_BATCH_SIZE";
+    public static String WRITE_BEHIND_QUEUE_SIZE_PROPERTY =
+        "net.java.sip.communicator.service.history.WRITE_BEHIND_QUEUE_SIZE";
+
     /**
      * Returns the IDs of all existing histories.
      *
@@ -0,0 +1,43 @@
+/*
+ * SIP Communicator, the OpenSource Java VoIP and Instant Messaging client.
+ *
+ * Distributable under LGPL license.
+ * See terms of license at gnu.org.
+ */
+package net.java.sip.communicator.service.msghistory;
+
+/**
+ * A search of the message history which delivers the found messages to a
+ * <tt>MessageHistoryQueryListener</tt> while it runs, in the background.
+ */
+public interface MessageHistoryQuery
+{
+    /**
+     * Stops the query. Apart from a message being delivered at the time
+     * this method is called, no message is delivered once it returns, and
+     * the listener is told that the query finished.
+     */
+    public void cancel();
+
+    /**
+     * Returns whether the query was canceled.
+     *
+     * @return true if <tt>cancel</tt> was called
+     */
+    public boolean isCanceled();
+
+    /**
+     * Returns whether the query finished, because all the messages were
+     * delivered, the limit was reached or it was canceled.
+     *
+     * @return true if no more messages will be delivered
+     */
+    public boolean isFinished();
+
+    /**
+     * Returns the number of messages delivered so far.
+     *
+     * @return the number of found messages
+     */
+    public int getMessageCount();
+}
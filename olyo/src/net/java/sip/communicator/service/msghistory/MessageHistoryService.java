@@ -177,6 +177,30 @@ public interface MessageHistoryService
     public Collection findLastMessagesBefore(MetaContact contact, Date date, int count)
         throws RuntimeException;
 
+    /**
+     * Searches in the background the messages exchanged by all the contacts
+     * in the supplied metacontact between the given dates and having the
+     * given keywords, and delivers them to <tt>listener</tt> as they are
+     * found, oldest first, instead of returning them once the whole history
+     * has been searched.
+     *
+     * @param contact MetaContact
+     * @param startDate Date the start date of the conversations, or null
+     * @param endDate Date the end date of the conversations, or null
+     * @param keywords array of keywords, or null
+     * @param caseSensitive is keywords search case sensitive
+     * @param limit the maximum number of messages to deliver, 0 for all of
+     * them
+     * @param listener receives the found messages
+     * @return the running query, which may be canceled
+     * @throws RuntimeException
+     */
+    public MessageHistoryQuery queryByPeriod(MetaContact contact,
+                            Date startDate, Date endDate,
+                            String[] keywords, boolean caseSensitive,
+                            int limit, MessageHistoryQueryListener listener)
+        throws RuntimeException;
+
     /**
      * Adding progress listener for monitoring progress of search process
      *
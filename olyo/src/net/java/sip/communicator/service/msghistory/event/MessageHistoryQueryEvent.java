@@ -0,0 +1,59 @@
+/*
+ * SIP Communicator, the OpenSource Java VoIP and Instant Messaging client.
+ *
+ * Distributable under LGPL license.
+ * See terms of license at gnu.org.
+ */
+package net.java.sip.communicator.service.msghistory.event;
+
+import java.util.*;
+
+import net.java.sip.communicator.service.msghistory.*;
+
+/**
+ * A "MessageHistoryQueryEvent" is delivered to the listener of a
+ * <tt>MessageHistoryQuery</tt> for every message it finds and once it has
+ * finished.
+ */
+public class MessageHistoryQueryEvent
+    extends EventObject
+{
+    /**
+     * The found message, null once the query has finished.
+     */
+    private Object message = null;
+
+    /**
+     * Creates an event for a message found by a query.
+     *
+     * @param query the query which found the message
+     * @param message the found message, or null if the query has finished
+     */
+    public MessageHistoryQueryEvent(MessageHistoryQuery query, Object message)
+    {
+        super(query);
+
+        this.message = message;
+    }
+
+    /**
+     * Returns the query which fired the event.
+     *
+     * @return the query
+     */
+    public MessageHistoryQuery getQuery()
+    {
+        return (MessageHistoryQuery) getSource();
+    }
+
+    /**
+     * Returns the found message, a <tt>MessageReceivedEvent</tt> or a
+     * <tt>MessageDeliveredEvent</tt>.
+     *
+     * @return the message, or null if the query has finished
+     */
+    public Object getMessage()
+    {
+        return message;
+    }
+}
@@ -0,0 +1,30 @@
+/*
+ * SIP Communicator, the OpenSource Java VoIP and Instant Messaging client.
+ *
+ * Distributable under LGPL license.
+ * See terms of license at gnu.org.
+ */
+package net.java.sip.communicator.service.msghistory.event;
+
+/**
+ * Receives the messages found by a <tt>MessageHistoryQuery</tt>, as they are
+ * found. The methods are called from the thread running the query.
+ */
+public interface MessageHistoryQueryListener
+{
+    /**
+     * Called for every message found, oldest first.
+     *
+     * @param evt the event holding the query and the found message, a
+     * <tt>MessageReceivedEvent</tt> or a <tt>MessageDeliveredEvent</tt>
+     */
+    public void messageFound(MessageHistoryQueryEvent evt);
+
+    /**
+     * Called once, when the query has finished, whether all the messages
+     * were found, the limit was reached or the query was canceled.
+     *
+     * @param evt the event holding the query, without a message
+     */
+    public void queryFinished(MessageHistoryQueryEvent evt);
+}
@@ -0,0 +1,290 @@
+/*
+ * SIP Communicator, the OpenSource Java VoIP and Instant Messaging client.
+ *
+ * Distributable under LGPL license.
+ * See terms of license at gnu.org.
+ */
+package net.java.sip.communicator.impl.configuration;
+
+import java.util.*;
+
+import junit.framework.*;
+import net.java.sip.communicator.util.*;
+
+/**
+ * Makes sure that the prefix queries of the property store of the
+ * configuration service return the names going through all the properties
+ * would, also while properties are changed concurrently. The time of the
+ * queries made while loading hundreds of accounts is logged, compared with
+ * going through all the properties, as a benchmark of the store.
+ */
+public class TestPropertyStore
+    extends TestCase
+{
+    private static Logger logger = Logger.getLogger(TestPropertyStore.class);
+
+    private static final String PROTOCOL_PREFIX =
+        "net.java.sip.communicator.impl.protocol";
+
+    private static final String[] PROTOCOLS = new String[] {
+        "sip", "jabber", "icq", "msn", "yahoo" };
+
+    private static final int ACCOUNT_COUNT = 100;
+
+    private static final int ACCOUNT_PROPERTY_COUNT = 15;
+
+    private static final int OTHER_PROPERTY_COUNT = 3000;
+
+    private static final String[] NAMES = new String[] {
+        "a.b.c.P1", "a.b.c.P2", "a.b.P3", "a.bc.P4", "a.bc.d.P5", "a.P6",
+        "a..P7", ".P8", "P9", "ab.c.P10", "a.b.c.d.e.P11", "a.b.cd.P12" };
+
+    private static final String[] PREFIXES = new String[] {
+        "", "a", "a.", "a.b", "a.b.", "a.b.c", "a.bc", "a.b.c.d", "ab", "b",
+        "a.b.c.d.e", "a.b.c.d.e.f", ".", "a.." };
+
+    /**
+     * Create a TestPropertyStore wrapper over the test with the specified
+     * name.
+     * @param name the name of the test to run
+     */
+    public TestPropertyStore(String name)
+    {
+        super(name);
+    }
+
+    /**
+     * Compares the prefix queries with going through all the properties,
+     * after properties are added and removed.
+     */
+    public void testPrefixQueries()
+    {
+        PropertyStore store = new PropertyStore();
+        Map properties = new Hashtable();
+        for (int i = 0; i < NAMES.length; i++)
+        {
+            store.put(NAMES[i], "value" + i);
+            properties.put(NAMES[i], "value" + i);
+        }
+        checkPrefixQueries(store, properties, PREFIXES);
+
+        store.remove("a.b.c.P1");
+        properties.remove("a.b.c.P1");
+        store.remove("a.bc.d.P5");
+        properties.remove("a.bc.d.P5");
+        store.put("a.b.P3", "changed");
+        properties.put("a.b.P3", "changed");
+        checkPrefixQueries(store, properties, PREFIXES);
+
+        assertEquals("wrong value", "changed", store.get("a.b.P3"));
+        assertNull("a removed property was found", store.get("a.b.c.P1"));
+        assertEquals("wrong properties", properties, store.toMap());
+    }
+
+    /**
+     * Makes sure that the store holds the names of its properties after
+     * threads concurrently add and remove properties while others query
+     * them.
+     * @throws Exception if anything goes wrong.
+     */
+    public void testConcurrentChanges() throws Exception
+    {
+        final PropertyStore store = new PropertyStore();
+        final List errors = new Vector();
+        final boolean[] done = new boolean[1];
+
+        Thread[] writers = new Thread[4];
+        for (int t = 0; t < writers.length; t++)
+        {
+            final int writer = t;
+            writers[t] = new Thread()
+            {
+                public void run()
+                {
+                    Random random = new Random(writer);
+                    for (int i = 0; i < 20000; i++)
+                    {
+                        String name = accountPrefix(
+                            PROTOCOLS[random.nextInt(PROTOCOLS.length)],
+                            random.nextInt(20)) + ".P" + random.nextInt(10);
+                        if (random.nextBoolean())
+                            store.put(name, name);
+                        else
+                            store.remove(name);
+                    }
+                }
+            };
+        }
+
+        Thread reader = new Thread()
+        {
+            public void run()
+            {
+                try
+                {
+                    while (!done[0])
+                    {
+                        Iterator names = store.getNamesByPrefix(
+                            PROTOCOL_PREFIX, false).iterator();
+                        while (names.hasNext())
+                            assertTrue("wrong name", ((String) names.next())
+                                .startsWith(PROTOCOL_PREFIX));
+                    }
+                }
+                catch (Throwable ex)
+                {
+                    errors.add(ex);
+                }
+            }
+        };
+        reader.start();
+
+        for (int t = 0; t < writers.length; t++)
+            writers[t].start();
+        for (int t = 0; t < writers.length; t++)
+            writers[t].join();
+        done[0] = true;
+        reader.join();
+
+        assertTrue("the queries failed: " + errors, errors.isEmpty());
+
+        Map properties = store.toMap();
+        List prefixes = new ArrayList();
+        prefixes.add(PROTOCOL_PREFIX);
+        for (int p = 0; p < PROTOCOLS.length; p++)
+        {
+            for (int a = 0; a < 20; a++)
+                prefixes.add(accountPrefix(PROTOCOLS[p], a));
+        }
+        checkPrefixQueries(store, properties,
+            (String[]) prefixes.toArray(new String[prefixes.size()]));
+    }
+
+    /**
+     * Runs the queries made while loading the stored accounts of several
+     * protocols, with the store and by going through all the properties,
+     * and logs their time.
+     */
+    public void testLoadManyAccounts()
+    {
+        PropertyStore store = new PropertyStore();
+        Map properties = new Hashtable();
+
+        for (int p = 0; p < PROTOCOLS.length; p++)
+        {
+            for (int a = 0; a < ACCOUNT_COUNT; a++)
+            {
+                String accountPrefix = accountPrefix(PROTOCOLS[p], a);
+                store.put(accountPrefix, PROTOCOLS[p] + a);
+                properties.put(accountPrefix, PROTOCOLS[p] + a);
+                for (int i = 0; i < ACCOUNT_PROPERTY_COUNT; i++)
+                {
+                    store.put(accountPrefix + ".P" + i, "value");
+                    properties.put(accountPrefix + ".P" + i, "value");
+                }
+            }
+        }
+        for (int i = 0; i < OTHER_PROPERTY_COUNT; i++)
+        {
+            String name = "net.java.sip.communicator.impl.gui.contact"
+                + (i / 10) + ".P" + i;
+            store.put(name, "value");
+            properties.put(name, "value");
+        }
+
+        long storeTime = System.currentTimeMillis();
+        int storeCount = loadAccounts(store, null);
+        storeTime = System.currentTimeMillis() - storeTime;
+
+        long scanTime = System.currentTimeMillis();
+        int scanCount = loadAccounts(null, properties);
+        scanTime = System.currentTimeMillis() - scanTime;
+
+        logger.info("Loaded " + PROTOCOLS.length * ACCOUNT_COUNT
+            + " accounts from " + properties.size() + " properties in "
+            + storeTime + " ms, going through all the properties in "
+            + scanTime + " ms");
+
+        assertEquals("wrong number of account properties",
+            scanCount, storeCount);
+    }
+
+    /**
+     * Queries the accounts of every protocol and the properties of every
+     * account, the way the protocol provider factories do, in the store or,
+     * if it is null, going through all the properties.
+     *
+     * @return the number of account properties found
+     */
+    private static int loadAccounts(PropertyStore store, Map properties)
+    {
+        int count = 0;
+        for (int p = 0; p < PROTOCOLS.length; p++)
+        {
+            String protocolPrefix = PROTOCOL_PREFIX + "." + PROTOCOLS[p];
+            Iterator accounts = (store != null)
+                ? store.getNamesByPrefix(protocolPrefix, true).iterator()
+                : scan(properties, protocolPrefix, true).iterator();
+            while (accounts.hasNext())
+            {
+                String accountPrefix = (String) accounts.next();
+                count += (store != null)
+                    ? store.getNamesByPrefix(accountPrefix, false).size()
+                    : scan(properties, accountPrefix, false).size();
+            }
+        }
+        return count;
+    }
+
+    private static String accountPrefix(String protocol, int account)
+    {
+        return PROTOCOL_PREFIX + "." + protocol + ".acc" + account;
+    }
+
+    /**
+     * Compares the prefix queries of the store with going through all the
+     * properties.
+     */
+    private static void checkPrefixQueries(PropertyStore store,
+                                           Map properties,
+                                           String[] prefixes)
+    {
+        for (int i = 0; i < prefixes.length; i++)
+        {
+            assertEquals("wrong names with prefix '" + prefixes[i] + "'",
+                         new HashSet(scan(properties, prefixes[i], true)),
+                         new HashSet(store.getNamesByPrefix(
+                             prefixes[i], true)));
+            assertEquals("wrong names with prefix starting with '"
+                             + prefixes[i] + "'",
+                         new HashSet(scan(properties, prefixes[i], false)),
+                         new HashSet(store.getNamesByPrefix(
+                             prefixes[i], false)));
+        }
+    }
+
+    /**
+     * Returns the property names matching a prefix by going through all the
+     * properties, skipping the names without a prefix.
+     */
+    private static List scan(Map properties, String prefix,
+                             boolean exactPrefixMatch)
+    {
+        List result = new LinkedList();
+        Iterator keys = properties.keySet().iterator();
+        while (keys.hasNext())
+        {
+            String key = (String) keys.next();
+            int lastDot = key.lastIndexOf('.');
+            if (lastDot < 0)
+                continue;
+
+            String keyPrefix = key.substring(0, lastDot);
+            if (exactPrefixMatch
+                    ? prefix.equals(keyPrefix)
+                    : keyPrefix.startsWith(prefix))
+                result.add(key);
+        }
+        return result;
+    }
+}
@@ -0,0 +1,278 @@
+/*
+ * SIP Communicator, the OpenSource Java VoIP and Instant Messaging client.
+ *
+ * Distributable under LGPL license.
+ * See terms of license at gnu.org.
+ */
+package net.java.sip.communicator.impl.contactlist;
+
+import java.io.*;
+import java.lang.reflect.*;
+import java.util.*;
+
+import org.osgi.framework.*;
+
+import net.java.sip.communicator.impl.protocol.mock.*;
+import net.java.sip.communicator.service.configuration.*;
+import net.java.sip.communicator.service.contactlist.*;
+import net.java.sip.communicator.service.fileaccess.*;
+import net.java.sip.communicator.service.protocol.*;
+
+/**
+ * Runs a meta contact list service outside of the OSGi framework, over a
+ * mock provider with a large server stored contact list and with its local
+ * copy in a temporary directory. A new service over the same directory
+ * stands for a restart of the application. The services are returned as
+ * <tt>MetaContactListService</tt>s, through which the tests use them.
+ */
+public class MclFixture
+{
+    /**
+     * The number of groups in the contact list of the provider.
+     */
+    public static final int GROUP_COUNT = 50;
+
+    /**
+     * The number of contacts in every group.
+     */
+    public static final int CONTACTS_PER_GROUP = 100;
+
+    public final File directory;
+
+    public final MockProvider provider = new MockProvider("mcl");
+
+    public final MockPersistentPresenceOperationSet presenceOpSet =
+        (MockPersistentPresenceOperationSet) provider.getOperationSet(
+            OperationSetPersistentPresence.class);
+
+    /**
+     * The contacts of the provider, in the order they were added.
+     */
+    public final List contacts = new ArrayList();
+
+    /**
+     * The services started by the fixture.
+     */
+    private final List services = new ArrayList();
+
+    public MclFixture() throws IOException
+    {
+        directory = File.createTempFile("mcl", null);
+        directory.delete();
+        directory.mkdirs();
+
+        MockContactGroup root = (MockContactGroup)
+            presenceOpSet.getServerStoredContactListRoot();
+        for (int g = 0; g < GROUP_COUNT; g++)
+        {
+            MockContactGroup group = new MockContactGroup("group" + g,
+                                                          provider);
+            root.addSubgroup(group);
+            for (int c = 0; c < CONTACTS_PER_GROUP; c++)
+            {
+                MockContact contact = new MockContact(
+                    "contact" + g + "." + c + "@mcl", provider);
+                group.addContact(contact);
+                contacts.add(contact);
+            }
+        }
+    }
+
+    /**
+     * Stops the started services and deletes the directory of the fixture.
+     */
+    public void delete()
+    {
+        for (int i = 0; i < services.size(); i++)
+        {
+            ((MetaContactListServiceImpl) services.get(i))
+                .stop(createBundleContext(new HashMap()));
+        }
+        delete(directory);
+    }
+
+    /**
+     * Starts a meta contact list service storing its contact list in the
+     * directory of the fixture, with the provider of the fixture installed.
+     */
+    public MetaContactListService createService()
+    {
+        return createService(new HashMap());
+    }
+
+    /**
+     * Starts a meta contact list service storing its contact list in the
+     * directory of the fixture, with the provider of the fixture installed
+     * and the given configuration properties.
+     */
+    public MetaContactListService createService(Map properties)
+    {
+        MetaContactListServiceImpl service = new MetaContactListServiceImpl();
+        service.start(createBundleContext(properties));
+        services.add(service);
+        return service;
+    }
+
+    /**
+     * Stops a service started by the fixture, which stores its contact list
+     * before going out.
+     */
+    public void stopService(MetaContactListService service)
+    {
+        ((MetaContactListServiceImpl) service)
+            .stop(createBundleContext(new HashMap()));
+        services.remove(service);
+    }
+
+    /**
+     * Returns a bundle context giving the services the meta contact list
+     * needs, with a configuration service holding the given properties, and
+     * the provider of the fixture.
+     */
+    private BundleContext createBundleContext(final Map properties)
+    {
+        final Map registry = new HashMap();
+        registry.put(FileAccessService.class.getName(),
+                     createFileAccessService());
+        registry.put(ConfigurationService.class.getName(),
+                     Proxy.newProxyInstance(getClass().getClassLoader(),
+                         new Class[] { ConfigurationService.class },
+                         new InvocationHandler()
+                         {
+                             public Object invoke(Object proxy,
+                                                  Method method,
+                                                  Object[] args)
+                             {
+                                 String name = method.getName();
+                                 if (name.equals("getProperty")
+                                     || name.equals("getString"))
+                                     return properties.get(args[0]);
+                                 return null;
+                             }
+                         }));
+        registry.put(ProtocolProviderService.class.getName(), provider);
+
+        return (BundleContext) Proxy.newProxyInstance(
+            getClass().getClassLoader(),
+            new Class[] { BundleContext.class },
+            new InvocationHandler()
+            {
+                public Object invoke(Object proxy, Method method,
+                                     Object[] args)
+                {
+                    String name = method.getName();
+                    if (name.equals("getServiceReference"))
+                        return createReference(registry.get(args[0]));
+                    if (name.equals("getServiceReferences"))
+                    {
+                        Object service = registry.get(args[0]);
+                        return (service == null)
+                            ? null
+                            : new ServiceReference[] {
+                                createReference(service) };
+                    }
+                    if (name.equals("getService"))
+                        return ((ServiceReference) args[0])
+                            .getProperty("service");
+                    if (method.getReturnType() == Boolean.TYPE)
+                        return Boolean.FALSE;
+                    return null;
+                }
+            });
+    }
+
+    /**
+     * Returns a service reference whose "service" property is the service.
+     */
+    private ServiceReference createReference(final Object service)
+    {
+        if (service == null)
+            return null;
+
+        return (ServiceReference) Proxy.newProxyInstance(
+            getClass().getClassLoader(),
+            new Class[] { ServiceReference.class },
+            new InvocationHandler()
+            {
+                public Object invoke(Object proxy, Method method,
+                                     Object[] args)
+                {
+                    if (method.getName().equals("getProperty"))
+                        return "service".equals(args[0]) ? service : null;
+                    if (method.getReturnType() == Boolean.TYPE)
+                        return Boolean.FALSE;
+                    return null;
+                }
+            });
+    }
+
+    private FileAccessService createFileAccessService()
+    {
+        return new FileAccessService()
+        {
+            public File getTemporaryFile() throws IOException
+            {
+                return File.createTempFile("mcl", null, directory);
+            }
+
+            public File getTemporaryDirectory() throws IOException
+            {
+                return directory;
+            }
+
+            public File getPrivatePersistentFile(String fileName)
+            {
+                return new File(directory, fileName);
+            }
+
+            public File getPrivatePersistentDirectory(String dirName)
+            {
+                File dir = new File(directory, dirName);
+                dir.mkdirs();
+                return dir;
+            }
+
+            public File getPrivatePersistentDirectory(String[] dirNames)
+            {
+                File dir = directory;
+                for (int i = 0; i < dirNames.length; i++)
+                    dir = new File(dir, dirNames[i]);
+                dir.mkdirs();
+                return dir;
+            }
+
+            public FailSafeTransaction createFailSafeTransaction(File file)
+            {
+                return new FailSafeTransaction()
+                {
+                    public void restoreFile()
+                    {
+                    }
+
+                    public void beginTransaction()
+                    {
+                    }
+
+                    public void commit()
+                    {
+                    }
+
+                    public void rollback()
+                    {
+                    }
+                };
+            }
+        };
+    }
+
+    private static void delete(File file)
+    {
+        File[] content = file.listFiles();
+        if (content != null)
+        {
+            for (int i = 0; i < content.length; i++)
+                delete(content[i]);
+        }
+        file.delete();
+    }
+}
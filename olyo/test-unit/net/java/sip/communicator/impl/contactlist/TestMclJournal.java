@@ -0,0 +1,290 @@
+/*
+ * SIP Communicator, the OpenSource Java VoIP and Instant Messaging client.
+ *
+ * Distributable under LGPL license.
+ * See terms of license at gnu.org.
+ */
+package net.java.sip.communicator.impl.contactlist;
+
+import java.io.*;
+import java.util.*;
+
+import junit.framework.*;
+import net.java.sip.communicator.service.contactlist.*;
+import net.java.sip.communicator.service.protocol.*;
+import net.java.sip.communicator.util.*;
+
+/**
+ * Makes sure that the changes of a large meta contact list are appended to
+ * the journal of the contact list file instead of rewriting the file, that
+ * they are all there when the list is loaded again, that replaying the
+ * journal stops at a torn or corrupted record, and that the journal is
+ * compacted into the file once it grows larger than it.
+ */
+public class TestMclJournal
+    extends TestCase
+{
+    private static Logger logger = Logger.getLogger(TestMclJournal.class);
+
+    private static final String FILE_NAME = "contactlist.xml";
+
+    private static final String JOURNAL_FILE_NAME = FILE_NAME + ".journal";
+
+    private MclFixture fixture = null;
+
+    private Map properties = null;
+
+    /**
+     * Create a TestMclJournal wrapper over the test with the specified name.
+     * @param name the name of the test to run
+     */
+    public TestMclJournal(String name)
+    {
+        super(name);
+    }
+
+    /**
+     * Stores the contact list of the mock provider in the directory of the
+     * fixture, without the journal.
+     * @throws Exception if anything goes wrong.
+     */
+    protected void setUp() throws Exception
+    {
+        super.setUp();
+        fixture = new MclFixture();
+        fixture.stopService(fixture.createService());
+
+        properties = new HashMap();
+        properties.put(MclStorageManager.JOURNAL_ENABLED_PROPERTY, "true");
+    }
+
+    /**
+     * Stops the services and deletes the directory of the test.
+     * @throws Exception if anything goes wrong.
+     */
+    protected void tearDown() throws Exception
+    {
+        fixture.delete();
+        super.tearDown();
+    }
+
+    /**
+     * Renames, moves and removes meta contacts and groups and makes sure
+     * that the contact list file is left as it is, that the changes are
+     * journaled and that they are loaded again.
+     * @throws Exception if anything goes wrong.
+     */
+    public void testChangesAreJournaled() throws Exception
+    {
+        byte[] stored = readFile(FILE_NAME);
+        MetaContactListService service
+            = fixture.createService(properties);
+
+        MetaContact renamed = findMetaContact(service, 0, 0);
+        service.renameMetaContact(renamed, "renamed");
+
+        MetaContact moved = findMetaContact(service, 0, 1);
+        service.moveMetaContact(moved, getGroup(service, 1));
+
+        MetaContact removed = findMetaContact(service, 0, 2);
+        service.removeMetaContact(removed);
+
+        service.renameMetaContactGroup(getGroup(service, 2), "renamed group");
+
+        service.createMetaContactGroup(service.getRoot(), "created");
+        MetaContactGroup created
+            = service.getRoot().getMetaContactSubgroup("created");
+        MetaContact createdContact = findMetaContact(service, 3, 0);
+        service.moveMetaContact(createdContact, created);
+
+        long time = System.currentTimeMillis();
+        fixture.stopService(service);
+        time = System.currentTimeMillis() - time;
+
+        File file = new File(fixture.directory, FILE_NAME);
+        File journal = new File(fixture.directory, JOURNAL_FILE_NAME);
+        logger.info("Journaled the changes of a contact list of "
+            + file.length() + " bytes in " + journal.length()
+            + " bytes and " + time + " ms");
+
+        assertTrue("the contact list file was written",
+                   Arrays.equals(stored, readFile(FILE_NAME)));
+        assertTrue("the journal is empty", journal.length() > 0);
+        assertTrue("the journal is not smaller than the file",
+                   journal.length() < file.length());
+
+        service = fixture.createService(properties);
+
+        assertEquals("the rename was not loaded", "renamed",
+                     service.findMetaContactByMetaUID(renamed.getMetaUID())
+                         .getDisplayName());
+        assertEquals("the move was not loaded", getGroup(service, 1),
+                     service.findMetaContactByMetaUID(moved.getMetaUID())
+                         .getParentMetaContactGroup());
+        assertNull("the removal was not loaded",
+                   service.findMetaContactByMetaUID(removed.getMetaUID()));
+        assertNotNull("the group rename was not loaded",
+                      service.getRoot().getMetaContactSubgroup(
+                          "renamed group"));
+
+        MetaContactGroup loadedGroup
+            = service.getRoot().getMetaContactSubgroup("created");
+        assertNotNull("the created group was not loaded", loadedGroup);
+        assertEquals("the created group was not loaded",
+                     created.getMetaUID(), loadedGroup.getMetaUID());
+        assertEquals("the move to the created group was not loaded",
+                     loadedGroup,
+                     service.findMetaContactByMetaUID(
+                         createdContact.getMetaUID())
+                             .getParentMetaContactGroup());
+    }
+
+    /**
+     * Renames all the meta contacts of the list a few times and makes sure
+     * that the journal is compacted into the file.
+     * @throws Exception if anything goes wrong.
+     */
+    public void testCompaction() throws Exception
+    {
+        byte[] stored = readFile(FILE_NAME);
+        MetaContactListService service
+            = fixture.createService(properties);
+
+        List metaContacts = new ArrayList();
+        for (int i = 0; i < fixture.contacts.size(); i++)
+        {
+            metaContacts.add(service.findMetaContactByContact(
+                (Contact) fixture.contacts.get(i)));
+        }
+
+        for (int round = 0; round < 3; round++)
+        {
+            for (int i = 0; i < metaContacts.size(); i++)
+            {
+                service.renameMetaContact((MetaContact) metaContacts.get(i),
+                                          "name" + round + "." + i);
+            }
+            fixture.stopService(service);
+            service = fixture.createService(properties);
+        }
+
+        File file = new File(fixture.directory, FILE_NAME);
+        File journal = new File(fixture.directory, JOURNAL_FILE_NAME);
+
+        assertFalse("the journal was not compacted",
+                    Arrays.equals(stored, readFile(FILE_NAME)));
+        assertTrue("the journal was not compacted",
+                   journal.length() < file.length());
+
+        for (int i = 0; i < metaContacts.size(); i++)
+        {
+            String uid = ((MetaContact) metaContacts.get(i)).getMetaUID();
+            assertEquals("the rename was not loaded", "name2." + i,
+                         service.findMetaContactByMetaUID(uid)
+                             .getDisplayName());
+        }
+    }
+
+    /**
+     * Makes sure that a record left incomplete at the end of the journal is
+     * dropped and the records before it are loaded.
+     * @throws Exception if anything goes wrong.
+     */
+    public void testIncompleteRecord() throws Exception
+    {
+        MetaContactListService service
+            = fixture.createService(properties);
+        MetaContact renamed = findMetaContact(service, 0, 0);
+        service.renameMetaContact(renamed, "renamed");
+        fixture.stopService(service);
+
+        File journal = new File(fixture.directory, JOURNAL_FILE_NAME);
+        long length = journal.length();
+        assertTrue("the journal is empty", length > 0);
+
+        DataOutputStream out = new DataOutputStream(
+            new FileOutputStream(journal, true));
+        out.writeInt(1000);
+        out.write("<put><meta-con".getBytes("UTF-8"));
+        out.close();
+
+        service = fixture.createService(properties);
+        assertEquals("the rename was not loaded", "renamed",
+                     service.findMetaContactByMetaUID(renamed.getMetaUID())
+                         .getDisplayName());
+        assertEquals("the incomplete record was not dropped",
+                     length, journal.length());
+    }
+
+    /**
+     * Makes sure that the replay of the journal stops at a record failing
+     * its checksum, which is cut off with the records after it.
+     * @throws Exception if anything goes wrong.
+     */
+    public void testCorruptedRecord() throws Exception
+    {
+        MetaContactListService service
+            = fixture.createService(properties);
+        MetaContact renamed = findMetaContact(service, 0, 0);
+        service.renameMetaContact(renamed, "renamed");
+        fixture.stopService(service);
+
+        File journal = new File(fixture.directory, JOURNAL_FILE_NAME);
+        long length = journal.length();
+
+        service = fixture.createService(properties);
+        MetaContact lost = findMetaContact(service, 0, 1);
+        service.renameMetaContact(lost, "lost");
+        fixture.stopService(service);
+        assertTrue("the second rename was not journaled",
+                   journal.length() > length);
+
+        // a bit flipped in the payload of the first record of the rename
+        RandomAccessFile file = new RandomAccessFile(journal, "rw");
+        file.seek(length + 10);
+        int b = file.read();
+        file.seek(length + 10);
+        file.write(b ^ 1);
+        file.close();
+
+        service = fixture.createService(properties);
+        assertEquals("the record before the corrupted one was not loaded",
+                     "renamed",
+                     service.findMetaContactByMetaUID(renamed.getMetaUID())
+                         .getDisplayName());
+        assertFalse("the corrupted record was loaded",
+                    "lost".equals(service.findMetaContactByMetaUID(
+                        lost.getMetaUID()).getDisplayName()));
+        assertEquals("the corrupted record was not dropped",
+                     length, journal.length());
+    }
+
+    private MetaContactGroup getGroup(MetaContactListService service,
+                                      int group)
+    {
+        return service.getRoot().getMetaContactSubgroup("group" + group);
+    }
+
+    private MetaContact findMetaContact(MetaContactListService service,
+                                        int group, int contact)
+    {
+        return service.findMetaContactByContact((Contact) fixture.contacts.get(
+            group * MclFixture.CONTACTS_PER_GROUP + contact));
+    }
+
+    private byte[] readFile(String fileName) throws IOException
+    {
+        File file = new File(fixture.directory, fileName);
+        byte[] bytes = new byte[(int) file.length()];
+        DataInputStream in = new DataInputStream(new FileInputStream(file));
+        try
+        {
+            in.readFully(bytes);
+        }
+        finally
+        {
+            in.close();
+        }
+        return bytes;
+    }
+}
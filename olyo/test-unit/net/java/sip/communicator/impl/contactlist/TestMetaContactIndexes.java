@@ -0,0 +1,351 @@
+/*
+ * SIP Communicator, the OpenSource Java VoIP and Instant Messaging client.
+ *
+ * Distributable under LGPL license.
+ * See terms of license at gnu.org.
+ */
+package net.java.sip.communicator.impl.contactlist;
+
+import java.util.*;
+
+import junit.framework.*;
+import net.java.sip.communicator.impl.protocol.mock.*;
+import net.java.sip.communicator.service.contactlist.*;
+import net.java.sip.communicator.service.protocol.*;
+import net.java.sip.communicator.util.*;
+
+/**
+ * Makes sure that the indexes of the meta contact list find the meta
+ * contacts going through the groups of the list would, after meta contacts
+ * and protocol contacts are moved, merged and removed. The time of the
+ * lookups of all the contacts of a large list is logged, compared with going
+ * through the groups, as a benchmark of the indexes.
+ */
+public class TestMetaContactIndexes
+    extends TestCase
+{
+    private static Logger logger =
+        Logger.getLogger(TestMetaContactIndexes.class);
+
+    private MclFixture fixture = null;
+
+    private MetaContactListServiceImpl service = null;
+
+    private String accountID = null;
+
+    /**
+     * Going through the groups takes long, only the meta contacts of every
+     * <tt>SCAN_STEP</tt>th contact are looked up that way.
+     */
+    private static final int SCAN_STEP = 5;
+
+    /**
+     * Create a TestMetaContactIndexes wrapper over the test with the
+     * specified name.
+     * @param name the name of the test to run
+     */
+    public TestMetaContactIndexes(String name)
+    {
+        super(name);
+    }
+
+    /**
+     * Starts a meta contact list over the contact list of the mock provider.
+     * @throws Exception if anything goes wrong.
+     */
+    protected void setUp() throws Exception
+    {
+        super.setUp();
+        fixture = new MclFixture();
+        service = (MetaContactListServiceImpl) fixture.createService();
+        accountID = fixture.provider.getAccountID().getAccountUniqueID();
+    }
+
+    /**
+     * Stops the service and deletes the directory of the test.
+     * @throws Exception if anything goes wrong.
+     */
+    protected void tearDown() throws Exception
+    {
+        fixture.delete();
+        super.tearDown();
+    }
+
+    /**
+     * Looks up the meta contacts of all the contacts of the list with the
+     * indexes, and of every <tt>SCAN_STEP</tt>th one by going through the
+     * groups, and logs their time.
+     */
+    public void testLookupManyContacts()
+    {
+        MetaContactGroupImpl root = (MetaContactGroupImpl) service.getRoot();
+        List contacts = fixture.contacts;
+
+        long indexTime = System.currentTimeMillis();
+        MetaContact[] indexed = new MetaContact[contacts.size()];
+        for (int i = 0; i < contacts.size(); i++)
+        {
+            Contact contact = (Contact) contacts.get(i);
+            indexed[i] = service.findMetaContactByContact(contact);
+            assertSame("wrong meta contact by address",
+                       indexed[i],
+                       service.findMetaContactByContact(
+                           contact.getAddress(), accountID));
+            assertSame("wrong meta contact by meta UID",
+                       indexed[i],
+                       service.findMetaContactByMetaUID(
+                           indexed[i].getMetaUID()));
+        }
+        indexTime = System.currentTimeMillis() - indexTime;
+
+        long scanTime = System.currentTimeMillis();
+        MetaContact[] scanned = new MetaContact[contacts.size()];
+        for (int i = 0; i < contacts.size(); i += SCAN_STEP)
+        {
+            Contact contact = (Contact) contacts.get(i);
+            scanned[i] = root.findMetaContactByContact(contact);
+        }
+        scanTime = System.currentTimeMillis() - scanTime;
+
+        logger.info("Looked up the meta contacts of " + contacts.size()
+            + " contacts in " + indexTime + " ms, of "
+            + contacts.size() / SCAN_STEP
+            + " of them going through the groups in " + scanTime + " ms");
+
+        for (int i = 0; i < contacts.size(); i += SCAN_STEP)
+            assertSame("wrong meta contact", scanned[i], indexed[i]);
+        checkIndexes();
+    }
+
+    /**
+     * Moves meta contacts to other groups and protocol contacts to new meta
+     * contacts of other groups.
+     * @throws Exception if anything goes wrong.
+     */
+    public void testMoves() throws Exception
+    {
+        MetaContactGroup group0 = getGroup(0);
+        MetaContactGroup group1 = getGroup(1);
+
+        // a meta contact keeps its contacts and UID
+        Contact contact = getContact(0, 0);
+        MetaContact metaContact = service.findMetaContactByContact(contact);
+        service.moveMetaContact(metaContact, group1);
+
+        assertSame("the moved meta contact was not found",
+                   metaContact, service.findMetaContactByContact(contact));
+        assertSame("the moved meta contact was not found by UID",
+                   metaContact,
+                   service.findMetaContactByMetaUID(metaContact.getMetaUID()));
+        assertSame("wrong group", group1,
+                   service.findMetaContactByContact(contact)
+                       .getParentMetaContactGroup());
+
+        // a contact gets a new meta contact and the old one is removed
+        contact = getContact(0, 1);
+        metaContact = service.findMetaContactByContact(contact);
+        service.moveContact(contact, group1);
+
+        MetaContact newMetaContact = service.findMetaContactByContact(contact);
+        assertNotNull("the moved contact was not found", newMetaContact);
+        assertNotSame("the contact was not moved",
+                      metaContact, newMetaContact);
+        assertSame("wrong group", group1,
+                   newMetaContact.getParentMetaContactGroup());
+        assertNull("the empty meta contact was found",
+                   service.findMetaContactByMetaUID(metaContact.getMetaUID()));
+
+        // and back
+        service.moveMetaContact(newMetaContact, group0);
+        assertSame("wrong group", group0,
+                   service.findMetaContactByContact(contact)
+                       .getParentMetaContactGroup());
+
+        checkIndexes();
+    }
+
+    /**
+     * Merges protocol contacts in the meta contacts of other contacts.
+     * @throws Exception if anything goes wrong.
+     */
+    public void testMerges() throws Exception
+    {
+        Contact contact = getContact(2, 0);
+        MetaContact source = service.findMetaContactByContact(contact);
+        MetaContact target = service.findMetaContactByContact(getContact(3, 0));
+
+        service.moveContact(contact, target);
+
+        assertSame("the merged contact was not found",
+                   target, service.findMetaContactByContact(contact));
+        assertSame("the merged contact was not found by address",
+                   target,
+                   service.findMetaContactByContact(contact.getAddress(),
+                                                    accountID));
+        assertEquals("wrong number of contacts", 2, target.getContactCount());
+        assertNull("the empty meta contact was found",
+                   service.findMetaContactByMetaUID(source.getMetaUID()));
+
+        // merge all the contacts of a group in one meta contact
+        for (int c = 1; c < MclFixture.CONTACTS_PER_GROUP; c++)
+            service.moveContact(getContact(2, c), target);
+
+        assertEquals("wrong number of contacts",
+                     MclFixture.CONTACTS_PER_GROUP + 1,
+                     target.getContactCount());
+        assertEquals("the group is not empty",
+                     0, getGroup(2).countChildContacts());
+
+        checkIndexes();
+    }
+
+    /**
+     * Removes meta contacts, protocol contacts and whole groups.
+     * @throws Exception if anything goes wrong.
+     */
+    public void testRemovals() throws Exception
+    {
+        Contact contact = getContact(4, 0);
+        MetaContact metaContact = service.findMetaContactByContact(contact);
+        service.removeMetaContact(metaContact);
+
+        assertNull("the removed contact was found",
+                   service.findMetaContactByContact(contact));
+        assertNull("the removed contact was found by address",
+                   service.findMetaContactByContact(contact.getAddress(),
+                                                    accountID));
+        assertNull("the removed meta contact was found",
+                   service.findMetaContactByMetaUID(metaContact.getMetaUID()));
+
+        // remove a contact merged with another
+        Contact merged = getContact(4, 1);
+        metaContact = service.findMetaContactByContact(getContact(4, 2));
+        service.moveContact(merged, metaContact);
+        service.removeContact(merged);
+
+        assertNull("the removed contact was found",
+                   service.findMetaContactByContact(merged));
+        assertSame("the remaining contact was not found", metaContact,
+                   service.findMetaContactByContact(getContact(4, 2)));
+
+        // a removed group takes its meta contacts along
+        MetaContactGroup group = getGroup(5);
+        List uids = new ArrayList();
+        Iterator metaContacts = group.getChildContacts();
+        while (metaContacts.hasNext())
+            uids.add(((MetaContact) metaContacts.next()).getMetaUID());
+
+        service.removeMetaContactGroup(group);
+
+        for (int c = 0; c < MclFixture.CONTACTS_PER_GROUP; c++)
+        {
+            assertNull("a contact of a removed group was found",
+                       service.findMetaContactByContact(getContact(5, c)));
+        }
+        for (int i = 0; i < uids.size(); i++)
+        {
+            assertNull("a meta contact of a removed group was found",
+                       service.findMetaContactByMetaUID((String) uids.get(i)));
+        }
+
+        checkIndexes();
+    }
+
+    /**
+     * Makes sure that the contacts subscribed and unsubscribed by the
+     * provider are found and no longer found.
+     * @throws Exception if anything goes wrong.
+     */
+    public void testSubscriptionEvents() throws Exception
+    {
+        MockPersistentPresenceOperationSet opSet = fixture.presenceOpSet;
+        MockContactGroup protoGroup = (MockContactGroup)
+            opSet.getServerStoredContactListRoot().getGroup("group6");
+
+        opSet.subscribe(protoGroup, "new@mcl");
+        MockContact contact = protoGroup.findContactByID("new@mcl");
+
+        MetaContact metaContact = service.findMetaContactByContact(contact);
+        assertNotNull("the subscribed contact was not found", metaContact);
+        assertSame("wrong group", getGroup(6),
+                   metaContact.getParentMetaContactGroup());
+
+        service.createMetaContact(fixture.provider, getGroup(7), "created@mcl");
+        assertNotNull("the created contact was not found",
+                      service.findMetaContactByContact("created@mcl",
+                                                       accountID));
+
+        opSet.unsubscribe(getContact(6, 0));
+        assertNull("the unsubscribed contact was found",
+                   service.findMetaContactByContact(getContact(6, 0)));
+
+        checkIndexes();
+    }
+
+    /**
+     * Makes sure that the indexes find every meta contact of the list by UID
+     * and by all its contacts, and that the meta contacts they find for the
+     * contacts of the provider are in the list and hold the contacts.
+     */
+    private void checkIndexes()
+    {
+        checkIndexes(service.getRoot());
+
+        for (int i = 0; i < fixture.contacts.size(); i++)
+        {
+            Contact contact = (Contact) fixture.contacts.get(i);
+            MetaContact metaContact = service.findMetaContactByContact(contact);
+            if (metaContact == null)
+                continue;
+
+            assertNotNull("the meta contact of " + contact
+                              + " does not hold it",
+                          metaContact.getContact(contact.getAddress(),
+                                                 fixture.provider));
+
+            MetaContactGroup group = metaContact.getParentMetaContactGroup();
+            while (group != null && group.getParentMetaContactGroup() != null)
+                group = group.getParentMetaContactGroup();
+            assertSame("the meta contact of " + contact + " is not in the list",
+                       service.getRoot(), group);
+        }
+    }
+
+    private void checkIndexes(MetaContactGroup group)
+    {
+        Iterator metaContacts = group.getChildContacts();
+        while (metaContacts.hasNext())
+        {
+            MetaContact metaContact = (MetaContact) metaContacts.next();
+            assertSame("meta contact not found by UID", metaContact,
+                       service.findMetaContactByMetaUID(
+                           metaContact.getMetaUID()));
+
+            Iterator contacts = metaContact.getContacts();
+            while (contacts.hasNext())
+            {
+                Contact contact = (Contact) contacts.next();
+                assertSame("meta contact not found by contact", metaContact,
+                           service.findMetaContactByContact(contact));
+                assertSame("meta contact not found by address", metaContact,
+                           service.findMetaContactByContact(
+                               contact.getAddress(), accountID));
+            }
+        }
+
+        Iterator subgroups = group.getSubgroups();
+        while (subgroups.hasNext())
+            checkIndexes((MetaContactGroup) subgroups.next());
+    }
+
+    private MetaContactGroup getGroup(int group)
+    {
+        return service.getRoot().getMetaContactSubgroup("group" + group);
+    }
+
+    private Contact getContact(int group, int contact)
+    {
+        return (Contact) fixture.contacts.get(
+            group * MclFixture.CONTACTS_PER_GROUP + contact);
+    }
+}
@@ -0,0 +1,324 @@
+/*
+ * SIP Communicator, the OpenSource Java VoIP and Instant Messaging client.
+ *
+ * Distributable under LGPL license.
+ * See terms of license at gnu.org.
+ */
+package net.java.sip.communicator.impl.gui.main.contactlist;
+
+import java.util.*;
+
+import javax.swing.event.*;
+
+import junit.framework.*;
+import net.java.sip.communicator.impl.contactlist.*;
+import net.java.sip.communicator.impl.protocol.mock.*;
+import net.java.sip.communicator.service.contactlist.*;
+import net.java.sip.communicator.util.*;
+
+/**
+ * Makes sure that the rows of the contact list model are the ones going
+ * through the groups of the list gives, and that the events it fires keep a
+ * copy of its rows up to date, after contacts change their status, are moved
+ * and removed, and after groups are closed and offline contacts hidden. The
+ * time of painting all the rows of a large list and of a storm of status
+ * changes is logged, as a benchmark of the model.
+ */
+public class TestContactListModel
+    extends TestCase
+{
+    private static Logger logger =
+        Logger.getLogger(TestContactListModel.class);
+
+    private MclFixture fixture = null;
+
+    private MetaContactListService service = null;
+
+    private ContactListModel model = null;
+
+    /**
+     * The rows of the model, as the events it fired tell them.
+     */
+    private List eventRows = null;
+
+    /**
+     * The number of rows the events fired by the model covered.
+     */
+    private int eventRowCount = 0;
+
+    /**
+     * Create a TestContactListModel wrapper over the test with the specified
+     * name.
+     * @param name the name of the test to run
+     */
+    public TestContactListModel(String name)
+    {
+        super(name);
+    }
+
+    /**
+     * Creates a model over a meta contact list over the contact list of the
+     * mock provider, and a copy of its rows updated from its events.
+     * @throws Exception if anything goes wrong.
+     */
+    protected void setUp() throws Exception
+    {
+        super.setUp();
+        fixture = new MclFixture();
+        service = fixture.createService();
+        model = new ContactListModel(service);
+
+        eventRows = new ArrayList();
+        for (int i = 0; i < model.getSize(); i++)
+            eventRows.add(model.getElementAt(i));
+
+        model.addListDataListener(new ListDataListener()
+        {
+            public void intervalAdded(ListDataEvent e)
+            {
+                for (int i = e.getIndex0(); i <= e.getIndex1(); i++)
+                    eventRows.add(i, model.getElementAt(i));
+                eventRowCount += e.getIndex1() - e.getIndex0() + 1;
+            }
+
+            public void intervalRemoved(ListDataEvent e)
+            {
+                for (int i = e.getIndex1(); i >= e.getIndex0(); i--)
+                    eventRows.remove(i);
+                eventRowCount += e.getIndex1() - e.getIndex0() + 1;
+            }
+
+            public void contentsChanged(ListDataEvent e)
+            {
+                for (int i = e.getIndex0(); i <= e.getIndex1(); i++)
+                    eventRows.set(i, model.getElementAt(i));
+                eventRowCount += e.getIndex1() - e.getIndex0() + 1;
+            }
+        });
+    }
+
+    /**
+     * Stops the service and deletes the directory of the test.
+     * @throws Exception if anything goes wrong.
+     */
+    protected void tearDown() throws Exception
+    {
+        fixture.delete();
+        super.tearDown();
+    }
+
+    /**
+     * Gets all the rows of the list and changes the status of many contacts,
+     * with offline contacts shown, and logs their time.
+     */
+    public void testStatusStorm()
+    {
+        long paintTime = System.currentTimeMillis();
+        for (int i = 0; i < model.getSize(); i++)
+        {
+            Object row = model.getElementAt(i);
+            assertEquals("wrong index", i, model.indexOf(row));
+        }
+        paintTime = System.currentTimeMillis() - paintTime;
+
+        long stormTime = System.currentTimeMillis();
+        for (int i = 0; i < fixture.contacts.size(); i++)
+        {
+            MockContact contact = (MockContact) fixture.contacts.get(i);
+            fixture.presenceOpSet.changePresenceStatusForContact(contact,
+                (i % 2 == 0)
+                    ? MockStatusEnum.MOCK_STATUS_100
+                    : MockStatusEnum.MOCK_STATUS_00);
+
+            eventRowCount = 0;
+            model.refreshContact(service.findMetaContactByContact(contact));
+            assertEquals("more than the row of the contact was refreshed",
+                         1, eventRowCount);
+        }
+        stormTime = System.currentTimeMillis() - stormTime;
+
+        logger.info("Got the " + model.getSize() + " rows of the list in "
+            + paintTime + " ms, refreshed the rows of "
+            + fixture.contacts.size() + " contacts changing their status in "
+            + stormTime + " ms");
+
+        // the status changes reordered the contacts of the groups
+        for (int g = 0; g < MclFixture.GROUP_COUNT; g++)
+            model.refreshGroup(getGroup(g));
+        checkRows();
+    }
+
+    /**
+     * Changes the status of contacts, moves and removes contacts while
+     * offline contacts are hidden.
+     * @throws Exception if anything goes wrong.
+     */
+    public void testHideOffline() throws Exception
+    {
+        for (int c = 0; c < MclFixture.CONTACTS_PER_GROUP; c++)
+            setOffline(0, c, true);
+        setOffline(1, 0, true);
+        setOffline(1, 1, true);
+        model.setShowOffline(false);
+        checkRows();
+
+        // a contact coming online is shown, with its group
+        setOffline(0, 5, false);
+        checkRows();
+        setOffline(1, 0, false);
+        checkRows();
+
+        // a contact going offline is hidden, with its group
+        setOffline(1, 2, true);
+        checkRows();
+        setOffline(0, 5, true);
+        checkRows();
+
+        MetaContactGroup group2 = getGroup(2);
+        MetaContact metaContact = getMetaContact(3, 0);
+        service.moveMetaContact(metaContact, group2);
+        model.refreshGroup(group2);
+        model.refreshGroup(getGroup(3));
+        checkRows();
+        assertEquals("the moved contact was not found",
+                     eventRows.indexOf(metaContact),
+                     model.indexOf(metaContact));
+
+        metaContact = getMetaContact(4, 0);
+        service.removeMetaContact(metaContact);
+        model.refreshGroup(getGroup(4));
+        checkRows();
+        assertEquals("the removed contact was found",
+                     -1, model.indexOf(metaContact));
+
+        model.setShowOffline(true);
+        checkRows();
+    }
+
+    /**
+     * Closes and opens groups, moves contacts between groups in both orders
+     * of refreshing the groups and removes a group.
+     * @throws Exception if anything goes wrong.
+     */
+    public void testGroupChanges() throws Exception
+    {
+        model.closeGroup(getGroup(0));
+        checkRows();
+        model.closeGroup(getGroup(2));
+        checkRows();
+        model.openGroup(getGroup(0));
+        checkRows();
+
+        // the new group is refreshed first, and then the old one
+        MetaContact metaContact = getMetaContact(5, 0);
+        service.moveMetaContact(metaContact, getGroup(3));
+        model.refreshGroup(getGroup(3));
+        model.refreshGroup(getGroup(5));
+        checkRows();
+
+        // the old group is refreshed first, and then the new one
+        metaContact = getMetaContact(3, 1);
+        service.moveMetaContact(metaContact, getGroup(5));
+        model.refreshGroup(getGroup(3));
+        model.refreshGroup(getGroup(5));
+        checkRows();
+
+        service.createMetaContactGroup(service.getRoot(), "created");
+        model.refreshGroup(service.getRoot().getMetaContactSubgroup(
+            "created"));
+        checkRows();
+
+        MetaContactGroup group = getGroup(6);
+        service.removeMetaContactGroup(group);
+        model.removeGroup(group);
+        checkRows();
+        assertEquals("the removed group was found", -1, model.indexOf(group));
+    }
+
+    /**
+     * Makes sure that the rows of the model are the rows going through the
+     * groups of the list gives, that their indexes are right, and that the
+     * events fired by the model gave the same rows.
+     */
+    private void checkRows()
+    {
+        List rows = new ArrayList();
+        addRows(service.getRoot(), rows);
+
+        List modelRows = new ArrayList();
+        for (int i = 0; i < model.getSize(); i++)
+            modelRows.add(model.getElementAt(i));
+
+        assertEquals("wrong rows", rows, modelRows);
+        assertEquals("the events gave wrong rows", rows, eventRows);
+
+        for (int i = 0; i < rows.size(); i++)
+            assertEquals("wrong index of " + rows.get(i),
+                         i, model.indexOf(rows.get(i)));
+    }
+
+    /**
+     * Adds the rows of a group the way the list shows them.
+     */
+    private void addRows(MetaContactGroup group, List rows)
+    {
+        if (group != service.getRoot())
+        {
+            boolean hasOnlineContacts = false;
+            Iterator childContacts = group.getChildContacts();
+            while (childContacts.hasNext())
+            {
+                if (model.isContactOnline(
+                    (MetaContact) childContacts.next()))
+                    hasOnlineContacts = true;
+            }
+            if (!model.isShowOffline() && !hasOnlineContacts)
+                return;
+
+            rows.add(group);
+            if (model.isGroupClosed(group))
+                return;
+        }
+
+        Iterator childContacts = group.getChildContacts();
+        while (childContacts.hasNext())
+        {
+            MetaContact metaContact = (MetaContact) childContacts.next();
+            if (model.isShowOffline() || model.isContactOnline(metaContact))
+                rows.add(metaContact);
+        }
+
+        Iterator subgroups = group.getSubgroups();
+        while (subgroups.hasNext())
+            addRows((MetaContactGroup) subgroups.next(), rows);
+    }
+
+    /**
+     * Changes the status of a contact and refreshes it, and its group as
+     * the status of a contact reorders the contacts of its group.
+     */
+    private void setOffline(int group, int contact, boolean offline)
+    {
+        MockContact mockContact = (MockContact) fixture.contacts.get(
+            group * MclFixture.CONTACTS_PER_GROUP + contact);
+        fixture.presenceOpSet.changePresenceStatusForContact(mockContact,
+            offline
+                ? MockStatusEnum.MOCK_STATUS_00
+                : MockStatusEnum.MOCK_STATUS_100);
+
+        model.refreshContact(service.findMetaContactByContact(mockContact));
+        model.refreshGroup(getGroup(group));
+    }
+
+    private MetaContactGroup getGroup(int group)
+    {
+        return service.getRoot().getMetaContactSubgroup("group" + group);
+    }
+
+    private MetaContact getMetaContact(int group, int contact)
+    {
+        return service.findMetaContactByContact((MockContact)
+            fixture.contacts.get(group * MclFixture.CONTACTS_PER_GROUP
+                                 + contact));
+    }
+}
@@ -0,0 +1,256 @@
+/*
+ * SIP Communicator, the OpenSource Java VoIP and Instant Messaging client.
+ *
+ * Distributable under LGPL license.
+ * See terms of license at gnu.org.
+ */
+package net.java.sip.communicator.impl.media.transform;
+
+import java.net.*;
+import java.util.*;
+import java.util.concurrent.atomic.*;
+
+import javax.media.protocol.*;
+import javax.media.rtp.*;
+
+import junit.framework.*;
+import net.java.sip.communicator.impl.media.transform.srtp.*;
+import net.java.sip.communicator.util.*;
+
+/**
+ * Drives hundreds of SRTP streams over the loopback interface between pairs
+ * of connectors created over one packet selector, and makes sure that every
+ * packet is received, in order and decrypted, and that the number of threads
+ * does not grow with the number of connectors. The time of sending and
+ * receiving all the packets is logged, as a load test of the selector.
+ */
+public class TestPacketSelector
+    extends TestCase
+{
+    private static Logger logger = Logger.getLogger(TestPacketSelector.class);
+
+    /**
+     * The number of pairs of connectors, each connector sending a stream to
+     * the other one of its pair.
+     */
+    private static final int PAIRS = 100;
+
+    /**
+     * The number of packets sent on every stream.
+     */
+    private static final int PACKETS = 50;
+
+    private static final int HEADER_LENGTH = 12;
+
+    private static final int PAYLOAD_LENGTH = 160;
+
+    private static final long TIMEOUT = 30000;
+
+    private static final byte[] MASTER_KEY = new byte[16];
+
+    private static final byte[] MASTER_SALT = new byte[14];
+
+    private PacketSelector selector = null;
+
+    private final List connectors = new ArrayList();
+
+    /**
+     * The next sequence number every connector expects to read.
+     */
+    private int[] expectedSeqNums = null;
+
+    /**
+     * The number of packets read by all the connectors.
+     */
+    private final AtomicInteger readPackets = new AtomicInteger();
+
+    /**
+     * The number of packets read out of order or with a wrong content.
+     */
+    private final AtomicInteger wrongPackets = new AtomicInteger();
+
+    /**
+     * Create a TestPacketSelector wrapper over the test with the specified
+     * name.
+     * @param name the name of the test to run
+     */
+    public TestPacketSelector(String name)
+    {
+        super(name);
+    }
+
+    /**
+     * Starts the selector.
+     * @throws Exception if anything goes wrong.
+     */
+    protected void setUp() throws Exception
+    {
+        super.setUp();
+        selector = new PacketSelector(2);
+        new Random().nextBytes(MASTER_KEY);
+        new Random().nextBytes(MASTER_SALT);
+    }
+
+    /**
+     * Closes the connectors and the selector.
+     * @throws Exception if anything goes wrong.
+     */
+    protected void tearDown() throws Exception
+    {
+        for (int i = 0; i < connectors.size(); i++)
+            ((TransformConnector) connectors.get(i)).close();
+        selector.close();
+        super.tearDown();
+    }
+
+    /**
+     * Sends packets on the streams of all the connectors, one packet per
+     * stream at a time, and makes sure they are all read.
+     * @throws Exception if anything goes wrong.
+     */
+    public void testManyStreams() throws Exception
+    {
+        int threadCount = Thread.activeCount();
+
+        InetAddress loopback = InetAddress.getByName("127.0.0.1");
+        List addresses = new ArrayList();
+        int port = 20000 + 2 * new Random().nextInt(10000);
+        while (connectors.size() < 2 * PAIRS)
+        {
+            SessionAddress address = new SessionAddress(loopback, port);
+            port += 2;
+            try
+            {
+                connectors.add(TransformManager.createSRTPConnector(address,
+                    MASTER_KEY, MASTER_SALT, createPolicy(), createPolicy(),
+                    selector));
+                addresses.add(address);
+            }
+            catch (InvalidSessionAddressException e)
+            {
+                // the port is taken, try the next one
+            }
+        }
+
+        expectedSeqNums = new int[connectors.size()];
+        OutputDataStream[] outputs = new OutputDataStream[connectors.size()];
+        for (int i = 0; i < connectors.size(); i++)
+        {
+            TransformConnector connector
+                = (TransformConnector) connectors.get(i);
+            connector.getDataInputStream().setTransferHandler(
+                new Reader(i ^ 1));
+            connector.getControlInputStream();
+            connector.addTarget((SessionAddress) addresses.get(i ^ 1));
+            outputs[i] = connector.getDataOutputStream();
+        }
+
+        int connectorThreadCount = Thread.activeCount() - threadCount;
+
+        long time = System.currentTimeMillis();
+        for (int seqNum = 0; seqNum < PACKETS; seqNum++)
+        {
+            for (int i = 0; i < outputs.length; i++)
+            {
+                byte[] packet = createPacket(i, seqNum);
+                assertEquals("failed to send a packet", packet.length,
+                             outputs[i].write(packet, 0, packet.length));
+            }
+            Thread.sleep(1);
+        }
+
+        int count = outputs.length * PACKETS;
+        long deadline = System.currentTimeMillis() + TIMEOUT;
+        while (readPackets.get() < count
+               && System.currentTimeMillis() < deadline)
+            Thread.sleep(10);
+        time = System.currentTimeMillis() - time;
+
+        logger.info("Sent and read " + count + " SRTP packets on "
+            + outputs.length + " streams of " + connectors.size()
+            + " connectors in " + time + " ms, with "
+            + selector.getThreadCount() + " selector threads and "
+            + connectorThreadCount + " more threads for the connectors");
+
+        assertEquals("the connectors started threads",
+                     0, connectorThreadCount);
+        assertEquals("wrong read packets", count, readPackets.get());
+        assertEquals("packets were read out of order or changed",
+                     0, wrongPackets.get());
+
+        for (int i = 0; i < connectors.size(); i++)
+        {
+            TransformInputStream input = (TransformInputStream)
+                ((TransformConnector) connectors.get(i)).getDataInputStream();
+            assertEquals("packets were dropped",
+                         0, input.getDroppedPackets());
+            assertEquals("packets overflowed",
+                         0, input.getOverflowPackets());
+        }
+    }
+
+    private SRTPPolicy createPolicy()
+    {
+        return new SRTPPolicy(SRTPPolicy.AESCM_ENCRYPTION, 16,
+            SRTPPolicy.HMACSHA1_AUTHENTICATION, 20, 10, 14);
+    }
+
+    /**
+     * Returns an RTP packet of the stream of a connector, whose SSRC is the
+     * index of the connector.
+     */
+    private static byte[] createPacket(int ssrc, int seqNum)
+    {
+        byte[] packet = new byte[HEADER_LENGTH + PAYLOAD_LENGTH];
+        packet[0] = (byte) 0x80;
+        packet[2] = (byte) (seqNum >> 8);
+        packet[3] = (byte) seqNum;
+        for (int i = 0; i < 4; i++)
+            packet[8 + i] = (byte) (ssrc >> (8 * (3 - i)));
+        for (int i = 0; i < PAYLOAD_LENGTH; i++)
+            packet[HEADER_LENGTH + i] = (byte) (ssrc + seqNum + i);
+        return packet;
+    }
+
+    /**
+     * Reads the packets of the stream of a connector and checks them.
+     */
+    private class Reader
+        implements SourceTransferHandler
+    {
+        private final int ssrc;
+
+        private final byte[] buffer = new byte[2048];
+
+        Reader(int ssrc)
+        {
+            this.ssrc = ssrc;
+        }
+
+        public void transferData(PushSourceStream stream)
+        {
+            try
+            {
+                int length = stream.read(buffer, 0, buffer.length);
+                if (length == 0)
+                    return;
+
+                int seqNum = ((buffer[2] & 0xFF) << 8) | (buffer[3] & 0xFF);
+                byte[] expected = createPacket(ssrc, seqNum);
+                boolean right = (seqNum == expectedSeqNums[ssrc])
+                    && (length == expected.length);
+                for (int i = 0; right && i < length; i++)
+                    right = (buffer[i] == expected[i]);
+
+                if (!right)
+                    wrongPackets.incrementAndGet();
+                expectedSeqNums[ssrc] = seqNum + 1;
+                readPackets.incrementAndGet();
+            }
+            catch (Exception e)
+            {
+                logger.error("Failed to read a packet", e);
+            }
+        }
+    }
+}
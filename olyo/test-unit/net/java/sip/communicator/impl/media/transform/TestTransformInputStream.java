@@ -0,0 +1,304 @@
+/*
+ * SIP Communicator, the OpenSource Java VoIP and Instant Messaging client.
+ *
+ * Distributable under LGPL license.
+ * See terms of license at gnu.org.
+ */
+package net.java.sip.communicator.impl.media.transform;
+
+import java.net.*;
+import java.util.*;
+
+import javax.media.protocol.*;
+
+import junit.framework.*;
+import net.java.sip.communicator.util.*;
+
+/**
+ * Makes sure that the packets received by a transform input stream over the
+ * loopback interface are handed to its transfer handler in order and intact,
+ * that packets the transformer rejects are counted as dropped, and that
+ * packets arriving while the handler does not read are counted as overflows
+ * without losing the ones already received. The time of passing many packets
+ * through the stream is logged, as a benchmark of its receive ring.
+ */
+public class TestTransformInputStream
+    extends TestCase
+{
+    private static Logger logger
+        = Logger.getLogger(TestTransformInputStream.class);
+
+    private static final int PACKET_LENGTH = 172;
+
+    /**
+     * The number of packets sent before waiting for them to be read, below
+     * the capacity of the ring.
+     */
+    private static final int BURST = 16;
+
+    private static final long TIMEOUT = 10000;
+
+    private DatagramSocket receiveSocket = null;
+
+    private DatagramSocket sendSocket = null;
+
+    private TransformInputStream stream = null;
+
+    /**
+     * The sequence numbers of the packets read from the stream.
+     */
+    private final List readNumbers = new Vector();
+
+    /**
+     * Whether the transfer handler does not read packets.
+     */
+    private volatile boolean blocked = false;
+
+    /**
+     * Create a TestTransformInputStream wrapper over the test with the
+     * specified name.
+     * @param name the name of the test to run
+     */
+    public TestTransformInputStream(String name)
+    {
+        super(name);
+    }
+
+    /**
+     * Binds the sockets to the loopback interface.
+     * @throws Exception if anything goes wrong.
+     */
+    protected void setUp() throws Exception
+    {
+        super.setUp();
+        InetAddress loopback = InetAddress.getByName("127.0.0.1");
+        receiveSocket = new DatagramSocket(0, loopback);
+        sendSocket = new DatagramSocket(0, loopback);
+    }
+
+    /**
+     * Closes the stream and the sockets.
+     * @throws Exception if anything goes wrong.
+     */
+    protected void tearDown() throws Exception
+    {
+        if (stream != null)
+            stream.close();
+        receiveSocket.close();
+        sendSocket.close();
+        super.tearDown();
+    }
+
+    /**
+     * Sends many packets in bursts and makes sure they are all read, in
+     * order and intact, and logs their time.
+     * @throws Exception if anything goes wrong.
+     */
+    public void testDelivery() throws Exception
+    {
+        createStream(new PacketTransformerAdapter());
+
+        int count = 20000;
+        long time = System.currentTimeMillis();
+        for (int seqNum = 0; seqNum < count; seqNum++)
+        {
+            send(seqNum);
+            if (seqNum % BURST == BURST - 1)
+                waitForReadPackets(seqNum + 1);
+        }
+        waitForReadPackets(count);
+        time = System.currentTimeMillis() - time;
+
+        logger.info("Received and read " + count + " packets of "
+            + PACKET_LENGTH + " bytes in bursts of " + BURST + " in " + time
+            + " ms");
+
+        for (int seqNum = 0; seqNum < count; seqNum++)
+            assertEquals("wrong packet", new Integer(seqNum),
+                         readNumbers.get(seqNum));
+        assertEquals("packets were dropped", 0, stream.getDroppedPackets());
+        assertEquals("packets overflowed", 0, stream.getOverflowPackets());
+        assertEquals("wrong received packets",
+                     count, stream.getReceivedPackets());
+    }
+
+    /**
+     * Makes sure that the packets the transformer rejects are counted as
+     * dropped and not read.
+     * @throws Exception if anything goes wrong.
+     */
+    public void testRejectedPackets() throws Exception
+    {
+        createStream(new PacketTransformerAdapter()
+        {
+            public RawPacket reverseTransform(RawPacket pkt)
+            {
+                return (getSeqNum(pkt.getBuffer(), pkt.getOffset()) % 3 == 0)
+                    ? null
+                    : pkt;
+            }
+        });
+
+        for (int seqNum = 0; seqNum < 30; seqNum++)
+            send(seqNum);
+        waitForReadPackets(20);
+
+        assertEquals("wrong dropped packets", 10, stream.getDroppedPackets());
+        for (int i = 0; i < readNumbers.size(); i++)
+        {
+            assertTrue("a rejected packet was read",
+                ((Integer) readNumbers.get(i)).intValue() % 3 != 0);
+        }
+    }
+
+    /**
+     * Keeps the handler from reading until the ring is full and makes sure
+     * that the packets received after are counted as overflows, and that
+     * the ones in the ring are read once the handler reads again.
+     * @throws Exception if anything goes wrong.
+     */
+    public void testOverflow() throws Exception
+    {
+        blocked = true;
+        createStream(new PacketTransformerAdapter());
+
+        int count = 200;
+        for (int seqNum = 0; seqNum < count; seqNum++)
+        {
+            send(seqNum);
+            Thread.sleep(1);
+        }
+
+        long deadline = System.currentTimeMillis() + TIMEOUT;
+        while (stream.getReceivedPackets() < count
+               && System.currentTimeMillis() < deadline)
+            Thread.sleep(10);
+        assertEquals("wrong received packets",
+                     count, stream.getReceivedPackets());
+
+        long overflows = stream.getOverflowPackets();
+        assertTrue("no packet overflowed", overflows > 0);
+
+        blocked = false;
+        waitForReadPackets((int) (count - overflows));
+        Thread.sleep(100);
+        assertEquals("wrong read packets",
+                     count - overflows, readNumbers.size());
+        for (int i = 0; i < readNumbers.size(); i++)
+            assertEquals("wrong packet", new Integer(i), readNumbers.get(i));
+    }
+
+    /**
+     * Makes sure that a packet a transformer returns in place of the free
+     * packet of the ring is copied into the slot, which keeps its own packet
+     * and buffer, and that a packet too large for the slot is not published.
+     */
+    public void testPublishCopiesIntoSlot()
+    {
+        PacketRing ring = new PacketRing(2, 64);
+
+        RawPacket free = ring.getFreePacket();
+        byte[] freeBuffer = free.getBuffer();
+        byte[] transformed = new byte[32];
+        for (int i = 0; i < transformed.length; i++)
+            transformed[i] = (byte) i;
+        assertTrue("the packet was not published",
+                   ring.publish(new RawPacket(transformed, 4, 20)));
+
+        RawPacket pkt = ring.getPacket();
+        assertSame("the packet of the slot was replaced", free, pkt);
+        assertSame("the buffer of the slot was replaced",
+                   freeBuffer, pkt.getBuffer());
+        assertEquals("wrong length", 20, pkt.getLength());
+        for (int i = 0; i < pkt.getLength(); i++)
+            assertEquals("wrong content", (byte) (i + 4),
+                         pkt.getBuffer()[pkt.getOffset() + i]);
+        ring.release();
+
+        ring.getFreePacket();
+        assertFalse("a packet larger than the slot was published",
+                    ring.publish(new RawPacket(new byte[128], 0, 128)));
+        assertTrue("the ring is not empty", ring.isEmpty());
+    }
+
+    private void createStream(PacketTransformer transformer)
+    {
+        stream = new TransformInputStream(receiveSocket, transformer);
+
+        final byte[] buffer = new byte[stream.getMinimumTransferSize()];
+        stream.setTransferHandler(new SourceTransferHandler()
+        {
+            public void transferData(PushSourceStream source)
+            {
+                if (blocked)
+                    return;
+
+                try
+                {
+                    int length = source.read(buffer, 0, buffer.length);
+                    if (length == 0)
+                        return;
+
+                    assertEquals("wrong packet length",
+                                 PACKET_LENGTH, length);
+                    int seqNum = getSeqNum(buffer, 0);
+                    for (int i = 4; i < length; i++)
+                        assertEquals("wrong packet content",
+                                     (byte) (seqNum + i), buffer[i]);
+                    readNumbers.add(new Integer(seqNum));
+                }
+                catch (Exception e)
+                {
+                    logger.error("Failed to read a packet", e);
+                }
+            }
+        });
+    }
+
+    private void send(int seqNum) throws Exception
+    {
+        byte[] packet = new byte[PACKET_LENGTH];
+        for (int i = 0; i < 4; i++)
+            packet[i] = (byte) (seqNum >> (8 * (3 - i)));
+        for (int i = 4; i < PACKET_LENGTH; i++)
+            packet[i] = (byte) (seqNum + i);
+
+        sendSocket.send(new DatagramPacket(packet, packet.length,
+                                           receiveSocket.getLocalAddress(),
+                                           receiveSocket.getLocalPort()));
+    }
+
+    private int getSeqNum(byte[] buffer, int offset)
+    {
+        int seqNum = 0;
+        for (int i = 0; i < 4; i++)
+            seqNum = (seqNum << 8) | (buffer[offset + i] & 0xFF);
+        return seqNum;
+    }
+
+    private void waitForReadPackets(int count) throws InterruptedException
+    {
+        long deadline = System.currentTimeMillis() + TIMEOUT;
+        while (readNumbers.size() < count
+               && System.currentTimeMillis() < deadline)
+            Thread.sleep(0, 100000);
+        assertEquals("the packets were not read", count, readNumbers.size());
+    }
+
+    /**
+     * A transformer that leaves the packets as they are.
+     */
+    private static class PacketTransformerAdapter
+        implements PacketTransformer
+    {
+        public RawPacket transform(RawPacket pkt)
+        {
+            return pkt;
+        }
+
+        public RawPacket reverseTransform(RawPacket pkt)
+        {
+            return pkt;
+        }
+    }
+}
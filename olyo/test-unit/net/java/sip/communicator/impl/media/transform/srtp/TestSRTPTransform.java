@@ -0,0 +1,356 @@
+/*
+ * SIP Communicator, the OpenSource Java VoIP and Instant Messaging client.
+ *
+ * Distributable under LGPL license.
+ * See terms of license at gnu.org.
+ */
+package net.java.sip.communicator.impl.media.transform.srtp;
+
+import java.util.*;
+
+import javax.crypto.*;
+import javax.crypto.spec.*;
+
+import junit.framework.*;
+import net.java.sip.communicator.impl.media.transform.*;
+import net.java.sip.communicator.util.*;
+
+/**
+ * Makes sure that packets protected by the SRTP transformer are the ones
+ * AES-CM and HMAC-SHA1 computed with the JCE give, that they are turned back
+ * into the original packets with both encryption modes, that the tag is
+ * written in the buffer of the packet when it has room for it, and that
+ * tampered packets are rejected. The number of packets protected and checked
+ * per second on one core is logged, as a benchmark of the transformer.
+ */
+public class TestSRTPTransform
+    extends TestCase
+{
+    private static Logger logger = Logger.getLogger(TestSRTPTransform.class);
+
+    private static final byte[] MASTER_KEY = new byte[] {
+        (byte) 0xE1, (byte) 0xF9, (byte) 0x7A, (byte) 0x0D,
+        (byte) 0x3E, (byte) 0x01, (byte) 0x8B, (byte) 0xE0,
+        (byte) 0xD6, (byte) 0x4F, (byte) 0xA3, (byte) 0x2C,
+        (byte) 0x06, (byte) 0xDE, (byte) 0x41, (byte) 0x39 };
+
+    private static final byte[] MASTER_SALT = new byte[] {
+        (byte) 0x0E, (byte) 0xC6, (byte) 0x75, (byte) 0xAD,
+        (byte) 0x49, (byte) 0x8A, (byte) 0xFE, (byte) 0xEB,
+        (byte) 0xB6, (byte) 0x96, (byte) 0x0B, (byte) 0x3A,
+        (byte) 0xAB, (byte) 0xE6 };
+
+    private static final int HEADER_LENGTH = 12;
+
+    /**
+     * The payload of a 20 ms G.711 packet.
+     */
+    private static final int PAYLOAD_LENGTH = 160;
+
+    private static final int TAG_LENGTH = 10;
+
+    /**
+     * The number of packets of every SSRC of the benchmark, below the wrap
+     * of the sequence numbers.
+     */
+    private static final int BENCHMARK_PACKETS = 50000;
+
+    private static final int BENCHMARK_ROUNDS = 4;
+
+    /**
+     * Create a TestSRTPTransform wrapper over the test with the specified
+     * name.
+     * @param name the name of the test to run
+     */
+    public TestSRTPTransform(String name)
+    {
+        super(name);
+    }
+
+    /**
+     * Protects a packet with AES-CM and HMAC-SHA1 and compares it with the
+     * packet the JCE gives for the keys derived as RFC 3711 defines.
+     * @throws Exception if anything goes wrong.
+     */
+    public void testAESCMReference() throws Exception
+    {
+        long ssrc = 0x12345678L;
+        int seqNum = 1000;
+        byte[] packet = createPacket(ssrc, seqNum);
+
+        byte[] buffer = new byte[packet.length + TAG_LENGTH];
+        System.arraycopy(packet, 0, buffer, 0, packet.length);
+        RawPacket pkt = createTransformer(SRTPPolicy.AESCM_ENCRYPTION)
+            .transform(new RawPacket(buffer, 0, packet.length));
+
+        byte[] encKey = deriveKey(0, 16);
+        byte[] authKey = deriveKey(1, 20);
+        byte[] saltKey = deriveKey(2, 14);
+
+        byte[] iv = new byte[14];
+        System.arraycopy(saltKey, 0, iv, 0, 14);
+        for (int i = 0; i < 4; i++)
+            iv[4 + i] ^= (byte) (ssrc >> (8 * (3 - i)));
+        iv[12] ^= (byte) (seqNum >> 8);
+        iv[13] ^= (byte) seqNum;
+        byte[] keyStream = keyStream(encKey, iv, PAYLOAD_LENGTH);
+
+        byte[] expected = new byte[packet.length + TAG_LENGTH];
+        System.arraycopy(packet, 0, expected, 0, packet.length);
+        for (int i = 0; i < PAYLOAD_LENGTH; i++)
+            expected[HEADER_LENGTH + i] ^= keyStream[i];
+
+        Mac mac = Mac.getInstance("HmacSHA1");
+        mac.init(new SecretKeySpec(authKey, "HmacSHA1"));
+        mac.update(expected, 0, packet.length);
+        byte[] tag = mac.doFinal(new byte[4]);
+        System.arraycopy(tag, 0, expected, packet.length, TAG_LENGTH);
+
+        assertSame("the tag was not written in the buffer of the packet",
+                   buffer, pkt.getBuffer());
+        assertTrue("wrong SRTP packet",
+                   Arrays.equals(expected, toBytes(pkt)));
+    }
+
+    /**
+     * Protects packets with AES-CM and turns them back, with and without
+     * room for the tag in their buffer.
+     */
+    public void testAESCMRoundTrip()
+    {
+        checkRoundTrip(SRTPPolicy.AESCM_ENCRYPTION);
+    }
+
+    /**
+     * Protects packets with AES-F8 and turns them back, with and without
+     * room for the tag in their buffer.
+     */
+    public void testF8RoundTrip()
+    {
+        checkRoundTrip(SRTPPolicy.AESF8_ENCRYPTION);
+    }
+
+    /**
+     * Makes sure that packets with a changed byte or tag are rejected, and
+     * that the packets after them are still accepted.
+     */
+    public void testTamperedPackets()
+    {
+        PacketTransformer sender
+            = createTransformer(SRTPPolicy.AESCM_ENCRYPTION);
+        PacketTransformer receiver
+            = createTransformer(SRTPPolicy.AESCM_ENCRYPTION);
+
+        for (int seqNum = 0; seqNum < 3 * HEADER_LENGTH; seqNum++)
+        {
+            RawPacket pkt = sender.transform(
+                new RawPacket(createPacket(1, seqNum), 0,
+                              HEADER_LENGTH + PAYLOAD_LENGTH));
+            byte[] tampered = toBytes(pkt);
+
+            // a byte of the header, of the payload or of the tag
+            int index = (seqNum % 3 == 0)
+                ? seqNum / 3
+                : (seqNum % 3 == 1)
+                    ? HEADER_LENGTH + seqNum
+                    : tampered.length - 1 - seqNum % TAG_LENGTH;
+            tampered[index] ^= 0x01;
+            assertNull("a tampered packet was accepted",
+                       receiver.reverseTransform(
+                           new RawPacket(tampered, 0, tampered.length)));
+
+            byte[] truncated = toBytes(pkt);
+            assertNull("a truncated packet was accepted",
+                       receiver.reverseTransform(
+                           new RawPacket(truncated, 0, TAG_LENGTH - 1)));
+        }
+
+        byte[] packet = createPacket(1, 100);
+        RawPacket pkt = sender.transform(
+            new RawPacket(packet.clone(), 0, packet.length));
+        pkt = receiver.reverseTransform(
+            new RawPacket(toBytes(pkt), 0, pkt.getLength()));
+        assertNotNull("a packet was rejected", pkt);
+        assertTrue("wrong RTP packet", Arrays.equals(packet, toBytes(pkt)));
+    }
+
+    /**
+     * Makes sure that a region is only read from within the packet, not from
+     * the rest of the buffer holding it.
+     */
+    public void testReadRegionWithinPacket()
+    {
+        byte[] buffer = new byte[64];
+        for (int i = 0; i < buffer.length; i++)
+            buffer[i] = (byte) i;
+        RawPacket pkt = new RawPacket(buffer, 8, 32);
+
+        byte[] region = new byte[TAG_LENGTH];
+        assertTrue("the end of the packet was not read",
+                   pkt.readRegionToBuff(32 - TAG_LENGTH, TAG_LENGTH, region));
+        assertEquals("wrong region", 8 + 32 - TAG_LENGTH, region[0]);
+        assertFalse("a region past the end of the packet was read",
+                    pkt.readRegionToBuff(32 - TAG_LENGTH + 1, TAG_LENGTH,
+                                         region));
+    }
+
+    /**
+     * Protects and checks packets of 160 bytes of payload on one core, in
+     * buffers with room for the tag as the output stream gives them, and
+     * logs the number of packets per second.
+     */
+    public void testThroughput()
+    {
+        byte[] buffer = new byte[HEADER_LENGTH + PAYLOAD_LENGTH + TAG_LENGTH];
+        RawPacket pkt = new RawPacket(buffer, 0, 0);
+        long packets = 0;
+        long time = 0;
+
+        // the first round warms the code up and is not counted
+        for (int round = 0; round <= BENCHMARK_ROUNDS; round++)
+        {
+            PacketTransformer sender
+                = createTransformer(SRTPPolicy.AESCM_ENCRYPTION);
+            PacketTransformer receiver
+                = createTransformer(SRTPPolicy.AESCM_ENCRYPTION);
+            byte[] packet = createPacket(round, 0);
+
+            long start = System.currentTimeMillis();
+            for (int seqNum = 0; seqNum < BENCHMARK_PACKETS; seqNum++)
+            {
+                packet[2] = (byte) (seqNum >> 8);
+                packet[3] = (byte) seqNum;
+                System.arraycopy(packet, 0, buffer, 0, packet.length);
+                pkt.setPacket(buffer, 0, packet.length);
+
+                if (sender.transform(pkt) == null
+                    || receiver.reverseTransform(pkt) == null)
+                    fail("packet " + seqNum + " was rejected");
+            }
+
+            if (round > 0)
+            {
+                time += System.currentTimeMillis() - start;
+                packets += BENCHMARK_PACKETS;
+            }
+        }
+
+        logger.info("Protected and checked " + packets + " SRTP packets of "
+            + PAYLOAD_LENGTH + " bytes of payload in " + time + " ms, "
+            + (packets * 1000 / Math.max(time, 1)) + " packets/s");
+        assertTrue("the tag was not written in the buffer of the packet",
+                   pkt.getBuffer() == buffer);
+    }
+
+    /**
+     * Protects packets of a few SSRCs and turns them back, in buffers with
+     * and without room for the tag.
+     */
+    private void checkRoundTrip(int encType)
+    {
+        PacketTransformer sender = createTransformer(encType);
+        PacketTransformer receiver = createTransformer(encType);
+
+        for (int seqNum = 0; seqNum < 300; seqNum++)
+        {
+            long ssrc = seqNum % 3;
+            byte[] packet = createPacket(ssrc, seqNum);
+
+            int room = (seqNum % 2 == 0) ? TAG_LENGTH : 0;
+            byte[] buffer = new byte[5 + packet.length + room];
+            System.arraycopy(packet, 0, buffer, 5, packet.length);
+
+            RawPacket pkt = sender.transform(
+                new RawPacket(buffer, 5, packet.length));
+            assertEquals("wrong SRTP packet length",
+                         packet.length + TAG_LENGTH, pkt.getLength());
+            assertEquals("the tag was not written in the buffer of the packet",
+                         room > 0, pkt.getBuffer() == buffer);
+            assertFalse("the payload was not encrypted",
+                        Arrays.equals(packet, copy(pkt.getBuffer(),
+                                                   pkt.getOffset(),
+                                                   packet.length)));
+
+            pkt = receiver.reverseTransform(pkt);
+            assertNotNull("a packet was rejected", pkt);
+            assertTrue("wrong RTP packet",
+                       Arrays.equals(packet, toBytes(pkt)));
+        }
+    }
+
+    private PacketTransformer createTransformer(int encType)
+    {
+        SRTPPolicy policy = new SRTPPolicy(encType, 16,
+            SRTPPolicy.HMACSHA1_AUTHENTICATION, 20, TAG_LENGTH, 14);
+        return new SRTPTransformEngine(MASTER_KEY, MASTER_SALT, policy,
+                                       policy).getRTPTransformer();
+    }
+
+    /**
+     * Returns an RTP packet of payload type 0 with a payload of
+     * <tt>PAYLOAD_LENGTH</tt> bytes.
+     */
+    private byte[] createPacket(long ssrc, int seqNum)
+    {
+        byte[] packet = new byte[HEADER_LENGTH + PAYLOAD_LENGTH];
+        packet[0] = (byte) 0x80;
+        packet[2] = (byte) (seqNum >> 8);
+        packet[3] = (byte) seqNum;
+
+        int timeStamp = seqNum * PAYLOAD_LENGTH;
+        for (int i = 0; i < 4; i++)
+        {
+            packet[4 + i] = (byte) (timeStamp >> (8 * (3 - i)));
+            packet[8 + i] = (byte) (ssrc >> (8 * (3 - i)));
+        }
+        for (int i = 0; i < PAYLOAD_LENGTH; i++)
+            packet[HEADER_LENGTH + i] = (byte) (seqNum + i);
+        return packet;
+    }
+
+    private byte[] toBytes(RawPacket pkt)
+    {
+        return copy(pkt.getBuffer(), pkt.getOffset(), pkt.getLength());
+    }
+
+    private byte[] copy(byte[] buffer, int offset, int length)
+    {
+        byte[] bytes = new byte[length];
+        System.arraycopy(buffer, offset, bytes, 0, length);
+        return bytes;
+    }
+
+    /**
+     * Derives a session key from the master key and salt with a key
+     * derivation rate of 0, as section 4.3 of RFC 3711 defines.
+     */
+    private byte[] deriveKey(int label, int length) throws Exception
+    {
+        byte[] iv = new byte[14];
+        System.arraycopy(MASTER_SALT, 0, iv, 0, 14);
+        iv[7] ^= (byte) label;
+        return keyStream(MASTER_KEY, iv, length);
+    }
+
+    /**
+     * Returns the AES counter mode key stream of RFC 3711 for the 14 bytes
+     * of an initialization vector, computed with the JCE.
+     */
+    private byte[] keyStream(byte[] key, byte[] iv, int length)
+        throws Exception
+    {
+        Cipher aes = Cipher.getInstance("AES/ECB/NoPadding");
+        aes.init(Cipher.ENCRYPT_MODE, new SecretKeySpec(key, "AES"));
+
+        byte[] stream = new byte[(length + 15) / 16 * 16];
+        byte[] block = new byte[16];
+        System.arraycopy(iv, 0, block, 0, 14);
+        for (int ctr = 0; ctr * 16 < length; ctr++)
+        {
+            block[14] = (byte) (ctr >> 8);
+            block[15] = (byte) ctr;
+            aes.doFinal(block, 0, 16, stream, ctr * 16);
+        }
+        return copy(stream, 0, length);
+    }
+}
@@ -0,0 +1,306 @@
+/*
+ * SIP Communicator, the OpenSource Java VoIP and Instant Messaging client.
+ *
+ * Distributable under LGPL license.
+ * See terms of license at gnu.org.
+ */
+package net.java.sip.communicator.impl.msghistory;
+
+import java.lang.reflect.*;
+import java.util.*;
+
+import junit.framework.*;
+import net.java.sip.communicator.impl.protocol.mock.*;
+import net.java.sip.communicator.service.contactlist.*;
+import net.java.sip.communicator.service.history.*;
+import net.java.sip.communicator.service.history.records.*;
+import net.java.sip.communicator.service.msghistory.event.*;
+import net.java.sip.communicator.service.protocol.*;
+import net.java.sip.communicator.service.protocol.event.*;
+import net.java.sip.communicator.slick.slickless.history.*;
+import net.java.sip.communicator.util.*;
+
+/**
+ * Searches a synthetic archive of the histories of many contacts through the
+ * message history service, which searches the histories concurrently, and
+ * makes sure that the messages are the ones a search of one history after
+ * the other finds, in timestamp order, and that the progress of the search
+ * only goes forward. The time of both searches is logged, as a benchmark of
+ * the concurrent search.
+ */
+public class TestMessageHistorySearch
+    extends TestCase
+{
+    private static Logger logger =
+        Logger.getLogger(TestMessageHistorySearch.class);
+
+    private static final long START = HistoryFixture.START;
+
+    /**
+     * The structure of the records of the message history service.
+     */
+    private static final HistoryRecordStructure messageStructure =
+        new HistoryRecordStructure(new String[] { "dir", "msg_CDATA",
+            "msgTyp", "enc", "uid", "sub", "receivedTimestamp" });
+
+    private static final int CONTACT_COUNT = 40;
+
+    private static final int MESSAGE_COUNT = 150;
+
+    private HistoryFixture fixture = null;
+
+    private HistoryService historyService = null;
+
+    private MessageHistoryServiceImpl messageHistoryService = null;
+
+    private List contacts = new ArrayList();
+
+    /**
+     * Create a TestMessageHistorySearch wrapper over the test with the
+     * specified name.
+     * @param name the name of the test to run
+     */
+    public TestMessageHistorySearch(String name)
+    {
+        super(name);
+    }
+
+    /**
+     * Writes the histories of the contacts of the test.
+     * @throws Exception if anything goes wrong.
+     */
+    protected void setUp() throws Exception
+    {
+        super.setUp();
+        fixture = new HistoryFixture();
+        historyService =
+            fixture.createHistoryService(HistoryService.STORAGE_XML);
+
+        messageHistoryService = new MessageHistoryServiceImpl();
+        messageHistoryService.setHistoryService(historyService);
+
+        MockProvider provider = new MockProvider("search");
+        for (int c = 0; c < CONTACT_COUNT; c++)
+        {
+            Contact contact = new MockContact("contact" + c, provider);
+            contacts.add(contact);
+
+            History history = historyService.createHistory(
+                HistoryID.createFromRawID(new String[] {
+                    "messages", "default", contact.getAddress() }),
+                messageStructure);
+
+            // the messages of the contacts are interleaved in time
+            for (int i = 0; i < MESSAGE_COUNT; i++)
+            {
+                long timestamp = START + i * CONTACT_COUNT + c;
+                history.getWriter().addRecord(new String[] {
+                    (i % 2 == 0) ? "in" : "out",
+                    "message " + i + " of contact " + c,
+                    "text/plain", "UTF-8", c + "-" + i, "subject",
+                    String.valueOf(timestamp) },
+                    new Date(timestamp));
+            }
+        }
+    }
+
+    /**
+     * Deletes the directory of the test.
+     * @throws Exception if anything goes wrong.
+     */
+    protected void tearDown() throws Exception
+    {
+        fixture.delete();
+        super.tearDown();
+    }
+
+    /**
+     * Compares the messages found for a metacontact of all the contacts
+     * with the messages of their histories.
+     * @throws Exception if anything goes wrong.
+     */
+    public void testSearchManyContacts() throws Exception
+    {
+        MetaContact metaContact = createMetaContact(contacts);
+        Date startDate = new Date(START + 20 * CONTACT_COUNT);
+        Date endDate = new Date(START + (MESSAGE_COUNT - 20) * CONTACT_COUNT);
+
+        // both searches start after a restart, with nothing cached
+        HistoryService service = restart();
+        messageHistoryService.setHistoryService(restart());
+
+        // the search of one history after the other
+        long sequentialTime = System.currentTimeMillis();
+        List expected = new ArrayList();
+        for (int c = 0; c < contacts.size(); c++)
+        {
+            Contact contact = (Contact) contacts.get(c);
+            QueryResultSet records = service.getHistory(
+                HistoryID.createFromRawID(new String[] {
+                    "messages", "default", contact.getAddress() }))
+                .getReader().findByPeriod(startDate, endDate);
+            while (records.hasNext())
+            {
+                expected.add(new Long(((HistoryRecord) records.next())
+                    .getTimestamp().getTime()));
+            }
+        }
+        Collections.sort(expected);
+        sequentialTime = System.currentTimeMillis() - sequentialTime;
+
+        long concurrentTime = System.currentTimeMillis();
+        Collection messages = messageHistoryService.findByPeriod(
+            metaContact, startDate, endDate);
+        concurrentTime = System.currentTimeMillis() - concurrentTime;
+
+        logger.info("Searched " + CONTACT_COUNT + " histories of "
+            + MESSAGE_COUNT + " messages one after the other in "
+            + sequentialTime + " ms, concurrently on "
+            + Runtime.getRuntime().availableProcessors()
+            + " processors in " + concurrentTime + " ms");
+
+        assertEquals("wrong number of messages",
+                     (MESSAGE_COUNT - 40) * CONTACT_COUNT - 1,
+                     expected.size());
+        assertEquals("wrong messages", expected, timestamps(messages));
+
+        // every message comes with the contact of its history
+        Iterator i = messages.iterator();
+        while (i.hasNext())
+        {
+            Object evt = i.next();
+            long timestamp = getTimestamp(evt);
+            Contact contact = (evt instanceof MessageReceivedEvent)
+                ? ((MessageReceivedEvent) evt).getSourceContact()
+                : ((MessageDeliveredEvent) evt).getDestinationContact();
+            assertEquals("wrong contact for " + timestamp,
+                         contacts.get((int) ((timestamp - START)
+                                             % CONTACT_COUNT)),
+                         contact);
+        }
+    }
+
+    /**
+     * Makes sure that the "first N" and "last N" searches of all the
+     * contacts return the first and last messages of all the histories.
+     * @throws Exception if anything goes wrong.
+     */
+    public void testCountedSearches() throws Exception
+    {
+        MetaContact metaContact = createMetaContact(contacts);
+
+        List last = timestamps(messageHistoryService.findLast(metaContact, 5));
+        assertEquals("wrong number of last messages", 5, last.size());
+        assertEquals("wrong last message",
+                     new Long(START + MESSAGE_COUNT * CONTACT_COUNT - 1),
+                     last.get(4));
+
+        Date date = new Date(START + 10 * CONTACT_COUNT);
+        List first = timestamps(
+            messageHistoryService.findFirstMessagesAfter(metaContact, date, 3));
+        assertEquals("wrong first messages",
+                     Arrays.asList(new Long[] {
+                         new Long(date.getTime() + 1),
+                         new Long(date.getTime() + 2),
+                         new Long(date.getTime() + 3) }),
+                     first);
+    }
+
+    /**
+     * Makes sure that the progress of a search of many histories only goes
+     * forward and reaches the maximum once, at the end.
+     * @throws Exception if anything goes wrong.
+     */
+    public void testProgress() throws Exception
+    {
+        final List progresses = new Vector();
+        MessageHistorySearchProgressListener listener =
+            new MessageHistorySearchProgressListener()
+            {
+                public void progressChanged(ProgressEvent evt)
+                {
+                    progresses.add(new Integer(evt.getProgress()));
+                }
+            };
+        messageHistoryService.addSearchProgressListener(listener);
+
+        messageHistoryService.findByKeyword(
+            createMetaContact(contacts), "message");
+
+        messageHistoryService.removeSearchProgressListener(listener);
+
+        assertTrue("too few progress events: " + progresses,
+                   progresses.size() > 2);
+        for (int i = 1; i < progresses.size(); i++)
+        {
+            assertTrue("the progress went back: " + progresses,
+                ((Integer) progresses.get(i)).intValue()
+                    > ((Integer) progresses.get(i - 1)).intValue());
+        }
+        assertEquals("the maximum was not reached",
+            new Integer(
+                MessageHistorySearchProgressListener.PROGRESS_MAXIMUM_VALUE),
+            progresses.get(progresses.size() - 1));
+    }
+
+    /**
+     * Starts a new history service over the histories of the test.
+     */
+    private HistoryService restart()
+        throws Exception
+    {
+        HistoryService service =
+            fixture.createHistoryService(HistoryService.STORAGE_XML);
+        service.getExistingIDs();
+        return service;
+    }
+
+    /**
+     * Returns a metacontact of the given contacts, which is all the message
+     * history service needs from it.
+     */
+    private static MetaContact createMetaContact(final List contacts)
+    {
+        return (MetaContact) Proxy.newProxyInstance(
+            TestMessageHistorySearch.class.getClassLoader(),
+            new Class[] { MetaContact.class },
+            new InvocationHandler()
+            {
+                public Object invoke(Object proxy, Method method,
+                                     Object[] args)
+                {
+                    if (method.getName().equals("getContacts"))
+                        return contacts.iterator();
+                    if (method.getName().equals("getContactCount"))
+                        return new Integer(contacts.size());
+                    return null;
+                }
+            });
+    }
+
+    /**
+     * Returns the timestamps of the message events, checking they are
+     * ascending.
+     */
+    private static List timestamps(Collection messages)
+    {
+        List result = new ArrayList();
+        long last = Long.MIN_VALUE;
+        Iterator i = messages.iterator();
+        while (i.hasNext())
+        {
+            long timestamp = getTimestamp(i.next());
+            assertTrue("messages out of order", timestamp >= last);
+            last = timestamp;
+            result.add(new Long(timestamp));
+        }
+        return result;
+    }
+
+    private static long getTimestamp(Object evt)
+    {
+        if (evt instanceof MessageReceivedEvent)
+            return ((MessageReceivedEvent) evt).getTimestamp().getTime();
+        return ((MessageDeliveredEvent) evt).getTimestamp().getTime();
+    }
+}
@@ -340,4 +340,52 @@ public class TestConfigurationServicePersistency extends TestCase
         assertEquals("The inner property was incorrectly stored",
             innerPropertyValue2, xmlInnerPropertyValue);
     }
+
+    /**
+     * Tests whether properties changed without calling storeConfiguration()
+     * are stored in the configuration file shortly after the changes.
+     *
+     * @throws java.lang.Exception if an error occurs during testing.
+     */
+    public void testChangesAreStoredInBackground() throws Exception
+    {
+        configurationService.setProperty(addedPropertyPath + addedProperty,
+                                         addedPropertyValue);
+        configurationService.setProperty(property1Path + property1,
+                                         property1Value2);
+        configurationService.setProperty(innerPropertyPath + innerProperty,
+                                         null);
+
+        //the changes are stored together after a short delay
+        String xmlProp1Value = null;
+        Element parent = null;
+        long end = System.currentTimeMillis() + 10000;
+        while (System.currentTimeMillis() < end)
+        {
+            Thread.sleep(100);
+
+            DocumentBuilderFactory factory =
+                DocumentBuilderFactory.newInstance();
+            Document document =
+                factory.newDocumentBuilder().parse(confFile);
+            parent = XMLUtils.findChild(
+                (Element) document.getFirstChild(), "parent");
+            xmlProp1Value = XMLUtils.getAttribute(
+                XMLUtils.findChild(parent, property1), "value");
+
+            if (property1Value2.equals(xmlProp1Value))
+                break;
+        }
+
+        assertEquals("property1 was not stored",
+            property1Value2, xmlProp1Value);
+        assertEquals("The added property was not stored",
+            addedPropertyValue, XMLUtils.getAttribute(
+                XMLUtils.findChild(parent, addedProperty), "value"));
+        assertNull("The removed property was not removed",
+            XMLUtils.findChild(XMLUtils.findChild(parent, "innerprops"),
+                               innerProperty));
+        assertFalse("The temporary file was left behind",
+            new File(confFile.getPath() + ".tmp").exists());
+    }
 }
@@ -15,6 +15,7 @@ import net.java.sip.communicator.service.contactlist.*;
 import net.java.sip.communicator.service.history.*;
 import net.java.sip.communicator.service.history.records.*;
 import net.java.sip.communicator.service.msghistory.*;
+import net.java.sip.communicator.service.msghistory.event.*;
 import net.java.sip.communicator.service.protocol.*;
 import net.java.sip.communicator.service.protocol.event.*;
 import net.java.sip.communicator.util.*;
@@ -85,6 +86,8 @@ public class TestMsgHistoryService
             new TestMsgHistoryService("writeRecords"));
         suite.addTest(
             new TestMsgHistoryService("readRecords"));
+        suite.addTest(
+            new TestMsgHistoryService("queryRecords"));
         suite.addTest(
             new TestMsgHistoryService("writeRecordsToMultiChat"));
         suite.addTest(
@@ -386,6 +389,59 @@ public class TestMsgHistoryService
                    msgs.contains(messagesToSend[2].getContent()));
     }
     
+    /**
+     * tests the queries delivering the messages as they are found
+     */
+    public void queryRecords()
+        throws InterruptedException
+    {
+        /**
+         * must find the 2 messages of the period, in order
+         */
+        QueryCollector collector = new QueryCollector();
+        msgHistoryService.queryByPeriod(
+            testMetaContact, controlDate1, controlDate2, null, false,
+            0, collector);
+        Vector msgs = getMessages(collector.waitForMessages());
+
+        assertEquals("Messages must be 2", 2, msgs.size());
+        assertEquals("Message no found",
+                     messagesToSend[1].getContent(), msgs.get(0));
+        assertEquals("Message no found",
+                     messagesToSend[2].getContent(), msgs.get(1));
+
+        /**
+         * must find the 3 first messages of both contacts
+         */
+        collector = new QueryCollector();
+        MessageHistoryQuery query = msgHistoryService.queryByPeriod(
+            testMetaContact, null, null, new String[]{"test"}, false,
+            3, collector);
+        msgs = getMessages(collector.waitForMessages());
+
+        assertEquals("Messages must be 3", 3, msgs.size());
+        assertEquals("Wrong message count", 3, query.getMessageCount());
+        assertTrue("Query not finished", query.isFinished());
+        assertEquals("Message no found",
+                     messagesToSend[0].getContent(), msgs.get(0));
+        assertEquals("Message no found",
+                     messagesToSend[0].getContent(), msgs.get(1));
+        assertEquals("Message no found",
+                     messagesToSend[1].getContent(), msgs.get(2));
+
+        /**
+         * a query canceled by its first message delivers nothing more
+         */
+        collector = new QueryCollector();
+        collector.cancelOnFirstMessage = true;
+        query = msgHistoryService.queryByPeriod(
+            testMetaContact, null, null, null, false, 0, collector);
+        msgs = getMessages(collector.waitForMessages());
+
+        assertEquals("Messages must be 1", 1, msgs.size());
+        assertTrue("Query not canceled", query.isCanceled());
+    }
+
     public void writeRecordsToMultiChat()
     {
         try
@@ -620,6 +676,44 @@ public class TestMsgHistoryService
         metaClService.purgeLocallyStoredContactListCopy();
     }
 
+    /**
+     * Collects the messages delivered to a query until it finishes.
+     */
+    private static class QueryCollector
+        implements MessageHistoryQueryListener
+    {
+        private List messages = new ArrayList();
+
+        private boolean finished = false;
+
+        private boolean cancelOnFirstMessage = false;
+
+        public synchronized void messageFound(MessageHistoryQueryEvent evt)
+        {
+            messages.add(evt.getMessage());
+
+            if(cancelOnFirstMessage)
+                evt.getQuery().cancel();
+        }
+
+        public synchronized void queryFinished(MessageHistoryQueryEvent evt)
+        {
+            finished = true;
+            notifyAll();
+        }
+
+        synchronized List waitForMessages()
+            throws InterruptedException
+        {
+            long end = System.currentTimeMillis() + 10000;
+            while(!finished && System.currentTimeMillis() < end)
+                wait(end - System.currentTimeMillis());
+
+            assertTrue("Query did not finish", finished);
+            return messages;
+        }
+    }
+
     private Vector getMessages(Collection rs)
     {
         Vector result = new Vector();
@@ -134,6 +134,70 @@ public class TestNetworkAddressManagerService extends TestCase {
         //we gotta have at least one test otherwise we have an error
     }
 
+    /**
+     * Looks up the local host for a few destinations from several threads at
+     * once, and makes sure that every lookup, cached or not, returns the
+     * address that a socket connected to the destination is bound on.
+     *
+     * @throws java.lang.Exception if anything goes wrong.
+     */
+    public void testConcurrentLocalHostLookups() throws Exception
+    {
+        final List destinations = new ArrayList();
+        destinations.add(InetAddress.getByName("127.0.0.1"));
+        destinations.add(InetAddress.getByName("127.0.0.2"));
+
+        Enumeration intfs = NetworkInterface.getNetworkInterfaces();
+        while (intfs.hasMoreElements())
+        {
+            NetworkInterface iface = (NetworkInterface) intfs.nextElement();
+            Enumeration addrs = iface.getInetAddresses();
+            while (addrs.hasMoreElements())
+            {
+                InetAddress addr = (InetAddress) addrs.nextElement();
+                if (addr instanceof Inet4Address && !addr.isLoopbackAddress())
+                    destinations.add(addr);
+            }
+        }
+
+        final Map expectedLocalHosts = new HashMap();
+        for (int i = 0; i < destinations.size(); i++)
+        {
+            InetAddress destination = (InetAddress) destinations.get(i);
+            DatagramSocket socket = new DatagramSocket();
+            socket.connect(destination, 5060);
+            expectedLocalHosts.put(destination, socket.getLocalAddress());
+            socket.close();
+        }
+
+        final List failures = new Vector();
+        Thread[] threads = new Thread[8];
+        for (int i = 0; i < threads.length; i++)
+        {
+            threads[i] = new Thread()
+            {
+                public void run()
+                {
+                    for (int j = 0; j < 100; j++)
+                    {
+                        InetAddress destination = (InetAddress)
+                            destinations.get(j % destinations.size());
+                        InetAddress localHost = networkAddressManagerService
+                            .getLocalHost(destination);
+                        if (!expectedLocalHosts.get(destination)
+                                .equals(localHost))
+                            failures.add(destination + "->" + localHost);
+                    }
+                }
+            };
+            threads[i].start();
+        }
+        for (int i = 0; i < threads.length; i++)
+            threads[i].join();
+
+        assertEquals("wrong local hosts " + failures, 0, failures.size());
+    }
+
     /**
      * This test will specify all local address one by one as "prefered address"
      * and  test the returned address.
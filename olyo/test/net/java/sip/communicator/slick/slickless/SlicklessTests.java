@@ -10,6 +10,9 @@ import java.util.*;
 
 import org.osgi.framework.*;
 import junit.framework.*;
+import net.java.sip.communicator.slick.slickless.history.*;
+import net.java.sip.communicator.slick.slickless.media.*;
+import net.java.sip.communicator.slick.slickless.protocol.sip.*;
 import net.java.sip.communicator.slick.slickless.util.*;
 import net.java.sip.communicator.slick.slickless.util.xml.*;
 import net.java.sip.communicator.util.*;
@@ -43,6 +46,16 @@ public class SlicklessTests
 
         addTestSuite(TestXMLUtils.class);
         addTestSuite(TestBase64.class);
+        addTestSuite(TestDHTAccessServiceConcurrency.class);
+        addTestSuite(TestMultiGatewayDHTAccessService.class);
+        addTestSuite(TestCachingDHTAccessService.class);
+        addTestSuite(TestHistoryLogStore.class);
+        addTestSuite(TestHistoryKeywordIndex.class);
+        addTestSuite(TestHistoryDocumentCache.class);
+        addTestSuite(TestHistoryTimeIndex.class);
+        addTestSuite(TestHistoryStreaming.class);
+        addTestSuite(TestHistoryWriteBehind.class);
+        addTestSuite(TestMediaPortPool.class);
         bundleContext.registerService(getClass().getName(), this, properties);
 
         logger.debug("Successfully registered " + getClass().getName());
@@ -0,0 +1,201 @@
+/*
+ * SIP Communicator, the OpenSource Java VoIP and Instant Messaging client.
+ *
+ * Distributable under LGPL license.
+ * See terms of license at gnu.org.
+ */
+package net.java.sip.communicator.slick.slickless.history;
+
+import java.io.*;
+import java.lang.reflect.*;
+import java.util.*;
+
+import net.java.sip.communicator.impl.history.*;
+import net.java.sip.communicator.service.configuration.*;
+import net.java.sip.communicator.service.fileaccess.*;
+import net.java.sip.communicator.service.history.*;
+import net.java.sip.communicator.service.history.records.*;
+
+/**
+ * Runs history services outside of the OSGi framework, over a temporary
+ * directory and with a configuration holding only the given properties.
+ * A new service over the same directory stands for a restart of the
+ * application. The unit tests of the message history service use it too.
+ */
+public class HistoryFixture
+{
+    static final HistoryRecordStructure recordStructure =
+        new HistoryRecordStructure(new String[] { "dir", "msg_CDATA" });
+
+    static final HistoryID historyID =
+        HistoryID.createFromRawID(new String[] { "test", "history" });
+
+    /**
+     * The timestamp of the first record written by the tests.
+     */
+    public static final long START = 1000000000000L;
+
+    final File directory;
+
+    public HistoryFixture() throws IOException
+    {
+        directory = File.createTempFile("history", null);
+        directory.delete();
+        directory.mkdirs();
+    }
+
+    /**
+     * Deletes the directory of the fixture.
+     */
+    public void delete()
+    {
+        delete(directory);
+    }
+
+    /**
+     * Creates a history service storing its histories in the directory of
+     * the fixture, with the given storage.
+     */
+    public HistoryService createHistoryService(String storage)
+        throws Exception
+    {
+        Map properties = new HashMap();
+        properties.put(HistoryService.STORAGE_PROPERTY, storage);
+        return createHistoryService(properties);
+    }
+
+    /**
+     * Creates a history service storing its histories in the directory of
+     * the fixture, with the given configuration properties.
+     */
+    HistoryService createHistoryService(final Map properties)
+        throws Exception
+    {
+        HistoryServiceImpl service = new HistoryServiceImpl();
+
+        service.setConfigurationService((ConfigurationService)
+            Proxy.newProxyInstance(getClass().getClassLoader(),
+                new Class[] { ConfigurationService.class },
+                new InvocationHandler()
+                {
+                    public Object invoke(Object proxy, Method method,
+                                         Object[] args)
+                    {
+                        if (args != null && args.length == 1
+                            && (method.getName().equals("getProperty")
+                                || method.getName().equals("getString")))
+                            return properties.get(args[0]);
+                        return null;
+                    }
+                }));
+
+        service.setFileAccessService(new FileAccessService()
+        {
+            public File getTemporaryFile() throws IOException
+            {
+                return File.createTempFile("history", null, directory);
+            }
+
+            public File getTemporaryDirectory() throws IOException
+            {
+                return directory;
+            }
+
+            public File getPrivatePersistentFile(String fileName)
+            {
+                return new File(directory, fileName);
+            }
+
+            public File getPrivatePersistentDirectory(String dirName)
+            {
+                return getPrivatePersistentDirectory(new String[] { dirName });
+            }
+
+            public File getPrivatePersistentDirectory(String[] dirNames)
+            {
+                File dir = directory;
+                for (int i = 0; i < dirNames.length; i++)
+                    dir = new File(dir, dirNames[i]);
+                dir.mkdirs();
+                return dir;
+            }
+
+            public FailSafeTransaction createFailSafeTransaction(File file)
+            {
+                return null;
+            }
+        });
+
+        return service;
+    }
+
+    /**
+     * Starts a new history service over the directory of the fixture and
+     * returns the history of the tests.
+     */
+    History reopen(String storage)
+        throws Exception
+    {
+        HistoryService service = createHistoryService(storage);
+        service.getExistingIDs();
+        return service.getHistory(historyID);
+    }
+
+    /**
+     * Appends records numbered from <tt>first</tt>, one ms apart.
+     */
+    static void writeRecords(History history, int first, int count)
+        throws IOException
+    {
+        for (int i = first; i < first + count; i++)
+        {
+            history.getWriter().addRecord(
+                new String[] { (i % 2 == 0) ? "in" : "out", "message " + i },
+                new Date(START + i));
+        }
+    }
+
+    static int size(QueryResultSet records)
+    {
+        int size = 0;
+        while (records.hasNext())
+        {
+            records.next();
+            size++;
+        }
+        return size;
+    }
+
+    /**
+     * Returns the files of the history of the tests whose name ends with
+     * <tt>suffix</tt>.
+     */
+    File[] findFiles(final String suffix)
+    {
+        File historyDir = new File(directory, HistoryServiceImpl.DATA_DIRECTORY);
+        String[] id = historyID.getID();
+        for (int i = 0; i < id.length; i++)
+            historyDir = new File(historyDir, id[i]);
+
+        File[] files = historyDir.listFiles(new FileFilter()
+        {
+            public boolean accept(File file)
+            {
+                return file.getName().endsWith(suffix);
+            }
+        });
+        Arrays.sort(files);
+        return files;
+    }
+
+    private static void delete(File file)
+    {
+        File[] content = file.listFiles();
+        if (content != null)
+        {
+            for (int i = 0; i < content.length; i++)
+                delete(content[i]);
+        }
+        file.delete();
+    }
+}
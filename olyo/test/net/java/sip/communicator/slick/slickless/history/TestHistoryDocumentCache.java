@@ -0,0 +1,225 @@
+/*
+ * SIP Communicator, the OpenSource Java VoIP and Instant Messaging client.
+ *
+ * Distributable under LGPL license.
+ * See terms of license at gnu.org.
+ */
+package net.java.sip.communicator.slick.slickless.history;
+
+import java.util.*;
+
+import junit.framework.*;
+import net.java.sip.communicator.impl.history.*;
+import net.java.sip.communicator.service.history.*;
+
+/**
+ * Tests the cache of parsed history files shared by the histories of a
+ * service: that it is reused, that it stays within its bounds, that it can
+ * be disabled and that evicted or changed files are read again.
+ */
+public class TestHistoryDocumentCache
+    extends TestCase
+{
+    private static final long START = HistoryFixture.START;
+
+    private static final HistoryID otherHistoryID =
+        HistoryID.createFromRawID(new String[] { "test", "other" });
+
+    private HistoryFixture fixture = null;
+
+    /**
+     * Create a TestHistoryDocumentCache wrapper over the test with the
+     * specified name.
+     * @param name the name of the test to run
+     */
+    public TestHistoryDocumentCache(String name)
+    {
+        super(name);
+    }
+
+    /**
+     * Creates the directory holding the histories of the test.
+     * @throws Exception if anything goes wrong.
+     */
+    protected void setUp() throws Exception
+    {
+        super.setUp();
+        fixture = new HistoryFixture();
+    }
+
+    /**
+     * Deletes the directory of the test.
+     * @throws Exception if anything goes wrong.
+     */
+    protected void tearDown() throws Exception
+    {
+        fixture.delete();
+        super.tearDown();
+    }
+
+    /**
+     * Makes sure that the files read by a query are served from the cache
+     * by the next one.
+     * @throws Exception if anything goes wrong.
+     */
+    public void testFilesAreReused() throws Exception
+    {
+        HistoryService service = createService(HistoryService.STORAGE_XML,
+                                               null, null, null);
+        History history = service.createHistory(
+            HistoryFixture.historyID, HistoryFixture.recordStructure);
+        HistoryFixture.writeRecords(history, 0, 400);
+
+        //a restart, so that nothing is cached yet
+        service = createService(HistoryService.STORAGE_XML, null, null, null);
+        service.getExistingIDs();
+        history = service.getHistory(HistoryFixture.historyID);
+        DocumentCache cache = getCache(service);
+
+        assertEquals("wrong records", 400, HistoryFixture.size(
+            history.getReader().findByStartDate(new Date(START - 1))));
+        long misses = cache.getMissCount();
+        long hits = cache.getHitCount();
+        assertTrue("the files were not cached", cache.getDocumentCount() > 0);
+
+        assertEquals("wrong records", 400, HistoryFixture.size(
+            history.getReader().findByStartDate(new Date(START - 1))));
+        assertEquals("cached files were read again",
+                     misses, cache.getMissCount());
+        assertTrue("the cache was not used", cache.getHitCount() > hits);
+    }
+
+    /**
+     * Reads more files of two histories stored in XML than fit in the cache
+     * and makes sure that the cache stays within its bounds and that the
+     * results are still complete.
+     * @throws Exception if anything goes wrong.
+     */
+    public void testXmlCacheIsBounded() throws Exception
+    {
+        checkBounded(HistoryService.STORAGE_XML);
+    }
+
+    /**
+     * Does the same with histories stored as logs.
+     * @throws Exception if anything goes wrong.
+     */
+    public void testLogCacheIsBounded() throws Exception
+    {
+        checkBounded(HistoryService.STORAGE_LOG);
+    }
+
+    /**
+     * Makes sure that the memory estimated for the cached files does not
+     * exceed its bound.
+     * @throws Exception if anything goes wrong.
+     */
+    public void testMemoryIsBounded() throws Exception
+    {
+        HistoryService service = createService(HistoryService.STORAGE_XML,
+                                               null, null, "16");
+        History history = service.createHistory(
+            HistoryFixture.historyID, HistoryFixture.recordStructure);
+        HistoryFixture.writeRecords(history, 0, 600);
+        DocumentCache cache = getCache(service);
+
+        assertEquals("wrong records", 600, HistoryFixture.size(
+            history.getReader().findByStartDate(new Date(START - 1))));
+        assertTrue("the cache is too large: " + cache,
+                   cache.getMemory() <= 16 * 1024);
+        assertTrue("no file was evicted", cache.getEvictionCount() > 0);
+    }
+
+    /**
+     * Makes sure that nothing is cached when the cache is disabled.
+     * @throws Exception if anything goes wrong.
+     */
+    public void testCacheCanBeDisabled() throws Exception
+    {
+        HistoryService service = createService(HistoryService.STORAGE_XML,
+            HistoryService.CACHE_DISABLED, null, null);
+        History history = service.createHistory(
+            HistoryFixture.historyID, HistoryFixture.recordStructure);
+        HistoryFixture.writeRecords(history, 0, 300);
+
+        assertEquals("wrong records", 300, HistoryFixture.size(
+            history.getReader().findByStartDate(new Date(START - 1))));
+        assertEquals("files were cached",
+                     0, getCache(service).getDocumentCount());
+    }
+
+    /**
+     * Makes sure that the records written to a cached log segment are read.
+     * @throws Exception if anything goes wrong.
+     */
+    public void testChangedSegmentIsReadAgain() throws Exception
+    {
+        HistoryService service = createService(HistoryService.STORAGE_LOG,
+                                               null, null, null);
+        History history = service.createHistory(
+            HistoryFixture.historyID, HistoryFixture.recordStructure);
+
+        for (int i = 0; i < 5; i++)
+        {
+            HistoryFixture.writeRecords(history, i * 10, 10);
+            assertEquals("the new records were not read", (i + 1) * 10,
+                HistoryFixture.size(history.getReader()
+                    .findByStartDate(new Date(START - 1))));
+        }
+    }
+
+    /**
+     * Writes to and reads from two histories sharing a cache of two files.
+     */
+    private void checkBounded(String storage)
+        throws Exception
+    {
+        HistoryService service = createService(storage, null, "2", null);
+        History history = service.createHistory(
+            HistoryFixture.historyID, HistoryFixture.recordStructure);
+        History other = service.createHistory(
+            otherHistoryID, HistoryFixture.recordStructure);
+        DocumentCache cache = getCache(service);
+
+        for (int i = 0; i < 4; i++)
+        {
+            HistoryFixture.writeRecords(history, i * 200, 200);
+            HistoryFixture.writeRecords(other, i * 100, 100);
+
+            assertEquals("wrong records", (i + 1) * 200, HistoryFixture.size(
+                history.getReader().findByStartDate(new Date(START - 1))));
+            assertEquals("wrong records", (i + 1) * 100, HistoryFixture.size(
+                other.getReader().findByStartDate(new Date(START - 1))));
+            assertTrue("the cache holds too many files: " + cache,
+                       cache.getDocumentCount() <= 2);
+        }
+
+        if (storage.equals(HistoryService.STORAGE_XML))
+            assertTrue("no file was evicted", cache.getEvictionCount() > 0);
+    }
+
+    private HistoryService createService(String storage,
+                                         String cacheEnabled,
+                                         String maxDocuments,
+                                         String maxMemory)
+        throws Exception
+    {
+        Map properties = new HashMap();
+        properties.put(HistoryService.STORAGE_PROPERTY, storage);
+        if (cacheEnabled != null)
+            properties.put(HistoryService.CACHE_ENABLED_PROPERTY,
+                           cacheEnabled);
+        if (maxDocuments != null)
+            properties.put(HistoryService.CACHE_MAX_DOCUMENTS_PROPERTY,
+                           maxDocuments);
+        if (maxMemory != null)
+            properties.put(HistoryService.CACHE_MAX_MEMORY_PROPERTY,
+                           maxMemory);
+        return fixture.createHistoryService(properties);
+    }
+
+    private static DocumentCache getCache(HistoryService service)
+    {
+        return ((HistoryServiceImpl) service).getDocumentCache();
+    }
+}
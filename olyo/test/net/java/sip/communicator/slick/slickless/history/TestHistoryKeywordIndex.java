@@ -0,0 +1,252 @@
+/*
+ * SIP Communicator, the OpenSource Java VoIP and Instant Messaging client.
+ *
+ * Distributable under LGPL license.
+ * See terms of license at gnu.org.
+ */
+package net.java.sip.communicator.slick.slickless.history;
+
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+import junit.framework.*;
+import net.java.sip.communicator.impl.history.*;
+import net.java.sip.communicator.service.history.*;
+import net.java.sip.communicator.service.history.records.*;
+
+/**
+ * Makes sure that keyword queries answered with the keyword index of both
+ * history storages return what matching every record would, that the
+ * index is saved and reused, that records written after it was built
+ * are found, and that building the index of a file does not hold up the
+ * searches and the writes of the other files.
+ */
+public class TestHistoryKeywordIndex
+    extends TestCase
+{
+    private static final String[] TEXTS = new String[] {
+        "Hello world", "good morning", "see you later", "HELLO again",
+        "worldwide web", "" };
+
+    private static final String[][] QUERIES = new String[][] {
+        { "hello" }, { "lo wo" }, { "world" }, { "good", "morning" },
+        { "item12" }, { "orl" }, { "you", "hello" }, { "item1[0-9]" },
+        { "web item7" } };
+
+    private HistoryFixture fixture = null;
+
+    /**
+     * Create a TestHistoryKeywordIndex wrapper over the test with the
+     * specified name.
+     * @param name the name of the test to run
+     */
+    public TestHistoryKeywordIndex(String name)
+    {
+        super(name);
+    }
+
+    /**
+     * Creates the directory holding the histories of the test.
+     * @throws Exception if anything goes wrong.
+     */
+    protected void setUp() throws Exception
+    {
+        super.setUp();
+        fixture = new HistoryFixture();
+    }
+
+    /**
+     * Deletes the directory of the test.
+     * @throws Exception if anything goes wrong.
+     */
+    protected void tearDown() throws Exception
+    {
+        fixture.delete();
+        super.tearDown();
+    }
+
+    /**
+     * Runs the queries against a history stored in XML.
+     * @throws Exception if anything goes wrong.
+     */
+    public void testXmlHistory() throws Exception
+    {
+        checkStorage(HistoryService.STORAGE_XML, ".xml");
+    }
+
+    /**
+     * Runs the queries against a history stored as a log.
+     * @throws Exception if anything goes wrong.
+     */
+    public void testLogHistory() throws Exception
+    {
+        checkStorage(HistoryService.STORAGE_LOG, ".log");
+    }
+
+    /**
+     * Makes sure that the other files of a history are searched and written
+     * while a file is being indexed.
+     * @throws Exception if anything goes wrong.
+     */
+    public void testIndexingOtherFile() throws Exception
+    {
+        final CountDownLatch indexing = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        final KeywordIndex index = new KeywordIndex(fixture.directory,
+            new KeywordIndex.RecordSource()
+            {
+                public List loadRecords(String filename)
+                    throws IOException
+                {
+                    if (filename.equals("slow.xml"))
+                    {
+                        indexing.countDown();
+                        try
+                        {
+                            release.await(10, TimeUnit.SECONDS);
+                        }
+                        catch (InterruptedException ex)
+                        {
+                            throw new InterruptedIOException();
+                        }
+                    }
+                    List records = new ArrayList();
+                    records.add(new HistoryRecord(
+                        new String[] { "msg" }, new String[] { "hello" },
+                        new Date(HistoryFixture.START)));
+                    return records;
+                }
+            });
+        String[] keywords = new String[] { "hello" };
+
+        Thread slowSearch = new Thread()
+        {
+            public void run()
+            {
+                index.getCandidates("slow.xml", new String[] { "hello" },
+                                    "msg");
+            }
+        };
+        slowSearch.start();
+        try
+        {
+            assertTrue("the slow file was not indexed",
+                       indexing.await(10, TimeUnit.SECONDS));
+
+            index.recordAdded("new.xml", 0, new String[] { "msg" },
+                              new String[] { "hello" });
+            assertEquals("a record written meanwhile was not indexed",
+                         1, index.getCandidates("new.xml", keywords, "msg")
+                                .length);
+            assertEquals("another file was not indexed meanwhile",
+                         1, index.getCandidates("fast.xml", keywords, "msg")
+                                .length);
+            assertTrue("the other files waited for the slow file",
+                       slowSearch.isAlive());
+        }
+        finally
+        {
+            release.countDown();
+            slowSearch.join();
+        }
+        assertEquals("the slow file was not indexed",
+                     1, index.getCandidates("slow.xml", keywords, "msg")
+                            .length);
+    }
+
+    /**
+     * Runs the queries against a history, after a restart, after new
+     * records were written and after another restart. The indexes built
+     * while the records are written are only saved once they have been
+     * built from the files, after the restart.
+     */
+    private void checkStorage(String storage, String suffix)
+        throws Exception
+    {
+        History history = fixture.createHistoryService(storage)
+            .createHistory(HistoryFixture.historyID,
+                           HistoryFixture.recordStructure);
+        writeRecords(history, 0, 400);
+
+        checkQueries(history, 400);
+
+        history = fixture.reopen(storage);
+        checkQueries(history, 400);
+        assertEquals("an index was not saved for every file",
+                     fixture.findFiles(suffix).length,
+                     fixture.findFiles(KeywordIndex.INDEX_SUFFIX).length);
+
+        writeRecords(history, 400, 50);
+        checkQueries(history, 450);
+
+        history = fixture.reopen(storage);
+        checkQueries(history, 450);
+    }
+
+    /**
+     * Compares the results of the queries with the records matching them.
+     */
+    private void checkQueries(History history, int recordCount)
+    {
+        HistoryReader reader = history.getReader();
+
+        for (int q = 0; q < QUERIES.length; q++)
+        {
+            for (int c = 0; c < 2; c++)
+            {
+                boolean caseSensitive = (c == 1);
+                String query = Arrays.asList(QUERIES[q]) + " ("
+                    + (caseSensitive ? "case sensitive" : "ignoring case")
+                    + ")";
+
+                assertEquals("wrong results for " + query,
+                             countMatches(QUERIES[q], caseSensitive,
+                                          recordCount),
+                             HistoryFixture.size(reader.findByKeywords(
+                                 QUERIES[q], "msg", caseSensitive)));
+            }
+        }
+    }
+
+    /**
+     * Counts the records matching <tt>keywords</tt> the way the readers
+     * match them.
+     */
+    private static int countMatches(String[] keywords,
+                                    boolean caseSensitive,
+                                    int recordCount)
+    {
+        int count = 0;
+        for (int i = 0; i < recordCount; i++)
+        {
+            boolean matches = true;
+            for (int k = 0; k < keywords.length; k++)
+            {
+                String regexp = (caseSensitive ? "(?s)^.*" : "(?si)^.*")
+                    + keywords[k] + ".*$";
+                matches &= text(i).matches(regexp);
+            }
+
+            if (matches)
+                count++;
+        }
+        return count;
+    }
+
+    private static String text(int i)
+    {
+        return TEXTS[i % TEXTS.length] + " item" + i;
+    }
+
+    private static void writeRecords(History history, int first, int count)
+        throws Exception
+    {
+        for (int i = first; i < first + count; i++)
+        {
+            history.getWriter().addRecord(
+                new String[] { "in", text(i) },
+                new Date(HistoryFixture.START + i));
+        }
+    }
+}
@@ -0,0 +1,264 @@
+/*
+ * SIP Communicator, the OpenSource Java VoIP and Instant Messaging client.
+ *
+ * Distributable under LGPL license.
+ * See terms of license at gnu.org.
+ */
+package net.java.sip.communicator.slick.slickless.history;
+
+import java.io.*;
+import java.util.*;
+
+import junit.framework.*;
+import net.java.sip.communicator.impl.history.*;
+import net.java.sip.communicator.service.history.*;
+import net.java.sip.communicator.service.history.records.*;
+
+/**
+ * Tests the append-only history store: reading back what was written,
+ * segment rotation, the recovery of a torn segment tail, the quarantine of
+ * a segment with an unreadable header, the migration of histories stored
+ * in XML and the shutdown of the service.
+ */
+public class TestHistoryLogStore
+    extends TestCase
+{
+    private static final long START = HistoryFixture.START;
+
+    private HistoryFixture fixture = null;
+
+    /**
+     * Create a TestHistoryLogStore wrapper over the test with the specified
+     * name.
+     * @param name the name of the test to run
+     */
+    public TestHistoryLogStore(String name)
+    {
+        super(name);
+    }
+
+    /**
+     * Creates the directory holding the histories of the test.
+     * @throws Exception if anything goes wrong.
+     */
+    protected void setUp() throws Exception
+    {
+        super.setUp();
+        fixture = new HistoryFixture();
+    }
+
+    /**
+     * Deletes the directory of the test.
+     * @throws Exception if anything goes wrong.
+     */
+    protected void tearDown() throws Exception
+    {
+        fixture.delete();
+        super.tearDown();
+    }
+
+    /**
+     * Writes records and reads them back by period, by keyword and from
+     * the end of the history.
+     * @throws Exception if anything goes wrong.
+     */
+    public void testWriteAndRead() throws Exception
+    {
+        History history = createHistory(HistoryService.STORAGE_LOG);
+
+        HistoryFixture.writeRecords(history, 0, 300);
+
+        HistoryReader reader = history.getReader();
+        assertEquals("wrong record count", 300, reader.countRecords());
+        assertEquals("wrong records in period", 49, HistoryFixture.size(
+            reader.findByPeriod(new Date(START + 100), new Date(START + 150))));
+        assertEquals("wrong records by keyword", 10, HistoryFixture.size(
+            reader.findByKeyword("message 12\\d", "msg")));
+
+        QueryResultSet last = reader.findLast(10);
+        assertEquals("wrong last records", 10, HistoryFixture.size(last));
+        last = reader.findLast(10);
+        last.next();
+        HistoryRecord record = (HistoryRecord) last.next();
+        assertEquals("the CDATA suffix was kept",
+                     "msg", record.getPropertyNames()[1]);
+        assertEquals("wrong record value",
+                     "message 291", record.getPropertyValues()[1]);
+        assertEquals("wrong record timestamp",
+                     START + 291, record.getTimestamp().getTime());
+    }
+
+    /**
+     * Writes more records than fit in a segment and makes sure all of them
+     * can be read back, also after a restart.
+     * @throws Exception if anything goes wrong.
+     */
+    public void testSegmentsAreRotated() throws Exception
+    {
+        History history = createHistory(HistoryService.STORAGE_LOG);
+
+        char[] text = new char[64 * 1024];
+        Arrays.fill(text, 'x');
+        for (int i = 0; i < 40; i++)
+        {
+            history.getWriter().addRecord(
+                new String[] { "in", new String(text) + i },
+                new Date(START + i));
+        }
+
+        assertTrue("the records were not split in segments",
+                   fixture.findFiles(".log").length > 1);
+
+        history = fixture.reopen(HistoryService.STORAGE_LOG);
+        assertEquals("records were lost", 40, HistoryFixture.size(
+            history.getReader().findByStartDate(new Date(START - 1))));
+        assertEquals("wrong record count",
+                     40, history.getReader().countRecords());
+    }
+
+    /**
+     * Makes sure that a record torn by a crash is dropped, and that the
+     * records appended afterwards can be read.
+     * @throws Exception if anything goes wrong.
+     */
+    public void testTornTailIsRecovered() throws Exception
+    {
+        History history = createHistory(HistoryService.STORAGE_LOG);
+        HistoryFixture.writeRecords(history, 0, 5);
+
+        //a record whose end never made it to the disk
+        File segment = fixture.findFiles(".log")[0];
+        RandomAccessFile file = new RandomAccessFile(segment, "rw");
+        file.seek(file.length());
+        file.writeInt(100);
+        file.writeInt(0);
+        file.write(new byte[10]);
+        file.close();
+
+        history = fixture.reopen(HistoryService.STORAGE_LOG);
+        assertEquals("the torn record was read", 5, HistoryFixture.size(
+            history.getReader().findByStartDate(new Date(START - 1))));
+
+        HistoryFixture.writeRecords(history, 5, 1);
+
+        history = fixture.reopen(HistoryService.STORAGE_LOG);
+        assertEquals("the record after the torn one was lost", 6,
+            HistoryFixture.size(
+                history.getReader().findByStartDate(new Date(START - 1))));
+    }
+
+    /**
+     * Makes sure that a segment whose header is unreadable is moved aside
+     * with its content rather than truncated, and that records can be
+     * appended afterwards.
+     * @throws Exception if anything goes wrong.
+     */
+    public void testBadHeaderIsQuarantined() throws Exception
+    {
+        History history = createHistory(HistoryService.STORAGE_LOG);
+        HistoryFixture.writeRecords(history, 0, 5);
+
+        File segment = fixture.findFiles(".log")[0];
+        long length = segment.length();
+        RandomAccessFile file = new RandomAccessFile(segment, "rw");
+        file.writeInt(0);
+        file.close();
+
+        history = fixture.reopen(HistoryService.STORAGE_LOG);
+        HistoryFixture.writeRecords(history, 5, 1);
+
+        File[] quarantined = fixture.findFiles(".corrupt");
+        assertEquals("the segment was not moved aside",
+                     1, quarantined.length);
+        assertEquals("the segment moved aside was truncated",
+                     length, quarantined[0].length());
+
+        history = fixture.reopen(HistoryService.STORAGE_LOG);
+        assertEquals("the record appended after the quarantine was lost", 1,
+            HistoryFixture.size(
+                history.getReader().findByStartDate(new Date(START - 1))));
+    }
+
+    /**
+     * Writes a history in XML, opens it with the log storage and makes sure
+     * that all the records were migrated, only once.
+     * @throws Exception if anything goes wrong.
+     */
+    public void testXmlHistoryIsMigrated() throws Exception
+    {
+        History history = createHistory(HistoryService.STORAGE_XML);
+        HistoryFixture.writeRecords(history, 0, 200);
+        assertEquals("the history was not stored in XML",
+                     0, fixture.findFiles(".log").length);
+
+        history = fixture.reopen(HistoryService.STORAGE_LOG);
+        assertEquals("the marker of the migration is missing", 1,
+            fixture.findFiles(XmlHistoryMigrator.MIGRATED_MARKER).length);
+        assertEquals("records were not migrated",
+                     200, history.getReader().countRecords());
+
+        HistoryFixture.writeRecords(history, 200, 1);
+
+        history = fixture.reopen(HistoryService.STORAGE_LOG);
+        QueryResultSet records
+            = history.getReader().findByStartDate(new Date(START - 1));
+        assertEquals("the history was migrated twice",
+                     201, HistoryFixture.size(records));
+        records = history.getReader().findByStartDate(new Date(START - 1));
+        for (int i = 0; i < 201; i++)
+        {
+            HistoryRecord record = (HistoryRecord) records.next();
+            assertEquals("wrong migrated record",
+                         "message " + i, record.getPropertyValues()[1]);
+        }
+    }
+
+    /**
+     * Makes sure that deactivating the service stops its sync timer and
+     * leaves the records written before readable after a restart.
+     * @throws Exception if anything goes wrong.
+     */
+    public void testDeactivateSyncsAndStops() throws Exception
+    {
+        HistoryServiceImpl service = (HistoryServiceImpl)
+            fixture.createHistoryService(HistoryService.STORAGE_LOG);
+        History history = service.createHistory(
+            HistoryFixture.historyID, HistoryFixture.recordStructure);
+        int timerCount = countSyncTimers();
+
+        HistoryFixture.writeRecords(history, 0, 3);
+        assertEquals("the sync timer was not started",
+                     timerCount + 1, countSyncTimers());
+
+        service.deactivate();
+        long deadline = System.currentTimeMillis() + 5000;
+        while (countSyncTimers() > timerCount
+               && System.currentTimeMillis() < deadline)
+            Thread.sleep(10);
+        assertEquals("the sync timer was not stopped",
+                     timerCount, countSyncTimers());
+
+        history = fixture.reopen(HistoryService.STORAGE_LOG);
+        assertEquals("records were lost on shutdown",
+                     3, history.getReader().countRecords());
+    }
+
+    private static int countSyncTimers()
+    {
+        Thread[] threads = new Thread[Thread.activeCount() + 16];
+        int count = 0;
+        for (int i = Thread.enumerate(threads) - 1; i >= 0; i--)
+        {
+            if ("HistoryLogSync".equals(threads[i].getName()))
+                count++;
+        }
+        return count;
+    }
+
+    private History createHistory(String storage)
+        throws Exception
+    {
+        return fixture.createHistoryService(storage).createHistory(
+            HistoryFixture.historyID, HistoryFixture.recordStructure);
+    }
+}
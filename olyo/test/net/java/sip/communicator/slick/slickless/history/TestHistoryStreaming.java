@@ -0,0 +1,162 @@
+/*
+ * SIP Communicator, the OpenSource Java VoIP and Instant Messaging client.
+ *
+ * Distributable under LGPL license.
+ * See terms of license at gnu.org.
+ */
+package net.java.sip.communicator.slick.slickless.history;
+
+import java.util.*;
+
+import junit.framework.*;
+import net.java.sip.communicator.impl.history.*;
+import net.java.sip.communicator.service.history.*;
+import net.java.sip.communicator.service.history.records.*;
+
+/**
+ * Makes sure that streaming queries of both history storages return the
+ * records the other queries do, in timestamp order, that they read the
+ * history only as they are iterated and that they can be closed.
+ */
+public class TestHistoryStreaming
+    extends TestCase
+{
+    private static final long START = HistoryFixture.START;
+
+    private HistoryFixture fixture = null;
+
+    /**
+     * Create a TestHistoryStreaming wrapper over the test with the specified
+     * name.
+     * @param name the name of the test to run
+     */
+    public TestHistoryStreaming(String name)
+    {
+        super(name);
+    }
+
+    /**
+     * Creates the directory holding the histories of the test.
+     * @throws Exception if anything goes wrong.
+     */
+    protected void setUp() throws Exception
+    {
+        super.setUp();
+        fixture = new HistoryFixture();
+    }
+
+    /**
+     * Deletes the directory of the test.
+     * @throws Exception if anything goes wrong.
+     */
+    protected void tearDown() throws Exception
+    {
+        fixture.delete();
+        super.tearDown();
+    }
+
+    /**
+     * Streams a history stored in XML.
+     * @throws Exception if anything goes wrong.
+     */
+    public void testXmlHistory() throws Exception
+    {
+        checkStorage(HistoryService.STORAGE_XML);
+    }
+
+    /**
+     * Streams a history stored as a log.
+     * @throws Exception if anything goes wrong.
+     */
+    public void testLogHistory() throws Exception
+    {
+        checkStorage(HistoryService.STORAGE_LOG);
+    }
+
+    /**
+     * Makes sure that a stream only reads the files it needs for the
+     * records returned so far.
+     * @throws Exception if anything goes wrong.
+     */
+    public void testFilesAreReadLazily() throws Exception
+    {
+        HistoryService service =
+            fixture.createHistoryService(HistoryService.STORAGE_XML);
+        History history = service.createHistory(
+            HistoryFixture.historyID, HistoryFixture.recordStructure);
+        HistoryFixture.writeRecords(history, 0, 1000);
+
+        //a restart, so that nothing is cached yet
+        service = fixture.createHistoryService(HistoryService.STORAGE_XML);
+        service.getExistingIDs();
+        history = service.getHistory(HistoryFixture.historyID);
+        DocumentCache cache = ((HistoryServiceImpl) service).getDocumentCache();
+
+        HistoryRecordStream stream =
+            history.getReader().streamByPeriod(null, null, null, null, false);
+        for (int i = 0; i < 10; i++)
+        {
+            assertEquals("wrong record", START + i,
+                         stream.nextRecord().getTimestamp().getTime());
+        }
+        assertTrue("more files than needed were read: " + cache,
+                   cache.getMissCount() <= 2);
+
+        stream.close();
+        assertFalse("a closed stream returned records", stream.hasNext());
+    }
+
+    /**
+     * Compares streaming queries with the same non streaming queries.
+     */
+    private void checkStorage(String storage)
+        throws Exception
+    {
+        History history = fixture.createHistoryService(storage).createHistory(
+            HistoryFixture.historyID, HistoryFixture.recordStructure);
+        HistoryFixture.writeRecords(history, 0, 500);
+
+        HistoryReader reader = history.getReader();
+
+        assertEquals("wrong records",
+                     toList(reader.findByPeriod(null, null)),
+                     toList(reader.streamByPeriod(
+                         null, null, null, null, false)));
+
+        Date startDate = new Date(START + 120);
+        Date endDate = new Date(START + 420);
+        assertEquals("wrong records in period",
+                     toList(reader.findByPeriod(startDate, endDate)),
+                     toList(reader.streamByPeriod(
+                         startDate, endDate, null, null, false)));
+
+        String[] keywords = new String[] { "message 3" };
+        assertEquals("wrong records by keyword",
+                     toList(reader.findByPeriod(
+                         startDate, null, keywords, "msg", true)),
+                     toList(reader.streamByPeriod(
+                         startDate, null, keywords, "msg", true)));
+
+        assertEquals("records found out of the history", 0,
+                     toList(reader.streamByPeriod(new Date(START + 1000),
+                         null, null, null, false)).size());
+    }
+
+    /**
+     * Returns the timestamps of the records, checking they are ascending.
+     */
+    private static List toList(Iterator records)
+    {
+        List result = new ArrayList();
+        long last = Long.MIN_VALUE;
+        while (records.hasNext())
+        {
+            long timestamp =
+                ((HistoryRecord) records.next()).getTimestamp().getTime();
+            assertTrue("records out of order", timestamp >= last);
+            last = timestamp;
+            result.add(new Long(timestamp));
+        }
+        return result;
+    }
+}
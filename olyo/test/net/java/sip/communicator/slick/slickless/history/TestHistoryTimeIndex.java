@@ -0,0 +1,224 @@
+/*
+ * SIP Communicator, the OpenSource Java VoIP and Instant Messaging client.
+ *
+ * Distributable under LGPL license.
+ * See terms of license at gnu.org.
+ */
+package net.java.sip.communicator.slick.slickless.history;
+
+import java.io.*;
+import java.util.*;
+
+import junit.framework.*;
+import net.java.sip.communicator.impl.history.*;
+import net.java.sip.communicator.service.history.*;
+import net.java.sip.communicator.service.history.records.*;
+
+/**
+ * Makes sure that the period and "last N" queries and the record count
+ * answered with the time index of a history stored in XML return what
+ * going through every record would, also when records were added with
+ * past dates, after a restart and when the saved index is unusable.
+ */
+public class TestHistoryTimeIndex
+    extends TestCase
+{
+    private static final long START = HistoryFixture.START;
+
+    private static final long[] DATES = new long[] {
+        START - 1, START + 5, START + 1000, START + 1505, START + 3000,
+        START + 3955, START + 4200, START + 6000 };
+
+    private static final int[] COUNTS = new int[] { 1, 7, 40, 200, 1000 };
+
+    private HistoryFixture fixture = null;
+
+    /**
+     * The timestamps of the records of the history, in the order they were
+     * written.
+     */
+    private List timestamps = new ArrayList();
+
+    /**
+     * Create a TestHistoryTimeIndex wrapper over the test with the specified
+     * name.
+     * @param name the name of the test to run
+     */
+    public TestHistoryTimeIndex(String name)
+    {
+        super(name);
+    }
+
+    /**
+     * Creates the directory holding the histories of the test.
+     * @throws Exception if anything goes wrong.
+     */
+    protected void setUp() throws Exception
+    {
+        super.setUp();
+        fixture = new HistoryFixture();
+    }
+
+    /**
+     * Deletes the directory of the test.
+     * @throws Exception if anything goes wrong.
+     */
+    protected void tearDown() throws Exception
+    {
+        fixture.delete();
+        super.tearDown();
+    }
+
+    /**
+     * Runs the queries while records are written and after restarts.
+     * @throws Exception if anything goes wrong.
+     */
+    public void testQueries() throws Exception
+    {
+        History history = fixture.createHistoryService(
+            HistoryService.STORAGE_XML).createHistory(
+                HistoryFixture.historyID, HistoryFixture.recordStructure);
+
+        for (int i = 0; i < 400; i++)
+            write(history, START + i * 10);
+        // records with past dates, in the last file
+        for (int i = 1; i <= 3; i++)
+            write(history, START + 3955 - i * 10);
+
+        checkQueries(history);
+
+        history = fixture.reopen(HistoryService.STORAGE_XML);
+        checkQueries(history);
+        assertTrue("the index was not saved",
+                   new File(fixture.findFiles(".xml")[0].getParentFile(),
+                            TimeIndex.INDEX_FILENAME).exists());
+
+        for (int i = 400; i < 500; i++)
+            write(history, START + i * 10);
+        checkQueries(history);
+
+        history = fixture.reopen(HistoryService.STORAGE_XML);
+        checkQueries(history);
+    }
+
+    /**
+     * Makes sure that an unreadable index is built again from the files.
+     * @throws Exception if anything goes wrong.
+     */
+    public void testDamagedIndex() throws Exception
+    {
+        History history = fixture.createHistoryService(
+            HistoryService.STORAGE_XML).createHistory(
+                HistoryFixture.historyID, HistoryFixture.recordStructure);
+        for (int i = 0; i < 400; i++)
+            write(history, START + i * 10);
+
+        history = fixture.reopen(HistoryService.STORAGE_XML);
+        checkQueries(history);
+
+        File indexFile = new File(fixture.findFiles(".xml")[0].getParentFile(),
+                                  TimeIndex.INDEX_FILENAME);
+        FileOutputStream out = new FileOutputStream(indexFile);
+        out.write(new byte[] { 1, 2, 3 });
+        out.close();
+
+        history = fixture.reopen(HistoryService.STORAGE_XML);
+        checkQueries(history);
+    }
+
+    private void write(History history, long timestamp)
+        throws IOException
+    {
+        history.getWriter().addRecord(
+            new String[] { "in", "message " + timestamps.size() },
+            new Date(timestamp));
+        timestamps.add(new Long(timestamp));
+    }
+
+    /**
+     * Compares the results of the queries with the records matching them.
+     */
+    private void checkQueries(History history)
+    {
+        HistoryReader reader = history.getReader();
+
+        assertEquals("wrong record count",
+                     timestamps.size(), reader.countRecords());
+
+        for (int c = 0; c < COUNTS.length; c++)
+        {
+            int count = COUNTS[c];
+            assertEquals("wrong last " + count,
+                         expected(null, null, count, false),
+                         result(reader.findLast(count)));
+
+            for (int d = 0; d < DATES.length; d++)
+            {
+                Date date = new Date(DATES[d]);
+
+                assertEquals("wrong first " + count + " after " + DATES[d],
+                             expected(date, null, count, true),
+                             result(reader.findFirstRecordsAfter(date, count)));
+                assertEquals("wrong last " + count + " before " + DATES[d],
+                             expected(null, date, count, false),
+                             result(reader.findLastRecordsBefore(date, count)));
+            }
+        }
+
+        for (int s = 0; s < DATES.length; s++)
+        {
+            Date startDate = new Date(DATES[s]);
+            assertEquals("wrong records after " + DATES[s],
+                         expected(startDate, null, -1, true),
+                         result(reader.findByStartDate(startDate)));
+            assertEquals("wrong records before " + DATES[s],
+                         expected(null, startDate, -1, true),
+                         result(reader.findByEndDate(startDate)));
+
+            for (int e = s + 1; e < DATES.length; e++)
+            {
+                Date endDate = new Date(DATES[e]);
+                assertEquals("wrong records between " + DATES[s]
+                                 + " and " + DATES[e],
+                             expected(startDate, endDate, -1, true),
+                             result(reader.findByPeriod(startDate, endDate)));
+            }
+        }
+    }
+
+    /**
+     * Returns the sorted timestamps of the records in the period, at most
+     * <tt>count</tt> of them if it is not negative, the first or the last
+     * written ones.
+     */
+    private List expected(Date startDate, Date endDate, int count,
+                          boolean first)
+    {
+        List result = new ArrayList();
+        for (int i = 0; i < timestamps.size(); i++)
+        {
+            int index = first ? i : timestamps.size() - 1 - i;
+            long timestamp = ((Long) timestamps.get(index)).longValue();
+
+            if ((startDate == null || timestamp > startDate.getTime())
+                && (endDate == null || timestamp < endDate.getTime()))
+                result.add(new Long(timestamp));
+
+            if (result.size() == count)
+                break;
+        }
+        Collections.sort(result);
+        return result;
+    }
+
+    private static List result(QueryResultSet records)
+    {
+        List result = new ArrayList();
+        while (records.hasNext())
+        {
+            result.add(new Long(((HistoryRecord) records.next())
+                .getTimestamp().getTime()));
+        }
+        return result;
+    }
+}
@@ -0,0 +1,208 @@
+/*
+ * SIP Communicator, the OpenSource Java VoIP and Instant Messaging client.
+ *
+ * Distributable under LGPL license.
+ * See terms of license at gnu.org.
+ */
+package net.java.sip.communicator.slick.slickless.history;
+
+import java.util.*;
+
+import junit.framework.*;
+import net.java.sip.communicator.impl.history.*;
+import net.java.sip.communicator.service.history.*;
+
+/**
+ * Tests writing the records of histories stored in XML behind the threads
+ * adding them: that the queued records are found before they are written,
+ * that they are written in batches, that the queue stays within its bounds
+ * and that stopping the service writes what is left.
+ */
+public class TestHistoryWriteBehind
+    extends TestCase
+{
+    private static final long START = HistoryFixture.START;
+
+    private HistoryFixture fixture = null;
+
+    /**
+     * Create a TestHistoryWriteBehind wrapper over the test with the
+     * specified name.
+     * @param name the name of the test to run
+     */
+    public TestHistoryWriteBehind(String name)
+    {
+        super(name);
+    }
+
+    /**
+     * Creates the directory holding the histories of the test.
+     * @throws Exception if anything goes wrong.
+     */
+    protected void setUp() throws Exception
+    {
+        super.setUp();
+        fixture = new HistoryFixture();
+    }
+
+    /**
+     * Deletes the directory of the test.
+     * @throws Exception if anything goes wrong.
+     */
+    protected void tearDown() throws Exception
+    {
+        fixture.delete();
+        super.tearDown();
+    }
+
+    /**
+     * Makes sure that records waiting in the queue are found by the readers
+     * and are written by a flush.
+     * @throws Exception if anything goes wrong.
+     */
+    public void testQueuedRecordsAreFound() throws Exception
+    {
+        HistoryServiceImpl service = createService("60000", "1000", "1000");
+        History history = service.createHistory(
+            HistoryFixture.historyID, HistoryFixture.recordStructure);
+        WriteBehindQueue queue = service.getWriteBehindQueue();
+
+        HistoryFixture.writeRecords(history, 0, 400);
+
+        assertEquals("wrong queue depth", 400, queue.getQueueDepth());
+        assertEquals("queued records were not found", 400, HistoryFixture.size(
+            history.getReader().findByStartDate(new Date(START - 1))));
+        assertEquals("wrong last records", 10, HistoryFixture.size(
+            history.getReader().findLast(10)));
+
+        queue.flush();
+
+        assertEquals("records left in the queue", 0, queue.getQueueDepth());
+        assertEquals("records were not written", 400, HistoryFixture.size(
+            fixture.reopen(HistoryService.STORAGE_XML).getReader()
+                .findByStartDate(new Date(START - 1))));
+    }
+
+    /**
+     * Makes sure that the records are written in batches, by the thread of
+     * the queue.
+     * @throws Exception if anything goes wrong.
+     */
+    public void testRecordsAreWrittenInBatches() throws Exception
+    {
+        HistoryServiceImpl service = createService("50", "20", "100");
+        History history = service.createHistory(
+            HistoryFixture.historyID, HistoryFixture.recordStructure);
+        WriteBehindQueue queue = service.getWriteBehindQueue();
+
+        HistoryFixture.writeRecords(history, 0, 300);
+
+        long end = System.currentTimeMillis() + 10000;
+        while (queue.getQueueDepth() > 0 && System.currentTimeMillis() < end)
+            Thread.sleep(10);
+
+        assertEquals("records were not written", 0, queue.getQueueDepth());
+        assertEquals("wrong number of written records",
+                     300, queue.getWrittenRecordCount());
+        assertTrue("records were not written in batches: " + queue,
+                   queue.getWriteCount() < 300);
+        assertTrue("the queue is too deep: " + queue,
+                   queue.getMaxQueueDepth() <= 101);
+
+        assertEquals("records were not written", 300, HistoryFixture.size(
+            fixture.reopen(HistoryService.STORAGE_XML).getReader()
+                .findByStartDate(new Date(START - 1))));
+    }
+
+    /**
+     * Makes sure that the threads adding records wait once the queue is
+     * full, from several threads.
+     * @throws Exception if anything goes wrong.
+     */
+    public void testQueueIsBounded() throws Exception
+    {
+        HistoryServiceImpl service = createService("60000", "10", "10");
+        final History history = service.createHistory(
+            HistoryFixture.historyID, HistoryFixture.recordStructure);
+        WriteBehindQueue queue = service.getWriteBehindQueue();
+
+        Thread[] threads = new Thread[4];
+        final List errors = new Vector();
+        for (int t = 0; t < threads.length; t++)
+        {
+            final int first = t * 100;
+            threads[t] = new Thread()
+            {
+                public void run()
+                {
+                    try
+                    {
+                        HistoryFixture.writeRecords(history, first, 100);
+                    }
+                    catch (Exception ex)
+                    {
+                        errors.add(ex);
+                    }
+                }
+            };
+            threads[t].start();
+        }
+        for (int t = 0; t < threads.length; t++)
+            threads[t].join();
+
+        assertTrue("records could not be written: " + errors,
+                   errors.isEmpty());
+        assertTrue("the queue is too deep: " + queue,
+                   queue.getMaxQueueDepth() <= 10 + threads.length);
+
+        queue.flush();
+        assertEquals("records were not written", 400, HistoryFixture.size(
+            fixture.reopen(HistoryService.STORAGE_XML).getReader()
+                .findByStartDate(new Date(START - 1))));
+    }
+
+    /**
+     * Makes sure that stopping the service writes the queued records and
+     * that the records added afterwards are written right away.
+     * @throws Exception if anything goes wrong.
+     */
+    public void testStopWritesQueuedRecords() throws Exception
+    {
+        HistoryServiceImpl service = createService("60000", "1000", "1000");
+        History history = service.createHistory(
+            HistoryFixture.historyID, HistoryFixture.recordStructure);
+
+        HistoryFixture.writeRecords(history, 0, 200);
+        service.deactivate();
+
+        assertEquals("records left in the queue",
+                     0, service.getWriteBehindQueue().getQueueDepth());
+        assertEquals("records were not written", 200, HistoryFixture.size(
+            fixture.reopen(HistoryService.STORAGE_XML).getReader()
+                .findByStartDate(new Date(START - 1))));
+
+        HistoryFixture.writeRecords(history, 200, 10);
+        assertEquals("records were not written", 210, HistoryFixture.size(
+            fixture.reopen(HistoryService.STORAGE_XML).getReader()
+                .findByStartDate(new Date(START - 1))));
+    }
+
+    private HistoryServiceImpl createService(String maxDelay,
+                                             String batchSize,
+                                             String queueSize)
+        throws Exception
+    {
+        Map properties = new HashMap();
+        properties.put(HistoryService.STORAGE_PROPERTY,
+                       HistoryService.STORAGE_XML);
+        properties.put(HistoryService.WRITE_BEHIND_ENABLED_PROPERTY,
+                       HistoryService.WRITE_BEHIND_ENABLED);
+        properties.put(HistoryService.WRITE_BEHIND_MAX_DELAY_PROPERTY,
+                       maxDelay);
+        properties.put(HistoryService.WRITE_BEHIND_BATCH_SIZE_PROPERTY,
+                       batchSize);
+        properties.put(HistoryService.WRITE_BEHIND_QUEUE_SIZE_PROPERTY,
+                       queueSize);
+        return (HistoryServiceImpl) fixture.createHistoryService(properties);
+    }
+}
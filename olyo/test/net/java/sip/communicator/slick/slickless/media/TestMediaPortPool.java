@@ -0,0 +1,325 @@
+/*
+ * SIP Communicator, the OpenSource Java VoIP and Instant Messaging client.
+ *
+ * Distributable under LGPL license.
+ * See terms of license at gnu.org.
+ */
+package net.java.sip.communicator.slick.slickless.media;
+
+import java.io.*;
+import java.net.*;
+import java.util.*;
+
+import junit.framework.*;
+import net.java.sip.communicator.impl.media.*;
+import net.java.sip.communicator.service.netaddr.*;
+import net.java.sip.communicator.util.*;
+
+/**
+ * Makes sure that the media port pool gets pairs of ports ready with the
+ * public addresses the network address manager gives for them, hands them
+ * out free without waiting on the manager, resolves them again as they get
+ * old, holds their ports while they wait and gets pairs ready again when the
+ * destination is reached through another local address. The network address
+ * manager is a fake one, answering as slowly as a STUN server.
+ */
+public class TestMediaPortPool
+    extends TestCase
+{
+    private static Logger logger = Logger.getLogger(TestMediaPortPool.class);
+
+    /**
+     * The number of milliseconds the fake manager takes to resolve a public
+     * address.
+     */
+    private static final long QUERY_TIME = 100;
+
+    private static final int POOL_SIZE = 4;
+
+    private static final long TIMEOUT = 10000;
+
+    private FakeNetworkAddressManager netAddressManager = null;
+
+    private MediaPortPool pool = null;
+
+    private int minPort;
+
+    private int maxPort;
+
+    private InetAddress destination = null;
+
+    /**
+     * Create a TestMediaPortPool wrapper over the test with the specified
+     * name.
+     * @param name the name of the test to run
+     */
+    public TestMediaPortPool(String name)
+    {
+        super(name);
+    }
+
+    /**
+     * Picks a port range and creates the fake network address manager.
+     * @throws Exception if anything goes wrong.
+     */
+    protected void setUp() throws Exception
+    {
+        super.setUp();
+        minPort = 20000 + 2 * new Random().nextInt(10000);
+        maxPort = minPort + 99;
+        destination = InetAddress.getByName("192.0.2.1");
+        netAddressManager = new FakeNetworkAddressManager();
+    }
+
+    /**
+     * Closes the pool.
+     * @throws Exception if anything goes wrong.
+     */
+    protected void tearDown() throws Exception
+    {
+        if (pool != null)
+            pool.close();
+        super.tearDown();
+    }
+
+    /**
+     * Makes sure that pairs are taken without waiting once they are ready,
+     * with the public address of their data port and free ports.
+     * @throws Exception if anything goes wrong.
+     */
+    public void testTakeReadyPairs() throws Exception
+    {
+        pool = new MediaPortPool(netAddressManager, minPort, maxPort,
+                                 POOL_SIZE, 60000);
+
+        assertNull("a pair was ready before any destination was known",
+                   pool.take(destination));
+        waitForReadyPairs(POOL_SIZE);
+
+        Set dataPorts = new HashSet();
+        long time = System.currentTimeMillis();
+        for (int i = 0; i < POOL_SIZE; i++)
+        {
+            MediaPortPool.PortPair pair = pool.take(destination);
+            time = System.currentTimeMillis() - time;
+            assertNotNull("no pair was ready", pair);
+            assertTrue("taking a pair waited on the manager",
+                       time < QUERY_TIME);
+
+            assertTrue("the pair is out of the range",
+                       pair.getDataPort() >= minPort
+                       && pair.getControlPort() <= maxPort);
+            assertEquals("wrong control port",
+                         pair.getDataPort() + 1, pair.getControlPort());
+            assertEquals("wrong public address",
+                         netAddressManager.getMapping(pair.getDataPort()),
+                         pair.getPublicAddress());
+            assertTrue("a pair was taken twice",
+                       dataPorts.add(new Integer(pair.getDataPort())));
+
+            new DatagramSocket(pair.getDataPort()).close();
+            new DatagramSocket(pair.getControlPort()).close();
+
+            logger.info("Took the ports " + pair.getDataPort() + "/"
+                + pair.getControlPort() + " in " + time
+                + " ms, resolving their address took " + QUERY_TIME + " ms");
+            time = System.currentTimeMillis();
+        }
+
+        assertEquals("the pairs were not resolved while being bound",
+                     0, netAddressManager.getBindFailures());
+        waitForReadyPairs(POOL_SIZE);
+    }
+
+    /**
+     * Makes sure that the public addresses of the pairs are resolved again
+     * after the refresh interval, with the data port released for the query.
+     * @throws Exception if anything goes wrong.
+     */
+    public void testRefresh() throws Exception
+    {
+        pool = new MediaPortPool(netAddressManager, minPort, maxPort,
+                                 POOL_SIZE, 1000);
+        pool.take(destination);
+        waitForReadyPairs(POOL_SIZE);
+
+        int queries = netAddressManager.getQueryCount();
+        Thread.sleep(2500);
+
+        assertTrue("the pairs were not resolved again",
+                   netAddressManager.getQueryCount() >= queries + POOL_SIZE);
+        // a pair being resolved again is not ready meanwhile
+        waitForReadyPairs(POOL_SIZE);
+        assertEquals("the pairs were resolved while being bound",
+                     0, netAddressManager.getBindFailures());
+    }
+
+    /**
+     * Makes sure that the ports of the ready pairs are held, and released
+     * when the pool is closed.
+     * @throws Exception if anything goes wrong.
+     */
+    public void testPortsHeld() throws Exception
+    {
+        maxPort = minPort + 3;
+        pool = new MediaPortPool(netAddressManager, minPort, maxPort,
+                                 POOL_SIZE, 60000);
+        pool.take(destination);
+        waitForReadyPairs(2);
+        Thread.sleep(3 * QUERY_TIME);
+        assertEquals("more pairs than the range holds were ready",
+                     2, pool.getReadyCount());
+
+        for (int port = minPort; port <= maxPort; port++)
+        {
+            try
+            {
+                new DatagramSocket(port).close();
+                fail("the port " + port + " of a ready pair was free");
+            }
+            catch (BindException ex)
+            {
+                // the port is held by the pool
+            }
+        }
+
+        pool.close();
+        for (int port = minPort; port <= maxPort; port++)
+            new DatagramSocket(port).close();
+    }
+
+    /**
+     * Makes sure that the ready pairs are not given to a session whose
+     * destination is reached through another local address, and that pairs
+     * are then resolved for the new destination.
+     * @throws Exception if anything goes wrong.
+     */
+    public void testRouteChange() throws Exception
+    {
+        pool = new MediaPortPool(netAddressManager, minPort, maxPort,
+                                 POOL_SIZE, 60000);
+        pool.take(destination);
+        waitForReadyPairs(POOL_SIZE);
+
+        InetAddress otherDestination = InetAddress.getByName("10.0.0.1");
+        assertNull("a pair resolved for another route was taken",
+                   pool.take(otherDestination));
+        assertEquals("the pairs of the old route were kept",
+                     0, pool.getReadyCount());
+
+        waitForReadyPairs(POOL_SIZE);
+        assertEquals("the pairs were not resolved for the new destination",
+                     otherDestination,
+                     netAddressManager.getLastDestination());
+        assertNotNull("no pair was ready for the new destination",
+                      pool.take(otherDestination));
+    }
+
+    private void waitForReadyPairs(int count) throws InterruptedException
+    {
+        long deadline = System.currentTimeMillis() + TIMEOUT;
+        while (pool.getReadyCount() < count
+               && System.currentTimeMillis() < deadline)
+            Thread.sleep(10);
+        assertEquals("the pairs were not ready", count, pool.getReadyCount());
+    }
+
+    /**
+     * A network address manager which binds the port like the real one
+     * does when resolving an address, takes as long as a STUN query, and
+     * reaches the 10.0.0.0/8 addresses through another local address.
+     */
+    private static class FakeNetworkAddressManager
+        implements NetworkAddressManagerService
+    {
+        private int queryCount = 0;
+
+        private int bindFailures = 0;
+
+        private InetAddress lastDestination = null;
+
+        public InetAddress getLocalHost(InetAddress intendedDestination)
+        {
+            try
+            {
+                return InetAddress.getByName(
+                    (intendedDestination.getAddress()[0] == 10)
+                        ? "10.0.0.2"
+                        : "198.51.100.2");
+            }
+            catch (UnknownHostException ex)
+            {
+                throw new RuntimeException(ex);
+            }
+        }
+
+        public InetSocketAddress getPublicAddressFor(InetAddress dst,
+                                                     int port)
+            throws IOException
+        {
+            try
+            {
+                new DatagramSocket(port).close();
+            }
+            catch (BindException ex)
+            {
+                synchronized (this)
+                {
+                    bindFailures++;
+                }
+                throw ex;
+            }
+
+            try
+            {
+                Thread.sleep(QUERY_TIME);
+            }
+            catch (InterruptedException ex)
+            {
+                throw new InterruptedIOException();
+            }
+
+            synchronized (this)
+            {
+                queryCount++;
+                lastDestination = dst;
+            }
+            return getMapping(port);
+        }
+
+        public InetSocketAddress getPublicAddressFor(int port)
+            throws IOException
+        {
+            return getPublicAddressFor(InetAddress.getByName("192.0.2.1"),
+                                       port);
+        }
+
+        public void start()
+        {
+        }
+
+        public void stop()
+        {
+        }
+
+        InetSocketAddress getMapping(int port)
+        {
+            return new InetSocketAddress("203.0.113.1", port + 10000);
+        }
+
+        synchronized int getQueryCount()
+        {
+            return queryCount;
+        }
+
+        synchronized int getBindFailures()
+        {
+            return bindFailures;
+        }
+
+        synchronized InetAddress getLastDestination()
+        {
+            return lastDestination;
+        }
+    }
+}
@@ -0,0 +1,292 @@
+/*
+ * SIP Communicator, the OpenSource Java VoIP and Instant Messaging client.
+ *
+ * Distributable under LGPL license.
+ * See terms of license at gnu.org.
+ */
+package net.java.sip.communicator.slick.slickless.protocol.sip;
+
+import java.io.*;
+import java.math.*;
+import java.net.*;
+import java.security.*;
+import java.util.*;
+import java.util.concurrent.atomic.*;
+
+import org.apache.xmlrpc.*;
+import org.apache.xmlrpc.server.*;
+import org.apache.xmlrpc.util.*;
+import org.apache.xmlrpc.webserver.*;
+
+/**
+ * A local XML-RPC server answering put_removable, get and rm from an in
+ * memory map. Values are kept with the hash of the secret they were put
+ * with, and get pages through them with a placemark holding the index of
+ * the next value.
+ */
+class DHTGatewayStub
+    implements XmlRpcHandlerMapping, XmlRpcHandler
+{
+    private final WebServer webServer;
+
+    final String url;
+
+    /**
+     * The number of connections accepted so far.
+     */
+    final AtomicInteger connectionCount = new AtomicInteger();
+
+    /**
+     * The number of requests received so far.
+     */
+    final AtomicInteger requestCount = new AtomicInteger();
+
+    /**
+     * Result codes returned to the next puts instead of storing them.
+     */
+    private final LinkedList<Integer> nextAnswers
+        = new LinkedList<Integer>();
+
+    /**
+     * How long the stub waits before answering a get, in ms.
+     */
+    private volatile long getDelay = 0;
+
+    /**
+     * Whether the stub fails every request, as a broken gateway would.
+     */
+    private volatile boolean down = false;
+
+    /**
+     * The stored values, by hexadecimal key hash, in insertion order.
+     */
+    private final Map<String, List<byte[]>> values
+        = new HashMap<String, List<byte[]>>();
+
+    /**
+     * The hexadecimal secret hashes, by hexadecimal key and value hash.
+     */
+    private final Map<String, String> secrets
+        = new HashMap<String, String>();
+
+    DHTGatewayStub() throws Exception
+    {
+        webServer = new WebServer(0)
+        {
+            /**
+             * The pool of the web server may miss the wake-up of an
+             * idle thread and leave a connection unserved, so each
+             * connection gets a thread of its own.
+             */
+            protected ThreadPool newThreadPool()
+            {
+                return new ThreadPool(0, "DHTGatewayStub")
+                {
+                    public boolean startTask(final Task task)
+                    {
+                        new Thread()
+                        {
+                            public void run()
+                            {
+                                try
+                                {
+                                    task.run();
+                                }
+                                catch (Throwable t)
+                                {
+                                    //the connection is closed anyway
+                                }
+                            }
+                        }.start();
+                        return true;
+                    }
+                };
+            }
+
+            protected ServerSocket createServerSocket(
+                int port, int backlog, InetAddress addr)
+                throws IOException
+            {
+                return new ServerSocket(port, backlog, addr)
+                {
+                    public Socket accept() throws IOException
+                    {
+                        Socket socket = super.accept();
+                        connectionCount.incrementAndGet();
+                        return socket;
+                    }
+                };
+            }
+        };
+        ((XmlRpcServerConfigImpl) webServer.getXmlRpcServer().getConfig())
+            .setKeepAliveEnabled(true);
+        webServer.getXmlRpcServer().setHandlerMapping(this);
+        webServer.start();
+        url = "http://127.0.0.1:" + webServer.getPort() + "/";
+    }
+
+    void shutdown()
+    {
+        webServer.shutdown();
+    }
+
+    synchronized boolean isEmpty()
+    {
+        return values.isEmpty();
+    }
+
+    synchronized void setNextAnswers(int[] resultCodes)
+    {
+        nextAnswers.clear();
+        for (int i = 0; i < resultCodes.length; i++)
+            nextAnswers.add(new Integer(resultCodes[i]));
+    }
+
+    public XmlRpcHandler getHandler(String handlerName)
+    {
+        return this;
+    }
+
+    /**
+     * Makes the stub wait <tt>getDelay</tt> ms before answering a get, as a
+     * slow gateway would.
+     *
+     * @param getDelay the delay, in ms
+     */
+    void setGetDelay(long getDelay)
+    {
+        this.getDelay = getDelay;
+    }
+
+    /**
+     * Makes the stub fail every request. Shutting the web server down is not
+     * enough, since it leaves the kept-alive connections open.
+     *
+     * @param down whether requests should fail
+     */
+    void setDown(boolean down)
+    {
+        this.down = down;
+    }
+
+    public Object execute(XmlRpcRequest request)
+        throws XmlRpcException
+    {
+        requestCount.incrementAndGet();
+
+        if (down)
+            throw new XmlRpcException("Gateway down");
+
+        long delay = getDelay;
+        if (delay > 0 && "get".equals(request.getMethodName()))
+        {
+            try
+            {
+                Thread.sleep(delay);
+            }
+            catch (InterruptedException ex)
+            {
+                throw new XmlRpcException("Interrupted");
+            }
+        }
+
+        return answer(request);
+    }
+
+    private synchronized Object answer(XmlRpcRequest request)
+        throws XmlRpcException
+    {
+        String method = request.getMethodName();
+        String key = hex((byte[]) request.getParameter(0));
+
+        if ("put_removable".equals(method))
+        {
+            if (!nextAnswers.isEmpty())
+                return nextAnswers.removeFirst();
+
+            byte[] value = (byte[]) request.getParameter(1);
+            List<byte[]> keyValues = values.get(key);
+            if (keyValues == null)
+            {
+                keyValues = new ArrayList<byte[]>();
+                values.put(key, keyValues);
+            }
+            keyValues.add(value);
+            secrets.put(key + sha1(value),
+                        hex((byte[]) request.getParameter(3)));
+            return new Integer(0);
+        }
+        else if ("get".equals(method))
+        {
+            int max = ((Integer) request.getParameter(1)).intValue();
+            byte[] placemark = (byte[]) request.getParameter(2);
+            int from = (placemark.length == 0)
+                ? 0
+                : Integer.parseInt(new String(placemark));
+            List<byte[]> keyValues = values.get(key);
+            int size = (keyValues == null) ? 0 : keyValues.size();
+            int to = Math.min(size, from + max);
+
+            Object[] page = new Object[Math.max(0, to - from)];
+            for (int i = from; i < to; i++)
+                page[i - from] = keyValues.get(i);
+
+            byte[] next = (to < size)
+                ? String.valueOf(to).getBytes()
+                : new byte[0];
+            return new Object[]{ page, next };
+        }
+        else if ("rm".equals(method))
+        {
+            String valueHash = hex((byte[]) request.getParameter(1));
+            String secretHash = sha1((byte[]) request.getParameter(3));
+            if (!secretHash.equals(secrets.get(key + valueHash)))
+                return new Integer(0);
+
+            secrets.remove(key + valueHash);
+            List<byte[]> keyValues = values.get(key);
+            for (Iterator<byte[]> it = keyValues.iterator(); it.hasNext();)
+            {
+                if (sha1(it.next()).equals(valueHash))
+                {
+                    it.remove();
+                    break;
+                }
+            }
+            if (keyValues.isEmpty())
+                values.remove(key);
+            return new Integer(0);
+        }
+        throw new XmlRpcException("Unknown method " + method);
+    }
+
+    /**
+     * Returns the hexadecimal SHA-1 of <tt>bytes</tt>.
+     *
+     * @param bytes the bytes to hash
+     * @return the hexadecimal SHA-1 of <tt>bytes</tt>
+     */
+    static String sha1(byte[] bytes)
+    {
+        try
+        {
+            return new BigInteger(1, MessageDigest.getInstance("SHA-1")
+                .digest(bytes)).toString(16);
+        }
+        catch (NoSuchAlgorithmException ex)
+        {
+            throw new IllegalStateException(ex.getMessage());
+        }
+    }
+
+    /**
+     * Returns the hexadecimal form of a hash received from the client.
+     *
+     * @param hash the hash received from the client
+     * @return the hexadecimal form of <tt>hash</tt>
+     */
+    static String hex(byte[] hash)
+    {
+        return new BigInteger(1, hash).toString(16);
+    }
+}
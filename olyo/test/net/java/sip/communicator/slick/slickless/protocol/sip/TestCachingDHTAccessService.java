@@ -0,0 +1,203 @@
+/*
+ * SIP Communicator, the OpenSource Java VoIP and Instant Messaging client.
+ *
+ * Distributable under LGPL license.
+ * See terms of license at gnu.org.
+ */
+package net.java.sip.communicator.slick.slickless.protocol.sip;
+
+import java.util.*;
+import java.util.concurrent.*;
+
+import junit.framework.*;
+import net.java.sip.communicator.impl.protocol.sip.*;
+
+/**
+ * Makes sure that the CachingDHTAccessService serves asynchronous gets from
+ * the cache, and does not cache the values of a get which was in flight
+ * while its key was invalidated.
+ */
+public class TestCachingDHTAccessService
+    extends TestCase
+{
+    private static final String KEY = "sip:alice@example.com";
+
+    private FakeDelegate delegate = null;
+
+    private CachingDHTAccessService cache = null;
+
+    /**
+     * Create a TestCachingDHTAccessService wrapper over the test with the
+     * specified name.
+     * @param name the name of the test to run
+     */
+    public TestCachingDHTAccessService(String name)
+    {
+        super(name);
+    }
+
+    /**
+     * Creates a cache in front of a fake delegate.
+     * @throws Exception if anything goes wrong.
+     */
+    protected void setUp() throws Exception
+    {
+        super.setUp();
+        delegate = new FakeDelegate();
+        cache = new CachingDHTAccessService(delegate);
+    }
+
+    /**
+     * Shuts the cache down.
+     * @throws Exception if anything goes wrong.
+     */
+    protected void tearDown() throws Exception
+    {
+        cache.shutdown();
+        super.tearDown();
+    }
+
+    /**
+     * Makes sure that the values retrieved by an asynchronous get are cached
+     * and that the next asynchronous get is answered from the cache.
+     * @throws Exception if anything goes wrong.
+     */
+    public void testGetAsyncFromCache() throws Exception
+    {
+        cache.getAsync(KEY, null);
+        assertEquals("the get was not sent", 1, delegate.getCount());
+        delegate.complete(values("sip:alice@192.0.2.1"));
+
+        RecordingListener listener = new RecordingListener();
+        Future<Set<Object>> future = cache.getAsync(KEY, listener);
+
+        assertEquals("a cached key was retrieved again",
+                     1, delegate.getCount());
+        assertTrue("the future of a cached key was not done",
+                   future.isDone());
+        assertEquals("wrong cached values",
+                     values("sip:alice@192.0.2.1"), future.get());
+        assertEquals("the listener was not notified",
+                     values("sip:alice@192.0.2.1"), listener.result);
+    }
+
+    /**
+     * Makes sure that a get completing after a put of the same key does not
+     * cache the values it retrieved before the put.
+     * @throws Exception if anything goes wrong.
+     */
+    public void testInvalidatedGetNotCached() throws Exception
+    {
+        cache.getAsync(KEY, null);
+        cache.put(KEY, "sip:alice@192.0.2.2", 60, "secret");
+        delegate.complete(values("sip:alice@192.0.2.1"));
+
+        cache.getAsync(KEY, null);
+        assertEquals("the values of an invalidated key were cached",
+                     2, delegate.getCount());
+        delegate.complete(values("sip:alice@192.0.2.2"));
+
+        assertEquals("the values retrieved after the put were not cached",
+                     values("sip:alice@192.0.2.2"), cache.get(KEY));
+        assertEquals("a cached key was retrieved again",
+                     2, delegate.getCount());
+    }
+
+    private static Set<Object> values(String location)
+    {
+        Set<Object> values = new HashSet<Object>();
+        values.add(location);
+        return values;
+    }
+
+    /**
+     * Remembers the result it is notified of.
+     */
+    private static class RecordingListener
+        implements DHTOperationListener
+    {
+        private Object result = null;
+
+        public void operationCompleted(Object key, Object result)
+        {
+            this.result = result;
+        }
+
+        public void operationFailed(Object key, Exception cause)
+        {
+        }
+    }
+
+    /**
+     * A delegate whose gets stay in flight until the test completes them,
+     * in the order they were sent.
+     */
+    private static class FakeDelegate
+        implements AsyncDHTAccessService
+    {
+        private final LinkedList<DHTOperationListener> pendingGets
+            = new LinkedList<DHTOperationListener>();
+
+        private int getCount = 0;
+
+        int getCount()
+        {
+            return getCount;
+        }
+
+        void complete(Set<Object> values)
+        {
+            pendingGets.removeFirst().operationCompleted(KEY, values);
+        }
+
+        public Future<Set<Object>> getAsync(Object key,
+                                            DHTOperationListener listener)
+        {
+            getCount++;
+            pendingGets.addLast(listener);
+            return new FutureTask<Set<Object>>(new Callable<Set<Object>>()
+            {
+                public Set<Object> call()
+                {
+                    return null;
+                }
+            });
+        }
+
+        public Set<Object> get(Object key)
+        {
+            throw new UnsupportedOperationException();
+        }
+
+        public Map<Object, Set<Object>> getAll(Collection<?> keys)
+        {
+            throw new UnsupportedOperationException();
+        }
+
+        public void put(Object key, Object value, int ttl, String secret)
+        {
+        }
+
+        public Future<Object> putAsync(Object key, Object value, int ttl,
+                                       String secret,
+                                       DHTOperationListener listener)
+        {
+            return null;
+        }
+
+        public void remove(Object key, Object value, String secret)
+        {
+        }
+
+        public Future<Object> removeAsync(Object key, Object value,
+                                          String secret,
+                                          DHTOperationListener listener)
+        {
+            return null;
+        }
+
+        public void shutdown()
+        {
+        }
+    }
+}
@@ -0,0 +1,341 @@
+/*
+ * SIP Communicator, the OpenSource Java VoIP and Instant Messaging client.
+ *
+ * Distributable under LGPL license.
+ * See terms of license at gnu.org.
+ */
+package net.java.sip.communicator.slick.slickless.protocol.sip;
+
+import java.util.*;
+import java.util.concurrent.*;
+
+import junit.framework.*;
+import net.java.sip.communicator.impl.protocol.sip.*;
+
+/**
+ * Runs many threads against instances of the DHTAccessServiceImpl that share
+ * their per-endpoint XML-RPC clients, and checks that none of them gets the
+ * values, or the gateway, of another one. Also checks that connections to
+ * the gateway are reused, that RETRY and OVER_CAPACITY answers are
+ * counted, that a gateway which keeps asking to retry makes operations
+ * fail fast, and that the request pool does not deadlock when its listeners
+ * make blocking calls. The gateways are local DHTGatewayStubs.
+ */
+public class TestDHTAccessServiceConcurrency
+    extends TestCase
+{
+    /**
+     * The number of threads hammering the gateways.
+     */
+    private static final int THREAD_COUNT = 16;
+
+    /**
+     * The number of put/get/remove rounds each thread makes.
+     */
+    private static final int ROUNDS = 20;
+
+    private DHTGatewayStub gatewayA = null;
+
+    private DHTGatewayStub gatewayB = null;
+
+    /**
+     * Create a TestDHTAccessServiceConcurrency wrapper over the test with
+     * the specified name.
+     * @param name the name of the test to run
+     */
+    public TestDHTAccessServiceConcurrency(String name)
+    {
+        super(name);
+    }
+
+    /**
+     * Starts two stub gateways on ephemeral ports.
+     * @throws Exception if anything goes wrong.
+     */
+    protected void setUp() throws Exception
+    {
+        super.setUp();
+        gatewayA = new DHTGatewayStub();
+        gatewayB = new DHTGatewayStub();
+    }
+
+    /**
+     * Stops the stub gateways.
+     * @throws Exception if anything goes wrong.
+     */
+    protected void tearDown() throws Exception
+    {
+        gatewayA.shutdown();
+        gatewayB.shutdown();
+
+        super.tearDown();
+    }
+
+    /**
+     * Makes sure that instances created for different gateways keep talking
+     * to their own gateway, whatever the order in which they were created.
+     * @throws Exception if anything goes wrong.
+     */
+    public void testInstancesKeepTheirEndpoint() throws Exception
+    {
+        DHTAccessServiceImpl dhtA = new DHTAccessServiceImpl(gatewayA.url);
+        DHTAccessServiceImpl dhtB = new DHTAccessServiceImpl(gatewayB.url);
+
+        dhtA.put("alice", "10.0.0.1:5060", 60, "secret");
+
+        assertEquals("the value was not stored on the first gateway",
+                     1, dhtA.get("alice").size());
+        assertEquals("the value reached the wrong gateway",
+                     0, dhtB.get("alice").size());
+    }
+
+    /**
+     * Makes sure that sequential requests to a gateway do not open a new
+     * connection each.
+     * @throws Exception if anything goes wrong.
+     */
+    public void testConnectionsAreKeptAlive() throws Exception
+    {
+        DHTAccessServiceImpl dht = new DHTAccessServiceImpl(gatewayA.url);
+        int requestCount = 40;
+
+        dht.put("bob", "10.0.0.2:5060", 60, "secret");
+        for (int i = 0; i < requestCount; i++)
+            dht.get("bob");
+
+        assertTrue("a connection was opened per request: "
+                   + gatewayA.connectionCount.get() + " connections",
+                   gatewayA.connectionCount.get() < requestCount / 2);
+    }
+
+    /**
+     * Makes sure that RETRY answers are retried and counted, and that
+     * OVER_CAPACITY answers are counted and reported.
+     * @throws Exception if anything goes wrong.
+     */
+    public void testRetriesAndOverCapacityAreCounted() throws Exception
+    {
+        DHTAccessServiceImpl dht = new DHTAccessServiceImpl(gatewayA.url);
+        DHTAccessMetrics metrics = new DHTAccessMetrics();
+        dht.setMetrics(metrics);
+
+        gatewayA.setNextAnswers(new int[]{ 2, 2, 2 });
+        dht.put("carol", "10.0.0.3:5060", 60, "secret");
+        assertEquals("RETRY answers were not counted",
+                     3, metrics.getRetryCount());
+        assertEquals("the put was not retried",
+                     1, dht.get("carol").size());
+
+        gatewayA.setNextAnswers(new int[]{ 1 });
+        try
+        {
+            dht.put("carol", "10.0.0.4:5060", 60, "secret");
+            fail("OVER_CAPACITY was not reported");
+        }
+        catch (DHTOverCapacityException ex)
+        {
+            assertEquals("OVER_CAPACITY answers were not counted",
+                         1, metrics.getOverCapacityCount());
+        }
+    }
+
+    /**
+     * Makes sure that an operation stops retrying at its deadline, and that
+     * once the gateway has failed often enough requests are rejected without
+     * being sent.
+     * @throws Exception if anything goes wrong.
+     */
+    public void testDeadlineAndCircuitBreaker() throws Exception
+    {
+        DHTAccessServiceImpl dht = new DHTAccessServiceImpl(gatewayA.url);
+        DHTAccessMetrics metrics = new DHTAccessMetrics();
+        dht.setMetrics(metrics);
+        dht.setRetryPolicy(10, 40, 300);
+
+        int[] retryForever = new int[1000];
+        Arrays.fill(retryForever, 2);
+        gatewayA.setNextAnswers(retryForever);
+
+        for (int i = 0; i < DHTCircuitBreaker.DEF_FAILURE_THRESHOLD; i++)
+        {
+            long start = System.currentTimeMillis();
+            try
+            {
+                dht.put("dave", "10.0.0.5:5060", 60, "secret");
+                fail("the put did not give up");
+            }
+            catch (DHTUnavailableException ex)
+            {
+                assertTrue("the put outlived its deadline",
+                           System.currentTimeMillis() - start < 1000);
+            }
+        }
+
+        int requestCount = gatewayA.requestCount.get();
+        try
+        {
+            dht.get("dave");
+            fail("the gateway was not considered unavailable");
+        }
+        catch (DHTUnavailableException ex)
+        {
+            assertEquals("a request reached an unavailable gateway",
+                         requestCount, gatewayA.requestCount.get());
+            assertEquals("the rejection was not counted",
+                         1, metrics.getRejectedCount());
+        }
+    }
+
+    /**
+     * Makes sure that a blocking get made by an operation listener, on the
+     * only worker of the pool, completes instead of waiting behind itself.
+     * @throws Exception if anything goes wrong.
+     */
+    public void testBlockingCallFromListener() throws Exception
+    {
+        final AsyncDHTAccessServiceImpl dht = new AsyncDHTAccessServiceImpl(
+            new DHTAccessServiceImpl(gatewayA.url), 1);
+        final BlockingQueue<Object> results
+            = new LinkedBlockingQueue<Object>();
+
+        try
+        {
+            dht.put("dave", "10.0.0.4:5060", 60, "secret");
+            dht.getAsync("carol", new DHTOperationListener()
+            {
+                public void operationCompleted(Object key, Object result)
+                {
+                    try
+                    {
+                        results.add(dht.get("dave"));
+                    }
+                    catch (Exception ex)
+                    {
+                        results.add(ex);
+                    }
+                }
+
+                public void operationFailed(Object key, Exception cause)
+                {
+                    results.add(cause);
+                }
+            });
+
+            Object result = results.poll(10, TimeUnit.SECONDS);
+            assertNotNull("the blocking call of the listener deadlocked",
+                          result);
+            if (result instanceof Exception)
+                throw (Exception) result;
+            assertEquals("wrong values for the blocking call",
+                         Collections.singleton("10.0.0.4:5060"),
+                         toStrings((Set<Object>) result));
+        }
+        finally
+        {
+            dht.shutdown();
+        }
+    }
+
+    /**
+     * Has many threads put, get and remove their own values under their own
+     * key and under a shared key at the same time, and checks that every get
+     * returns exactly the values of the calling thread.
+     * @throws Throwable if anything goes wrong.
+     */
+    public void testConcurrentPutGetRemove() throws Throwable
+    {
+        final List<Throwable> failures
+            = Collections.synchronizedList(new ArrayList<Throwable>());
+        Thread[] threads = new Thread[THREAD_COUNT];
+
+        for (int i = 0; i < threads.length; i++)
+        {
+            final int threadIndex = i;
+            final DHTGatewayStub gateway = (i % 2 == 0) ? gatewayA : gatewayB;
+
+            threads[i] = new Thread("DHTStress-" + i)
+            {
+                public void run()
+                {
+                    try
+                    {
+                        hammer(new DHTAccessServiceImpl(gateway.url),
+                               threadIndex);
+                    }
+                    catch (Throwable t)
+                    {
+                        failures.add(t);
+                    }
+                }
+            };
+        }
+
+        for (int i = 0; i < threads.length; i++)
+            threads[i].start();
+        for (int i = 0; i < threads.length; i++)
+            threads[i].join();
+
+        if (!failures.isEmpty())
+            throw failures.get(0);
+
+        assertTrue("values were left on the first gateway",
+                   gatewayA.isEmpty());
+        assertTrue("values were left on the second gateway",
+                   gatewayB.isEmpty());
+    }
+
+    /**
+     * The rounds of a single stress thread.
+     *
+     * @param dht the access service of the thread
+     * @param threadIndex the index of the thread
+     * @throws Exception if a DHT operation fails
+     */
+    private void hammer(DHTAccessServiceImpl dht, int threadIndex)
+        throws Exception
+    {
+        String key = "user" + threadIndex;
+        String secret = "secret" + threadIndex;
+
+        for (int round = 0; round < ROUNDS; round++)
+        {
+            //more values than the minimal page size, so that get pages
+            Set<String> values = new HashSet<String>();
+            for (int i = 0; i < DHTAccessServiceImpl.DEF_MIN_VALUES_PER_GET + 3;
+                    i++)
+            {
+                String value = "10.0." + threadIndex + "." + i + ":" + round;
+                values.add(value);
+                dht.put(key, value, 60, secret);
+            }
+            dht.put("shared", key + ":" + round, 60, secret);
+
+            assertEquals("wrong values for " + key,
+                         values, toStrings(dht.get(key)));
+            assertTrue("missing shared value of " + key,
+                       toStrings(dht.get("shared"))
+                           .contains(key + ":" + round));
+
+            for (String value : values)
+                dht.remove(key, value, secret);
+            dht.remove("shared", key + ":" + round, secret);
+
+            assertEquals("values of " + key + " were not removed",
+                         0, dht.get(key).size());
+        }
+    }
+
+    /**
+     * Converts the byte[] values returned by get to strings.
+     *
+     * @param values the values returned by get
+     * @return the values as strings
+     */
+    private static Set<String> toStrings(Set<Object> values)
+    {
+        Set<String> strings = new HashSet<String>();
+        for (Object value : values)
+            strings.add(new String((byte[]) value));
+        return strings;
+    }
+}
@@ -0,0 +1,183 @@
+/*
+ * SIP Communicator, the OpenSource Java VoIP and Instant Messaging client.
+ *
+ * Distributable under LGPL license.
+ * See terms of license at gnu.org.
+ */
+package net.java.sip.communicator.slick.slickless.protocol.sip;
+
+import java.util.*;
+
+import junit.framework.*;
+import net.java.sip.communicator.impl.protocol.sip.*;
+
+/**
+ * Tests the gateway selection, the failover, the hedging and the probes of
+ * the MultiGatewayDHTAccessService against two local DHTGatewayStubs.
+ */
+public class TestMultiGatewayDHTAccessService
+    extends TestCase
+{
+    /**
+     * A probe period long enough for the probes not to interfere.
+     */
+    private static final long PROBE_PERIOD = 600000;
+
+    private DHTGatewayStub gatewayA = null;
+
+    private DHTGatewayStub gatewayB = null;
+
+    private MultiGatewayDHTAccessService dht = null;
+
+    private DHTAccessMetrics metrics = null;
+
+    /**
+     * Create a TestMultiGatewayDHTAccessService wrapper over the test with
+     * the specified name.
+     * @param name the name of the test to run
+     */
+    public TestMultiGatewayDHTAccessService(String name)
+    {
+        super(name);
+    }
+
+    /**
+     * Starts two stub gateways and a service using both of them.
+     * @throws Exception if anything goes wrong.
+     */
+    protected void setUp() throws Exception
+    {
+        super.setUp();
+        gatewayA = new DHTGatewayStub();
+        gatewayB = new DHTGatewayStub();
+
+        List<String> urls = new ArrayList<String>();
+        urls.add(gatewayA.url);
+        urls.add(gatewayB.url);
+        dht = new MultiGatewayDHTAccessService(urls, 95, PROBE_PERIOD);
+        metrics = new DHTAccessMetrics();
+        dht.setMetrics(metrics);
+    }
+
+    /**
+     * Stops the service and the stub gateways.
+     * @throws Exception if anything goes wrong.
+     */
+    protected void tearDown() throws Exception
+    {
+        dht.stop();
+        gatewayA.shutdown();
+        gatewayB.shutdown();
+
+        super.tearDown();
+    }
+
+    /**
+     * Makes sure that GETs go to the gateway which answers faster.
+     * @throws Exception if anything goes wrong.
+     */
+    public void testFastestGatewayIsUsed() throws Exception
+    {
+        gatewayA.setGetDelay(100);
+        warmUp();
+
+        int requestCountA = gatewayA.requestCount.get();
+        int requestCountB = gatewayB.requestCount.get();
+        for (int i = 0; i < 10; i++)
+            dht.get("erin");
+
+        //the slow gateway may still get a hedged GET now and then
+        assertTrue("the fast gateway was not used",
+                   gatewayB.requestCount.get() - requestCountB >= 10);
+        assertTrue("the slow gateway was used",
+                   gatewayA.requestCount.get() - requestCountA < 10);
+    }
+
+    /**
+     * Makes sure that a PUT sent to a gateway which fails goes to the
+     * other one.
+     * @throws Exception if anything goes wrong.
+     */
+    public void testFailover() throws Exception
+    {
+        gatewayB.setGetDelay(50);
+        warmUp();
+        gatewayA.setDown(true);
+
+        dht.put("frank", "10.0.0.6:5060", 60, "secret");
+
+        assertEquals("the put did not reach the second gateway",
+                     1, dht.get("frank").size());
+        assertTrue("the failover was not counted",
+                   metrics.getFailoverCount() > 0);
+    }
+
+    /**
+     * Makes sure that a GET to a gateway which has become slow is answered
+     * by the other one without waiting for the slow one.
+     * @throws Exception if anything goes wrong.
+     */
+    public void testSlowGetIsHedged() throws Exception
+    {
+        gatewayB.setGetDelay(50);
+        warmUp();
+        gatewayA.setGetDelay(3000);
+        gatewayB.setGetDelay(0);
+        long hedgeCount = metrics.getHedgeCount();
+
+        long start = System.currentTimeMillis();
+        dht.get("grace");
+        long elapsed = System.currentTimeMillis() - start;
+
+        assertTrue("the GET waited for the slow gateway: " + elapsed + " ms",
+                   elapsed < 1500);
+        assertEquals("the hedged GET was not counted",
+                     hedgeCount + 1, metrics.getHedgeCount());
+    }
+
+    /**
+     * Makes sure that a gateway which does not answer its probe does not
+     * hold up the probes of the other one, and is ranked after it once the
+     * probe timeout has passed.
+     * @throws Exception if anything goes wrong.
+     */
+    public void testSlowGatewayDoesNotDelayProbes() throws Exception
+    {
+        dht.stop();
+        gatewayA.setGetDelay(5000);
+        //let the probes of the first service complete
+        Thread.sleep(200);
+        int requestCountA = gatewayA.requestCount.get();
+        int requestCountB = gatewayB.requestCount.get();
+
+        List<String> urls = new ArrayList<String>();
+        urls.add(gatewayA.url);
+        urls.add(gatewayB.url);
+        dht = new MultiGatewayDHTAccessService(urls, 95, 200, 300);
+        dht.setMetrics(metrics);
+        Thread.sleep(1500);
+
+        assertTrue("the fast gateway was not probed while the slow one was",
+                   gatewayB.requestCount.get() - requestCountB >= 4);
+        assertEquals("the slow gateway was probed again before it answered",
+                     1, gatewayA.requestCount.get() - requestCountA);
+
+        long start = System.currentTimeMillis();
+        dht.get("heidi");
+        long elapsed = System.currentTimeMillis() - start;
+        assertTrue("the GET was sent to the slow gateway first: " + elapsed
+                   + " ms", elapsed < 400);
+    }
+
+    /**
+     * Times both gateways with enough GETs for the hedging delay to be
+     * derived from their latency.
+     * @throws Exception if anything goes wrong.
+     */
+    private void warmUp() throws Exception
+    {
+        //the gateways are first tried in turn, until both are timed
+        for (int i = 0; i < 30; i++)
+            dht.get("warm-up");
+    }
+}